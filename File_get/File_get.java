@@ -82,13 +82,325 @@
 //     |--- Write Request --------------->|
 //     |<-- Write Response Negative ------|
 //     |                                  |
+//
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
 
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -98,17 +410,28 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
 import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 class File_get
 {
   public static void main(String[] args)
   {
-    if( args.length < 2 || 3 < args.length ) Usage();
-
     try {
       new File_get( args ).Run();
     }
@@ -124,7 +447,29 @@ class File_get
   }
   static void Usage()
   {
-    System.out.println("usage: File_get server_ip_addr source_file [destination_file]");
+    System.out.println("usage: File_get [-chunked] [-z] [-check] [-overlap] [-range offset:[num_bytes] | -resume] server_ip_addr source_file [destination_file]");
+    System.out.println("       File_get -segments n [-segment_size num_bytes] [-overlap] server_ip_addr source_file [destination_file]");
+    System.out.println("       File_get -m [-chunked] [-z] [-overlap] [-check | -p depth] server_ip_addr source_file [source_file ...]");
+    System.out.println("       File_get -m -x server_ip_addr source_file [source_file ...]");
+    System.out.println("       File_get [-m] -delta server_ip_addr source_file [destination_file | source_file ...]");
+    System.out.println("       File_get -sums server_ip_addr source_file [source_file ...]");
+    System.out.println("  -m : get several files over one connection, each saved under its source name");
+    System.out.println("  -p : keep up to depth read requests outstanding on the connection (max "
+                      + MAX_PIPELINE_DEPTH +")");
+    System.out.println("  -x : get up to "+ MAX_MUX_STREAMS +" files at a time as streams interleaved on one connection");
+    System.out.println("  -chunked : have the server stream each file in chunks, without sending its size first");
+    System.out.println("  -z       : have the server compress each file, if it is willing to");
+    System.out.println("  -check   : have the server add a CRC32C to each chunk and a SHA-256 to each file, and send bad chunks again");
+    System.out.println("  -overlap : write each file on a second thread while reading the socket, through a ring of buffers");
+    System.out.println("  -range  : get only num_bytes starting at offset, or up to the end of the file");
+    System.out.println("  -resume : get only the part of the file after what is already in the destination");
+    System.out.println("  -segments     : get each file over n connections at the same time, one segment each (max "
+                      + MAX_SEGMENT_CONNECTIONS +")");
+    System.out.println("  -segment_size : cut each file into segments of num_bytes instead, shared out over the n connections");
+    System.out.println("  -delta : have the server send only the parts of each file the destination's old copy of it");
+    System.out.println("           does not have, and rebuild the rest out of the old copy");
+    System.out.println("  -sums : print the SHA-256 of each file on the server, and the CRC32C of each 64 KB chunk of it,");
+    System.out.println("          without getting the file");
     System.exit( 0 );
   }
   void Msg( String msg )
@@ -137,162 +482,318 @@ class File_get
 
     m_running = false;
   }
-  File_get( String[] args )
+  // Like Die(), but only gives up on the current file, and
+  // leaves the connection usable for the next one:
+  void Fail( String msg )
   {
-    m_server_str = args[0];
-    m_src_fname  = args[1];
-    m_dst_fname  = args.length == 3 ? args[2] : m_src_fname;
-    m_dst_path   = FileSystems.getDefault().getPath( m_dst_fname );
+    Msg( msg );
 
-    m_socket = new Socket();
+    m_file_ok = false;
   }
-  void Run()
+  File_get( String[] args )
   {
-    Check_Destination_File();
-    Check_Server_Reachable();
-    Connect();
-    Get_In_Stream();
-    Get_Out_Stream();
-    Send_Read_Request();
-    final long bytes_in_file = Receive_Read_Response();
-    Receive_File_Data( bytes_in_file );
-    Print_summary_message( bytes_in_file );
+    ArrayList<String> pos_args = new ArrayList<String>();
 
-    Clean_Up();
-  }
-  void Check_Destination_File()
-  {
-    if( Files.isDirectory( m_dst_path ) )
+    for( int k=0; k<args.length; k++ )
     {
-      Die( m_dst_fname + " is a directory");
+      if( args[k].equals("-m") )
+      {
+        m_multi = true;
+      }
+      else if( args[k].equals("-x") )
+      {
+        m_mux = true;
+      }
+      else if( args[k].equals("-range") && k+1 < args.length )
+      {
+        Parse_Range( args[++k] );
+      }
+      else if( args[k].equals("-segments") && k+1 < args.length )
+      {
+        m_num_segments = Parse_Positive_Int( args[++k] );
+
+        if( MAX_SEGMENT_CONNECTIONS < m_num_segments ) Usage();
+      }
+      else if( args[k].equals("-segment_size") && k+1 < args.length )
+      {
+        m_segment_size = Parse_Positive_Long( args[++k] );
+      }
+      else if( args[k].equals("-chunked") )
+      {
+        m_chunked = true;
+      }
+      else if( args[k].equals("-z") )
+      {
+        m_compress = true;
+      }
+      else if( args[k].equals("-check") )
+      {
+        m_check = true;
+      }
+      else if( args[k].equals("-overlap") )
+      {
+        m_overlap = true;
+      }
+      else if( args[k].equals("-resume") )
+      {
+        m_resume = true;
+      }
+      else if( args[k].equals("-sums") )
+      {
+        m_sums = true;
+      }
+      else if( args[k].equals("-delta") )
+      {
+        m_delta = true;
+      }
+      else if( args[k].equals("-p") && k+1 < args.length )
+      {
+        m_pipeline_depth = Parse_Positive_Int( args[++k] );
+
+        if( MAX_PIPELINE_DEPTH < m_pipeline_depth ) Usage();
+      }
+      else if( args[k].startsWith("-") )
+      {
+        Usage();
+      }
+      else {
+        pos_args.add( args[k] );
+      }
     }
-    if( m_running )
+    if( pos_args.size() < 2 || (!m_multi && !m_sums && 3 < pos_args.size()) ) Usage();
+    if( m_sums && (m_multi || m_ranged || m_resume || 0 < m_num_segments || m_chunked
+                || m_compress || m_check || m_overlap) ) Usage();
+    if( m_delta && (m_sums || m_ranged || m_resume || 0 < m_num_segments || 1 < m_pipeline_depth
+                 || m_mux || m_chunked || m_compress || m_check || m_overlap) ) Usage();
+    if( (1 < m_pipeline_depth || m_mux) && !m_multi ) Usage();
+    if( 1 < m_pipeline_depth && m_mux ) Usage();
+    if( (m_ranged || m_resume) && (1 < m_pipeline_depth || m_mux) ) Usage();
+    if( m_ranged && m_resume ) Usage();
+    if( 0 < m_segment_size && m_num_segments < 1 ) Usage();
+    if( 0 < m_num_segments && (m_ranged || m_resume || 1 < m_pipeline_depth || m_mux) ) Usage();
+    if( (m_chunked || m_compress || m_check) && (m_ranged || m_resume || 0 < m_num_segments || m_mux) ) Usage();
+    // Muxed streams are read into buffers of their own, never through a ring:
+    if( m_overlap && m_mux ) Usage();
+    // Asking for bad chunks again needs the connection to itself:
+    if( m_check && 1 < m_pipeline_depth ) Usage();
+
+    m_server_str = pos_args.get( 0 );
+
+    if( m_multi || m_sums )
     {
-      m_dst_file = m_dst_path.toFile();
+      for( int k=1; k<pos_args.size(); k++ )
+      {
+        m_src_fnames.add( pos_args.get( k ) );
+        m_dst_fnames.add( pos_args.get( k ) );
+      }
+    }
+    else {
+      m_src_fnames.add( pos_args.get( 1 ) );
+      m_dst_fnames.add( pos_args.size() == 3 ? pos_args.get( 2 )
+                                             : pos_args.get( 1 ) );
     }
   }
-  void Check_Server_Reachable()
+  static int Parse_Positive_Int( String arg )
   {
-    if( m_running )
+    int val = 0;
     try {
-      m_server_inet_addr = InetAddress.getByName( m_server_str );
-      m_server_inet_sock_addr = new InetSocketAddress( m_server_inet_addr
-                                                     , SERVER_PORT );
-      if( !m_server_inet_addr.isReachable( IS_REACHABLE_TIMEOUT_MS ) )
-      {
-        Die(m_server_str + ": Un-reachable");
-      }
+      val = Integer.parseInt( arg );
     }
-    catch( UnknownHostException e )
+    catch( NumberFormatException e )
     {
-      Die(m_server_str + ": UnknownHostException: "+ e);
     }
-    catch( IOException e )
+    if( val <= 0 ) Usage();
+
+    return val;
+  }
+  static long Parse_Positive_Long( String arg )
+  {
+    long val = 0;
+    try {
+      val = Long.parseLong( arg );
+    }
+    catch( NumberFormatException e )
     {
-      Die("Check_Server_Reachable(): IOException: "+ e);
     }
+    if( val <= 0 ) Usage();
+
+    return val;
   }
-  void Connect()
+  // Parses "offset:num_bytes", or "offset:" for up to the end of the file
+  void Parse_Range( String arg )
   {
-    if( m_running )
+    final int colon = arg.indexOf(':');
+
+    if( colon < 0 ) Usage();
     try {
-      m_socket.connect( m_server_inet_sock_addr, CONNECT_TIMEOUT_MS );
+      m_range_offset    = Long.parseLong( arg.substring( 0, colon ) );
+      m_range_num_bytes = colon+1 == arg.length()
+                        ? -1
+                        : Long.parseLong( arg.substring( colon+1 ) );
     }
-    catch( SocketTimeoutException e )
+    catch( NumberFormatException e )
     {
-      Die(m_server_str + ": SocketTimeoutException: " + e);
+      Usage();
     }
-    catch( IOException e )
+    if( m_range_offset < 0 || m_range_num_bytes < -1 ) Usage();
+
+    m_ranged = true;
+  }
+  void Run()
+  {
+    Check_Server_Reachable();
+    Connect();
+    Get_In_Stream();
+    Get_Out_Stream();
+
+    // All of the files come over the same connection:
+    final long st_time = System.currentTimeMillis();
+
+    if( m_mux )
     {
-      Die("Connect(): IOException: " + e);
+      Get_Files_Muxed();
     }
-    catch( IllegalBlockingModeException e )
+    else if( m_sums )
     {
-      Die("Connect(): IllegalBlockingModeException: " + e);
+      for( int k=0; m_running && k<m_src_fnames.size(); k++ )
+      {
+        Get_Sums( k );
+      }
     }
-    catch( IllegalArgumentException e )
+    else if( 1 < m_pipeline_depth )
     {
-      Die("Connect(): IllegalArgumentException: " + e);
+      Get_Files_Pipelined();
     }
-    catch( Exception e )
-    {
-      Die("Connect(): Exception: " + e);
+    else {
+      for( int k=0; m_running && k<m_src_fnames.size(); k++ )
+      {
+        if     ( 0 < m_num_segments   ) Get_File_Segmented( k );
+        else if( m_ranged || m_resume ) Get_File_Range( k );
+        else if( m_delta              ) Get_File_Delta( k );
+        else                            Get_File( k );
+      }
     }
-  }
+    m_session_time_ms = System.currentTimeMillis() - st_time;
 
-  void Get_In_Stream()
+    Print_session_summary();
+
+    Clean_Up();
+  }
+  void Get_File( final int file_num )
   {
-    if( m_running )
-    try {
-      InputStream in_stream = m_socket.getInputStream();
+    Set_Current_File( file_num );
+    Check_Destination_File();
+    Send_Read_Request();
+    Receive_File();
+  }
+  // Gets part of a file with a ranged read request.  With -range the part
+  // is saved on its own as the destination file.  With -resume the part of
+  // the file after what is already in the destination is appended to it, so
+  // an interrupted download carries on where it stopped.
+  void Get_File_Range( final int file_num )
+  {
+    Set_Current_File( file_num );
+    Check_Destination_File();
 
-      m_din_stream = new DataInputStream( in_stream );
+    long offset    = m_range_offset;
+    long num_bytes = m_range_num_bytes;
+    long write_pos = 0;
+
+    if( m_resume )
+    {
+      offset    = m_file_ok && Files.exists( m_dst_path ) ? m_dst_file.length() : 0;
+      num_bytes = -1;
+      write_pos = offset;
     }
-    catch( IOException e )
+    m_src_offset = offset;
+
+    Send_Range_Request( offset, num_bytes );
+
+    final long bytes_in_range = Receive_Range_Response();
+
+    Receive_File_Data( bytes_in_range, write_pos );
+    Print_summary_message( bytes_in_range );
+
+    if( m_running && m_file_ok )
     {
-      Die(m_server_str + ": m_socket.getInputStream(): IOException: " + e);
+      m_num_files_received++;
+      m_session_bytes += bytes_in_range;
     }
   }
-  void Get_Out_Stream()
+  // Gets a new version of a file the destination already holds an old
+  // copy of, with the server sending only the parts of it the old copy
+  // does not have.  The rest is copied out of the old copy, and the new
+  // version is rebuilt into a temporary file, which is only renamed over
+  // the old copy once all of it has arrived and matches its SHA-256.
+  void Get_File_Delta( final int file_num )
   {
-    if( m_running )
-    try {
-      OutputStream out_stream = m_socket.getOutputStream();
+    Set_Current_File( file_num );
+    Check_Destination_File();
+    Send_Delta_Request();
 
-      m_dout_stream = new DataOutputStream( out_stream );
+    final long bytes_in_file = Receive_Delta_Response();
+
+    if( m_running && m_file_ok )
+    try {
+      Receive_Delta( bytes_in_file );
     }
     catch( IOException e )
     {
-      Die(m_server_str + ": m_socket.getOutputStream(): IOException: " + e);
+      Die("Get_File_Delta(): IOException: " + e);
     }
-  }
+    Print_summary_message( bytes_in_file );
 
+    if( m_running && m_file_ok )
+    {
+      m_num_files_received++;
+      m_session_bytes += bytes_in_file;
+    }
+  }
   //               |<1>|<-- 4 bytes ---->|
+  // Delta         ----------------------------------------
+  // Read  Request |24 | Filename length | Filename       |
+  // GET_DELTA     |   | Num utf16 chars | in utf16 chars |
   //               ----------------------------------------
-  // Read  Request | 1 | Filename length | Filename       |
-  // GET           |   | Num utf16 chars | in utf16 chars |
-  //               ----------------------------------------
-  void Send_Read_Request()
+  void Send_Delta_Request()
   {
-    if( m_running )
+    if( m_running && m_file_ok )
     try {
-      m_dout_stream.writeByte( OPCODE_GET_REQ );
+      m_dout_stream.writeByte( OPCODE_GET_DELTA_REQ );
       m_dout_stream.writeInt( m_src_fname.length() );
       m_dout_stream.writeChars( m_src_fname );
       m_dout_stream.flush();
     }
     catch( IOException e )
     {
-      Die("Send_Read_Request(): IOException: " + e);
+      Die("Send_Delta_Request(): IOException: " + e);
     }
   }
-
-  //               |<1>|< 1 byte >|<-- 4 bytes ------>|
-  // Read          ------------------------------------
-  // Response      | 2 | True=1   | num_bytes in file |
+  //               |<1>|< 1 byte >|<-- 8 bytes ------>|
+  // Delta Read    ------------------------------------
+  // Response      |25 | True=1   | num_bytes in file |
   // Affirmative   ------------------------------------
   //
-  //               |<1>|< 1 byte >|<-- 4 bytes ---->|
-  // Read          ----------------------------------------------
-  // Response      | 2 | False=0  | Num utf16 chars | errstring |
-  // Negative      |   | 00000000 | in errstring    |           |
-  //               ----------------------------------------------
-  long Receive_Read_Response()
+  // The negative delta read response is the negative read response
+  // with an opcode of 25.
+  long Receive_Delta_Response()
   {
     long bytes_in_file = 0;
 
-    if( m_running )
+    m_zipped_resp  = false;
+    m_checked_resp = false;
+
+    if( m_running && m_file_ok )
     try {
       final byte resp_OPCODE = m_din_stream.readByte();
-      if( resp_OPCODE != OPCODE_GET_RESP )
+      if( resp_OPCODE != OPCODE_GET_DELTA_RESP )
       {
-        Die( m_server_str +": expected read response OPCODE "+ OPCODE_GET_RESP
+        Die( m_server_str +": expected delta read response OPCODE "+ OPCODE_GET_DELTA_RESP
                           +" but received "+ resp_OPCODE );
       }
       final byte response = m_din_stream.readByte();
       if( response != 0 )
       {
-        bytes_in_file = m_din_stream.readInt();
+        bytes_in_file = m_din_stream.readLong();
       }
       else {
         final int err_str_len = m_din_stream.readInt();
@@ -301,109 +802,1494 @@ class File_get
         {
           sb.append( m_din_stream.readChar() );
         }
-        Die( m_server_str +": "+ sb.toString() );
+        Fail( m_server_str +": "+ sb.toString() );
       }
     }
     catch( IOException e )
     {
-      Die("Receive_Read_Request(): IOException: " + e);
+      Die("Receive_Delta_Response(): IOException: " + e);
     }
     return bytes_in_file;
   }
-
-  //               |<1>|
-  // Read/Write    -----------------
-  // DATA          | 5 | File data |
-  //               -----------------
-  void Receive_File_Data( final long bytes_in_file )
+  //               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+  // Delta         -------------------------------------------------------
+  // Signatures    | num_bytes in  | block_size    | Block signatures    |
+  //               | old copy      |               |                     |
+  //               | 0 if no copy  |               |                     |
+  //               -------------------------------------------------------
+  //
+  //               |<1>|<-- 4 bytes -->|
+  // Literal       -------------------------------------
+  //               | 1 | num_bytes     | New file data |
+  //               |   | 1..65536      |               |
+  //               -------------------------------------
+  //
+  //               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+  // Copy          -------------------------------------
+  //               | 2 | First block   | num_blocks    |
+  //               -------------------------------------
+  //
+  //               |<1>|<-- 32 bytes ---->|
+  // Delta         ------------------------
+  // End           | 0 | SHA-256 of       |
+  //               |   | new file         |
+  //               ------------------------
+  //
+  // Sends the signatures of the old copy, if there is one, and writes the
+  // Literals and Copies that come back into the temporary file, in the
+  // order they arrive.  Everything the server sends is read even if the
+  // file turns out wrong, so the connection stays usable.  m_wire_bytes is
+  // set to the number of literal bytes received.
+  void Receive_Delta( final long bytes_in_file ) throws IOException
   {
-    if( m_running )
+    final Path tmp_path = m_dst_path.resolveSibling( m_dst_path.getFileName() + TMP_SUFFIX );
+
+    FileChannel old_fc = Files.isRegularFile( m_dst_path )
+                       ? FileChannel.open( m_dst_path, StandardOpenOption.READ ) : null;
+    FileChannel tmp_fc = null;
     try {
-      final byte op_code = m_din_stream.readByte();
+      final long old_len    = null != old_fc ? old_fc.size() : 0;
+      final int  block_size = Block_Sigs.Block_Size( Math.max( old_len, bytes_in_file ) );
 
-      if( op_code != OPCODE_DATA )
+      m_dout_stream.writeLong( old_len );
+      m_dout_stream.writeInt( block_size );
+      if( null != old_fc )
       {
-        Die("Receive_File_Data(): Received bad OPCODE: " + op_code);
+        Block_Sigs.Write( m_dout_stream, old_fc, old_len, block_size );
       }
-      else {
-        FileOutputStream fos = new FileOutputStream( m_dst_file );
-        BufferedOutputStream bos = new BufferedOutputStream( fos, 512 );
+      m_dout_stream.flush();
 
-        final long st_time = System.currentTimeMillis();
+      if( !Receive_Data_Opcode() ) return;
 
-        byte[] ba = new byte[512];
+      tmp_fc = FileChannel.open( tmp_path, StandardOpenOption.CREATE
+                                         , StandardOpenOption.WRITE
+                                         , StandardOpenOption.TRUNCATE_EXISTING );
+      final long st_time = System.currentTimeMillis();
 
-        long total_bytes_read = 0;
+      final MessageDigest digest     = New_Digest();
+      final ByteBuffer    bb         = ByteBuffer.allocate( CHUNK_SIZE );
+      final long          num_blocks = Block_Sigs.Num_Blocks( old_len, block_size );
 
-        while( total_bytes_read < bytes_in_file )
+      long written = 0;
+
+      m_wire_bytes = 0;
+
+      for( byte op = m_din_stream.readByte(); op != DELTA_END; op = m_din_stream.readByte() )
+      {
+        if( op == DELTA_LITERAL )
+        {
+          final int len = m_din_stream.readInt();
+
+          if( len <= 0 || CHUNK_SIZE < len )
+          {
+            throw new IOException("Received bad literal length: "+ len );
+          }
+          m_din_stream.readFully( bb.array(), 0, len );
+          bb.clear();
+          bb.limit( len );
+
+          written += Write_Fully( tmp_fc, bb, written, digest );
+          m_wire_bytes += len;
+        }
+        else if( op == DELTA_COPY )
         {
-          final int bytes_read = m_din_stream.read( ba );
+          final int first = m_din_stream.readInt();
+          final int count = m_din_stream.readInt();
+
+          if( first < 0 || count <= 0 || num_blocks - first < count )
+          {
+            throw new IOException("Received bad block range: "+ first +", "+ count );
+          }
+          final long start = (long)first * block_size;
+          final long end   = Math.min( old_len, start + (long)count * block_size );
 
-          if( 0 < bytes_read )
+          for( long pos = start; pos < end; pos += bb.limit() )
           {
-            total_bytes_read += bytes_read;
+            bb.clear();
+            bb.limit( (int)Math.min( bb.capacity(), end - pos ) );
 
-            bos.write( ba, 0, bytes_read );
+            while( bb.hasRemaining() )
+            {
+              if( old_fc.read( bb, pos + bb.position() ) < 0 )
+              {
+                throw new IOException( m_dst_fname +" shrank while being rebuilt");
+              }
+            }
+            bb.flip();
+
+            written += Write_Fully( tmp_fc, bb, written, digest );
           }
         }
-        m_tranfer_time_ms = System.currentTimeMillis() - st_time;
-        bos.flush();
-        bos.close();
-        fos.close();
+        else {
+          throw new IOException("Received bad delta OPCODE: "+ op );
+        }
       }
-    }
-    catch( FileNotFoundException e )
+      final byte[] sent_sum = new byte[ DIGEST_LEN ];
+
+      m_din_stream.readFully( sent_sum );
+
+      m_tranfer_time_ms = System.currentTimeMillis() - st_time;
+
+      if( written != bytes_in_file )
+      {
+        Fail( m_dst_fname +": delta made "+ written +" bytes instead of "+ bytes_in_file );
+      }
+      else if( !MessageDigest.isEqual( sent_sum, digest.digest() ) )
+      {
+        Fail( m_dst_fname +": delta does not match its SHA-256");
+      }
+      else {
+        tmp_fc.close();
+        tmp_fc = null;
+
+        if( null != old_fc )
+        try {
+          Files.setPosixFilePermissions( tmp_path, Files.getPosixFilePermissions( m_dst_path ) );
+        }
+        catch( UnsupportedOperationException e )
+        {
+          // Then the new version gets the default permissions
+        }
+        Files.move( tmp_path, m_dst_path, StandardCopyOption.ATOMIC_MOVE
+                                        , StandardCopyOption.REPLACE_EXISTING );
+      }
+    }
+    finally {
+      if( null != old_fc ) old_fc.close();
+      if( null != tmp_fc )
+      {
+        tmp_fc.close();
+        Files.deleteIfExists( tmp_path );
+      }
+    }
+  }
+  // Writes bb to fc at file_pos, adding it to digest,
+  // and returns the number of bytes written:
+  static int Write_Fully( final FileChannel   fc
+                        , final ByteBuffer    bb
+                        , final long          file_pos
+                        , final MessageDigest digest ) throws IOException
+  {
+    final int len = bb.remaining();
+
+    digest.update( bb.array(), bb.position(), len );
+
+    while( bb.hasRemaining() )
+    {
+      fc.write( bb, file_pos + len - bb.remaining() );
+    }
+    return len;
+  }
+  // Gets a file over m_num_segments connections at the same time.  The file
+  // is cut into segments of m_segment_size bytes, or else into one segment
+  // per connection.  Each connection takes the next segment nobody has taken
+  // yet, gets it with a ranged read, and writes it straight to its place in
+  // the destination with positional writes.  One TCP stream can not fill a
+  // link with a large bandwidth-delay product, but several together can.
+  void Get_File_Segmented( final int file_num )
+  {
+    Set_Current_File( file_num );
+    Check_Destination_File();
+
+    // An empty ranged read just gets the size of the file:
+    Send_Range_Request( 0, 0 );
+    Receive_Range_Response();
+    Receive_Data_Opcode();
+
+    if( m_running && m_file_ok )
+    try {
+      final ArrayDeque<Segment> segments = Make_Segments( m_src_len );
+      final ArrayList<Segment>  all_segs = new ArrayList<Segment>( segments );
+
+      FileChannel fc = FileChannel.open( m_dst_path, StandardOpenOption.CREATE
+                                                   , StandardOpenOption.WRITE
+                                                   , StandardOpenOption.TRUNCATE_EXISTING );
+      final long st_time = System.currentTimeMillis();
+
+      final int num_conns = Math.min( m_num_segments, segments.size() );
+
+      // This connection is connection 0, and keeps busy with the rest,
+      // so it is not closed for being idle while the others work:
+      Thread[] threads = new Thread[ num_conns ];
+
+      for( int k=1; k<num_conns; k++ )
+      {
+        threads[k] = new Thread( new Segment_Getter( new File_get( this, k ), segments, fc ) );
+        threads[k].start();
+      }
+      Take_Segments( segments, fc );
+
+      for( int k=1; k<num_conns; k++ )
+      {
+        threads[k].join();
+      }
+      m_tranfer_time_ms = System.currentTimeMillis() - st_time;
+      fc.close();
+
+      for( Segment seg : all_segs )
+      {
+        if( m_file_ok && !seg.m_done )
+        {
+          Fail( m_dst_fname +": segment "+ seg.m_seg_num +" failed");
+        }
+      }
+      if( m_file_ok )
+      {
+        Print_segment_summary( all_segs );
+        Print_summary_message( m_src_len );
+
+        m_num_files_received++;
+        m_session_bytes += m_src_len;
+      }
+    }
+    catch( IOException e )
+    {
+      Fail( m_dst_fname +": IOException: "+ e );
+    }
+    catch( InterruptedException e )
+    {
+      Die("Get_File_Segmented(): InterruptedException: " + e);
+    }
+  }
+  ArrayDeque<Segment> Make_Segments( final long file_len )
+  {
+    final long seg_size = 0 < m_segment_size
+                        ? m_segment_size
+                        : Math.max( 1, (file_len + m_num_segments-1)/m_num_segments );
+
+    ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+    for( long offset=0; offset<file_len; offset+=seg_size )
+    {
+      segments.add( new Segment( segments.size()
+                               , offset
+                               , Math.min( seg_size, file_len - offset ) ) );
+    }
+    return segments;
+  }
+  // Another connection to the same server, for getting segments
+  // of the parent's current file:
+  File_get( File_get parent, final int conn_num )
+  {
+    m_server_str            = parent.m_server_str;
+    m_server_inet_addr      = parent.m_server_inet_addr;
+    m_server_inet_sock_addr = parent.m_server_inet_sock_addr;
+    m_src_fname             = parent.m_src_fname;
+    m_dst_fname             = parent.m_dst_fname;
+    m_overlap               = parent.m_overlap;
+    m_conn_num              = conn_num;
+  }
+  // Run by each of the other connections of Get_File_Segmented():
+  void Get_Segments( ArrayDeque<Segment> segments, FileChannel fc )
+  {
+    Connect();
+    Get_In_Stream();
+    Get_Out_Stream();
+
+    m_file_ok = true;
+
+    Take_Segments( segments, fc );
+
+    Clean_Up();
+  }
+  // Gets segments until there are none left, or something goes wrong:
+  void Take_Segments( ArrayDeque<Segment> segments, FileChannel fc )
+  {
+    for( Segment seg = Next_Segment( segments )
+       ; null != seg
+       ; seg = Next_Segment( segments ) )
+    {
+      Send_Range_Request( seg.m_offset, seg.m_num_bytes );
+
+      final long bytes_in_range = Receive_Range_Response();
+
+      if( m_file_ok && bytes_in_range != seg.m_num_bytes )
+      {
+        Die( m_src_fname +" changed size while getting it");
+      }
+      if( Receive_Data_Opcode() )
+      try {
+        final long st_time = System.currentTimeMillis();
+
+        Receive_Into( fc, seg.m_offset, seg.m_num_bytes );
+
+        seg.m_time_ms  = System.currentTimeMillis() - st_time;
+        seg.m_conn_num = m_conn_num;
+        seg.m_done     = m_running;
+      }
+      catch( IOException e )
+      {
+        Die("Take_Segments(): IOException: " + e);
+      }
+    }
+  }
+  // Returns null when there are no segments left, or this connection
+  // can not get any more of them:
+  Segment Next_Segment( ArrayDeque<Segment> segments )
+  {
+    Segment seg = null;
+
+    if( m_running && m_file_ok )
+    {
+      synchronized( segments )
+      {
+        seg = segments.poll();
+      }
+    }
+    return seg;
+  }
+  void Print_segment_summary( ArrayList<Segment> segments )
+  {
+    for( Segment seg : segments )
+    {
+      Msg("  Segment "+ seg.m_seg_num +" on connection "+ seg.m_conn_num +": "
+         + seg.m_num_bytes +" bytes at offset "+ seg.m_offset +" in "
+         + seg.m_time_ms +" ms"
+         + Rate_String( seg.m_num_bytes, seg.m_time_ms ) );
+    }
+  }
+  // Sends read requests ahead of the responses, keeping up to
+  // m_pipeline_depth of them outstanding, so the server always has the
+  // next request in hand and the round trips overlap instead of adding up.
+  // The server answers requests in order, so the responses are matched up
+  // with the requests in a FIFO.  The depth is capped so the outstanding
+  // requests always fit in the socket buffers, otherwise both sides could
+  // end up blocked writing to each other.
+  void Get_Files_Pipelined()
+  {
+    ArrayDeque<Integer> outstanding = new ArrayDeque<Integer>();
+
+    int next_file_num = 0;
+
+    while( m_running && ( next_file_num < m_src_fnames.size()
+                       || !outstanding.isEmpty() ) )
+    {
+      // Top up the requests in flight:
+      while( m_running && next_file_num < m_src_fnames.size()
+                       && outstanding.size() < m_pipeline_depth )
+      {
+        Set_Current_File( next_file_num );
+        Check_Destination_File();
+        Write_Read64_Request();
+
+        if( m_file_ok ) outstanding.add( next_file_num );
+
+        next_file_num++;
+      }
+      Flush_Requests();
+
+      if( m_running && !outstanding.isEmpty() )
+      {
+        Set_Current_File( outstanding.poll() );
+        Check_Destination_File();
+        Receive_File();
+      }
+    }
+  }
+  // Switches the connection to framed mode, and gets up to MAX_MUX_STREAMS
+  // files at a time, each as its own stream.  The server interleaves the
+  // streams' data frames, so a large file does not hold up the small ones,
+  // and a file that can not be written here is cancelled on its own without
+  // disturbing the rest.
+  void Get_Files_Muxed()
+  {
+    HashMap<Integer,Mux_File> open_files = new HashMap<Integer,Mux_File>();
+
+    Send_Mux_Opcode();
+
+    int next_file_num = 0;
+
+    while( m_running && ( next_file_num < m_src_fnames.size()
+                       || !open_files.isEmpty() ) )
+    {
+      // Top up the open streams:
+      while( m_running && next_file_num < m_src_fnames.size()
+                       && open_files.size() < MAX_MUX_STREAMS )
+      {
+        Set_Current_File( next_file_num );
+        Check_Destination_File();
+
+        if( m_file_ok )
+        {
+          // Stream ids are file numbers plus one:
+          Write_Read_Request_Frame( next_file_num+1 );
+
+          open_files.put( next_file_num+1, new Mux_File( next_file_num ) );
+        }
+        next_file_num++;
+      }
+      Flush_Requests();
+
+      if( m_running && !open_files.isEmpty() )
+      {
+        Receive_Mux_Frame( open_files );
+      }
+    }
+  }
+  //               |<1>|
+  //               -----
+  // Mux           | 6 |
+  //               -----
+  void Send_Mux_Opcode()
+  {
+    if( m_running )
+    try {
+      m_dout_stream.writeByte( OPCODE_MUX );
+    }
+    catch( IOException e )
+    {
+      Die("Send_Mux_Opcode(): IOException: " + e);
+    }
+  }
+  //               |<-- 4 bytes -->|<-- 4 bytes -->|
+  //               ------------------------------------------------
+  // Frame         | Stream id     | Payload len   | Payload      |
+  //               |               | 1..65536      | Message      |
+  //               ------------------------------------------------
+  void Write_Read_Request_Frame( final int stream_id )
+  {
+    if( m_running )
+    try {
+      m_dout_stream.writeInt( stream_id );
+      m_dout_stream.writeInt( 1 + 4 + 2*m_src_fname.length() );
+    }
+    catch( IOException e )
+    {
+      Die("Write_Read_Request_Frame(): IOException: " + e);
+    }
+    Write_Read_Request();
+  }
+  //               |<1>|
+  //               -----
+  // Cancel        | 7 |
+  //               -----
+  void Send_Cancel_Frame( final int stream_id )
+  {
+    if( m_running )
+    try {
+      m_dout_stream.writeInt( stream_id );
+      m_dout_stream.writeInt( 1 );
+      m_dout_stream.writeByte( OPCODE_CANCEL );
+      m_dout_stream.flush();
+    }
+    catch( IOException e )
+    {
+      Die("Send_Cancel_Frame(): IOException: " + e);
+    }
+  }
+  void Receive_Mux_Frame( HashMap<Integer,Mux_File> open_files )
+  {
+    try {
+      final int stream_id = m_din_stream.readInt();
+      final int frame_len = m_din_stream.readInt();
+
+      if( frame_len <= 0 || MAX_FRAME_LEN < frame_len )
+      {
+        Die("Receive_Mux_Frame(): Bad frame length: "+ frame_len );
+        return;
+      }
+      m_din_stream.readFully( m_frame, 0, frame_len );
+
+      Mux_File mf = open_files.get( stream_id );
+
+      // Frames of a stream that has been cancelled can still be in
+      // flight, and are dropped:
+      if( null == mf ) return;
+
+      Set_Current_File( mf.m_file_num );
+
+      final byte op_code = m_frame[0];
+
+      if( op_code == OPCODE_GET_RESP )
+      {
+        Receive_Mux_Response( mf, stream_id, frame_len );
+      }
+      else if( op_code == OPCODE_DATA && null != mf.m_file_chan )
+      {
+        Receive_Mux_Data( mf, stream_id, frame_len );
+      }
+      else if( op_code == OPCODE_CANCEL )
+      {
+        Fail( m_server_str +": cancelled "+ m_src_fname );
+      }
+      else {
+        Die("Receive_Mux_Frame(): Received bad OPCODE: " + op_code);
+      }
+      if( !m_file_ok || mf.m_file_len <= mf.m_file_pos )
+      {
+        Close_Mux_File( mf );
+        open_files.remove( stream_id );
+      }
+    }
+    catch( IOException e )
+    {
+      Die("Receive_Mux_Frame(): IOException: " + e);
+    }
+  }
+  //               |<1>|< 1 byte >|<-- 4 bytes ------>|
+  // Read          ------------------------------------
+  // Response      | 2 | True=1   | num_bytes in file |
+  // Affirmative   ------------------------------------
+  //
+  //               |<1>|< 1 byte >|<-- 4 bytes ---->|
+  // Read          ----------------------------------------------
+  // Response      | 2 | False=0  | Num utf16 chars | errstring |
+  // Negative      |   | 00000000 | in errstring    |           |
+  //               ----------------------------------------------
+  void Receive_Mux_Response( Mux_File mf, final int stream_id, final int frame_len )
+  {
+    ByteBuffer bb = ByteBuffer.wrap( m_frame, 1, frame_len-1 );
+
+    if( 0 != bb.get() )
+    {
+      mf.m_file_len = bb.getInt();
+      mf.m_st_time  = System.currentTimeMillis();
+      try {
+        mf.m_file_chan = FileChannel.open( m_dst_path, StandardOpenOption.CREATE
+                                                     , StandardOpenOption.WRITE
+                                                     , StandardOpenOption.TRUNCATE_EXISTING );
+      }
+      catch( IOException e )
+      {
+        Fail( m_dst_fname +": IOException: "+ e );
+        Send_Cancel_Frame( stream_id );
+      }
+      if( m_file_ok && 0 == mf.m_file_len )
+      {
+        Finish_Mux_File( mf );
+      }
+    }
+    else {
+      final int err_str_len = bb.getInt();
+      StringBuilder sb = new StringBuilder( err_str_len );
+      for( int k=0; k<err_str_len; k++ )
+      {
+        sb.append( bb.getChar() );
+      }
+      Fail( m_server_str +": "+ sb.toString() );
+    }
+  }
+  void Receive_Mux_Data( Mux_File mf, final int stream_id, final int frame_len )
+  {
+    ByteBuffer bb = ByteBuffer.wrap( m_frame, 1, frame_len-1 );
+    try {
+      while( bb.hasRemaining() )
+      {
+        mf.m_file_pos += mf.m_file_chan.write( bb );
+      }
+    }
+    catch( IOException e )
+    {
+      Fail( m_dst_fname +": IOException: "+ e );
+      Send_Cancel_Frame( stream_id );
+    }
+    if( m_file_ok && mf.m_file_len <= mf.m_file_pos )
+    {
+      Finish_Mux_File( mf );
+    }
+  }
+  void Finish_Mux_File( Mux_File mf )
+  {
+    m_tranfer_time_ms = System.currentTimeMillis() - mf.m_st_time;
+
+    Print_summary_message( mf.m_file_len );
+
+    m_num_files_received++;
+    m_session_bytes += mf.m_file_len;
+  }
+  void Close_Mux_File( Mux_File mf )
+  {
+    try {
+      if( null != mf.m_file_chan )
+      {
+        mf.m_file_chan.close();
+        mf.m_file_chan = null;
+      }
+    }
+    catch( IOException e )
+    {
+      Msg("Close_Mux_File(): IOException: " + e);
+    }
+  }
+  void Set_Current_File( final int file_num )
+  {
+    m_src_fname = m_src_fnames.get( file_num );
+    m_dst_fname = m_dst_fnames.get( file_num );
+    m_dst_path  = FileSystems.getDefault().getPath( m_dst_fname );
+    m_file_ok   = true;
+  }
+  void Receive_File()
+  {
+    final long bytes_in_file = Receive_Read_Response();
+    // A chunked file's size is only known once all of it has arrived:
+    final long bytes_received = Receive_File_Data( bytes_in_file );
+    Print_summary_message( bytes_received );
+
+    if( m_running && m_file_ok )
+    {
+      m_num_files_received++;
+      m_session_bytes += bytes_received;
+    }
+  }
+  void Check_Destination_File()
+  {
+    if( Files.isDirectory( m_dst_path ) )
+    {
+      Fail( m_dst_fname + " is a directory");
+    }
+    if( m_file_ok )
+    {
+      m_dst_file = m_dst_path.toFile();
+    }
+  }
+  void Check_Server_Reachable()
+  {
+    if( m_running )
+    try {
+      m_server_inet_addr = InetAddress.getByName( m_server_str );
+      m_server_inet_sock_addr = new InetSocketAddress( m_server_inet_addr
+                                                     , SERVER_PORT );
+      if( !m_server_inet_addr.isReachable( IS_REACHABLE_TIMEOUT_MS ) )
+      {
+        Die(m_server_str + ": Un-reachable");
+      }
+    }
+    catch( UnknownHostException e )
+    {
+      Die(m_server_str + ": UnknownHostException: "+ e);
+    }
+    catch( IOException e )
+    {
+      Die("Check_Server_Reachable(): IOException: "+ e);
+    }
+  }
+  void Connect()
+  {
+    if( m_running )
+    try {
+      // Open the socket through a channel, so file data can be
+      // read from it into direct buffers:
+      m_sock_chan = SocketChannel.open();
+      m_socket    = m_sock_chan.socket();
+      m_socket.connect( m_server_inet_sock_addr, CONNECT_TIMEOUT_MS );
+    }
+    catch( SocketTimeoutException e )
+    {
+      Die(m_server_str + ": SocketTimeoutException: " + e);
+    }
+    catch( IOException e )
+    {
+      Die("Connect(): IOException: " + e);
+    }
+    catch( IllegalBlockingModeException e )
+    {
+      Die("Connect(): IllegalBlockingModeException: " + e);
+    }
+    catch( IllegalArgumentException e )
+    {
+      Die("Connect(): IllegalArgumentException: " + e);
+    }
+    catch( Exception e )
+    {
+      Die("Connect(): Exception: " + e);
+    }
+  }
+
+  void Get_In_Stream()
+  {
+    if( m_running )
+    try {
+      InputStream in_stream = m_socket.getInputStream();
+
+      m_din_stream = new DataInputStream( in_stream );
+    }
+    catch( IOException e )
+    {
+      Die(m_server_str + ": m_socket.getInputStream(): IOException: " + e);
+    }
+  }
+  void Get_Out_Stream()
+  {
+    if( m_running )
+    try {
+      OutputStream out_stream = m_socket.getOutputStream();
+
+      // Buffered, so each request goes out in one segment when flushed:
+      m_dout_stream = new DataOutputStream( new BufferedOutputStream( out_stream ) );
+    }
+    catch( IOException e )
+    {
+      Die(m_server_str + ": m_socket.getOutputStream(): IOException: " + e);
+    }
+  }
+
+  //               |<1>|< 1 byte >|<-- 4 bytes ---->|
+  // 64-bit        ---------------------------------------------------
+  // Read  Request |12 | Flags    | Filename length | Filename       |
+  // GET           |   | 1=chunks | Num utf16 chars | in utf16 chars |
+  //               |   | 2=zip    |                 |                |
+  //               |   | 4=check  |                 |                |
+  //               ---------------------------------------------------
+  //
+  // Checked transfers ask for chunks too, so a server that does not
+  // check them still sends chunks.
+  void Send_Read_Request()
+  {
+    Write_Read64_Request();
+    Flush_Requests();
+  }
+  void Write_Read64_Request()
+  {
+    if( m_running && m_file_ok )
+    try {
+      m_dout_stream.writeByte( OPCODE_GET64_REQ );
+      m_dout_stream.writeByte( ( m_chunked || m_check ? FLAG_CHUNKED    : 0 )
+                             | ( m_compress          ? FLAG_COMPRESSED : 0 )
+                             | ( m_check             ? FLAG_CHECKED    : 0 ) );
+      m_dout_stream.writeInt( m_src_fname.length() );
+      m_dout_stream.writeChars( m_src_fname );
+    }
+    catch( IOException e )
+    {
+      Die("Write_Read64_Request(): IOException: " + e);
+    }
+  }
+  //               |<1>|<-- 4 bytes ---->|
+  //               ----------------------------------------
+  // Read  Request | 1 | Filename length | Filename       |
+  // GET           |   | Num utf16 chars | in utf16 chars |
+  //               ----------------------------------------
+  //
+  // Only used inside mux frames, which still carry 32-bit sizes
+  void Write_Read_Request()
+  {
+    if( m_running && m_file_ok )
+    try {
+      m_dout_stream.writeByte( OPCODE_GET_REQ );
+      m_dout_stream.writeInt( m_src_fname.length() );
+      m_dout_stream.writeChars( m_src_fname );
+    }
+    catch( IOException e )
+    {
+      Die("Write_Read_Request(): IOException: " + e);
+    }
+  }
+  //               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+  // Ranged        --------------------------------------------------------------------
+  // Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+  // GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+  //               --------------------------------------------------------------------
+  void Send_Range_Request( final long offset, final long num_bytes )
+  {
+    if( m_running && m_file_ok )
+    try {
+      m_dout_stream.writeByte( OPCODE_GET_RANGE_REQ );
+      m_dout_stream.writeLong( offset );
+      m_dout_stream.writeLong( num_bytes );
+      m_dout_stream.writeInt( m_src_fname.length() );
+      m_dout_stream.writeChars( m_src_fname );
+      m_dout_stream.flush();
+    }
+    catch( IOException e )
+    {
+      Die("Send_Range_Request(): IOException: " + e);
+    }
+  }
+  void Flush_Requests()
+  {
+    if( m_running )
+    try {
+      m_dout_stream.flush();
+    }
+    catch( IOException e )
+    {
+      Die("Flush_Requests(): IOException: " + e);
+    }
+  }
+
+  //               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+  // 64-bit Read   -----------------------------------------------
+  // Response      |13 | True=1   | Flags    | num_bytes in file |
+  // Affirmative   |   |          | 1=chunks | -1 if chunked     |
+  //               |   |          | 2=zip    |                   |
+  //               |   |          | 4=check  |                   |
+  //               -----------------------------------------------
+  //
+  // The negative 64-bit read response is the negative read response
+  // with an opcode of 13.
+  long Receive_Read_Response()
+  {
+    long bytes_in_file = 0;
+
+    m_chunked_resp = false;
+    m_zipped_resp  = false;
+    m_checked_resp = false;
+
+    if( m_running && m_file_ok )
+    try {
+      final byte resp_OPCODE = m_din_stream.readByte();
+      if( resp_OPCODE != OPCODE_GET64_RESP )
+      {
+        Die( m_server_str +": expected read response OPCODE "+ OPCODE_GET64_RESP
+                          +" but received "+ resp_OPCODE );
+      }
+      final byte response = m_din_stream.readByte();
+      if( response != 0 )
+      {
+        final byte flags = m_din_stream.readByte();
+        m_chunked_resp   = 0 != (flags & FLAG_CHUNKED);
+        m_zipped_resp    = 0 != (flags & FLAG_COMPRESSED);
+        m_checked_resp   = 0 != (flags & FLAG_CHECKED);
+        bytes_in_file    = m_din_stream.readLong();
+      }
+      else {
+        final int err_str_len = m_din_stream.readInt();
+        StringBuilder sb = new StringBuilder( err_str_len );
+        for( int k=0; k<err_str_len; k++ )
+        {
+          sb.append( m_din_stream.readChar() );
+        }
+        Fail( m_server_str +": "+ sb.toString() );
+      }
+    }
+    catch( IOException e )
+    {
+      Die("Receive_Read_Request(): IOException: " + e);
+    }
+    return bytes_in_file;
+  }
+
+  //               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+  // Ranged Read   ---------------------------------------------------------
+  // Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+  // Affirmative   ---------------------------------------------------------
+  //
+  // The negative ranged read response is the negative read response
+  // with an opcode of 9.
+  long Receive_Range_Response()
+  {
+    long bytes_in_range = 0;
+
+    if( m_running && m_file_ok )
+    try {
+      final byte resp_OPCODE = m_din_stream.readByte();
+      if( resp_OPCODE != OPCODE_GET_RANGE_RESP )
+      {
+        Die( m_server_str +": expected ranged read response OPCODE "+ OPCODE_GET_RANGE_RESP
+                          +" but received "+ resp_OPCODE );
+      }
+      final byte response = m_din_stream.readByte();
+      if( response != 0 )
+      {
+        m_src_len      = m_din_stream.readLong();
+        bytes_in_range = m_din_stream.readLong();
+      }
+      else {
+        final int err_str_len = m_din_stream.readInt();
+        StringBuilder sb = new StringBuilder( err_str_len );
+        for( int k=0; k<err_str_len; k++ )
+        {
+          sb.append( m_din_stream.readChar() );
+        }
+        Fail( m_server_str +": "+ sb.toString() );
+      }
+    }
+    catch( IOException e )
+    {
+      Die("Receive_Range_Response(): IOException: " + e);
+    }
+    return bytes_in_range;
+  }
+
+  //               |<1>|
+  // Read/Write    -----------------
+  // DATA          | 5 | File data |
+  //               -----------------
+  //
+  //               |<-- 4 bytes -->|
+  //               ---------------------------
+  // Chunk         | Chunk len     | Data    |
+  //               | 0 = last      |         |
+  //               ---------------------------
+  //
+  // Returns the number of bytes written to the destination
+  long Receive_File_Data( final long bytes_in_file )
+  {
+    return Receive_File_Data( bytes_in_file, 0 );
+  }
+  // Writes the file data to the destination starting at write_pos,
+  // keeping what is already there before write_pos:
+  long Receive_File_Data( final long bytes_in_file, final long write_pos )
+  {
+    long bytes_received = 0;
+
+    if( m_running && m_file_ok && Receive_Data_Opcode() )
+    try {
+      FileChannel fc = 0 < write_pos
+                     ? FileChannel.open( m_dst_path, StandardOpenOption.WRITE )
+                     : FileChannel.open( m_dst_path, StandardOpenOption.CREATE
+                                                   , StandardOpenOption.WRITE
+                                                   , StandardOpenOption.TRUNCATE_EXISTING );
+      final long st_time = System.currentTimeMillis();
+
+      if( m_checked_resp )
+      {
+        bytes_received = Receive_Checked_Chunks( fc );
+      }
+      else if( m_chunked_resp )
+      {
+        bytes_received = Receive_Chunks( fc, write_pos );
+      }
+      else {
+        Receive_Into( fc, write_pos, bytes_in_file );
+        bytes_received = bytes_in_file;
+      }
+      m_tranfer_time_ms = System.currentTimeMillis() - st_time;
+      fc.close();
+
+      // A damaged file would only be taken for the real one:
+      if( m_checked_resp && !m_file_ok ) Files.deleteIfExists( m_dst_path );
+    }
+    catch( FileNotFoundException e )
+    {
+      Die("Receive_File_Data(): FileNotFoundException: " + e);
+    }
+    catch( IOException e )
+    {
+      Die("Receive_File_Data(): IOException: " + e);
+    }
+    return bytes_received;
+  }
+  // Receives chunks until the zero length one that ends the file,
+  // and returns the total number of bytes in them, after decompressing
+  // them if they are compressed
+  long Receive_Chunks( final FileChannel fc, final long write_pos ) throws IOException
+  {
+    long total_bytes = 0;
+    int  chunk_len   = -1;
+
+    m_wire_bytes = 0;
+
+    while( m_running && 0 != chunk_len )
+    {
+      chunk_len = m_din_stream.readInt();
+
+      // In a compressed transfer, chunks that did not compress
+      // arrive as they are, with RAW_CHUNK set in their length:
+      final boolean as_is = !m_zipped_resp || 0 != ( chunk_len & RAW_CHUNK );
+
+      if( m_zipped_resp && as_is ) chunk_len &= ~RAW_CHUNK;
+
+      if( chunk_len < 0 || (as_is ? CHUNK_SIZE : MAX_ZIPPED_LEN) < chunk_len
+       || ( m_zipped_resp && as_is && 0 == chunk_len ) )
+      {
+        Die("Receive_Chunks(): Received bad chunk length: " + chunk_len);
+      }
+      else if( !as_is && 0 < chunk_len )
+      {
+        total_bytes += Receive_Zipped_Chunk( fc, write_pos + total_bytes, chunk_len );
+      }
+      else {
+        Receive_Into( fc, write_pos + total_bytes, chunk_len );
+        total_bytes += chunk_len;
+      }
+      m_wire_bytes += Math.max( 0, chunk_len );
+    }
+    return total_bytes;
+  }
+  // Reads a chunk compressed on its own, and writes it decompressed
+  // to fc at write_pos, returning the number of bytes written
+  int Receive_Zipped_Chunk( final FileChannel fc
+                          , final long        write_pos
+                          , final int         chunk_len ) throws IOException
+  {
+    Get_Chunk_Bufs();
+
+    m_din_stream.readFully( m_zipped_buf, 0, chunk_len );
+
+    Inflate_Chunk( chunk_len );
+
+    final int raw_len = m_raw_buf.remaining();
+
+    while( m_raw_buf.hasRemaining() )
+    {
+      fc.write( m_raw_buf, write_pos + m_raw_buf.position() );
+    }
+    return raw_len;
+  }
+  void Get_Chunk_Bufs()
+  {
+    if( null == m_inflater )
+    {
+      m_inflater   = new Inflater();
+      m_zipped_buf = new byte[ MAX_ZIPPED_LEN ];
+      m_raw_buf    = ByteBuffer.allocateDirect( CHUNK_SIZE );
+    }
+  }
+  // Decompresses the chunk_len bytes in m_zipped_buf into m_raw_buf,
+  // leaving m_raw_buf ready to be written:
+  void Inflate_Chunk( final int chunk_len ) throws IOException
+  {
+    m_inflater.reset();
+    m_inflater.setInput( m_zipped_buf, 0, chunk_len );
+    m_raw_buf.clear();
+    try {
+      while( !m_inflater.finished() )
+      {
+        if( 0 == m_inflater.inflate( m_raw_buf ) && !m_inflater.finished()
+         && ( m_inflater.needsInput() || !m_raw_buf.hasRemaining() ) )
+        {
+          throw new IOException("Bad compressed chunk");
+        }
+      }
+    }
+    catch( DataFormatException e )
+    {
+      throw new IOException("Bad compressed chunk: "+ e.getMessage() );
+    }
+    m_raw_buf.flip();
+  }
+  //               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+  // Checked       ----------------------------------------------
+  // Chunk         | Chunk len     | Data       | CRC32C of     |
+  //               | 0 = last      |            | Data          |
+  //               ----------------------------------------------
+  //
+  //               |<-- 32 bytes ---->|
+  // File          --------------------
+  // Digest        | SHA-256 of file  |
+  //               --------------------
+  //
+  //               |<-- 8 bytes -->|
+  // Repaired      ------------------------------------
+  // Chunk         | Chunk number  | Checked chunk    |
+  //               ------------------------------------
+  //
+  // Receives the chunks of a checked transfer and the digest of the file
+  // after them, then asks the server for the chunks whose CRC32C did not
+  // match again, by number, up to MAX_REPAIR_ROUNDS times.  Every chunk but
+  // the last holds CHUNK_SIZE bytes of the file, so its number says where
+  // it goes.  The file is added to the digest as it is written, in order,
+  // up to the first bad chunk, so only if there was one is the rest of it
+  // read back once it is whole.  Returns the number of bytes in the file.
+  long Receive_Checked_Chunks( final FileChannel fc ) throws IOException
+  {
+    final MessageDigest digest   = New_Digest();
+    final byte[]        sent_sum = new byte[ DIGEST_LEN ];
+
+    ArrayList<Long> bad_chunks = new ArrayList<Long>();
+    long            hashed_to  = 0;
+
+    m_wire_bytes   = 0;
+    m_file_len     = 0;
+    m_num_repaired = 0;
+
+    int chunk_len = m_din_stream.readInt();
+
+    for( long chunk_num = 0; 0 != chunk_len; chunk_num++ )
+    {
+      final long    write_pos = chunk_num*CHUNK_SIZE;
+      final boolean in_order  = hashed_to == write_pos;
+
+      final int raw_len = Receive_Checked_Chunk( fc, write_pos, chunk_len
+                                               , in_order ? digest : null );
+      if( raw_len < 0 )
+      {
+        bad_chunks.add( chunk_num );
+      }
+      else if( in_order )
+      {
+        hashed_to += raw_len;
+      }
+      chunk_len = m_din_stream.readInt();
+    }
+    m_din_stream.readFully( sent_sum );
+
+    for( int round=0; !bad_chunks.isEmpty(); round++ )
+    {
+      if( MAX_REPAIR_ROUNDS <= round || MAX_REPAIR_CHUNKS < bad_chunks.size() )
+      {
+        Send_Repair_Request( -1, null );
+        Fail( m_dst_fname +": giving up on "+ bad_chunks.size() +" bad chunks");
+        return m_file_len;
+      }
+      Send_Repair_Request( bad_chunks.size(), bad_chunks );
+
+      bad_chunks = Receive_Repaired_Chunks( fc, bad_chunks );
+    }
+    // Add the rest of the file to the digest, if a bad chunk held it up:
+    Hash_File( hashed_to, digest );
+
+    if( !MessageDigest.isEqual( digest.digest(), sent_sum ) )
+    {
+      Send_Repair_Request( -1, null );
+      Fail( m_dst_fname +": SHA-256 of the file does not match");
+      return m_file_len;
+    }
+    Send_Repair_Request( 0, null );
+
+    return m_file_len;
+  }
+  // Reads a chunk of chunk_len bytes as it was sent and the CRC32C after
+  // it, and if they match writes the chunk to fc at write_pos, decompressed
+  // if need be, and adds it to digest if there is one.  Returns the number
+  // of bytes written, or -1 if the chunk is bad.
+  int Receive_Checked_Chunk( final FileChannel   fc
+                           , final long          write_pos
+                           ,       int           chunk_len
+                           , final MessageDigest digest ) throws IOException
+  {
+    final boolean as_is = !m_zipped_resp || 0 != ( chunk_len & RAW_CHUNK );
+
+    if( m_zipped_resp && as_is ) chunk_len &= ~RAW_CHUNK;
+
+    if( chunk_len <= 0 || (as_is ? CHUNK_SIZE : MAX_ZIPPED_LEN) < chunk_len )
+    {
+      throw new IOException("Bad chunk length: "+ chunk_len );
+    }
+    Get_Chunk_Bufs();
+
+    m_din_stream.readFully( m_zipped_buf, 0, chunk_len );
+
+    final int crc = m_din_stream.readInt();
+
+    m_wire_bytes += chunk_len;
+
+    m_crc.reset();
+    m_crc.update( m_zipped_buf, 0, chunk_len );
+
+    if( crc != (int)m_crc.getValue() ) return -1;
+
+    ByteBuffer raw = ByteBuffer.wrap( m_zipped_buf, 0, chunk_len );
+
+    if( !as_is )
+    {
+      try {
+        Inflate_Chunk( chunk_len );
+      }
+      catch( IOException e )
+      {
+        return -1;
+      }
+      raw = m_raw_buf;
+    }
+    final int raw_len = raw.remaining();
+
+    if( null != digest )
+    {
+      digest.update( raw );
+      raw.rewind();
+    }
+    while( raw.hasRemaining() )
+    {
+      fc.write( raw, write_pos + raw.position() );
+    }
+    m_file_len = Math.max( m_file_len, write_pos + raw_len );
+
+    return raw_len;
+  }
+  // Receives the chunks asked for again, in the order they were asked
+  // for, and returns the numbers of the ones that are still bad:
+  ArrayList<Long> Receive_Repaired_Chunks( final FileChannel     fc
+                                         , final ArrayList<Long> chunk_nums ) throws IOException
+  {
+    ArrayList<Long> still_bad = new ArrayList<Long>();
+
+    for( long chunk_num : chunk_nums )
     {
-      Die("Receive_File_Data(): FileNotFoundException: " + e);
+      final long num = m_din_stream.readLong();
+
+      if( num != chunk_num )
+      {
+        throw new IOException("Expected chunk "+ chunk_num +" but received "+ num );
+      }
+      final int chunk_len = m_din_stream.readInt();
+
+      if( Receive_Checked_Chunk( fc, num*CHUNK_SIZE, chunk_len, null ) < 0 )
+      {
+        still_bad.add( num );
+      }
+      m_num_repaired++;
+    }
+    return still_bad;
+  }
+  //               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+  // Repair        ------------------------------------------
+  // Request       |16 | num_chunks    | Chunk numbers      |
+  //               |   | 0 = all good  |                    |
+  //               |   | -1 = give up  |                    |
+  //               ------------------------------------------
+  void Send_Repair_Request( final int num_chunks, final ArrayList<Long> chunk_nums ) throws IOException
+  {
+    m_dout_stream.writeByte( OPCODE_REPAIR );
+    m_dout_stream.writeInt( num_chunks );
+
+    for( int k=0; k<num_chunks; k++ )
+    {
+      m_dout_stream.writeLong( chunk_nums.get( k ) );
+    }
+    m_dout_stream.flush();
+  }
+  // Adds the file from file_pos up to m_file_len to digest, reading it back:
+  void Hash_File( final long file_pos, final MessageDigest digest ) throws IOException
+  {
+    if( m_file_len <= file_pos ) return;
+
+    FileChannel fc = FileChannel.open( m_dst_path, StandardOpenOption.READ );
+    ByteBuffer  bb = m_raw_buf;
+    try {
+      for( long pos = file_pos; pos < m_file_len; )
+      {
+        bb.clear();
+        bb.limit( (int)Math.min( CHUNK_SIZE, m_file_len - pos ) );
+
+        final int bytes_read = fc.read( bb, pos );
+
+        if( bytes_read <= 0 )
+        {
+          throw new IOException("File shrank while checking it: "+ m_dst_fname );
+        }
+        bb.flip();
+        digest.update( bb );
+
+        pos += bytes_read;
+      }
+    }
+    finally {
+      fc.close();
+    }
+  }
+  static MessageDigest New_Digest() throws IOException
+  {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch( NoSuchAlgorithmException e )
+    {
+      throw new IOException("No SHA-256: "+ e.getMessage() );
+    }
+  }
+  // Returns true if the DATA opcode arrived
+  boolean Receive_Data_Opcode()
+  {
+    boolean ok = false;
+
+    if( m_running && m_file_ok )
+    try {
+      final byte op_code = m_din_stream.readByte();
+
+      if( op_code != OPCODE_DATA )
+      {
+        Die("Receive_File_Data(): Received bad OPCODE: " + op_code);
+      }
+      else {
+        ok = true;
+      }
     }
     catch( IOException e )
     {
-      Die("Receive_File_Data(): IOException: " + e);
+      Die("Receive_Data_Opcode(): IOException: " + e);
     }
+    return ok;
   }
-  void Print_summary_message( final long bytes_in_file )
+  // Reads num_bytes of file data from the socket, and writes them to fc
+  // starting at write_pos.  The writes are positional, so several
+  // connections can write their own parts of the same file through one fc.
+  void Receive_Into( final FileChannel fc
+                   , final long        write_pos
+                   , final long        num_bytes ) throws IOException
   {
-    if( m_running )
+    if( m_running && m_overlap && Buffer_Ring.Worth_It( num_bytes ) )
     {
-      // If we are still running at this point we were successful,
-      // so print summary message:
-      String msg = "Received from "
-                 + m_server_inet_addr.getHostAddress() +":"
-                 + SERVER_PORT +": "
-                 + m_dst_fname +", "
-                 + bytes_in_file +" bytes in "
-                 + m_tranfer_time_ms +" ms";
+      new Buffer_Ring( fc, write_pos, num_bytes ).Receive( m_sock_chan );
+      return;
+    }
+    // Read the socket straight into a direct buffer, so the data
+    // never passes through the Java heap:
+    if( null == m_recv_buf )
+    {
+      m_recv_buf = ByteBuffer.allocateDirect( RECV_BUF_SIZE );
+    }
+    ByteBuffer bb = m_recv_buf;
+
+    long total_bytes_read = 0;
+
+    while( m_running && total_bytes_read < num_bytes )
+    {
+      // Never read past the end of the file data:
+      bb.clear();
+      bb.limit( (int)Math.min( bb.capacity(), num_bytes - total_bytes_read ) );
+
+      final int bytes_read = m_sock_chan.read( bb );
+
+      if( bytes_read < 0 )
+      {
+        Die("Receive_File_Data(): Connection closed after "+ total_bytes_read
+           +" of "+ num_bytes +" bytes");
+      }
+      else {
+        bb.flip();
+        while( bb.hasRemaining() )
+        {
+          total_bytes_read += fc.write( bb, write_pos + total_bytes_read );
+        }
+      }
+    }
+  }
+  //               |<1>|<-- 4 bytes ---->|
+  // Sums          ----------------------------------------
+  // Request       |17 | Filename length | Filename       |
+  //               |   | Num utf16 chars | in utf16 chars |
+  //               ----------------------------------------
+  //
+  //               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+  // Sums          ---------------------------------------------------------------------------------
+  // Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+  // Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+  //               ---------------------------------------------------------------------------------
+  //
+  // The negative sums response is the negative read response with an
+  // opcode of 18.  Prints the SHA-256 of the file the way sha256sum does,
+  // followed by the CRC32C of each of its chunks.
+  void Get_Sums( final int file_num )
+  {
+    Set_Current_File( file_num );
+
+    if( m_running )
+    try {
+      m_dout_stream.writeByte( OPCODE_SUMS_REQ );
+      m_dout_stream.writeInt( m_src_fname.length() );
+      m_dout_stream.writeChars( m_src_fname );
+      m_dout_stream.flush();
 
-      if( 0 < m_tranfer_time_ms )
+      final byte resp_OPCODE = m_din_stream.readByte();
+      if( resp_OPCODE != OPCODE_SUMS_RESP )
+      {
+        Die( m_server_str +": expected sums response OPCODE "+ OPCODE_SUMS_RESP
+                          +" but received "+ resp_OPCODE );
+        return;
+      }
+      final byte response = m_din_stream.readByte();
+      if( response != 0 )
       {
-        final double bits = bytes_in_file*8;
-        final double seconds = ((double)m_tranfer_time_ms)/1000;
-        long bits_per_sec = (long)(bits/seconds + 0.5);
+        final long   num_bytes = m_din_stream.readLong();
+        final byte[] digest    = new byte[ DIGEST_LEN ];
+
+        m_din_stream.readFully( digest );
 
-        String rate_label = "bits/sec";
+        final int num_chunks = m_din_stream.readInt();
 
-        if( 1e9 < bits_per_sec )
+        if( num_chunks < 0 || (num_bytes + CHUNK_SIZE - 1)/CHUNK_SIZE != num_chunks )
         {
-          rate_label = "G-bits/sec";
-          bits_per_sec = (long)((double)(bits_per_sec)/1e9 + 0.5);
+          throw new IOException("Bad number of chunks: "+ num_chunks +" for "+ num_bytes +" bytes");
         }
-        else if( 1e6 < bits_per_sec )
+        System.out.println( Hex( digest ) +"  "+ m_src_fname );
+
+        for( int k=0; k<num_chunks; k++ )
         {
-          rate_label = "M-bits/sec";
-          bits_per_sec = (long)((double)(bits_per_sec)/1e6 + 0.5);
+          System.out.println( String.format("  %08x  chunk %d", m_din_stream.readInt(), k ) );
         }
-        else if( 1e3 < bits_per_sec )
+        Msg( m_src_fname +": "+ num_bytes +" bytes in "+ num_chunks +" chunks");
+      }
+      else {
+        final int err_str_len = m_din_stream.readInt();
+        StringBuilder sb = new StringBuilder( err_str_len );
+        for( int k=0; k<err_str_len; k++ )
         {
-          rate_label = "K-bits/sec";
-          bits_per_sec = (long)((double)(bits_per_sec)/1e3 + 0.5);
+          sb.append( m_din_stream.readChar() );
         }
-        msg += ", "+ bits_per_sec + " " + rate_label;
+        Fail( m_server_str +": "+ sb.toString() );
       }
+    }
+    catch( IOException e )
+    {
+      Die("Get_Sums(): IOException: " + e);
+    }
+  }
+  static String Hex( final byte[] bytes )
+  {
+    StringBuilder sb = new StringBuilder( 2*bytes.length );
+
+    for( byte b : bytes )
+    {
+      sb.append( String.format("%02x", b ) );
+    }
+    return sb.toString();
+  }
+  void Print_summary_message( final long bytes_in_file )
+  {
+    if( m_running && m_file_ok )
+    {
+      // If we are still running at this point we were successful,
+      // so print summary message:
+      String msg = "Received from "
+                 + m_server_inet_addr.getHostAddress() +":"
+                 + SERVER_PORT +": "
+                 + m_dst_fname +", "
+                 + bytes_in_file +" bytes"
+                 + ( m_ranged || m_resume ? " at offset "+ m_src_offset
+                                          + " of "+ m_src_len : "")
+                 + ( m_zipped_resp ? " compressed to "+ m_wire_bytes : "")
+                 + ( m_checked_resp && 0 < m_num_repaired ? ", "+ m_num_repaired +" chunks sent again" : "")
+                 + ( m_delta ? ", "+ m_wire_bytes +" of them sent as literals" : "")
+                 +" in "
+                 + m_tranfer_time_ms +" ms"
+                 + Rate_String( bytes_in_file, m_tranfer_time_ms );
+      Msg( msg );
+    }
+  }
+  void Print_session_summary()
+  {
+    if( m_multi && null != m_server_inet_addr )
+    {
+      String msg = "Received "+ m_num_files_received +" of "
+                 + m_src_fnames.size() +" files from "
+                 + m_server_inet_addr.getHostAddress() +":"
+                 + SERVER_PORT +", "
+                 + m_session_bytes +" bytes in "
+                 + m_session_time_ms +" ms"
+                 + Rate_String( m_session_bytes, m_session_time_ms );
       Msg( msg );
     }
   }
+  // Returns ", <rate> <units>", or an empty string if time_ms is zero
+  static String Rate_String( final long num_bytes, final long time_ms )
+  {
+    String rate = "";
+
+    if( 0 < time_ms )
+    {
+      final double bits = num_bytes*8;
+      final double seconds = ((double)time_ms)/1000;
+      long bits_per_sec = (long)(bits/seconds + 0.5);
+
+      String rate_label = "bits/sec";
+
+      if( 1e9 < bits_per_sec )
+      {
+        rate_label = "G-bits/sec";
+        bits_per_sec = (long)((double)(bits_per_sec)/1e9 + 0.5);
+      }
+      else if( 1e6 < bits_per_sec )
+      {
+        rate_label = "M-bits/sec";
+        bits_per_sec = (long)((double)(bits_per_sec)/1e6 + 0.5);
+      }
+      else if( 1e3 < bits_per_sec )
+      {
+        rate_label = "K-bits/sec";
+        bits_per_sec = (long)((double)(bits_per_sec)/1e3 + 0.5);
+      }
+      rate = ", "+ bits_per_sec + " " + rate_label;
+    }
+    return rate;
+  }
   void Clean_Up()
   {
+    if( null != m_inflater )
+    {
+      m_inflater.end();
+    }
     try {
       if( null != m_socket )
       {
@@ -428,24 +2314,387 @@ class File_get
   static final byte OPCODE_PUT_REQ  = 3;
   static final byte OPCODE_PUT_RESP = 4;
   static final byte OPCODE_DATA     = 5;
+  static final byte OPCODE_MUX      = 6;
+  static final byte OPCODE_CANCEL   = 7;
+  static final byte OPCODE_GET_RANGE_REQ  = 8;
+  static final byte OPCODE_GET_RANGE_RESP = 9;
+  static final byte OPCODE_GET64_REQ      = 12;
+  static final byte OPCODE_GET64_RESP     = 13;
+  static final byte FLAG_CHUNKED          = 1;
+  static final byte FLAG_COMPRESSED       = 2;
+  static final byte FLAG_CHECKED          = 4;
+  static final byte OPCODE_REPAIR         = 16;
+  static final byte OPCODE_SUMS_REQ       = 17;
+  static final byte OPCODE_SUMS_RESP      = 18;
+  static final byte OPCODE_GET_DELTA_REQ  = 24;
+  static final byte OPCODE_GET_DELTA_RESP = 25;
+  static final byte DELTA_END             = 0;
+  static final byte DELTA_LITERAL         = 1;
+  static final byte DELTA_COPY            = 2;
 
   static final int SERVER_PORT             = 6969;
   static final int IS_REACHABLE_TIMEOUT_MS = 1000;
   static final int CONNECT_TIMEOUT_MS      = 1000;
+  static final int RECV_BUF_SIZE           = 256*1024;
+  static final int MAX_PIPELINE_DEPTH      = 256;
+  static final int MAX_MUX_STREAMS         = 64;
+  static final int MAX_FRAME_LEN           = 64*1024;
+  static final int MAX_SEGMENT_CONNECTIONS = 64;
+  static final int CHUNK_SIZE              = 64*1024;
+  static final int MAX_ZIPPED_LEN          = CHUNK_SIZE + CHUNK_SIZE/64 + 64;
+  static final int RAW_CHUNK               = 0x80000000;
+  static final int MAX_REPAIR_ROUNDS       = 3;
+  static final int MAX_REPAIR_CHUNKS       = 4096;
+  static final int DIGEST_LEN              = 32; // SHA-256
+  static final String TMP_SUFFIX           = ".delta";
 
-  final String m_server_str;
-  final String m_src_fname;
-  final String m_dst_fname;
-  final Path   m_dst_path;
-  final Socket m_socket;
+  final String            m_server_str;
+  final ArrayList<String> m_src_fnames = new ArrayList<String>();
+  final ArrayList<String> m_dst_fnames = new ArrayList<String>();
 
   boolean              m_running = true;
+  boolean              m_multi;
+  int                  m_pipeline_depth = 1;
+  boolean              m_mux;
+  boolean              m_ranged;
+  boolean              m_resume;
+  boolean              m_sums;
+  boolean              m_delta;
+  boolean              m_chunked;
+  boolean              m_chunked_resp;
+  boolean              m_compress;
+  boolean              m_overlap;
+  boolean              m_zipped_resp;
+  boolean              m_check;
+  boolean              m_checked_resp;
+  long                 m_wire_bytes;
+  long                 m_file_len; // Of a checked transfer, so far
+  long                 m_num_repaired;
+  CRC32C               m_crc = new CRC32C();
+  Inflater             m_inflater;
+  byte[]               m_zipped_buf; // Chunk as it came off the wire
+  ByteBuffer           m_raw_buf;
+  long                 m_range_offset;
+  long                 m_range_num_bytes = -1;
+  long                 m_src_offset;
+  long                 m_src_len;
+  int                  m_num_segments;
+  long                 m_segment_size;
+  int                  m_conn_num;
+  ByteBuffer           m_recv_buf;
+  final byte[]         m_frame = new byte[ MAX_FRAME_LEN ];
+  boolean              m_file_ok;
+  String               m_src_fname;
+  String               m_dst_fname;
+  Path                 m_dst_path;
   InetAddress          m_server_inet_addr;
   InetSocketAddress    m_server_inet_sock_addr;
+  SocketChannel        m_sock_chan;
+  Socket               m_socket;
   File                 m_dst_file;
-  BufferedOutputStream m_bos;
   DataInputStream      m_din_stream;
   DataOutputStream     m_dout_stream;
   long                 m_tranfer_time_ms;
+  int                  m_num_files_received;
+  long                 m_session_bytes;
+  long                 m_session_time_ms;
+}
+
+// A file being received as one stream of a framed connection
+class Mux_File
+{
+  Mux_File( final int file_num )
+  {
+    m_file_num = file_num;
+    m_file_len = -1;
+  }
+  final int m_file_num;
+
+  FileChannel m_file_chan;
+  long        m_file_len;
+  long        m_file_pos;
+  long        m_st_time;
+}
+
+// A part of a file got by Get_File_Segmented()
+class Segment
+{
+  Segment( final int seg_num, final long offset, final long num_bytes )
+  {
+    m_seg_num   = seg_num;
+    m_offset    = offset;
+    m_num_bytes = num_bytes;
+  }
+  final int  m_seg_num;
+  final long m_offset;
+  final long m_num_bytes;
+
+  int     m_conn_num;
+  long    m_time_ms;
+  boolean m_done;
+}
+
+// Runs one connection of Get_File_Segmented()
+class Segment_Getter implements Runnable
+{
+  Segment_Getter( File_get            getter
+                , ArrayDeque<Segment> segments
+                , FileChannel         fc )
+  {
+    m_getter   = getter;
+    m_segments = segments;
+    m_fc       = fc;
+  }
+  public void run()
+  {
+    m_getter.Get_Segments( m_segments, m_fc );
+  }
+  final File_get            m_getter;
+  final ArrayDeque<Segment> m_segments;
+  final FileChannel         m_fc;
+}
+
+// Writes the file data of one plain read to the file on a thread of its
+// own, while the connection's thread reads the next part from the socket,
+// passing the data between them through a ring of NUM_BUFFERS direct
+// buffers.  Used for -overlap, so a slow disk does not hold up the socket.
+class Buffer_Ring implements Runnable
+{
+  Buffer_Ring( final FileChannel fc
+             , final long        file_pos
+             , final long        num_bytes )
+  {
+    m_fc        = fc;
+    m_file_pos  = file_pos;
+    m_num_bytes = num_bytes;
+
+    for( int k=0; k<NUM_BUFFERS; k++ )
+    {
+      m_bufs[k] = ByteBuffer.allocateDirect( BUFFER_SIZE );
+    }
+  }
+  // Returns true if num_bytes is enough data to be worth a thread:
+  static boolean Worth_It( final long num_bytes )
+  {
+    return BUFFER_SIZE < num_bytes;
+  }
+  // Receives the file data from sock_chan, and returns once all of
+  // it is written to the file:
+  void Receive( final SocketChannel sock_chan ) throws IOException
+  {
+    m_thread = new Thread( this, "Buffer_Ring" );
+    m_thread.setDaemon( true );
+    m_thread.start();
+    try {
+      long total_bytes_read = 0;
+
+      while( total_bytes_read < m_num_bytes )
+      {
+        ByteBuffer bb = Next_To_Fill();
+
+        // Never read past the end of the file data:
+        bb.limit( (int)Math.min( bb.capacity(), m_num_bytes - total_bytes_read ) );
+
+        while( bb.hasRemaining() )
+        {
+          if( sock_chan.read( bb ) < 0 )
+          {
+            throw new IOException("Connection closed after "+ (total_bytes_read + bb.position())
+                                 +" of "+ m_num_bytes +" bytes");
+          }
+        }
+        total_bytes_read += bb.position();
+        bb.flip();
+        Filled( false );
+      }
+      Filled( true );
+    }
+    catch( IOException e )
+    {
+      Fail( e );
+      throw e;
+    }
+    finally {
+      Join();
+    }
+    synchronized( this )
+    {
+      if( null != m_error ) throw new IOException( m_error.getMessage(), m_error );
+    }
+  }
+  // Writes the filled buffers to the file, on the ring's own thread:
+  public void run()
+  {
+    try {
+      long total_bytes_written = 0;
+
+      for( ByteBuffer bb = Next_To_Drain(); null != bb; bb = Next_To_Drain() )
+      {
+        while( bb.hasRemaining() )
+        {
+          total_bytes_written += m_fc.write( bb, m_file_pos + total_bytes_written );
+        }
+        Drained();
+      }
+    }
+    catch( IOException e )
+    {
+      Fail( e );
+    }
+  }
+  void Join() throws IOException
+  {
+    try {
+      m_thread.join();
+    }
+    catch( InterruptedException e )
+    {
+      Fail( new IOException("Interrupted") );
+      throw new IOException("Buffer_Ring.Join(): InterruptedException: "+ e );
+    }
+  }
+  synchronized ByteBuffer Next_To_Fill() throws IOException
+  {
+    while( null == m_error && NUM_BUFFERS <= m_filled - m_drained )
+    {
+      Wait();
+    }
+    Check_Error();
+
+    ByteBuffer bb = m_bufs[ (int)(m_filled % NUM_BUFFERS) ];
+    bb.clear();
+
+    return bb;
+  }
+  // Passes on the buffer just filled, or says there are no more:
+  synchronized void Filled( final boolean done )
+  {
+    if( done ) m_fill_done = true;
+    else       m_filled++;
+
+    notifyAll();
+  }
+  synchronized ByteBuffer Next_To_Drain() throws IOException
+  {
+    while( null == m_error && !m_fill_done && m_filled == m_drained )
+    {
+      Wait();
+    }
+    Check_Error();
+
+    return m_filled == m_drained ? null
+                                 : m_bufs[ (int)(m_drained % NUM_BUFFERS) ];
+  }
+  synchronized void Drained()
+  {
+    m_drained++;
+    notifyAll();
+  }
+  synchronized void Fail( final IOException e )
+  {
+    if( null == m_error ) m_error = e;
+    notifyAll();
+  }
+  void Check_Error() throws IOException
+  {
+    if( null != m_error )
+    {
+      throw new IOException("Transfer stopped: "+ m_error.getMessage() );
+    }
+  }
+  void Wait() throws IOException
+  {
+    try {
+      wait();
+    }
+    catch( InterruptedException e )
+    {
+      throw new IOException("Buffer_Ring.Wait(): InterruptedException: "+ e );
+    }
+  }
+  static final int NUM_BUFFERS = 4;
+  static final int BUFFER_SIZE = 256*1024;
+
+  final FileChannel  m_fc;
+  final long         m_file_pos;
+  final long         m_num_bytes;
+  final ByteBuffer[] m_bufs = new ByteBuffer[ NUM_BUFFERS ];
+
+  Thread      m_thread;
+  long        m_filled;  // Buffers filled so far
+  long        m_drained; // Buffers drained so far
+  boolean     m_fill_done;
+  IOException m_error;
 }
 
+// The signatures of the blocks of the destination's old copy of a file,
+// which the server looks for in the new version during Get_File_Delta().
+// The weak sum is the rsync rolling sum of the block, and the strong sum
+// is the first STRONG_LEN bytes of its SHA-256.
+class Block_Sigs
+{
+  // Blocks of about the square root of the size of the file keep both the
+  // signatures and what a change costs to send again small, as in rsync:
+  static int Block_Size( final long file_len )
+  {
+    final long root = (long)Math.sqrt( (double)file_len );
+
+    final long size = ( root + BLOCK_SIZE_STEP - 1 ) / BLOCK_SIZE_STEP * BLOCK_SIZE_STEP;
+
+    return (int)Math.max( MIN_BLOCK_SIZE, Math.min( MAX_BLOCK_SIZE, size ) );
+  }
+  static long Num_Blocks( final long file_len, final int block_size )
+  {
+    return ( file_len + block_size - 1 ) / block_size;
+  }
+  static int Weak_Sum( final byte[] buf, final int off, final int len )
+  {
+    int a = 0;
+    int b = 0;
+
+    for( int k=0; k<len; k++ )
+    {
+      a += buf[ off+k ] & 0xFF;
+      b += ( len - k )*( buf[ off+k ] & 0xFF );
+    }
+    return ( a & 0xFFFF ) | ( b << 16 );
+  }
+  //               |<-- 4 bytes -->|<-- 16 bytes -->|
+  // Block         ----------------------------------
+  // Signature     | Weak sum      | Strong sum     |
+  //               ----------------------------------
+  //
+  // Reads the file_len bytes of fc block by block, and writes the
+  // signature of each block to dout:
+  static void Write( final DataOutputStream dout
+                   , final FileChannel      fc
+                   , final long             file_len
+                   , final int              block_size ) throws IOException
+  {
+    final MessageDigest digest = File_get.New_Digest();
+    final byte[]        block  = new byte[ block_size ];
+
+    for( long pos = 0; pos < file_len; pos += block_size )
+    {
+      final int  len = (int)Math.min( block_size, file_len - pos );
+      ByteBuffer bb  = ByteBuffer.wrap( block, 0, len );
+
+      while( bb.hasRemaining() )
+      {
+        if( fc.read( bb, pos + bb.position() ) < 0 )
+        {
+          throw new IOException("File shrank while being signed");
+        }
+      }
+      digest.reset();
+      digest.update( block, 0, len );
+
+      dout.writeInt( Weak_Sum( block, 0, len ) );
+      dout.write( digest.digest(), 0, STRONG_LEN );
+    }
+  }
+  static final int MIN_BLOCK_SIZE  = 2*1024;
+  static final int MAX_BLOCK_SIZE  = File_get.CHUNK_SIZE;
+  static final int BLOCK_SIZE_STEP = 1024;
+  static final int STRONG_LEN      = 16;
+}
@@ -83,7 +83,321 @@
 //     |<-- Write Response Negative ------|
 //     |                                  |
 //
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -101,14 +415,24 @@ import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
 
 class File_put
 {
   public static void main(String[] args)
   {
-    if( args.length < 2 || 3 < args.length ) Usage();
-
     try {
       new File_put( args ).Run();
     }
@@ -124,7 +448,29 @@ class File_put
   }
   static void Usage()
   {
-    System.out.println("usage: File_put server_ip_addr source_file [destination_file]");
+    System.out.println("usage: File_put [-chunked] [-z] [-check] [-overlap] server_ip_addr source_file [destination_file]");
+    System.out.println("       File_put [-z] server_ip_addr - destination_file");
+    System.out.println("       File_put -segments n [-segment_size num_bytes] server_ip_addr source_file [destination_file]");
+    System.out.println("       File_put -m [-x | -chunked | -z | -check | -overlap | -segments n [-segment_size num_bytes]] server_ip_addr source_file [source_file ...]");
+    System.out.println("       File_put [-m] -delta server_ip_addr source_file [destination_file | source_file ...]");
+    System.out.println("       File_put [-m] -dedup server_ip_addr source_file [destination_file | source_file ...]");
+    System.out.println("       File_put -have server_ip_addr source_file [source_file ...]");
+    System.out.println("  -m : put several files over one connection, each saved under its source name");
+    System.out.println("  -x : put up to "+ MAX_MUX_STREAMS +" files at a time as streams interleaved on one connection");
+    System.out.println("  -chunked : stream each file in chunks, without sending its size first");
+    System.out.println("  -z       : compress each file on the way, if the server is willing to");
+    System.out.println("  -check   : add a CRC32C to each chunk and a SHA-256 to each file, and send bad chunks again");
+    System.out.println("  -overlap : read each file on a second thread while sending, through a ring of buffers");
+    System.out.println("  -        : stream standard input in chunks to destination_file");
+    System.out.println("  -segments     : put each file over n connections at the same time, one segment each (max "
+                      + MAX_SEGMENT_CONNECTIONS +")");
+    System.out.println("  -segment_size : cut each file into segments of num_bytes instead, shared out over the n connections");
+    System.out.println("  -delta : send only the parts of each file the server does not already have in its");
+    System.out.println("           copy of it, and have the server rebuild the rest out of its copy");
+    System.out.println("  -dedup : put each file into the server's chunk store, cut into content-defined chunks,");
+    System.out.println("           sending only the chunks the store does not already have");
+    System.out.println("  -have : ask whether the server already has a file with the contents of each source file,");
+    System.out.println("          by its SHA-256, without sending it");
     System.exit( 0 );
   }
   void Msg( String msg )
@@ -137,142 +483,418 @@ class File_put
 
     m_running = false;
   }
+  // Like Die(), but only gives up on the current file, and
+  // leaves the connection usable for the next one:
+  void Fail( String msg )
+  {
+    Msg( msg );
+
+    m_file_ok = false;
+  }
   File_put( String[] args )
   {
-    m_server_str = args[0];
-    m_src_fname  = args[1];
-    m_dst_fname  = args.length == 3 ? args[2] : m_src_fname;
-    m_src_path   = FileSystems.getDefault().getPath( m_src_fname );
+    ArrayList<String> pos_args = new ArrayList<String>();
+
+    for( int k=0; k<args.length; k++ )
+    {
+      if( args[k].equals("-m") )
+      {
+        m_multi = true;
+      }
+      else if( args[k].equals("-x") )
+      {
+        m_mux = true;
+      }
+      else if( args[k].equals("-segments") && k+1 < args.length )
+      {
+        m_num_segments = Parse_Positive_Int( args[++k] );
+
+        if( MAX_SEGMENT_CONNECTIONS < m_num_segments ) Usage();
+      }
+      else if( args[k].equals("-segment_size") && k+1 < args.length )
+      {
+        m_segment_size = Parse_Positive_Long( args[++k] );
+      }
+      else if( args[k].equals("-chunked") )
+      {
+        m_chunked = true;
+      }
+      else if( args[k].equals("-z") )
+      {
+        m_compress = true;
+      }
+      else if( args[k].equals("-check") )
+      {
+        m_check = true;
+      }
+      else if( args[k].equals("-overlap") )
+      {
+        m_overlap = true;
+      }
+      else if( args[k].equals("-have") )
+      {
+        m_have = true;
+      }
+      else if( args[k].equals("-delta") )
+      {
+        m_delta = true;
+      }
+      else if( args[k].equals("-dedup") )
+      {
+        m_dedup = true;
+      }
+      else if( args[k].startsWith("-") && !args[k].equals( STDIN_FNAME ) )
+      {
+        Usage();
+      }
+      else {
+        pos_args.add( args[k] );
+      }
+    }
+    if( pos_args.size() < 2 || (!m_multi && !m_have && 3 < pos_args.size()) ) Usage();
+    if( m_have && (m_multi || m_mux || 0 < m_num_segments || m_chunked || m_compress
+                || m_check || m_overlap || pos_args.contains( STDIN_FNAME )) ) Usage();
+    if( m_delta && (m_have || m_mux || 0 < m_num_segments || m_chunked || m_compress
+                 || m_check || m_overlap || pos_args.contains( STDIN_FNAME )) ) Usage();
+    if( m_dedup && (m_delta || m_have || m_mux || 0 < m_num_segments || m_chunked || m_compress
+                 || m_check || m_overlap || pos_args.contains( STDIN_FNAME )) ) Usage();
+    if( m_mux && !m_multi ) Usage();
+    if( 0 < m_segment_size && m_num_segments < 1 ) Usage();
+    if( 0 < m_num_segments && m_mux ) Usage();
+    if( (m_chunked || m_compress || m_check) && (m_mux || 0 < m_num_segments) ) Usage();
+    // Standard input has no name to save it under, and no size up front,
+    // and can not be read again for bad chunks:
+    if( pos_args.contains( STDIN_FNAME ) && (m_multi || pos_args.size() < 3
+                                          || 0 < m_num_segments || m_check) ) Usage();
+
+    m_server_str = pos_args.get( 0 );
+
+    if( m_multi || m_have )
+    {
+      for( int k=1; k<pos_args.size(); k++ )
+      {
+        m_src_fnames.add( pos_args.get( k ) );
+        m_dst_fnames.add( pos_args.get( k ) );
+      }
+    }
+    else {
+      m_src_fnames.add( pos_args.get( 1 ) );
+      m_dst_fnames.add( pos_args.size() == 3 ? pos_args.get( 2 )
+                                             : pos_args.get( 1 ) );
+    }
+  }
+  static int Parse_Positive_Int( String arg )
+  {
+    int val = 0;
+    try {
+      val = Integer.parseInt( arg );
+    }
+    catch( NumberFormatException e )
+    {
+    }
+    if( val <= 0 ) Usage();
+
+    return val;
+  }
+  static long Parse_Positive_Long( String arg )
+  {
+    long val = 0;
+    try {
+      val = Long.parseLong( arg );
+    }
+    catch( NumberFormatException e )
+    {
+    }
+    if( val <= 0 ) Usage();
 
-    m_socket = new Socket();
+    return val;
   }
   void Run()
   {
-    Check_Source_File();
     Check_Server_Reachable();
     Connect();
     Get_In_Stream();
     Get_Out_Stream();
-    Send_Write_Request();
-    Receive_Write_Response();
-    Send_File_Data();
-    Print_summary_message();
+
+    // All of the files go over the same connection:
+    final long st_time = System.currentTimeMillis();
+
+    if( m_mux )
+    {
+      Put_Files_Muxed();
+    }
+    else if( m_have )
+    {
+      for( int k=0; m_running && k<m_src_fnames.size(); k++ )
+      {
+        Ask_Have( k );
+      }
+    }
+    else {
+      for( int k=0; m_running && k<m_src_fnames.size(); k++ )
+      {
+        if     ( 0 < m_num_segments ) Put_File_Segmented( k );
+        else if( m_delta )            Put_File_Delta( k );
+        else if( m_dedup )            Put_File_Dedup( k );
+        else                          Put_File( m_src_fnames.get( k ), m_dst_fnames.get( k ) );
+      }
+    }
+    m_session_time_ms = System.currentTimeMillis() - st_time;
+
+    Print_session_summary();
 
     Clean_Up();
   }
-  void Check_Source_File()
+  void Put_File( final String src_fname, final String dst_fname )
   {
-    if( Files.isDirectory( m_src_path ) )
+    Set_Current_File( src_fname, dst_fname );
+    Check_Source_File();
+    Send_Write_Request();
+    Receive_Write_Response( OPCODE_PUT64_RESP );
+    Send_File_Data();
+    Print_summary_message();
+
+    if( m_running && m_file_ok )
     {
-      Die( m_src_fname + " is a directory");
+      m_num_files_sent++;
+      m_session_bytes += m_src_len;
     }
-    if( m_running )
+  }
+  void Set_Current_File( final String src_fname, final String dst_fname )
+  {
+    m_src_fname = src_fname;
+    m_dst_fname = dst_fname;
+    m_src_path  = FileSystems.getDefault().getPath( m_src_fname );
+    m_file_ok   = true;
+  }
+  void Set_Current_File( final int file_num )
+  {
+    Set_Current_File( m_src_fnames.get( file_num ), m_dst_fnames.get( file_num ) );
+  }
+  // Switches the connection to framed mode, and puts up to MAX_MUX_STREAMS
+  // files at a time, each as its own stream.  Data frames of the accepted
+  // streams are sent round robin, so a large file does not hold up the
+  // small ones.  Frames from the server are read whenever some are waiting,
+  // or when there is nothing to send, so a refused or cancelled stream is
+  // dropped on its own without disturbing the rest.
+  void Put_Files_Muxed()
+  {
+    HashMap<Integer,Mux_File> open_files = new HashMap<Integer,Mux_File>();
+    ArrayDeque<Mux_File>      send_queue = new ArrayDeque<Mux_File>();
+
+    Send_Mux_Opcode();
+
+    int next_file_num = 0;
+
+    while( m_running && ( next_file_num < m_src_fnames.size()
+                       || !open_files.isEmpty() ) )
     {
-      m_src_file = m_src_path.toFile();
+      // Top up the open streams:
+      while( m_running && next_file_num < m_src_fnames.size()
+                       && open_files.size() < MAX_MUX_STREAMS )
+      {
+        Set_Current_File( next_file_num );
+        Check_Source_File();
 
-      if( Integer.MAX_VALUE < m_src_file.length() )
+        if( m_file_ok )
+        {
+          // Stream ids are file numbers plus one:
+          Send_Write_Request_Frame( next_file_num+1 );
+
+          open_files.put( next_file_num+1, new Mux_File( next_file_num, m_src_len ) );
+        }
+        next_file_num++;
+      }
+      if( m_running && !open_files.isEmpty() )
       {
-        Die( m_src_fname + " too large, not sending");
+        if( send_queue.isEmpty() || 0 < Frames_Waiting() )
+        {
+          Receive_Mux_Frame( open_files, send_queue );
+        }
+        else {
+          Mux_File mf = send_queue.removeFirst();
+
+          // Skip streams cancelled since they were queued:
+          if( open_files.get( mf.m_file_num+1 ) == mf )
+          {
+            Send_Data_Frame( open_files, send_queue, mf );
+          }
+        }
       }
     }
   }
-  void Check_Server_Reachable()
+  int Frames_Waiting()
   {
-    if( m_running )
+    int bytes_waiting = 0;
     try {
-      m_server_inet_addr = InetAddress.getByName( m_server_str );
-      m_server_inet_sock_addr = new InetSocketAddress( m_server_inet_addr
-                                                     , SERVER_PORT );
-      if( !m_server_inet_addr.isReachable( IS_REACHABLE_TIMEOUT_MS ) )
-      {
-        Die(m_server_str + ": Un-reachable");
-      }
-    }
-    catch( UnknownHostException e )
-    {
-      Die(m_server_str + ": UnknownHostException: "+ e);
+      bytes_waiting = m_din_stream.available();
     }
     catch( IOException e )
     {
-      Die("Check_Server_Reachable(): IOException: "+ e);
+      Die("Frames_Waiting(): IOException: " + e);
     }
+    return bytes_waiting;
   }
-  void Connect()
+  //               |<1>|
+  //               -----
+  // Mux           | 6 |
+  //               -----
+  void Send_Mux_Opcode()
   {
     if( m_running )
     try {
-      m_socket.connect( m_server_inet_sock_addr, CONNECT_TIMEOUT_MS );
-    }
-    catch( SocketTimeoutException e )
-    {
-      Die(m_server_str + ": SocketTimeoutException: " + e);
+      m_dout_stream.writeByte( OPCODE_MUX );
     }
     catch( IOException e )
     {
-      Die("Connect(): IOException: " + e);
-    }
-    catch( IllegalBlockingModeException e )
-    {
-      Die("Connect(): IllegalBlockingModeException: " + e);
+      Die("Send_Mux_Opcode(): IOException: " + e);
     }
-    catch( IllegalArgumentException e )
-    {
-      Die("Connect(): IllegalArgumentException: " + e);
+  }
+  //               |<-- 4 bytes -->|<-- 4 bytes -->|
+  //               ------------------------------------------------
+  // Frame         | Stream id     | Payload len   | Payload      |
+  //               |               | 1..65536      | Message      |
+  //               ------------------------------------------------
+  void Send_Write_Request_Frame( final int stream_id )
+  {
+    if( m_running )
+    try {
+      ByteBuffer bb = ByteBuffer.wrap( m_frame );
+      bb.putInt( stream_id );
+      bb.putInt( 1 + 4 + 4 + 2*m_dst_fname.length() );
+      bb.put( OPCODE_PUT_REQ );
+      bb.putInt( (int)m_src_len );
+      bb.putInt( m_dst_fname.length() );
+      for( int k=0; k<m_dst_fname.length(); k++ )
+      {
+        bb.putChar( m_dst_fname.charAt( k ) );
+      }
+      m_dout_stream.write( m_frame, 0, bb.position() );
     }
-    catch( Exception e )
+    catch( IOException e )
     {
-      Die("Connect(): Exception: " + e);
+      Die("Send_Write_Request_Frame(): IOException: " + e);
     }
   }
-
-  void Get_In_Stream()
+  //               |<1>|
+  //               -----
+  // Cancel        | 7 |
+  //               -----
+  void Send_Cancel_Frame( final int stream_id )
   {
     if( m_running )
     try {
-      InputStream in_stream = m_socket.getInputStream();
-
-      m_din_stream = new DataInputStream( in_stream );
+      m_dout_stream.writeInt( stream_id );
+      m_dout_stream.writeInt( 1 );
+      m_dout_stream.writeByte( OPCODE_CANCEL );
     }
     catch( IOException e )
     {
-      Die(m_server_str + ": m_socket.getInputStream(): IOException: " + e);
+      Die("Send_Cancel_Frame(): IOException: " + e);
     }
   }
-  void Get_Out_Stream()
+  // Sends the next frame of file data of mf, and puts mf back
+  // on the end of the send queue if it has more to send:
+  void Send_Data_Frame( HashMap<Integer,Mux_File> open_files
+                      , ArrayDeque<Mux_File>      send_queue
+                      , Mux_File                  mf )
   {
-    if( m_running )
+    final int stream_id = mf.m_file_num+1;
+
+    Set_Current_File( mf.m_file_num );
     try {
-      OutputStream out_stream = m_socket.getOutputStream();
+      final int data_len = (int)Math.min( MAX_FRAME_LEN-1
+                                        , mf.m_file_len - mf.m_file_pos );
+      // Frame header and DATA opcode are followed by the data
+      // in m_frame, so the whole frame goes out in one write:
+      int bytes_read = 0;
+      while( bytes_read < data_len )
+      {
+        final int rval = mf.m_fis.read( m_frame, 9 + bytes_read, data_len - bytes_read );
+        if( rval < 0 )
+        {
+          throw new IOException( m_src_fname +" shrank while sending");
+        }
+        bytes_read += rval;
+      }
+      ByteBuffer bb = ByteBuffer.wrap( m_frame );
+      bb.putInt( stream_id );
+      bb.putInt( 1 + data_len );
+      bb.put( OPCODE_DATA );
+      m_dout_stream.write( m_frame, 0, 9 + data_len );
 
-      m_dout_stream = new DataOutputStream( out_stream );
+      mf.m_file_pos += data_len;
     }
     catch( IOException e )
     {
-      Die(m_server_str + ": m_socket.getOutputStream(): IOException: " + e);
+      // Reading the source file failed; the connection is still usable:
+      Fail( m_src_fname +": IOException: "+ e );
+      Send_Cancel_Frame( stream_id );
     }
-  }
+    if( m_file_ok && mf.m_file_pos < mf.m_file_len )
+    {
+      send_queue.addLast( mf );
+    }
+    else {
+      if( m_file_ok ) Finish_Mux_File( mf );
 
-  //               |<1>|< 4 bytes >|<-- 4 bytes ---->|
-  //               ----------------------------------------------------
-  // Write Request | 3 | num_bytes | Filename length | Filename       |
-  // PUT           |   | in file   | Num utf16 chars | in utf16 chars |
-  //               ----------------------------------------------------
-  void Send_Write_Request()
+      Close_Mux_File( mf );
+      open_files.remove( stream_id );
+    }
+  }
+  void Receive_Mux_Frame( HashMap<Integer,Mux_File> open_files
+                        , ArrayDeque<Mux_File>      send_queue )
   {
-    if( m_running )
     try {
-      m_dout_stream.writeByte( OPCODE_PUT_REQ );
-      m_dout_stream.writeInt( (int)m_src_file.length() );
-      m_dout_stream.writeInt( m_src_fname.length() );
-      m_dout_stream.writeChars( m_src_fname );
-      m_dout_stream.flush();
+      final int stream_id = m_din_stream.readInt();
+      final int frame_len = m_din_stream.readInt();
+
+      if( frame_len <= 0 || MAX_FRAME_LEN < frame_len )
+      {
+        Die("Receive_Mux_Frame(): Bad frame length: "+ frame_len );
+        return;
+      }
+      m_din_stream.readFully( m_frame, 0, frame_len );
+
+      Mux_File mf = open_files.get( stream_id );
+
+      // Frames of a stream that has finished or been cancelled
+      // can still be in flight, and are dropped:
+      if( null == mf ) return;
+
+      Set_Current_File( mf.m_file_num );
+
+      final byte op_code = m_frame[0];
+
+      if( op_code == OPCODE_PUT_RESP )
+      {
+        Receive_Mux_Response( mf, frame_len );
+      }
+      else if( op_code == OPCODE_CANCEL )
+      {
+        Fail( m_server_str +": cancelled "+ m_dst_fname );
+      }
+      else {
+        Die("Receive_Mux_Frame(): Received bad OPCODE: " + op_code);
+      }
+      if( !m_file_ok || mf.m_file_len <= mf.m_file_pos )
+      {
+        // Empty files are done as soon as they are accepted:
+        if( m_file_ok ) Finish_Mux_File( mf );
+
+        Close_Mux_File( mf );
+        open_files.remove( stream_id );
+      }
+      else if( op_code == OPCODE_PUT_RESP )
+      {
+        send_queue.addLast( mf );
+      }
     }
     catch( IOException e )
     {
-      Die("Send_Write_Request(): IOException: " + e);
+      Die("Receive_Mux_Frame(): IOException: " + e);
     }
   }
-
   //               |<1>|< 1 byte >|
   // Write         ----------------
   // Response      | 4 | True=1   |
@@ -284,86 +906,1435 @@ class File_put
   // Response      | 4 | False=0  | Num utf16 chars | errstring |
   // Negative      |   | 00000000 | in errstring    |           |
   //               ----------------------------------------------
-  void Receive_Write_Response()
+  void Receive_Mux_Response( Mux_File mf, final int frame_len )
   {
-    if( m_running )
-    try {
-      final byte resp_OPCODE = m_din_stream.readByte();
-      if( resp_OPCODE != OPCODE_PUT_RESP )
+    ByteBuffer bb = ByteBuffer.wrap( m_frame, 1, frame_len-1 );
+
+    if( 0 != bb.get() )
+    {
+      mf.m_st_time = System.currentTimeMillis();
+      try {
+        mf.m_fis = new FileInputStream( m_src_path.toFile() );
+      }
+      catch( FileNotFoundException e )
       {
-        Die( "Expected write response OPCODE "+ OPCODE_PUT_RESP
-           + " but received "+ resp_OPCODE );
+        Fail( m_src_fname +": FileNotFoundException: "+ e );
+        Send_Cancel_Frame( mf.m_file_num+1 );
       }
-      final byte response = m_din_stream.readByte();
-      if( response != 0 )
+    }
+    else {
+      final int err_str_len = bb.getInt();
+      StringBuilder sb = new StringBuilder( err_str_len );
+      for( int k=0; k<err_str_len; k++ )
       {
-        // Affirmative, nothing else to do here
+        sb.append( bb.getChar() );
       }
-      else {
+      Fail( sb.toString() );
+    }
+  }
+  void Finish_Mux_File( Mux_File mf )
+  {
+    m_src_len         = mf.m_file_len;
+    m_tranfer_time_ms = System.currentTimeMillis() - mf.m_st_time;
+
+    Print_summary_message();
+
+    m_num_files_sent++;
+    m_session_bytes += mf.m_file_len;
+  }
+  void Close_Mux_File( Mux_File mf )
+  {
+    try {
+      if( null != mf.m_fis )
+      {
+        mf.m_fis.close();
+        mf.m_fis = null;
+      }
+    }
+    catch( IOException e )
+    {
+      Msg("Close_Mux_File(): IOException: " + e);
+    }
+  }
+  // Puts a file over m_num_segments connections at the same time.  The file
+  // is cut into segments of m_segment_size bytes, or else into one segment
+  // per connection.  Each connection takes the next segment nobody has taken
+  // yet and sends it with a segmented write request.  The server writes each
+  // segment at its offset, and only puts the file in place once all of the
+  // segments have arrived.
+  void Put_File_Segmented( final int file_num )
+  {
+    Set_Current_File( file_num );
+    Check_Source_File();
+
+    if( m_running && m_file_ok )
+    try {
+      final ArrayDeque<Segment> segments = Make_Segments( m_src_len );
+      final ArrayList<Segment>  all_segs = new ArrayList<Segment>( segments );
+
+      FileChannel fc = FileChannel.open( m_src_path, StandardOpenOption.READ );
+
+      final long st_time = System.currentTimeMillis();
+
+      final int num_conns = Math.min( m_num_segments, segments.size() );
+
+      // This connection is connection 0, and keeps busy with the rest,
+      // so it is not closed for being idle while the others work:
+      Thread[] threads = new Thread[ num_conns ];
+
+      for( int k=1; k<num_conns; k++ )
+      {
+        threads[k] = new Thread( new Segment_Putter( new File_put( this, k ), segments, fc ) );
+        threads[k].start();
+      }
+      Take_Segments( segments, fc );
+
+      for( int k=1; k<num_conns; k++ )
+      {
+        threads[k].join();
+      }
+      m_tranfer_time_ms = System.currentTimeMillis() - st_time;
+      fc.close();
+
+      for( Segment seg : all_segs )
+      {
+        if( m_file_ok && !seg.m_done )
+        {
+          Fail( m_dst_fname +": segment "+ seg.m_seg_num +" failed");
+        }
+      }
+      if( m_running && m_file_ok )
+      {
+        Print_segment_summary( all_segs );
+        Print_summary_message();
+
+        m_num_files_sent++;
+        m_session_bytes += m_src_len;
+      }
+    }
+    catch( IOException e )
+    {
+      Fail( m_src_fname +": IOException: "+ e );
+    }
+    catch( InterruptedException e )
+    {
+      Die("Put_File_Segmented(): InterruptedException: " + e);
+    }
+  }
+  // An empty file still gets one empty segment, so it is created:
+  ArrayDeque<Segment> Make_Segments( final long file_len )
+  {
+    final long seg_size = 0 < m_segment_size
+                        ? m_segment_size
+                        : Math.max( 1, (file_len + m_num_segments-1)/m_num_segments );
+
+    ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+    for( long offset=0; offset<file_len || segments.isEmpty(); offset+=seg_size )
+    {
+      segments.add( new Segment( segments.size()
+                               , offset
+                               , Math.min( seg_size, file_len - offset ) ) );
+    }
+    return segments;
+  }
+  // Another connection to the same server, for putting segments
+  // of the parent's current file:
+  File_put( File_put parent, final int conn_num )
+  {
+    m_server_str            = parent.m_server_str;
+    m_server_inet_addr      = parent.m_server_inet_addr;
+    m_server_inet_sock_addr = parent.m_server_inet_sock_addr;
+    m_src_fname             = parent.m_src_fname;
+    m_dst_fname             = parent.m_dst_fname;
+    m_src_len               = parent.m_src_len;
+    m_conn_num              = conn_num;
+  }
+  // Run by each of the other connections of Put_File_Segmented():
+  void Put_Segments( ArrayDeque<Segment> segments, FileChannel fc )
+  {
+    Connect();
+    Get_In_Stream();
+    Get_Out_Stream();
+
+    m_file_ok = true;
+
+    Take_Segments( segments, fc );
+
+    Clean_Up();
+  }
+  // Puts segments until there are none left, or something goes wrong,
+  // in which case the segments nobody has taken yet are dropped, since
+  // the server gives up on the whole file anyway:
+  void Take_Segments( ArrayDeque<Segment> segments, FileChannel fc )
+  {
+    for( Segment seg = Next_Segment( segments )
+       ; null != seg
+       ; seg = Next_Segment( segments ) )
+    {
+      Send_Segment_Request( seg );
+      Receive_Write_Response( OPCODE_PUT_SEG_RESP );
+
+      if( m_running && m_file_ok )
+      try {
+        final long st_time = System.currentTimeMillis();
+
+        Send_Segment_Data( seg, fc );
+
+        seg.m_time_ms  = System.currentTimeMillis() - st_time;
+        seg.m_conn_num = m_conn_num;
+        seg.m_done     = true;
+      }
+      catch( IOException e )
+      {
+        Die("Take_Segments(): IOException: " + e);
+      }
+    }
+    if( !m_running || !m_file_ok )
+    {
+      synchronized( segments )
+      {
+        segments.clear();
+      }
+    }
+  }
+  // Returns null when there are no segments left, or this connection
+  // can not put any more of them:
+  Segment Next_Segment( ArrayDeque<Segment> segments )
+  {
+    Segment seg = null;
+
+    if( m_running && m_file_ok )
+    {
+      synchronized( segments )
+      {
+        seg = segments.poll();
+      }
+    }
+    return seg;
+  }
+  //               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+  // Segmented     -----------------------------------------------------------------------------------
+  // Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+  // PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+  //               -----------------------------------------------------------------------------------
+  void Send_Segment_Request( final Segment seg )
+  {
+    if( m_running && m_file_ok )
+    try {
+      m_dout_stream.writeByte( OPCODE_PUT_SEG_REQ );
+      m_dout_stream.writeLong( m_src_len );
+      m_dout_stream.writeLong( seg.m_offset );
+      m_dout_stream.writeLong( seg.m_num_bytes );
+      m_dout_stream.writeInt( m_dst_fname.length() );
+      m_dout_stream.writeChars( m_dst_fname );
+      m_dout_stream.flush();
+    }
+    catch( IOException e )
+    {
+      Die("Send_Segment_Request(): IOException: " + e);
+    }
+  }
+  // The kernel moves the segment straight from the file to the socket.
+  // m_dout_stream is unbuffered, so the DATA opcode is already on the wire.
+  void Send_Segment_Data( final Segment seg, final FileChannel fc ) throws IOException
+  {
+    m_dout_stream.writeByte( OPCODE_DATA );
+
+    long total_bytes_sent = 0;
+
+    while( total_bytes_sent < seg.m_num_bytes )
+    {
+      final long bytes_sent = fc.transferTo( seg.m_offset + total_bytes_sent
+                                           , seg.m_num_bytes - total_bytes_sent
+                                           , m_sock_chan );
+      if( bytes_sent <= 0 && fc.size() <= seg.m_offset + total_bytes_sent )
+      {
+        throw new IOException( m_src_fname +" shrank while sending");
+      }
+      total_bytes_sent += bytes_sent;
+    }
+  }
+  void Print_segment_summary( ArrayList<Segment> segments )
+  {
+    for( Segment seg : segments )
+    {
+      Msg("  Segment "+ seg.m_seg_num +" on connection "+ seg.m_conn_num +": "
+         + seg.m_num_bytes +" bytes at offset "+ seg.m_offset +" in "
+         + seg.m_time_ms +" ms"
+         + Rate_String( seg.m_num_bytes, seg.m_time_ms ) );
+    }
+  }
+  //               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+  // Have          ------------------------------------
+  // Request       |19 | SHA-256 of     | num_bytes     |
+  //               |   | file           | in file       |
+  //               ------------------------------------
+  //
+  //               |<1>|< 1 byte >|<-- 4 bytes ---->|
+  // Have          ---------------------------------------------------
+  // Response      |20 | True=1   | Filename length | Filename       |
+  // Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+  //               ---------------------------------------------------
+  //
+  // The negative have response is the negative write response with an
+  // opcode of 20, and only means the server knows of no such file.
+  void Ask_Have( final int file_num )
+  {
+    Set_Current_File( file_num );
+    Check_Source_File();
+
+    if( m_running && m_file_ok )
+    try {
+      final byte[] digest = Digest_File();
+
+      // In one write, as m_dout_stream is unbuffered:
+      ByteBuffer bb = ByteBuffer.allocate( 1+DIGEST_LEN+8 );
+      bb.put( OPCODE_HAVE_REQ );
+      bb.put( digest );
+      bb.putLong( m_src_len );
+      m_dout_stream.write( bb.array() );
+
+      final byte resp_OPCODE = m_din_stream.readByte();
+      if( resp_OPCODE != OPCODE_HAVE_RESP )
+      {
+        Die( "Expected have response OPCODE "+ OPCODE_HAVE_RESP
+           + " but received "+ resp_OPCODE );
+        return;
+      }
+      final byte response = m_din_stream.readByte();
+
+      final int str_len = m_din_stream.readInt();
+      StringBuilder sb = new StringBuilder( str_len );
+      for( int k=0; k<str_len; k++ )
+      {
+        sb.append( m_din_stream.readChar() );
+      }
+      if( response != 0 )
+      {
+        Msg( m_server_str +": "+ sb.toString() +" has the contents of "+ m_src_fname );
+      }
+      else {
+        Msg( m_src_fname +": "+ sb.toString() );
+      }
+    }
+    catch( IOException e )
+    {
+      Die("Ask_Have(): IOException: " + e);
+    }
+  }
+  // Returns the SHA-256 of the m_src_len bytes of the source file:
+  byte[] Digest_File() throws IOException
+  {
+    final MessageDigest digest = New_Digest();
+
+    ByteBuffer  bb = ByteBuffer.allocate( CHUNK_SIZE );
+    FileChannel fc = FileChannel.open( m_src_path, StandardOpenOption.READ );
+    try {
+      for( long pos = 0; pos < m_src_len; )
+      {
+        bb.clear();
+        bb.limit( (int)Math.min( CHUNK_SIZE, m_src_len - pos ) );
+
+        final int bytes_read = fc.read( bb, pos );
+
+        if( bytes_read <= 0 )
+        {
+          throw new IOException( m_src_fname +" shrank while being summed");
+        }
+        bb.flip();
+        digest.update( bb );
+
+        pos += bytes_read;
+      }
+    }
+    finally {
+      fc.close();
+    }
+    return digest.digest();
+  }
+  // Puts a new version of a file the server already has a copy of, sending
+  // only the parts of it the server does not already have, and rebuilding
+  // the rest on the server out of blocks of its copy:
+  void Put_File_Delta( final int file_num )
+  {
+    Set_Current_File( file_num );
+    Check_Source_File();
+    Send_Delta_Request();
+    Receive_Write_Response( OPCODE_PUT_DELTA_RESP );
+
+    if( m_running && m_file_ok )
+    try {
+      final Block_Table table = Receive_Signatures();
+
+      Send_Delta( table );
+    }
+    catch( IOException e )
+    {
+      Die("Put_File_Delta(): IOException: " + e);
+    }
+    Receive_Write_Response( OPCODE_PUT_DELTA_DONE );
+    Print_summary_message();
+
+    if( m_running && m_file_ok )
+    {
+      m_num_files_sent++;
+      m_session_bytes += m_src_len;
+    }
+  }
+  //               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+  // Delta         --------------------------------------------------------
+  // Write Request |21 | num_bytes     | Filename length | Filename       |
+  // PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+  //               --------------------------------------------------------
+  void Send_Delta_Request()
+  {
+    if( m_running && m_file_ok )
+    try {
+      // In one write, as m_dout_stream is unbuffered:
+      ByteBuffer bb = ByteBuffer.allocate( 1+8+4+2*m_dst_fname.length() );
+      bb.put( OPCODE_PUT_DELTA_REQ );
+      bb.putLong( m_src_len );
+      bb.putInt( m_dst_fname.length() );
+      for( int k=0; k<m_dst_fname.length(); k++ )
+      {
+        bb.putChar( m_dst_fname.charAt( k ) );
+      }
+      m_dout_stream.write( bb.array() );
+    }
+    catch( IOException e )
+    {
+      Die("Send_Delta_Request(): IOException: " + e);
+    }
+  }
+  //               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+  // Delta Write   ----------------------------------------------------------------------
+  // Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+  // Affirmative   |   |          | old copy      |               |                     |
+  //               |   |          | 0 if no copy  |               |                     |
+  //               ----------------------------------------------------------------------
+  //
+  // Reads what comes after the affirmative response into a Block_Table:
+  Block_Table Receive_Signatures() throws IOException
+  {
+    final long old_len    = m_din_stream.readLong();
+    final int  block_size = m_din_stream.readInt();
+
+    if( old_len < 0 || block_size <= 0 || CHUNK_SIZE < block_size
+     || Integer.MAX_VALUE < ( old_len + block_size - 1 ) / block_size )
+    {
+      throw new IOException("Received bad signatures: "+ old_len +" bytes in blocks of "+ block_size );
+    }
+    Block_Table table = new Block_Table( old_len, block_size );
+
+    for( int k=0; k<table.m_num_blocks; k++ )
+    {
+      table.m_weak[k] = m_din_stream.readInt();
+      m_din_stream.readFully( table.m_strong, k*STRONG_LEN, STRONG_LEN );
+    }
+    table.Index();
+
+    return table;
+  }
+  //               |<1>|<-- 4 bytes -->|
+  // Literal       -------------------------------------
+  //               | 1 | num_bytes     | New file data |
+  //               |   | 1..65536      |               |
+  //               -------------------------------------
+  //
+  //               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+  // Copy          -------------------------------------
+  //               | 2 | First block   | num_blocks    |
+  //               -------------------------------------
+  //
+  //               |<1>|<-- 32 bytes ---->|
+  // Delta         ------------------------
+  // End           | 0 | SHA-256 of       |
+  //               |   | new file         |
+  //               ------------------------
+  //
+  // Slides a window of one block along the source file a byte at a time,
+  // rolling its weak sum along with it, and wherever the window holds a
+  // block of the server's copy, sends a Copy of that block in place of the
+  // data, and moves the window past it.  The data the window slid over in
+  // between goes as Literals.  The short last block of the server's copy,
+  // if it has one, is only looked for at the end of the source file.
+  // m_wire_bytes is set to the number of literal bytes sent.
+  void Send_Delta( final Block_Table table ) throws IOException
+  {
+    final long st_time = System.currentTimeMillis();
+
+    final int           block_size = table.m_block_size;
+    final MessageDigest digest     = New_Digest();
+
+    m_delta_buf  = new byte[ CHUNK_SIZE + block_size + DELTA_READ_SIZE ];
+    m_delta_out  = new DataOutputStream( new BufferedOutputStream( m_dout_stream, 4 + CHUNK_SIZE + 1 ) );
+    m_wire_bytes = 0;
+    m_run_first  = 0;
+    m_run_len    = 0;
+
+    FileInputStream in = new FileInputStream( m_src_file );
+    try {
+      // The data not sent yet is m_delta_buf[ lit_start, pos ),
+      // and the window is m_delta_buf[ pos, pos + block_size ):
+      int     lit_start = 0;
+      int     pos       = 0;
+      int     end       = 0;
+      boolean at_eof    = false;
+      boolean have_sum  = false;
+      int     a         = 0;
+      int     b         = 0;
+
+      while( true )
+      {
+        // Make room for one more byte past the window:
+        if( !at_eof && end - pos <= block_size )
+        {
+          System.arraycopy( m_delta_buf, lit_start, m_delta_buf, 0, end - lit_start );
+          pos -= lit_start;
+          end -= lit_start;
+          lit_start = 0;
+
+          final int bytes_read = in.read( m_delta_buf, end, m_delta_buf.length - end );
+
+          if( bytes_read < 0 ) at_eof = true;
+          else {
+            digest.update( m_delta_buf, end, bytes_read );
+            end += bytes_read;
+          }
+          continue;
+        }
+        if( end - pos < block_size ) break;
+
+        if( 0 == table.m_num_blocks )
+        {
+          // Nothing to look for, so all of it is literal:
+          Send_Literal( lit_start, end );
+          lit_start = pos = end;
+          continue;
+        }
+        if( !have_sum )
+        {
+          a = 0;
+          b = 0;
+          for( int k=0; k<block_size; k++ )
+          {
+            final int x = m_delta_buf[ pos+k ] & 0xFF;
+            a += x;
+            b += ( block_size - k )*x;
+          }
+          have_sum = true;
+        }
+        // As Block_Table.Weak_Sum(), but rolled along with the window:
+        final int block = table.Find( ( a & 0xFFFF ) | ( b << 16 )
+                                    , m_delta_buf, pos, block_size
+                                    , m_run_first + m_run_len );
+        if( 0 <= block )
+        {
+          Send_Literal( lit_start, pos );
+          Add_Copy( block );
+
+          pos      += block_size;
+          lit_start = pos;
+          have_sum  = false;
+        }
+        else {
+          if( pos + block_size < end )
+          {
+            final int x_out = m_delta_buf[ pos ] & 0xFF;
+            final int x_in  = m_delta_buf[ pos + block_size ] & 0xFF;
+
+            a += x_in - x_out;
+            b += a - block_size*x_out;
+          }
+          else {
+            have_sum = false;
+          }
+          pos++;
+
+          if( CHUNK_SIZE <= pos - lit_start )
+          {
+            Send_Literal( lit_start, pos );
+            lit_start = pos;
+          }
+        }
+      }
+      // Less than a block is left, which can only be the short last block:
+      final int last = table.m_num_blocks - 1;
+
+      if( 0 <= last && table.Block_Len( last ) < block_size
+                    && table.Block_Len( last ) <= end - pos )
+      {
+        final int last_len = table.Block_Len( last );
+        final int tail     = end - last_len;
+
+        // Only the last block is short, so no other can be found:
+        if( 0 <= table.Find( Block_Table.Weak_Sum( m_delta_buf, tail, last_len )
+                           , m_delta_buf, tail, last_len, last ) )
+        {
+          Send_Literal( lit_start, tail );
+          Add_Copy( last );
+          lit_start = end;
+        }
+      }
+      Send_Literal( lit_start, end );
+      Send_Copy();
+
+      m_delta_out.writeByte( DELTA_END );
+      m_delta_out.write( digest.digest() );
+      m_delta_out.flush();
+    }
+    finally {
+      in.close();
+      m_delta_buf = null;
+    }
+    m_tranfer_time_ms = System.currentTimeMillis() - st_time;
+  }
+  // Sends m_delta_buf[ from, to ) as Literals of up to CHUNK_SIZE bytes,
+  // after the run of blocks waiting to be copied, if there is one:
+  void Send_Literal( int from, final int to ) throws IOException
+  {
+    if( from < to ) Send_Copy();
+
+    while( from < to )
+    {
+      final int len = Math.min( CHUNK_SIZE, to - from );
+
+      m_delta_out.writeByte( DELTA_LITERAL );
+      m_delta_out.writeInt( len );
+      m_delta_out.write( m_delta_buf, from, len );
+
+      m_wire_bytes += len;
+      from         += len;
+    }
+  }
+  // Adds block to the run of blocks waiting to be copied, if it follows
+  // on from them, else sends the run and starts a new one:
+  void Add_Copy( final int block ) throws IOException
+  {
+    if( 0 < m_run_len && m_run_first + m_run_len == block )
+    {
+      m_run_len++;
+    }
+    else {
+      Send_Copy();
+      m_run_first = block;
+      m_run_len   = 1;
+    }
+  }
+  void Send_Copy() throws IOException
+  {
+    if( 0 < m_run_len )
+    {
+      m_delta_out.writeByte( DELTA_COPY );
+      m_delta_out.writeInt( m_run_first );
+      m_delta_out.writeInt( m_run_len );
+
+      // The next block is still the one to look for first:
+      m_run_first += m_run_len;
+      m_run_len    = 0;
+    }
+  }
+  // Puts a file into the server's chunk store, sending only the chunks of
+  // it the store does not already have:
+  void Put_File_Dedup( final int file_num )
+  {
+    Set_Current_File( file_num );
+    Check_Source_File();
+    Send_Store_Request();
+    Receive_Write_Response( OPCODE_PUT_STORE_RESP );
+
+    if( m_running && m_file_ok )
+    try {
+      final long st_time = System.currentTimeMillis();
+
+      Send_Chunk_List( Cut_Source_File() );
+      Send_Missing_Chunks( Receive_Missing_Chunks() );
+
+      m_tranfer_time_ms = System.currentTimeMillis() - st_time;
+    }
+    catch( IOException e )
+    {
+      Die("Put_File_Dedup(): IOException: " + e);
+    }
+    Receive_Write_Response( OPCODE_PUT_STORE_DONE );
+    Print_summary_message();
+
+    if( m_running && m_file_ok )
+    {
+      m_num_files_sent++;
+      m_session_bytes += m_src_len;
+    }
+  }
+  //               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+  // Store         --------------------------------------------------------
+  // Write Request |26 | num_bytes     | Filename length | Filename       |
+  // PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+  //               --------------------------------------------------------
+  void Send_Store_Request()
+  {
+    if( m_running && m_file_ok )
+    try {
+      // In one write, as m_dout_stream is unbuffered:
+      ByteBuffer bb = ByteBuffer.allocate( 1+8+4+2*m_dst_fname.length() );
+      bb.put( OPCODE_PUT_STORE_REQ );
+      bb.putLong( m_src_len );
+      bb.putInt( m_dst_fname.length() );
+      for( int k=0; k<m_dst_fname.length(); k++ )
+      {
+        bb.putChar( m_dst_fname.charAt( k ) );
+      }
+      m_dout_stream.write( bb.array() );
+    }
+    catch( IOException e )
+    {
+      Die("Send_Store_Request(): IOException: " + e);
+    }
+  }
+  //               |<-- 4 bytes -->|<-- 32 bytes -->|
+  // Chunk         ----------------------------------
+  // Entry         | num_bytes     | SHA-256 of     |
+  //               | in chunk      | chunk          |
+  //               ----------------------------------
+  //
+  // Cuts the source file into chunks the same way the chunk store does,
+  // keeping the length of each in m_cut_lens, and returns their entries:
+  byte[] Cut_Source_File() throws IOException
+  {
+    final MessageDigest digest = New_Digest();
+
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    DataOutputStream      dout    = new DataOutputStream( entries );
+
+    m_cut_lens = new int[ 1024 ];
+    m_num_cut  = 0;
+
+    long total_len = 0;
+
+    InputStream in = new FileInputStream( m_src_file );
+    try {
+      Chunker chunker = new Chunker( in );
+
+      for( int len = chunker.Next(); 0 < len; len = chunker.Next() )
+      {
+        digest.update( chunker.m_buf, chunker.m_pos, len );
+
+        dout.writeInt( len );
+        dout.write( digest.digest() );
+
+        if( m_num_cut == m_cut_lens.length )
+        {
+          m_cut_lens = Arrays.copyOf( m_cut_lens, 2*m_num_cut );
+        }
+        m_cut_lens[ m_num_cut++ ] = len;
+
+        total_len += len;
+      }
+    }
+    finally {
+      in.close();
+    }
+    if( total_len != m_src_len )
+    {
+      throw new IOException( m_src_fname +" changed while being cut into chunks");
+    }
+    return entries.toByteArray();
+  }
+  //               |<-- 4 bytes -->|<-- 36 bytes each -->|
+  // Chunk         ---------------------------------------
+  // List          | num_chunks    | Chunk entries       |
+  //               ---------------------------------------
+  void Send_Chunk_List( final byte[] entries ) throws IOException
+  {
+    DataOutputStream dout = new DataOutputStream( new BufferedOutputStream( m_dout_stream ) );
+
+    dout.writeInt( m_num_cut );
+    dout.write( entries );
+    dout.flush();
+  }
+  //               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+  // Missing       ------------------------------------------
+  // Chunks        |28 | num_chunks    | Chunk numbers      |
+  //               ------------------------------------------
+  int[] Receive_Missing_Chunks() throws IOException
+  {
+    final byte op_code = m_din_stream.readByte();
+
+    if( op_code != OPCODE_PUT_STORE_MISSING )
+    {
+      throw new IOException("Expected missing chunks but received OPCODE "+ op_code );
+    }
+    final int num_missing = m_din_stream.readInt();
+
+    if( num_missing < 0 || m_num_cut < num_missing )
+    {
+      throw new IOException("Received bad number of missing chunks: "+ num_missing );
+    }
+    int[] missing = new int[ num_missing ];
+
+    for( int k=0; k<num_missing; k++ )
+    {
+      missing[k] = m_din_stream.readInt();
+
+      // In order, so the file is read front to back:
+      if( missing[k] < ( 0 < k ? missing[k-1] + 1 : 0 ) || m_num_cut <= missing[k] )
+      {
+        throw new IOException("Received bad missing chunk number: "+ missing[k] );
+      }
+    }
+    return missing;
+  }
+  // Sends the chunks the store asked for one after the other, read from
+  // the file again.  m_num_chunks and m_wire_bytes are set to the number
+  // of chunks and bytes sent.
+  void Send_Missing_Chunks( final int[] missing ) throws IOException
+  {
+    DataOutputStream dout = new DataOutputStream(
+                            new BufferedOutputStream( m_dout_stream, CHUNK_SIZE ) );
+    byte[] buf = new byte[ CHUNK_SIZE ];
+
+    m_num_chunks = 0;
+    m_wire_bytes = 0;
+
+    FileChannel fc = FileChannel.open( m_src_path, StandardOpenOption.READ );
+    try {
+      long file_pos = 0; // Of chunk k
+
+      for( int k=0, m=0; m<missing.length; file_pos += m_cut_lens[ k++ ] )
+      {
+        if( k != missing[m] ) continue;
+
+        final int  len = m_cut_lens[k];
+        ByteBuffer bb  = ByteBuffer.wrap( buf, 0, len );
+
+        while( bb.hasRemaining() )
+        {
+          if( fc.read( bb, file_pos + bb.position() ) < 0 )
+          {
+            throw new IOException( m_src_fname +" shrank while sending");
+          }
+        }
+        dout.write( buf, 0, len );
+
+        m_num_chunks++;
+        m_wire_bytes += len;
+        m++;
+      }
+      dout.flush();
+    }
+    finally {
+      fc.close();
+    }
+  }
+  void Check_Source_File()
+  {
+    if( m_src_fname.equals( STDIN_FNAME ) )
+    {
+      // Streamed in chunks, since its size is not known up front:
+      m_src_file = null;
+      m_src_len  = -1;
+    }
+    else if( Files.isDirectory( m_src_path ) )
+    {
+      Fail( m_src_fname + " is a directory");
+    }
+    else if( ! Files.isRegularFile( m_src_path ) )
+    {
+      Fail( m_src_fname + " does not exist or is not a regular file");
+    }
+    else {
+      m_src_file = m_src_path.toFile();
+      m_src_len  = m_src_file.length();
+
+      // Only mux frames still carry 4 byte lengths:
+      if( Integer.MAX_VALUE < m_src_len && m_mux )
+      {
+        Fail( m_src_fname + " too large, not sending");
+      }
+    }
+  }
+  void Check_Server_Reachable()
+  {
+    if( m_running )
+    try {
+      m_server_inet_addr = InetAddress.getByName( m_server_str );
+      m_server_inet_sock_addr = new InetSocketAddress( m_server_inet_addr
+                                                     , SERVER_PORT );
+      if( !m_server_inet_addr.isReachable( IS_REACHABLE_TIMEOUT_MS ) )
+      {
+        Die(m_server_str + ": Un-reachable");
+      }
+    }
+    catch( UnknownHostException e )
+    {
+      Die(m_server_str + ": UnknownHostException: "+ e);
+    }
+    catch( IOException e )
+    {
+      Die("Check_Server_Reachable(): IOException: "+ e);
+    }
+  }
+  void Connect()
+  {
+    if( m_running )
+    try {
+      // Open the socket through a channel, so segments can be
+      // sent from the file with transferTo:
+      m_sock_chan = SocketChannel.open();
+      m_socket    = m_sock_chan.socket();
+      m_socket.connect( m_server_inet_sock_addr, CONNECT_TIMEOUT_MS );
+    }
+    catch( SocketTimeoutException e )
+    {
+      Die(m_server_str + ": SocketTimeoutException: " + e);
+    }
+    catch( IOException e )
+    {
+      Die("Connect(): IOException: " + e);
+    }
+    catch( IllegalBlockingModeException e )
+    {
+      Die("Connect(): IllegalBlockingModeException: " + e);
+    }
+    catch( IllegalArgumentException e )
+    {
+      Die("Connect(): IllegalArgumentException: " + e);
+    }
+    catch( Exception e )
+    {
+      Die("Connect(): Exception: " + e);
+    }
+  }
+
+  void Get_In_Stream()
+  {
+    if( m_running )
+    try {
+      InputStream in_stream = m_socket.getInputStream();
+
+      m_din_stream = new DataInputStream( in_stream );
+    }
+    catch( IOException e )
+    {
+      Die(m_server_str + ": m_socket.getInputStream(): IOException: " + e);
+    }
+  }
+  void Get_Out_Stream()
+  {
+    if( m_running )
+    try {
+      OutputStream out_stream = m_socket.getOutputStream();
+
+      m_dout_stream = new DataOutputStream( out_stream );
+    }
+    catch( IOException e )
+    {
+      Die(m_server_str + ": m_socket.getOutputStream(): IOException: " + e);
+    }
+  }
+
+  //               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+  // Write         ---------------------------------------------------------------
+  // Request 64    |14 | Flags  | num_bytes     | Filename length | Filename       |
+  // PUT64         |   |        | -1 if chunked | Num utf16 chars | in utf16 chars |
+  //               ---------------------------------------------------------------
+  //
+  // Flags: 1 = the file is sent in chunks, 2 = compress the chunks if the
+  // server is willing to, 4 = check the chunks and the whole file.
+  // Checked transfers are sent in chunks even if the server does not
+  // check them.
+  void Send_Write_Request()
+  {
+    if( m_running && m_file_ok )
+    try {
+      m_dout_stream.writeByte( OPCODE_PUT64_REQ );
+      m_dout_stream.writeByte( ( Is_Chunked() ? FLAG_CHUNKED    : 0 )
+                             | ( m_compress   ? FLAG_COMPRESSED : 0 )
+                             | ( m_check      ? FLAG_CHECKED    : 0 ) );
+      m_dout_stream.writeLong( Is_Chunked() ? -1 : m_src_len );
+      m_dout_stream.writeInt( m_dst_fname.length() );
+      m_dout_stream.writeChars( m_dst_fname );
+      m_dout_stream.flush();
+    }
+    catch( IOException e )
+    {
+      Die("Send_Write_Request(): IOException: " + e);
+    }
+  }
+
+  //               |<1>|< 1 byte >|
+  // Write         ----------------
+  // Response      | 4 | True=1   |
+  // Affirmative   |   | 00000001 |
+  // Affirmative   ----------------
+  //
+  //               |<1>|< 1 byte >|<-- 4 bytes ---->|
+  // Write         ----------------------------------------------
+  // Response      | 4 | False=0  | Num utf16 chars | errstring |
+  // Negative      |   | 00000000 | in errstring    |           |
+  //               ----------------------------------------------
+  //
+  //               |<1>|< 1 byte >|<1 byte>|
+  // Write         -------------------------
+  // Response 64   |15 | True=1   | Flags  |
+  // Affirmative   -------------------------
+  //
+  // The segmented write responses are the write responses with an opcode
+  // of 11, and the negative 64 bit write response is the negative write
+  // response with an opcode of 15.  The flags of the affirmative 64 bit
+  // write response say whether to compress and check the chunks.
+  void Receive_Write_Response( final byte expected_OPCODE )
+  {
+    m_zipped_resp  = false;
+    m_checked_resp = false;
+
+    if( m_running && m_file_ok )
+    try {
+      final byte resp_OPCODE = m_din_stream.readByte();
+      if( resp_OPCODE != expected_OPCODE )
+      {
+        Die( "Expected write response OPCODE "+ expected_OPCODE
+           + " but received "+ resp_OPCODE );
+      }
+      final byte response = m_din_stream.readByte();
+      if( response != 0 && expected_OPCODE == OPCODE_PUT64_RESP )
+      {
+        final byte flags = m_din_stream.readByte();
+
+        m_zipped_resp  = 0 != (flags & FLAG_COMPRESSED);
+        m_checked_resp = 0 != (flags & FLAG_CHECKED);
+      }
+      else if( response != 0 )
+      {
+        // Affirmative, nothing else to do here
+      }
+      else {
         final int err_str_len = m_din_stream.readInt();
         StringBuilder sb = new StringBuilder( err_str_len );
         for( int k=0; k<err_str_len; k++ )
         {
           sb.append( m_din_stream.readChar() );
         }
-        Die( sb.toString() );
+        Fail( sb.toString() );
+      }
+    }
+    catch( IOException e )
+    {
+      Die("Receive_Write_Request(): IOException: " + e);
+    }
+  }
+
+  void Send_File_Data()
+  {
+    try {
+      Send_File_Data_e();
+    }
+    catch( FileNotFoundException e )
+    {
+      Die("Send_File_Data(): FileNotFoundException: "+ e);
+    }
+    catch( IOException e )
+    {
+      Die("Send_File_Data(): IOException: "+ e);
+    }
+  }
+  //               |<1>|
+  // Read/Write    -----------------
+  // DATA          | 5 | File data |
+  //               -----------------
+  void Send_File_Data_e() throws IOException, FileNotFoundException
+  {
+    if( m_running && m_file_ok && (Is_Chunked() || m_zipped_resp) )
+    {
+      m_dout_stream.writeByte( OPCODE_DATA );
+
+      Send_File_Data_Chunked();
+    }
+    else if( m_running && m_file_ok && m_overlap && Buffer_Ring.Worth_It( m_src_len ) )
+    {
+      m_dout_stream.writeByte( OPCODE_DATA );
+
+      final long st_time = System.currentTimeMillis();
+
+      // Read ahead in the file on another thread while sending:
+      FileChannel fc = FileChannel.open( m_src_file.toPath(), StandardOpenOption.READ );
+      try {
+        new Buffer_Ring( fc, 0, m_src_len ).Send( m_sock_chan );
+      }
+      finally {
+        fc.close();
+      }
+      m_tranfer_time_ms = System.currentTimeMillis() - st_time;
+    }
+    else if( m_running && m_file_ok )
+    {
+      m_dout_stream.writeByte( OPCODE_DATA );
+
+      m_fis = new FileInputStream( m_src_file );
+
+      final long st_time = System.currentTimeMillis();
+
+      long total_bytes_read = 0;
+
+      while( total_bytes_read < m_src_len )
+      {
+        // Read from source file:
+        final int bytes_read = m_fis.read( m_bytes, 0, (int)Math.min( m_bytes.length
+                                                                    , m_src_len - total_bytes_read ) );
+        if( bytes_read < 0 )
+        {
+          m_fis.close();
+          throw new IOException( m_src_fname +" shrank while sending");
+        }
+        if( 0 < bytes_read )
+        {
+          total_bytes_read += bytes_read;
+
+          m_dout_stream.write( m_bytes, 0, bytes_read );
+        }
+      }
+      m_tranfer_time_ms = System.currentTimeMillis() - st_time;
+      m_fis.close();
+    }
+  }
+  boolean Is_Chunked()
+  {
+    return m_chunked || m_check || m_src_len < 0;
+  }
+  //               |<-- 4 bytes -->|
+  //               ------------------------------
+  // Chunk         | num_bytes     | File data  |
+  //               | 0 = last      |            |
+  //               ------------------------------
+  //
+  //               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+  // Checked       ----------------------------------------------
+  // Chunk         | num_bytes     | File data  | CRC32C of     |
+  //               | 0 = last      |            | File data     |
+  //               ----------------------------------------------
+  //
+  // Sends the source as chunks up to an empty chunk, reusing one buffer,
+  // so any amount of data can be streamed without knowing its size up
+  // front.  m_src_len is set to the number of bytes sent.  If the server
+  // agreed to compression, each chunk is compressed on its own, unless it
+  // or its type of file does not compress.  If it agreed to checking, the
+  // SHA-256 of the file, worked out as the chunks go, follows the empty
+  // chunk, and then the server can ask for bad chunks again.
+  void Send_File_Data_Chunked() throws IOException, FileNotFoundException
+  {
+    if( null == m_chunk )
+    {
+      m_chunk = new byte[ 4 + CHUNK_SIZE + 4 ];
+    }
+    InputStream in = null != m_src_file ? new FileInputStream( m_src_file )
+                                        : System.in;
+    final long st_time = System.currentTimeMillis();
+
+    long total_bytes_read = 0;
+    int  chunk_len        = CHUNK_SIZE;
+
+    // Stdin has no name of its own, so go by the destination:
+    final Zip_Type      zip_type = m_zipped_resp ? Get_Zip_Type( m_dst_fname ) : null;
+    final MessageDigest digest   = m_checked_resp ? New_Digest() : null;
+
+    m_wire_bytes   = 0;
+    m_num_chunks   = 0;
+    m_num_repaired = 0;
+
+    // A short chunk means the input is done, so every chunk
+    // but the last holds CHUNK_SIZE bytes:
+    while( CHUNK_SIZE == chunk_len )
+    {
+      // Fill the chunk, or whatever is left before the end of the input:
+      chunk_len = 0;
+      int bytes_read = 0;
+
+      while( 0 <= bytes_read && chunk_len < CHUNK_SIZE )
+      {
+        bytes_read = in.read( m_chunk, 4 + chunk_len, CHUNK_SIZE - chunk_len );
+
+        if( 0 < bytes_read ) chunk_len += bytes_read;
+      }
+      if( 0 < chunk_len )
+      {
+        if( null != digest ) digest.update( m_chunk, 4, chunk_len );
+
+        Send_Chunk( chunk_len, zip_type );
+
+        total_bytes_read += chunk_len;
+        m_num_chunks++;
+      }
+    }
+    Send_Last_Chunk( digest );
+
+    if( in != System.in ) in.close();
+
+    if( null != digest ) Serve_Repairs( zip_type );
+
+    m_tranfer_time_ms = System.currentTimeMillis() - st_time;
+    m_src_len         = total_bytes_read;
+  }
+  // Sends the raw_len bytes of the file in m_chunk as a chunk,
+  // compressed if the server agreed to it:
+  void Send_Chunk( final int raw_len, final Zip_Type zip_type ) throws IOException
+  {
+    if( m_zipped_resp )
+    {
+      Send_Zipped_Chunk( raw_len, zip_type );
+    }
+    else {
+      Write_Chunk( m_chunk, raw_len, raw_len );
+    }
+  }
+  // Writes the data_len bytes after the length in chunk, with len_word in
+  // front, and their CRC32C after them if the transfer is checked:
+  void Write_Chunk( final byte[] chunk
+                  , final int    len_word
+                  , final int    data_len ) throws IOException
+  {
+    Put_Chunk_Len( chunk, len_word );
+
+    int chunk_end = 4 + data_len;
+
+    if( m_checked_resp )
+    {
+      m_crc.reset();
+      m_crc.update( chunk, 4, data_len );
+      Put_Int( chunk, chunk_end, (int)m_crc.getValue() );
+      chunk_end += 4;
+    }
+    m_dout_stream.write( chunk, 0, chunk_end );
+
+    m_wire_bytes += data_len;
+  }
+  //               |<-- 32 bytes ---->|
+  // File          --------------------
+  // Digest        | SHA-256 of file  |
+  //               --------------------
+  //
+  // Writes the empty chunk, and the digest after it if there is one,
+  // in one write, as m_dout_stream is unbuffered:
+  void Send_Last_Chunk( final MessageDigest digest ) throws IOException
+  {
+    ByteBuffer bb = ByteBuffer.allocate( 4 + ( null != digest ? DIGEST_LEN : 0 ) );
+
+    bb.putInt( 0 );
+
+    if( null != digest ) bb.put( digest.digest() );
+
+    m_dout_stream.write( bb.array() );
+  }
+  //               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+  // Repair        ------------------------------------------
+  // Request       |16 | num_chunks    | Chunk numbers      |
+  //               |   | 0 = all good  |                    |
+  //               |   | -1 = give up  |                    |
+  //               ------------------------------------------
+  //
+  //               |<-- 8 bytes -->|
+  // Repaired      ------------------------------------
+  // Chunk         | Chunk number  | Checked chunk    |
+  //               ------------------------------------
+  //
+  // Sends the chunks the server asks for again, read from the file again,
+  // until the server has all of them whole or gives up on the file.
+  void Serve_Repairs( final Zip_Type zip_type ) throws IOException
+  {
+    FileChannel fc = null;
+    try {
+      for( int round=0; true; round++ )
+      {
+        final byte op_code = m_din_stream.readByte();
+
+        if( op_code != OPCODE_REPAIR )
+        {
+          throw new IOException("Expected repair request but received OPCODE "+ op_code );
+        }
+        final int num_chunks = m_din_stream.readInt();
+
+        if( num_chunks < 0 )
+        {
+          Fail( m_server_str +": "+ m_dst_fname +" arrived damaged");
+          return;
+        }
+        if( 0 == num_chunks ) return;
+
+        if( MAX_REPAIR_ROUNDS <= round || MAX_REPAIR_CHUNKS < num_chunks )
+        {
+          throw new IOException("Too many chunks to send again: "+ num_chunks );
+        }
+        final long[] chunk_nums = new long[ num_chunks ];
+
+        for( int k=0; k<num_chunks; k++ )
+        {
+          chunk_nums[k] = m_din_stream.readLong();
+        }
+        if( null == fc )
+        {
+          fc = FileChannel.open( m_src_file.toPath(), StandardOpenOption.READ );
+        }
+        for( long chunk_num : chunk_nums )
+        {
+          if( chunk_num < 0 || m_num_chunks <= chunk_num )
+          {
+            throw new IOException("Bad chunk number to send again: "+ chunk_num );
+          }
+          final int raw_len = Read_Chunk( fc, chunk_num*CHUNK_SIZE );
+
+          if( 0 == raw_len )
+          {
+            throw new IOException( m_src_fname +" shrank while sending");
+          }
+          m_dout_stream.writeLong( chunk_num );
+
+          Send_Chunk( raw_len, zip_type );
+        }
+        m_num_repaired += num_chunks;
+      }
+    }
+    finally {
+      if( null != fc ) fc.close();
+    }
+  }
+  // Reads the chunk of the file at file_pos into m_chunk, after its length,
+  // and returns the number of bytes read:
+  int Read_Chunk( final FileChannel fc, final long file_pos ) throws IOException
+  {
+    ByteBuffer bb = ByteBuffer.wrap( m_chunk, 4, CHUNK_SIZE );
+
+    while( bb.hasRemaining() )
+    {
+      if( fc.read( bb, file_pos + bb.position() - 4 ) <= 0 ) break;
+    }
+    return bb.position() - 4;
+  }
+  static MessageDigest New_Digest() throws IOException
+  {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch( NoSuchAlgorithmException e )
+    {
+      throw new IOException("No SHA-256: "+ e.getMessage() );
+    }
+  }
+  static void Put_Chunk_Len( final byte[] chunk, final int chunk_len )
+  {
+    Put_Int( chunk, 0, chunk_len );
+  }
+  static void Put_Int( final byte[] bytes, final int pos, final int val )
+  {
+    bytes[pos  ] = (byte)(val >>> 24);
+    bytes[pos+1] = (byte)(val >>> 16);
+    bytes[pos+2] = (byte)(val >>>  8);
+    bytes[pos+3] = (byte)(val       );
+  }
+  // Sends the raw_len bytes of file data in m_chunk as one chunk,
+  // compressed on their own if that pays, and as they are otherwise, with
+  // RAW_CHUNK set in the length.  Compressing is only tried if the type of
+  // the file has been paying for it, and a sample of the chunk does not
+  // look random.
+  void Send_Zipped_Chunk( final int raw_len, final Zip_Type type ) throws IOException
+  {
+    int zipped_len = raw_len;
+
+    if( type.Should_Try() )
+    {
+      if( Looks_Random( m_chunk, 4, raw_len ) )
+      {
+        type.Record( raw_len, raw_len );
+      }
+      else {
+        zipped_len = Deflate_Chunk( raw_len );
+
+        type.Record( raw_len, Math.min( raw_len, zipped_len ) );
       }
     }
-    catch( IOException e )
+    if( zipped_len <= raw_len * Zip_Type.PAYING_RATIO )
     {
-      Die("Receive_Write_Request(): IOException: " + e);
+      Write_Chunk( m_zipped, zipped_len, zipped_len );
+    }
+    else {
+      Write_Chunk( m_chunk, raw_len | RAW_CHUNK, raw_len );
     }
   }
-
-  void Send_File_Data()
+  // Compresses the raw_len bytes of file data in m_chunk on their own
+  // into m_zipped, after its length, and returns the compressed length
+  int Deflate_Chunk( final int raw_len ) throws IOException
   {
-    try {
-      Send_File_Data_e();
-    }
-    catch( FileNotFoundException e )
+    if( null == m_deflater )
     {
-      Die("Send_File_Data(): FileNotFoundException: "+ e);
+      // Fastest level, which gets most of the gain on text:
+      m_deflater = new Deflater( Deflater.BEST_SPEED );
+      m_zipped   = new byte[ 4 + MAX_ZIPPED_LEN + 4 ];
     }
-    catch( IOException e )
+    m_deflater.reset();
+    m_deflater.setInput( m_chunk, 4, raw_len );
+    m_deflater.finish();
+
+    int zipped_len = 0;
+
+    while( !m_deflater.finished() )
     {
-      Die("Send_File_Data(): IOException: "+ e);
+      if( MAX_ZIPPED_LEN <= zipped_len )
+      {
+        throw new IOException("Compressed chunk longer than "+ MAX_ZIPPED_LEN +" bytes");
+      }
+      zipped_len += m_deflater.deflate( m_zipped, 4 + zipped_len, MAX_ZIPPED_LEN - zipped_len );
     }
+    return zipped_len;
   }
-  //               |<1>|
-  // Read/Write    -----------------
-  // DATA          | 5 | File data |
-  //               -----------------
-  void Send_File_Data_e() throws IOException, FileNotFoundException
+  // Estimates the entropy of the len bytes of buf at off from every few
+  // bytes, and returns true if there is too little redundancy for Deflate
+  // to find, as in data that is already compressed or encrypted:
+  static boolean Looks_Random( final byte[] buf, final int off, final int len )
   {
-    if( m_running )
-    {
-      m_dout_stream.writeByte( OPCODE_DATA );
-
-      m_fis = new FileInputStream( m_src_file );
+    final int   stride = Math.max( 1, len / SAMPLE_SIZE );
+    final int[] counts = new int[256];
 
-      final long st_time = System.currentTimeMillis();
+    int num_samples = 0;
 
-      long total_bytes_read = 0;
+    for( int k=off; k<off+len; k+=stride )
+    {
+      counts[ buf[k] & 0xFF ]++;
+      num_samples++;
+    }
+    double bits = 0;
 
-      while( total_bytes_read < m_src_file.length() )
+    for( int count : counts )
+    {
+      if( 0 < count )
       {
-        // Read from source file:
-        final int bytes_read = m_fis.read( m_bytes, 0, 512 );
-
-        if( 0 < bytes_read )
-        {
-          total_bytes_read += bytes_read;
+        final double p = (double)count / num_samples;
 
-          m_dout_stream.write( m_bytes, 0, bytes_read );
-        }
+        bits -= p * Math.log( p );
       }
-      m_tranfer_time_ms = System.currentTimeMillis() - st_time;
-      m_fis.close();
     }
+    bits /= Math.log( 2 );
+
+    // Too small a sample says little either way:
+    return MIN_SAMPLES <= num_samples && RANDOM_BITS_PER_BYTE < bits;
+  }
+  // Returns the compression record of the type of fname, which is the
+  // extension of its last path component:
+  Zip_Type Get_Zip_Type( final String fname )
+  {
+    final String name = new File( fname ).getName();
+    final int    dot  = name.lastIndexOf('.');
+    final String key  = dot < 0 ? "" : name.substring( dot+1 ).toLowerCase();
+
+    Zip_Type type = m_zip_types.get( key );
+
+    if( null == type )
+    {
+      type = new Zip_Type();
+      m_zip_types.put( key, type );
+    }
+    return type;
   }
   void Print_summary_message()
   {
-    if( m_running )
+    if( m_running && m_file_ok )
     {
       // If we are still running at this point we were successful,
       // so print summary message:
@@ -371,39 +2342,70 @@ class File_put
                  + m_server_inet_addr.getHostAddress() +":"
                  + SERVER_PORT +": "
                  + m_dst_fname +", "
-                 + m_src_file.length() +" bytes in "
-                 + m_tranfer_time_ms +" ms";
+                 + m_src_len +" bytes"
+                 + ( m_zipped_resp ? " compressed to "+ m_wire_bytes : "")
+                 + ( m_checked_resp && 0 < m_num_repaired ? ", "+ m_num_repaired +" chunks sent again" : "")
+                 + ( m_delta ? ", "+ m_wire_bytes +" of them sent as literals" : "")
+                 + ( m_dedup ? " in "+ m_num_cut +" chunks, "+ m_num_chunks +" of them sent, "
+                             + m_wire_bytes +" bytes" : "")
+                 +" in "
+                 + m_tranfer_time_ms +" ms"
+                 + Rate_String( m_src_len, m_tranfer_time_ms );
+      Msg( msg );
+    }
+  }
+  void Print_session_summary()
+  {
+    if( m_multi && null != m_server_inet_addr )
+    {
+      String msg = "Sent "+ m_num_files_sent +" of "
+                 + m_src_fnames.size() +" files to "
+                 + m_server_inet_addr.getHostAddress() +":"
+                 + SERVER_PORT +", "
+                 + m_session_bytes +" bytes in "
+                 + m_session_time_ms +" ms"
+                 + Rate_String( m_session_bytes, m_session_time_ms );
+      Msg( msg );
+    }
+  }
+  // Returns ", <rate> <units>", or an empty string if time_ms is zero
+  static String Rate_String( final long num_bytes, final long time_ms )
+  {
+    String rate = "";
 
-      if( 0 < m_tranfer_time_ms )
-      {
-        final double bits = m_src_file.length()*8;
-        final double seconds = ((double)m_tranfer_time_ms)/1000;
-        long bits_per_sec = (long)(bits/seconds + 0.5);
+    if( 0 < time_ms )
+    {
+      final double bits = num_bytes*8;
+      final double seconds = ((double)time_ms)/1000;
+      long bits_per_sec = (long)(bits/seconds + 0.5);
 
-        String rate_label = "bits/sec";
+      String rate_label = "bits/sec";
 
-        if( 1e9 < bits_per_sec )
-        {
-          rate_label = "G-bits/sec";
-          bits_per_sec = (long)((double)(bits_per_sec)/1e9 + 0.5);
-        }
-        else if( 1e6 < bits_per_sec )
-        {
-          rate_label = "M-bits/sec";
-          bits_per_sec = (long)((double)(bits_per_sec)/1e6 + 0.5);
-        }
-        else if( 1e3 < bits_per_sec )
-        {
-          rate_label = "K-bits/sec";
-          bits_per_sec = (long)((double)(bits_per_sec)/1e3 + 0.5);
-        }
-        msg += ", "+ bits_per_sec + " " + rate_label;
+      if( 1e9 < bits_per_sec )
+      {
+        rate_label = "G-bits/sec";
+        bits_per_sec = (long)((double)(bits_per_sec)/1e9 + 0.5);
       }
-      Msg( msg );
+      else if( 1e6 < bits_per_sec )
+      {
+        rate_label = "M-bits/sec";
+        bits_per_sec = (long)((double)(bits_per_sec)/1e6 + 0.5);
+      }
+      else if( 1e3 < bits_per_sec )
+      {
+        rate_label = "K-bits/sec";
+        bits_per_sec = (long)((double)(bits_per_sec)/1e3 + 0.5);
+      }
+      rate = ", "+ bits_per_sec + " " + rate_label;
     }
+    return rate;
   }
   void Clean_Up()
   {
+    if( null != m_deflater )
+    {
+      m_deflater.end();
+    }
     try {
       if( null != m_socket )
       {
@@ -428,25 +2430,575 @@ class File_put
   static final byte OPCODE_PUT_REQ  = 3;
   static final byte OPCODE_PUT_RESP = 4;
   static final byte OPCODE_DATA     = 5;
+  static final byte OPCODE_MUX      = 6;
+  static final byte OPCODE_CANCEL   = 7;
+  static final byte OPCODE_PUT_SEG_REQ  = 10;
+  static final byte OPCODE_PUT_SEG_RESP = 11;
+  static final byte OPCODE_PUT64_REQ    = 14;
+  static final byte OPCODE_PUT64_RESP   = 15;
+  static final byte FLAG_CHUNKED        = 1;
+  static final byte FLAG_COMPRESSED     = 2;
+  static final byte FLAG_CHECKED        = 4;
+  static final byte OPCODE_REPAIR       = 16;
+  static final byte OPCODE_HAVE_REQ     = 19;
+  static final byte OPCODE_HAVE_RESP    = 20;
+
+  static final byte OPCODE_PUT_DELTA_REQ  = 21;
+  static final byte OPCODE_PUT_DELTA_RESP = 22;
+  static final byte OPCODE_PUT_DELTA_DONE = 23;
+  static final byte DELTA_END             = 0;
+  static final byte DELTA_LITERAL         = 1;
+  static final byte DELTA_COPY            = 2;
+
+  static final byte OPCODE_PUT_STORE_REQ     = 26;
+  static final byte OPCODE_PUT_STORE_RESP    = 27;
+  static final byte OPCODE_PUT_STORE_MISSING = 28;
+  static final byte OPCODE_PUT_STORE_DONE    = 29;
 
   static final int SERVER_PORT             = 6969;
   static final int IS_REACHABLE_TIMEOUT_MS = 1000;
   static final int CONNECT_TIMEOUT_MS      = 1000;
+  static final int MAX_MUX_STREAMS         = 64;
+  static final int MAX_FRAME_LEN           = 64*1024;
+  static final int MAX_SEGMENT_CONNECTIONS = 64;
+  static final int CHUNK_SIZE              = 64*1024;
+  static final int MAX_ZIPPED_LEN          = CHUNK_SIZE + CHUNK_SIZE/64 + 64;
+  static final int RAW_CHUNK               = 0x80000000;
+  static final int MAX_REPAIR_ROUNDS       = 3;
+  static final int MAX_REPAIR_CHUNKS       = 4096;
+  static final int DIGEST_LEN              = 32; // SHA-256
+  static final int STRONG_LEN              = 16; // Of a block signature
+  static final int DELTA_READ_SIZE         = 256*1024;
+
+  // Bytes looked at to estimate the entropy of a chunk:
+  static final int SAMPLE_SIZE = 4096;
+  static final int MIN_SAMPLES = 512;
+
+  // Text is around 4.5 bits per byte, and compressed data is nearly 8:
+  static final double RANDOM_BITS_PER_BYTE = 7.5;
+  static final String STDIN_FNAME          = "-";
 
-  final String m_server_str;
-  final String m_src_fname;
-  final String m_dst_fname;
-  final Path   m_src_path;
-  final Socket m_socket;
-  final byte[] m_bytes = new byte[512];
+  final String            m_server_str;
+  final ArrayList<String> m_src_fnames = new ArrayList<String>();
+  final ArrayList<String> m_dst_fnames = new ArrayList<String>();
+  final byte[]            m_bytes = new byte[512];
+  final byte[]            m_frame = new byte[ 8 + MAX_FRAME_LEN ];
 
   boolean             m_running = true;
+  boolean             m_multi;
+  boolean             m_mux;
+  boolean             m_chunked;
+  boolean             m_compress;
+  boolean             m_overlap;
+  boolean             m_have;
+  boolean             m_delta;
+  boolean             m_zipped_resp;
+  boolean             m_check;
+  boolean             m_checked_resp;
+  long                m_wire_bytes;
+  long                m_num_chunks; // Of the current file, not counting the last
+  long                m_num_repaired;
+  byte[]              m_delta_buf;
+  DataOutputStream    m_delta_out;
+  int                 m_run_first; // Blocks waiting to be copied
+  int                 m_run_len;
+  boolean             m_dedup;
+  int[]               m_cut_lens; // Of the chunks of the current file
+  int                 m_num_cut;
+  CRC32C              m_crc = new CRC32C();
+  Deflater            m_deflater;
+  byte[]              m_zipped;
+
+  // How well each type of file has been compressing, by extension:
+  final HashMap<String,Zip_Type> m_zip_types = new HashMap<String,Zip_Type>();
+  int                 m_num_segments;
+  long                m_segment_size;
+  int                 m_conn_num;
+  SocketChannel       m_sock_chan;
+  Socket              m_socket;
+  boolean             m_file_ok;
+  String              m_src_fname;
+  String              m_dst_fname;
+  Path                m_src_path;
+  long                m_src_len;
   InetAddress         m_server_inet_addr;
   InetSocketAddress   m_server_inet_sock_addr;
   File                m_src_file;
   FileInputStream     m_fis;
+  byte[]              m_chunk;
   DataInputStream     m_din_stream;
   DataOutputStream    m_dout_stream;
   long                m_tranfer_time_ms;
+  int                 m_num_files_sent;
+  long                m_session_bytes;
+  long                m_session_time_ms;
+}
+
+// How well one type of file, going by the extension of its name, has been
+// compressing lately.  Chunks of a type that has stopped paying for its
+// compression are sent as they are without trying, and only every so
+// often is one tried again, backing off twice as far each time it still
+// does not pay.
+class Zip_Type
+{
+  // Returns false if the next chunk should be sent without trying to
+  // compress it:
+  boolean Should_Try()
+  {
+    if( 0 < m_skip )
+    {
+      m_skip--;
+      return false;
+    }
+    return true;
+  }
+  // Folds the outcome of trying one chunk of raw_len bytes into the
+  // running ratio, packed_len being what was sent for it:
+  void Record( final int raw_len, final int packed_len )
+  {
+    m_ratio += WEIGHT * ( (double)packed_len / raw_len - m_ratio );
+
+    if( PAYING_RATIO < m_ratio )
+    {
+      m_backoff = Math.min( MAX_BACKOFF, Math.max( 1, 2*m_backoff ) );
+      m_skip    = m_backoff;
+    }
+    else {
+      m_backoff = 0;
+    }
+  }
+  // Compression stops paying once less than a sixteenth is saved:
+  static final double PAYING_RATIO = 15.0/16;
+  static final double WEIGHT       = 0.25;
+  static final int    MAX_BACKOFF  = 256;
+
+  double m_ratio = 0.75; // Hopeful, until shown otherwise
+  int    m_backoff;
+  int    m_skip;
+}
+
+// A file being sent as one stream of a framed connection
+class Mux_File
+{
+  Mux_File( final int file_num, final long file_len )
+  {
+    m_file_num = file_num;
+    m_file_len = file_len;
+  }
+  final int  m_file_num;
+  final long m_file_len;
+
+  FileInputStream m_fis;
+  long            m_file_pos;
+  long            m_st_time;
+}
+
+// A part of a file put by Put_File_Segmented()
+class Segment
+{
+  Segment( final int seg_num, final long offset, final long num_bytes )
+  {
+    m_seg_num   = seg_num;
+    m_offset    = offset;
+    m_num_bytes = num_bytes;
+  }
+  final int  m_seg_num;
+  final long m_offset;
+  final long m_num_bytes;
+
+  int     m_conn_num;
+  long    m_time_ms;
+  boolean m_done;
+}
+
+// Runs one connection of Put_File_Segmented()
+class Segment_Putter implements Runnable
+{
+  Segment_Putter( File_put            putter
+                , ArrayDeque<Segment> segments
+                , FileChannel         fc )
+  {
+    m_putter   = putter;
+    m_segments = segments;
+    m_fc       = fc;
+  }
+  public void run()
+  {
+    m_putter.Put_Segments( m_segments, m_fc );
+  }
+  final File_put            m_putter;
+  final ArrayDeque<Segment> m_segments;
+  final FileChannel         m_fc;
+}
+
+// Reads ahead in the file of one plain write on a thread of its own, while
+// the connection's thread sends what has already been read, passing the
+// data between them through a ring of NUM_BUFFERS direct buffers.  Used
+// for -overlap, so a slow disk does not hold up the socket.
+class Buffer_Ring implements Runnable
+{
+  Buffer_Ring( final FileChannel fc
+             , final long        file_pos
+             , final long        num_bytes )
+  {
+    m_fc        = fc;
+    m_file_pos  = file_pos;
+    m_num_bytes = num_bytes;
+
+    for( int k=0; k<NUM_BUFFERS; k++ )
+    {
+      m_bufs[k] = ByteBuffer.allocateDirect( BUFFER_SIZE );
+    }
+  }
+  // Returns true if num_bytes is enough data to be worth a thread:
+  static boolean Worth_It( final long num_bytes )
+  {
+    return BUFFER_SIZE < num_bytes;
+  }
+  // Sends the file data to sock_chan:
+  void Send( final SocketChannel sock_chan ) throws IOException
+  {
+    m_thread = new Thread( this, "Buffer_Ring" );
+    m_thread.setDaemon( true );
+    m_thread.start();
+    try {
+      for( ByteBuffer bb = Next_To_Drain(); null != bb; bb = Next_To_Drain() )
+      {
+        while( bb.hasRemaining() )
+        {
+          sock_chan.write( bb );
+        }
+        Drained();
+      }
+    }
+    catch( IOException e )
+    {
+      Fail( e );
+      throw e;
+    }
+    finally {
+      Join();
+    }
+  }
+  // Reads the file into the buffers, on the ring's own thread:
+  public void run()
+  {
+    try {
+      long total_bytes_read = 0;
+
+      while( total_bytes_read < m_num_bytes )
+      {
+        ByteBuffer bb = Next_To_Fill();
+
+        bb.limit( (int)Math.min( bb.capacity(), m_num_bytes - total_bytes_read ) );
+
+        while( bb.hasRemaining() )
+        {
+          if( m_fc.read( bb, m_file_pos + total_bytes_read + bb.position() ) < 0 )
+          {
+            throw new IOException("File shrank while sending");
+          }
+        }
+        total_bytes_read += bb.position();
+        bb.flip();
+        Filled( false );
+      }
+      Filled( true );
+    }
+    catch( IOException e )
+    {
+      Fail( e );
+    }
+  }
+  void Join() throws IOException
+  {
+    try {
+      m_thread.join();
+    }
+    catch( InterruptedException e )
+    {
+      Fail( new IOException("Interrupted") );
+      throw new IOException("Buffer_Ring.Join(): InterruptedException: "+ e );
+    }
+  }
+  synchronized ByteBuffer Next_To_Fill() throws IOException
+  {
+    while( null == m_error && NUM_BUFFERS <= m_filled - m_drained )
+    {
+      Wait();
+    }
+    Check_Error();
+
+    ByteBuffer bb = m_bufs[ (int)(m_filled % NUM_BUFFERS) ];
+    bb.clear();
+
+    return bb;
+  }
+  // Passes on the buffer just filled, or says there are no more:
+  synchronized void Filled( final boolean done )
+  {
+    if( done ) m_fill_done = true;
+    else       m_filled++;
+
+    notifyAll();
+  }
+  synchronized ByteBuffer Next_To_Drain() throws IOException
+  {
+    while( null == m_error && !m_fill_done && m_filled == m_drained )
+    {
+      Wait();
+    }
+    Check_Error();
+
+    return m_filled == m_drained ? null
+                                 : m_bufs[ (int)(m_drained % NUM_BUFFERS) ];
+  }
+  synchronized void Drained()
+  {
+    m_drained++;
+    notifyAll();
+  }
+  synchronized void Fail( final IOException e )
+  {
+    if( null == m_error ) m_error = e;
+    notifyAll();
+  }
+  void Check_Error() throws IOException
+  {
+    if( null != m_error )
+    {
+      throw new IOException("Transfer stopped: "+ m_error.getMessage() );
+    }
+  }
+  void Wait() throws IOException
+  {
+    try {
+      wait();
+    }
+    catch( InterruptedException e )
+    {
+      throw new IOException("Buffer_Ring.Wait(): InterruptedException: "+ e );
+    }
+  }
+  static final int NUM_BUFFERS = 4;
+  static final int BUFFER_SIZE = 256*1024;
+
+  final FileChannel  m_fc;
+  final long         m_file_pos;
+  final long         m_num_bytes;
+  final ByteBuffer[] m_bufs = new ByteBuffer[ NUM_BUFFERS ];
+
+  Thread      m_thread;
+  long        m_filled;  // Buffers filled so far
+  long        m_drained; // Buffers drained so far
+  boolean     m_fill_done;
+  IOException m_error;
+}
+
+// The Block_Sigs of the server's copy of a file being put by
+// Put_File_Delta(), with the blocks hashed by weak sum, so the window
+// sliding along the new version can be looked up at every byte offset.
+// Blocks with the same weak sum are chained together through m_next.
+class Block_Table
+{
+  Block_Table( final long old_len, final int block_size ) throws IOException
+  {
+    m_old_len    = old_len;
+    m_block_size = block_size;
+    m_num_blocks = (int)( ( old_len + block_size - 1 ) / block_size );
+    m_weak       = new int[ m_num_blocks ];
+    m_strong     = new byte[ m_num_blocks * File_put.STRONG_LEN ];
+    m_next       = new int[ m_num_blocks ];
+    m_digest     = File_put.New_Digest();
+
+    int slot_bits = 4;
+    while( 1 << slot_bits < 2*m_num_blocks ) slot_bits++;
+
+    m_slots      = new int[ 1 << slot_bits ];
+    m_slot_shift = 32 - slot_bits;
+  }
+  // Hashes the blocks once their signatures have been read in.
+  // Each chain runs from the first block to the last:
+  void Index()
+  {
+    Arrays.fill( m_slots, -1 );
+
+    for( int k=m_num_blocks-1; 0<=k; k-- )
+    {
+      final int slot = Slot( m_weak[k] );
+
+      m_next [k]    = m_slots[ slot ];
+      m_slots[slot] = k;
+    }
+  }
+  // The top bits of the weak sum times the golden ratio, which spreads
+  // out weak sums that differ only in their low bits:
+  int Slot( final int weak )
+  {
+    return ( weak * 0x9E3779B1 ) >>> m_slot_shift;
+  }
+  static int Weak_Sum( final byte[] buf, final int off, final int len )
+  {
+    int a = 0;
+    int b = 0;
+
+    for( int k=0; k<len; k++ )
+    {
+      a += buf[ off+k ] & 0xFF;
+      b += ( len - k )*( buf[ off+k ] & 0xFF );
+    }
+    return ( a & 0xFFFF ) | ( b << 16 );
+  }
+  int Block_Len( final int block )
+  {
+    return (int)Math.min( m_block_size, m_old_len - (long)block * m_block_size );
+  }
+  // Returns a block of len bytes that is the same as buf[ off, off+len ),
+  // preferring the block after the last one found, since unchanged parts
+  // of a file run on for many blocks, or -1 if there is none.  The strong
+  // sum is only worked out once a weak sum matches.
+  int Find( final int    weak
+          , final byte[] buf
+          , final int    off
+          , final int    len
+          , final int    preferred )
+  {
+    m_window_sum = null;
+
+    if( preferred < m_num_blocks && m_weak[ preferred ] == weak
+     && Block_Len( preferred ) == len && Matches( preferred, buf, off ) )
+    {
+      return preferred;
+    }
+    for( int k = m_slots[ Slot( weak ) ]; 0 <= k; k = m_next[k] )
+    {
+      if( m_weak[k] == weak && Block_Len( k ) == len && Matches( k, buf, off ) )
+      {
+        return k;
+      }
+    }
+    return -1;
+  }
+  // Returns true if the strong sum of buf[ off, off+Block_Len( block ) )
+  // is that of block, working it out the first time Find() asks:
+  boolean Matches( final int block, final byte[] buf, final int off )
+  {
+    if( null == m_window_sum )
+    {
+      m_digest.reset();
+      m_digest.update( buf, off, Block_Len( block ) );
+      m_window_sum = m_digest.digest();
+    }
+    return Arrays.equals( m_window_sum, 0, File_put.STRONG_LEN
+                        , m_strong, block*File_put.STRONG_LEN, (block+1)*File_put.STRONG_LEN );
+  }
+  final long          m_old_len;
+  final int           m_block_size;
+  final int           m_num_blocks;
+  final int[]         m_weak;
+  final byte[]        m_strong;
+  final int[]         m_next;
+  final int[]         m_slots;
+  final int           m_slot_shift;
+  final MessageDigest m_digest;
+
+  byte[] m_window_sum; // Of the window being looked up, once worked out
 }
 
+// Cuts a file into chunks where its contents say to, the same way as the
+// Chunker of the server's chunk store, so the store can tell which of
+// them it already has by their SHA-256.  A gear hash rolls along the data
+// a byte at a time, and a chunk ends after any byte where the top CUT_BITS
+// bits of the hash are all 0, as long as the chunk has MIN_SIZE bytes, and
+// ends anyway once it has MAX_SIZE.  The gear table comes from the same
+// fixed seed as the server's.
+class Chunker
+{
+  Chunker( final InputStream in )
+  {
+    m_in  = in;
+    m_buf = new byte[ READ_SIZE ];
+  }
+  // Returns the length of the chunk of len bytes starting at buf[off],
+  // where len is MAX_SIZE or more unless the chunk is the last:
+  static int Cut( final byte[] buf, final int off, final int len )
+  {
+    if( len <= MIN_SIZE ) return len;
+
+    final int end = off + Math.min( len, MAX_SIZE );
+
+    long hash = 0;
+
+    for( int k = off + MIN_SIZE; k < end; k++ )
+    {
+      hash = ( hash << 1 ) + GEAR[ buf[k] & 0xFF ];
+
+      if( 0 == ( hash & CUT_MASK ) ) return k + 1 - off;
+    }
+    return end - off;
+  }
+  // Returns the length of the next chunk of the input, which is then at
+  // m_buf[ m_pos, m_pos + length ), or 0 at the end of the input:
+  int Next() throws IOException
+  {
+    m_pos += m_len;
+
+    if( m_end - m_pos < MAX_SIZE && !m_eof ) Fill();
+
+    m_len = Cut( m_buf, m_pos, m_end - m_pos );
+
+    return m_len;
+  }
+  // Moves what is left to the front of m_buf, and reads
+  // the input up to the end of m_buf or the input:
+  void Fill() throws IOException
+  {
+    System.arraycopy( m_buf, m_pos, m_buf, 0, m_end - m_pos );
+    m_end -= m_pos;
+    m_pos  = 0;
+
+    while( !m_eof && m_end < m_buf.length )
+    {
+      final int bytes_read = m_in.read( m_buf, m_end, m_buf.length - m_end );
+
+      if( bytes_read < 0 ) m_eof = true;
+      else                 m_end += bytes_read;
+    }
+  }
+  // The 64 bit values of a SplitMix64 generator, so the table
+  // is the same everywhere without having to be written out:
+  static long[] Gear_Table()
+  {
+    long[] table = new long[ 256 ];
+    long   x     = GEAR_SEED;
+
+    for( int k=0; k<table.length; k++ )
+    {
+      x += 0x9E3779B97F4A7C15L;
+
+      long z = x;
+      z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+      z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+
+      table[k] = z ^ ( z >>> 31 );
+    }
+    return table;
+  }
+  // Chunks average around MIN_SIZE + 2^CUT_BITS bytes:
+  static final int  MIN_SIZE  = 2*1024;
+  static final int  MAX_SIZE  = File_put.CHUNK_SIZE;
+  static final int  CUT_BITS  = 13;
+  static final long CUT_MASK  = -1L << ( 64 - CUT_BITS );
+  static final long GEAR_SEED = 0x46696C655F707574L;
+  static final int  READ_SIZE = 1024*1024;
+
+  static final long[] GEAR = Gear_Table();
+
+  final InputStream m_in;
+  final byte[]      m_buf;
+
+  int     m_pos; // Start of the current chunk in m_buf
+  int     m_len; // Length of the current chunk
+  int     m_end; // End of the data read into m_buf
+  boolean m_eof;
+}
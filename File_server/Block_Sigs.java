@@ -0,0 +1,616 @@
+////////////////////////////////////////////////////////////////////////////////
+// File Server Java Implementation                                            //
+// Copyright (c) 31 Dec 2019 Paul J. Gartside                                 //
+////////////////////////////////////////////////////////////////////////////////
+// Permission is hereby granted, free of charge, to any person obtaining a    //
+// copy of this software and associated documentation files (the "Software"), //
+// to deal in the Software without restriction, including without  limitation //
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,   //
+// and/or sell copies of the Software, and to permit persons to whom the      //
+// Software is furnished to do so, subject to the following conditions:       //
+//                                                                            //
+// The above copyright notice and this permission notice shall be included in //
+// all copies or substantial portions of the Software.                        //
+//                                                                            //
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR //
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,   //
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL    //
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER //
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING    //
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER        //
+// DEALINGS IN THE SOFTWARE.                                                  //
+////////////////////////////////////////////////////////////////////////////////
+// ---------------------
+// File Protocol Summary
+// ---------------------
+//
+//               |<1>|<-- 4 bytes ---->|
+//               ----------------------------------------
+// Read  Request | 1 | Filename length | Filename       |
+// GET           |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ------>|
+// Read          ------------------------------------
+// Response      | 2 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Read          ----------------------------------------------
+// Response      | 2 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|< 4 bytes >|<-- 4 bytes ---->|
+//               ----------------------------------------------------
+// Write Request | 3 | num_bytes | Filename length | Filename       |
+// PUT           |   | in file   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Write         ----------------
+// Response      | 4 | True=1   |
+// Affirmative   |   | 00000001 |
+// Affirmative   ----------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Write         ----------------------------------------------
+// Response      | 4 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|
+// Read/Write    -----------------
+// DATA          | 5 | File data |
+//               -----------------
+//
+// ----------                         ----------
+// | Client |                         | Server |
+// ----------                         ----------
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Affirmative ----|
+//     |<-- File data --------------------|
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Negative -------|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Affirmative ---|
+//     |--- File data ------------------->|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Negative ------|
+//     |                                  |
+//
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// The signatures a delta transfer finds unchanged blocks of a file by.
+// The file is cut into blocks of one size, the last of which may be
+// short, and each block is signed with a weak sum that can be rolled
+// along the other copy of the file one byte at a time, and a strong sum
+// that is only worked out where the weak sum matches.  The weak sum is
+// the one rsync uses: two 16 bit sums of the bytes of the block, the
+// second weighting each byte by its distance from the end of the block.
+// The strong sum is the first STRONG_LEN bytes of the SHA-256 of the
+// block.  An instance holds the signatures of the other end's copy, as
+// read by Read(), hashed by weak sum so a Delta_Sender can look up the
+// window sliding along this end's copy at every byte offset.  Blocks with
+// the same weak sum are chained together through m_next.
+class Block_Sigs
+{
+  Block_Sigs( final long old_len, final int block_size ) throws IOException
+  {
+    m_old_len    = old_len;
+    m_block_size = block_size;
+    m_num_blocks = (int)Num_Blocks( old_len, block_size );
+    m_weak       = new int[ m_num_blocks ];
+    m_strong     = new byte[ m_num_blocks * STRONG_LEN ];
+    m_next       = new int[ m_num_blocks ];
+    m_digest     = File_server.New_Digest();
+
+    int slot_bits = 4;
+    while( 1 << slot_bits < 2*m_num_blocks ) slot_bits++;
+
+    m_slots      = new int[ 1 << slot_bits ];
+    m_slot_shift = 32 - slot_bits;
+  }
+  // Blocks of about the square root of the size of the file keep both the
+  // signatures and what a change costs to send again small, as in rsync:
+  static int Block_Size( final long file_len )
+  {
+    final long root = (long)Math.sqrt( (double)file_len );
+
+    final long size = ( root + BLOCK_SIZE_STEP - 1 ) / BLOCK_SIZE_STEP * BLOCK_SIZE_STEP;
+
+    return (int)Math.max( MIN_BLOCK_SIZE, Math.min( MAX_BLOCK_SIZE, size ) );
+  }
+  static long Num_Blocks( final long file_len, final int block_size )
+  {
+    return ( file_len + block_size - 1 ) / block_size;
+  }
+  static int Weak_Sum( final ByteBuffer buf, final int off, final int len )
+  {
+    int a = 0;
+    int b = 0;
+
+    for( int k=0; k<len; k++ )
+    {
+      final int x = buf.get( off+k ) & 0xFF;
+
+      a += x;
+      b += ( len - k )*x;
+    }
+    return ( a & 0xFFFF ) | ( b << 16 );
+  }
+  static byte[] Strong_Sum( final MessageDigest digest
+                          , final ByteBuffer    buf
+                          , final int           off
+                          , final int           len )
+  {
+    ByteBuffer bb = buf.duplicate();
+
+    bb.limit( off+len );
+    bb.position( off );
+
+    digest.reset();
+    digest.update( bb );
+
+    byte[] sum = new byte[ STRONG_LEN ];
+
+    System.arraycopy( digest.digest(), 0, sum, 0, STRONG_LEN );
+
+    return sum;
+  }
+  //               |<-- 4 bytes -->|<-- 16 bytes -->|
+  // Block         ----------------------------------
+  // Signature     | Weak sum      | Strong sum     |
+  //               ----------------------------------
+  //
+  // Reads the file_len bytes of fc block by block through block, which
+  // has room for block_size bytes, and writes the signature of each
+  // block to dout:
+  static void Write( final DataOutputStream dout
+                   , final FileChannel      fc
+                   , final long             file_len
+                   , final int              block_size
+                   , final ByteBuffer       block ) throws IOException
+  {
+    final MessageDigest digest = File_server.New_Digest();
+
+    for( long pos = 0; pos < file_len; pos += block_size )
+    {
+      final int len = (int)Math.min( block_size, file_len - pos );
+
+      block.clear();
+      block.limit( len );
+
+      if( Handle_Get.Read_Fully( fc, block, pos ) < len )
+      {
+        throw new IOException("File shrank while being signed");
+      }
+      dout.writeInt( Weak_Sum( block, 0, len ) );
+      dout.write( Strong_Sum( digest, block, 0, len ) );
+    }
+  }
+  // Reads the signatures of the old_len bytes of the other end's copy,
+  // in blocks of block_size:
+  static Block_Sigs Read( final DataInputStream din
+                        , final long            old_len
+                        , final int             block_size ) throws IOException
+  {
+    if( old_len < 0 || block_size <= 0 || MAX_BLOCK_SIZE < block_size
+     || MAX_BLOCKS < Num_Blocks( old_len, block_size ) )
+    {
+      throw new IOException("Received bad signatures: "+ old_len +" bytes in blocks of "+ block_size );
+    }
+    Block_Sigs sigs = new Block_Sigs( old_len, block_size );
+
+    for( int k=0; k<sigs.m_num_blocks; k++ )
+    {
+      sigs.m_weak[k] = din.readInt();
+      din.readFully( sigs.m_strong, k*STRONG_LEN, STRONG_LEN );
+    }
+    sigs.Index();
+
+    return sigs;
+  }
+  // Each chain runs from the first block to the last:
+  void Index()
+  {
+    Arrays.fill( m_slots, -1 );
+
+    for( int k=m_num_blocks-1; 0<=k; k-- )
+    {
+      final int slot = Slot( m_weak[k] );
+
+      m_next [k]    = m_slots[ slot ];
+      m_slots[slot] = k;
+    }
+  }
+  // The top bits of the weak sum times the golden ratio, which spreads
+  // out weak sums that differ only in their low bits:
+  int Slot( final int weak )
+  {
+    return ( weak * 0x9E3779B1 ) >>> m_slot_shift;
+  }
+  int Block_Len( final int block )
+  {
+    return (int)Math.min( m_block_size, m_old_len - (long)block * m_block_size );
+  }
+  // Returns a block of len bytes that is the same as buf[ off, off+len ),
+  // preferring the block after the last one found, since unchanged parts
+  // of a file run on for many blocks, or -1 if there is none.  The strong
+  // sum is only worked out once a weak sum matches.
+  int Find( final int        weak
+          , final ByteBuffer buf
+          , final int        off
+          , final int        len
+          , final int        preferred )
+  {
+    m_window_sum = null;
+
+    if( preferred < m_num_blocks && m_weak[ preferred ] == weak
+     && Block_Len( preferred ) == len && Matches( preferred, buf, off ) )
+    {
+      return preferred;
+    }
+    for( int k = m_slots[ Slot( weak ) ]; 0 <= k; k = m_next[k] )
+    {
+      if( m_weak[k] == weak && Block_Len( k ) == len && Matches( k, buf, off ) )
+      {
+        return k;
+      }
+    }
+    return -1;
+  }
+  // Returns true if the strong sum of buf[ off, off+Block_Len( block ) )
+  // is that of block, working it out the first time Find() asks:
+  boolean Matches( final int block, final ByteBuffer buf, final int off )
+  {
+    if( null == m_window_sum )
+    {
+      m_window_sum = Strong_Sum( m_digest, buf, off, Block_Len( block ) );
+    }
+    return Arrays.equals( m_window_sum, 0, STRONG_LEN
+                        , m_strong, block*STRONG_LEN, (block+1)*STRONG_LEN );
+  }
+  static final int MIN_BLOCK_SIZE  = 2*1024;
+  static final int MAX_BLOCK_SIZE  = File_server.CHUNK_SIZE;
+  static final int BLOCK_SIZE_STEP = 1024;
+  static final int STRONG_LEN      = 16;
+
+  // Enough for a copy of 64 GB in the biggest blocks, while
+  // keeping a table of signatures read in to about 32 MB:
+  static final int MAX_BLOCKS = 1024*1024;
+
+  final long          m_old_len;
+  final int           m_block_size;
+  final int           m_num_blocks;
+  final int[]         m_weak;
+  final byte[]        m_strong;
+  final int[]         m_next;
+  final int[]         m_slots;
+  final int           m_slot_shift;
+  final MessageDigest m_digest;
+
+  byte[] m_window_sum; // Of the window being looked up, once worked out
+}
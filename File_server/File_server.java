@@ -83,21 +83,346 @@
 //     |<-- Write Response Negative ------|
 //     |                                  |
 //
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
 
-import java.io.DataInputStream;
-import java.io.InputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 class File_server
 {
   public static void main(String[] args)
   {
-    if( args.length != 1 ) Usage();
-
     try {
       new File_server( args ).Run();
     }
@@ -113,7 +438,41 @@ class File_server
   }
   static void Usage()
   {
-    System.out.println("usage: File_server peer_ip_addr");
+    System.out.println("usage: File_server [-mode pool|virtual|nio] [-threads num_threads]");
+    System.out.println("                   [-selectors num_selectors] [-send copy|transfer|map]");
+    System.out.println("                   [-idle idle_timeout_secs] [-cache num_bytes] [-coalesce] [-overlap]");
+    System.out.println("                   [-nocompress | -zcache num_bytes] [-pool num_bytes] [-stats secs]");
+    System.out.println("                   [-index log_file] [-store store_dir] [-backlog num_conns]");
+    System.out.println("                   peer_ip_addr");
+    System.out.println("  -mode pool    : serve connections on a bounded pool of platform threads (default)");
+    System.out.println("  -mode virtual : serve each connection on its own virtual thread (Java 21+)");
+    System.out.println("  -mode nio     : serve all connections from num_selectors non-blocking event loops");
+    System.out.println("                  with num_threads workers for the disk work the event loops must not wait for");
+    System.out.println("  -send transfer: send GET data with FileChannel.transferTo (default)");
+    System.out.println("  -send copy    : send GET data by copying it through a heap buffer");
+    System.out.println("  -send map     : send GET data out of memory mappings of the files, kept for reuse");
+    System.out.println("  -idle         : close connections that wait longer than this for a request, for file data,");
+    System.out.println("                  or for the client to read what it asked for");
+    System.out.println("  -cache        : keep up to num_bytes of recently sent files in memory");
+    System.out.println("  -coalesce     : share one read of a file between connections getting it at the same time");
+    System.out.println("                  (pool and virtual modes)");
+    System.out.println("  -overlap      : read and write file data on a second thread, through a ring of buffers,");
+    System.out.println("                  so disk and network latency overlap (pool and virtual modes, in place");
+    System.out.println("                  of -send copy|transfer)");
+    System.out.println("  -nocompress   : turn down clients asking to compress file data");
+    System.out.println("  -zcache       : keep up to num_bytes of recently sent files in memory already compressed");
+    System.out.println("                  (pool, virtual and nio modes, for whole file compressed reads)");
+    System.out.println("  -pool         : keep up to num_bytes of free transfer buffers for reuse (default "
+                      + Buffer_Pool.DEFAULT_MAX_FREE_BYTES/(1024*1024) +" MB)");
+    System.out.println("  -stats        : print buffer pool usage every secs seconds");
+    System.out.println("  -index        : keep the SHA-256 and chunk CRC32Cs of files, logged to log_file so they");
+    System.out.println("                  outlast restarts, and find files by their contents");
+    System.out.println("  -store        : keep files put whole as lists of content-defined chunks in store_dir,");
+    System.out.println("                  each chunk kept once however many files have it (pool and virtual modes)");
+    System.out.println("  -backlog      : let up to num_conns connections wait to be accepted (default "
+                      + DEFAULT_BACKLOG +"), which in pool mode");
+    System.out.println("                  includes the clients waiting for a worker.  The kernel may cap it lower,");
+    System.out.println("                  on Linux at net.core.somaxconn");
     System.exit( 0 );
   }
   void Msg( String msg )
@@ -128,29 +487,327 @@ class File_server
   }
   File_server( String[] args )
   {
-    m_client_IP_str = args[0];
+    String client_IP_str = null;
+
+    for( int k=0; k<args.length; k++ )
+    {
+      if( args[k].equals("-threads") && k+1 < args.length )
+      {
+        m_num_threads = Parse_Positive_Int( args[++k] );
+      }
+      else if( args[k].equals("-mode") && k+1 < args.length )
+      {
+        m_mode = Parse_Server_Mode( args[++k] );
+      }
+      else if( args[k].equals("-selectors") && k+1 < args.length )
+      {
+        m_num_selectors = Parse_Positive_Int( args[++k] );
+      }
+      else if( args[k].equals("-send") && k+1 < args.length )
+      {
+        m_send_mode = Parse_Send_Mode( args[++k] );
+      }
+      else if( args[k].equals("-idle") && k+1 < args.length )
+      {
+        m_idle_timeout_ms = 1000*Parse_Positive_Int( args[++k] );
+      }
+      else if( args[k].equals("-nocompress") )
+      {
+        m_compress = false;
+      }
+      else if( args[k].equals("-coalesce") )
+      {
+        m_coalesce = true;
+      }
+      else if( args[k].equals("-overlap") )
+      {
+        m_overlap = true;
+      }
+      else if( args[k].equals("-cache") && k+1 < args.length )
+      {
+        m_cache = new File_Cache( Parse_Positive_Long( args[++k] ) );
+      }
+      else if( args[k].equals("-zcache") && k+1 < args.length )
+      {
+        m_zip_cache = new Zip_Cache( Parse_Positive_Long( args[++k] ) );
+      }
+      else if( args[k].equals("-pool") && k+1 < args.length )
+      {
+        m_pool = new Buffer_Pool( Parse_Positive_Long( args[++k] ) );
+      }
+      else if( args[k].equals("-backlog") && k+1 < args.length )
+      {
+        m_backlog = Parse_Positive_Int( args[++k] );
+      }
+      else if( args[k].equals("-stats") && k+1 < args.length )
+      {
+        m_stats_ms = 1000*Parse_Positive_Int( args[++k] );
+      }
+      else if( args[k].equals("-index") && k+1 < args.length )
+      {
+        m_index = new Sum_Index( FileSystems.getDefault().getPath( args[++k] ) );
+      }
+      else if( args[k].equals("-store") && k+1 < args.length )
+      {
+        m_store = new Chunk_Store( FileSystems.getDefault().getPath( args[++k] ) );
+      }
+      else if( null == client_IP_str && !args[k].startsWith("-") )
+      {
+        client_IP_str = args[k];
+      }
+      else Usage();
+    }
+    if( null == client_IP_str ) Usage();
+    // Files in the store are only served by the blocking handlers:
+    if( null != m_store && m_mode == Server_Mode.NIO ) Usage();
+
+    m_client_IP_str = client_IP_str;
+
+    if( m_send_mode == Send_Mode.MAP )
+    {
+      m_maps = new Map_Cache( MAX_MAPPED_FILES );
+    }
+  }
+  static int Parse_Positive_Int( String arg )
+  {
+    int val = 0;
+    try {
+      val = Integer.parseInt( arg );
+    }
+    catch( NumberFormatException e )
+    {
+    }
+    if( val <= 0 ) Usage();
+
+    return val;
+  }
+  static long Parse_Positive_Long( String arg )
+  {
+    long val = 0;
+    try {
+      val = Long.parseLong( arg );
+    }
+    catch( NumberFormatException e )
+    {
+    }
+    if( val <= 0 ) Usage();
+
+    return val;
+  }
+  static Server_Mode Parse_Server_Mode( String arg )
+  {
+    Server_Mode mode = Server_Mode.POOL;
+
+    if     ( arg.equals("pool")    ) mode = Server_Mode.POOL;
+    else if( arg.equals("virtual") ) mode = Server_Mode.VIRTUAL;
+    else if( arg.equals("nio")     ) mode = Server_Mode.NIO;
+    else Usage();
+
+    return mode;
+  }
+  static Send_Mode Parse_Send_Mode( String arg )
+  {
+    Send_Mode mode = Send_Mode.TRANSFER;
+
+    if     ( arg.equals("copy")     ) mode = Send_Mode.COPY;
+    else if( arg.equals("transfer") ) mode = Send_Mode.TRANSFER;
+    else if( arg.equals("map")      ) mode = Send_Mode.MAP;
+    else Usage();
+
+    return mode;
   }
   void Run()
   {
     Get_Client_Inet_Address();
+    Load_Index();
+    Open_Store();
+    Remove_Partial_Uploads();
+
+    // Before binding the port, so a JVM without virtual threads
+    // is turned down before anything is announced:
+    Create_Worker_Pool();
+
     Create_Server_Socket();
+    Start_Stats();
+    Start_Watching_Io();
 
-    // Keep running until killed:
-    while( m_running )
+    if( m_mode == Server_Mode.NIO )
+    {
+      if( m_running )
+      {
+        new Nio_Server( this, m_server_chan ).Run();
+      }
+    }
+    else {
+      Run_Blocking();
+    }
+    Clean_Up_Server();
+  }
+  void Load_Index()
+  {
+    if( m_running && null != m_index )
+    try {
+      final long st_time = System.currentTimeMillis();
+
+      final int num_files = m_index.Load();
+
+      Msg("Loaded sums of "+ num_files +" files from "+ m_index.m_log_path
+         +" in "+ (System.currentTimeMillis() - st_time) +" ms");
+    }
+    catch( IOException e )
+    {
+      Die("Load_Index(): IOException: "+ e);
+    }
+  }
+  // Uploads under way when the server last went down were never finished,
+  // and no client will be back to finish them:
+  void Remove_Partial_Uploads()
+  {
+    if( m_running )
+    try {
+      final Path dir = FileSystems.getDefault().getPath(".");
+
+      final int num_removed = Upload.Remove_Leftovers( dir );
+
+      if( 0 < num_removed )
+      {
+        Msg("Removed "+ num_removed +" partial uploads under "+ dir.toAbsolutePath().normalize() );
+      }
+    }
+    catch( IOException e )
     {
-      Request_Type req_type = Wait_4_Request();
+      Die("Remove_Partial_Uploads(): IOException: "+ e);
+    }
+  }
+  void Open_Store()
+  {
+    if( m_running && null != m_store )
+    try {
+      m_store.Open();
+    }
+    catch( IOException e )
+    {
+      Die("Open_Store(): IOException: "+ e);
+    }
+  }
+  void Start_Stats()
+  {
+    if( m_running && 0 < m_stats_ms )
+    {
+      Thread t = new Thread( () -> Print_Stats(), "Stats" );
+      t.setDaemon( true );
+      t.start();
+    }
+  }
+  // Prints the pool's usage every m_stats_ms, whenever it has changed:
+  void Print_Stats()
+  {
+    String last_stats = "";
+    try {
+      while( m_running )
+      {
+        Thread.sleep( m_stats_ms );
+
+        final String stats = m_pool.Stats();
 
-      if( req_type == Request_Type.GET )
+        if( !stats.equals( last_stats ) ) Msg( stats );
+
+        last_stats = stats;
+      }
+    }
+    catch( InterruptedException e )
+    {
+      Msg("Print_Stats(): InterruptedException: "+ e);
+    }
+  }
+  // The nio engine times out idle connections on its selectors:
+  void Start_Watching_Io()
+  {
+    if( m_running && m_mode != Server_Mode.NIO )
+    {
+      Thread t = new Thread( () -> Watch_Io(), "Io_Watch" );
+      t.setDaemon( true );
+      t.start();
+    }
+  }
+  // Closes the connections of reads and writes that have gone without
+  // progress for longer than the idle timeout, looking every quarter of
+  // the timeout:
+  void Watch_Io()
+  {
+    try {
+      while( m_running )
       {
-        new Handle_Get( m_client_sock, m_din_stream ).Run();
+        Thread.sleep( m_idle_timeout_ms / 4 );
+
+        Close_Idle_Io();
+
+        // Segmented uploads are only served here, so are timed out here too:
+        Abort_Idle_Uploads();
       }
-      else if( req_type == Request_Type.PUT )
+    }
+    catch( InterruptedException e )
+    {
+      Msg("Watch_Io(): InterruptedException: "+ e);
+    }
+  }
+  void Close_Idle_Io()
+  {
+    final long now_ms = System.currentTimeMillis();
+
+    synchronized( m_io_watches )
+    {
+      Iterator<Io_Watch> it = m_io_watches.iterator();
+
+      while( it.hasNext() )
       {
-        new Handle_Put( m_client_sock, m_din_stream ).Run();
+        Io_Watch watch = it.next();
+
+        if( watch.Is_Idle( now_ms, m_idle_timeout_ms ) )
+        {
+          Msg("Closing idle connection: "+ watch.m_socket.getRemoteSocketAddress() );
+          it.remove();
+          try {
+            watch.Close();
+          }
+          catch( IOException e )
+          {
+            Msg("Close_Idle_Io(): IOException: "+ e);
+          }
+        }
       }
-      Clean_Up_Client();
     }
-    Clean_Up_Server();
+  }
+  // Starts watching blocking reads or writes of socket.  The caller must
+  // Stop_Io_Watch() once they are over:
+  Io_Watch Start_Io_Watch( final Socket socket )
+  {
+    Io_Watch watch = new Io_Watch( socket );
+
+    synchronized( m_io_watches )
+    {
+      m_io_watches.add( watch );
+    }
+    return watch;
+  }
+  void Stop_Io_Watch( final Io_Watch watch )
+  {
+    synchronized( m_io_watches )
+    {
+      m_io_watches.remove( watch );
+    }
+  }
+  void Run_Blocking()
+  {
+    // Keep running until killed:
+    while( m_running )
+    {
+      // Dont accept another connection until a worker is free,
+      // so pending clients wait in the listen backlog:
+      Acquire_Worker();
+      Accept_Client_Connection();
+      Dispatch_Client();
+    }
   }
   void Get_Client_Inet_Address()
   {
@@ -166,102 +823,345 @@ class File_server
   {
     if( m_running )
     try {
-      m_server_sock = new ServerSocket( SERVER_PORT );
+      // Sockets accepted through a channel have channels of their own,
+      // which the handlers can use for bulk transfers:
+      m_server_chan = ServerSocketChannel.open();
+      // In pool mode, clients wait here for a worker to be free, so the
+      // backlog has to be far longer than the default of 50, or the kernel
+      // turns them away with resets:
+      m_server_chan.bind( new InetSocketAddress( SERVER_PORT ), m_backlog );
+      m_server_sock = m_server_chan.socket();
+
+      if( m_mode == Server_Mode.NIO )
+      {
+        Msg("Listening on: "+ m_server_sock.getLocalSocketAddress()
+           +" with "+ m_num_selectors +" selector threads");
+      }
+      else if( m_mode == Server_Mode.VIRTUAL )
+      {
+        Msg("Listening on: "+ m_server_sock.getLocalSocketAddress()
+           +" with a virtual thread per connection");
+      }
+      else {
+        Msg("Listening on: "+ m_server_sock.getLocalSocketAddress()
+           +" with "+ m_num_threads +" worker threads");
+      }
     }
     catch( IOException e )
     {
       Die("Create_Server_Socket(): IOException: "+ e);
     }
   }
-  Request_Type Wait_4_Request()
+  void Create_Worker_Pool()
+  {
+    if( m_running )
+    {
+      if( m_mode == Server_Mode.VIRTUAL )
+      {
+        m_workers = New_Virtual_Thread_Executor();
+      }
+      else if( m_mode == Server_Mode.NIO )
+      {
+        // Connections stay on the selectors.  The workers only do disk
+        // work the selectors must not wait for, such as filling caches:
+        m_workers = Executors.newFixedThreadPool( m_num_threads );
+      }
+      else {
+        // Twice as many threads as connections, so that a framed
+        // connection always finds a thread free for its sender:
+        m_workers      = Executors.newFixedThreadPool( 2*m_num_threads );
+        m_free_workers = new Semaphore( m_num_threads );
+      }
+    }
+  }
+  // Looked up reflectively so File_server still builds and runs in
+  // pool mode on JDKs that predate virtual threads.
+  ExecutorService New_Virtual_Thread_Executor()
+  {
+    ExecutorService workers = null;
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+      workers = (ExecutorService)m.invoke( null );
+    }
+    catch( ReflectiveOperationException e )
+    {
+      Die("Virtual threads not supported by this JVM: "+ e);
+    }
+    return workers;
+  }
+  void Acquire_Worker()
+  {
+    // Virtual threads are cheap, so there is no limit on
+    // the number of connections served at once:
+    if( m_running && null != m_free_workers )
+    try {
+      m_free_workers.acquire();
+    }
+    catch( InterruptedException e )
+    {
+      Die("Acquire_Worker(): InterruptedException: "+ e);
+    }
+  }
+  void Release_Worker()
+  {
+    if( null != m_free_workers )
+    {
+      m_free_workers.release();
+    }
+  }
+  // Returns the upload in progress of dst_fname, starting it if there is
+  // none, so all of the segments of one file are written into the same
+  // Upload whichever connections they arrive on.  Uploads that have sat
+  // idle for longer than the idle timeout were given up on by their
+  // clients, and are aborted along the way, as well as by Watch_Io().
+  synchronized Upload Join_Upload( final Path   dst_path
+                                 , final String dst_fname
+                                 , final long   file_len ) throws IOException
   {
-    Request_Type req_type = Request_Type.UNKNOWN;
+    Abort_Idle_Uploads();
 
-    Accept_Client_Connection();
+    Upload upload = m_uploads.get( dst_fname );
 
-    if( m_running )
-    if( ! m_client_sock.getInetAddress().equals( m_client_inet_addr ) )
+    if( null == upload )
     {
-      Msg("Denied connection from: "+ m_client_sock.toString() );
+      final String err_msg = Handle_Put.Check_Dst_Path( dst_path, dst_fname );
+
+      if( null != err_msg )
+      {
+        throw new IOException( err_msg );
+      }
+      upload = new Upload( dst_path, dst_fname, file_len );
+
+      m_uploads.put( dst_fname, upload );
     }
-    else {
-      Get_In_Stream();
+    else if( upload.m_file_len != file_len )
+    {
+      throw new IOException("Upload of "+ upload.m_file_len +" bytes already under way: "
+                           + dst_fname );
+    }
+    return upload;
+  }
+  synchronized void Finish_Upload( final Upload upload ) throws IOException
+  {
+    m_uploads.remove( upload.m_dst_fname );
+
+    upload.Commit();
+  }
+  synchronized void Abort_Upload( final Upload upload )
+  {
+    if( m_uploads.get( upload.m_dst_fname ) == upload )
+    {
+      m_uploads.remove( upload.m_dst_fname );
+    }
+    upload.Abort();
+  }
+  synchronized void Abort_Idle_Uploads()
+  {
+    final long now_ms = System.currentTimeMillis();
+
+    Iterator<Upload> it = m_uploads.values().iterator();
+
+    while( it.hasNext() )
+    {
+      Upload upload = it.next();
+
+      if( upload.Is_Idle( now_ms, m_idle_timeout_ms ) )
+      {
+        Msg("Aborting idle upload: "+ upload.m_dst_fname );
+        it.remove();
+        upload.Abort();
+      }
+    }
+  }
+  // Returns a Read_Flight of the current version of src_path to send it
+  // through, joining one already under way if it is not too late, or null
+  // if src_path is not a regular file.  The caller must Leave_Flight()
+  // once done with it.
+  synchronized Read_Flight Join_Flight( final Path src_path ) throws IOException
+  {
+    BasicFileAttributes attrs = null;
+    try {
+      attrs = Files.readAttributes( src_path, BasicFileAttributes.class );
+    }
+    catch( NoSuchFileException e )
+    {
+      return null;
+    }
+    if( !attrs.isRegularFile() ) return null;
 
-      final byte request = Read_Request();
+    final Path key = src_path.toAbsolutePath().normalize();
 
-      if( request == OPCODE_GET_REQ )
+    Read_Flight flight = m_flights.get( key );
+
+    if( null == flight || !flight.Is_Version( attrs ) || !flight.Join() )
+    {
+      // Flights already under way carry on for the readers they have:
+      flight = new Read_Flight( m_pool, key, src_path, attrs );
+      flight.Join();
+
+      m_flights.put( key, flight );
+    }
+    return flight;
+  }
+  synchronized void Leave_Flight( final Read_Flight flight, final long next_chunk )
+  {
+    if( flight.Leave( next_chunk ) )
+    {
+      if( m_flights.get( flight.m_key ) == flight )
       {
-        req_type = Request_Type.GET;
+        m_flights.remove( flight.m_key );
       }
-      else if( request == OPCODE_PUT_REQ )
+      if( 1 < flight.m_num_joined )
       {
-        req_type = Request_Type.PUT;
+        Msg("Shared one read of "+ flight.m_src_path +" between "
+           + flight.m_num_joined +" connections");
       }
     }
-    return req_type;
   }
-  void Accept_Client_Connection()
+  // Returns the compression record of the type of src_path, which is the
+  // extension of its filename:
+  synchronized Zip_Type Get_Zip_Type( final Path src_path )
   {
-    Msg("Listening on: "+ m_server_sock.getLocalSocketAddress() );
+    final Path   fname = src_path.getFileName();
+    final String name  = null == fname ? "" : fname.toString();
+    final int    dot   = name.lastIndexOf('.');
+    final String key   = dot < 0 ? "" : name.substring( dot+1 ).toLowerCase();
+
+    Zip_Type type = m_zip_types.get( key );
+
+    if( null == type )
+    {
+      type = new Zip_Type();
 
+      // Do not let clients grow the table without limit:
+      if( m_zip_types.size() < MAX_ZIP_TYPES ) m_zip_types.put( key, type );
+    }
+    return type;
+  }
+  // Returns the sums of src_path out of the index, or worked out by
+  // reading it if there is no index, or null if it is not a regular
+  // file or changed while being summed:
+  Sum_Entry Get_Sums( final Path src_path ) throws IOException
+  {
+    return null != m_index ? m_index.Get( src_path )
+                           : Sum_Index.Sum_File( src_path );
+  }
+  // Returns the sums of src_path if the index already has them as the
+  // file is now, without reading it, or null otherwise:
+  Sum_Entry Peek_Sums( final Path src_path ) throws IOException
+  {
+    return null != m_index ? m_index.Peek( src_path ) : null;
+  }
+  // Returns the path of a file with the given SHA-256 and size, or null
+  // if there is no index or it knows of no such file:
+  Path Find_File( final byte[] digest, final long num_bytes ) throws IOException
+  {
+    return null != m_index ? m_index.Find( digest, num_bytes ) : null;
+  }
+  // Records the sums of a file just received in the index, if there is
+  // one.  The file is already safely written, so a failure to record its
+  // sums only means it will be summed again when asked about.
+  void Index_File( final Path dst_path, final File_Sums sums )
+  {
+    if( null != m_index )
     try {
-      m_client_sock = m_server_sock.accept();
+      m_index.Put( dst_path, sums );
     }
     catch( IOException e )
     {
-      Die("Accept_Client_Connection(): IOException: " + e);
+      Msg("Index_File(): IOException: "+ e);
     }
   }
-  byte Read_Request()
+  // Moves a file just received whole into the chunk store, if there is
+  // one.  The file is already safely written, so if it cannot be stored
+  // it is left where it is, and is still served from there.
+  void Store_File( final Path dst_path )
   {
-    byte request = OPCODE_NONE;
+    if( null != m_store )
+    {
+      final ByteBuffer buf = m_pool.Get( Chunker.READ_SIZE );
+      try {
+        final long st_time = System.currentTimeMillis();
 
-    if( m_running )
+        final long new_bytes = m_store.Store_File( dst_path, buf );
+
+        Msg("Stored "+ dst_path +", "+ new_bytes +" bytes of it new to the store, in "
+           + ( System.currentTimeMillis() - st_time ) +" ms");
+      }
+      catch( IOException e )
+      {
+        Msg("Store_File(): IOException: "+ e);
+      }
+      finally {
+        // Back to the pool for the next file:
+        m_pool.Put( buf );
+      }
+    }
+  }
+  // Returns a new digest for the whole file of a checked transfer:
+  static MessageDigest New_Digest() throws IOException
+  {
     try {
-      request = m_din_stream.readByte();
+      return MessageDigest.getInstance("SHA-256");
     }
-    catch( IOException e )
+    catch( NoSuchAlgorithmException e )
     {
-      Die("Read_Request(): IOException: " + e);
+      throw new IOException("No SHA-256: "+ e.getMessage() );
     }
-    return request;
   }
-  void Get_In_Stream()
+  void Accept_Client_Connection()
   {
+    m_client_sock = null;
+
     if( m_running )
     try {
-      InputStream in_stream = m_client_sock.getInputStream();
-
-      m_din_stream = new DataInputStream( in_stream );
+      m_client_sock = m_server_sock.accept();
     }
     catch( IOException e )
     {
-      Die("m_client_sock.getInputStream(): IOException: " + e);
+      Die("Accept_Client_Connection(): IOException: " + e);
+    }
+  }
+  void Dispatch_Client()
+  {
+    if( null == m_client_sock )
+    {
+      Release_Worker();
+    }
+    else if( ! m_client_sock.getInetAddress().equals( m_client_inet_addr ) )
+    {
+      Msg("Denied connection from: "+ m_client_sock.toString() );
+
+      Close_Denied_Client();
+      Release_Worker();
+    }
+    else {
+      // From here on the connection belongs to the worker,
+      // which releases itself when done:
+      m_workers.execute( new Handle_Client( this, m_client_sock ) );
     }
   }
-  void Clean_Up_Client()
+  void Close_Denied_Client()
   {
     try {
-      if( null != m_client_sock )
-      {
-        m_client_sock.close();
-      }
-      if( null != m_din_stream )
-      {
-        m_din_stream.close();
-      }
+      m_client_sock.close();
     }
     catch( IOException e )
     {
-      Msg("Clean_Up_Client(): IOException: " + e);
+      Msg("Close_Denied_Client(): IOException: " + e);
     }
   }
   void Clean_Up_Server()
   {
     try {
-      if( null != m_server_sock )
+      if( null != m_workers )
       {
-        m_server_sock.close();
+        m_workers.shutdown();
+      }
+      if( null != m_server_chan )
+      {
+        m_server_chan.close();
       }
     }
     catch( IOException e )
@@ -269,7 +1169,11 @@ class File_server
       Msg("Clean_Up_Server(): IOException: " + e);
     }
   }
-  static final int  SERVER_PORT     = 6969;
+  static final int  SERVER_PORT             = 6969;
+  static final int  DEFAULT_NUM_THREADS     = 16;
+  static final int  DEFAULT_IDLE_TIMEOUT_MS = 60*1000;
+  static final int  DEFAULT_BACKLOG         = 1024;
+  static final int  MAX_MAPPED_FILES        = 256;
 
   static final byte OPCODE_NONE     = 0;
   static final byte OPCODE_GET_REQ  = 1;
@@ -277,20 +1181,87 @@ class File_server
   static final byte OPCODE_PUT_REQ  = 3;
   static final byte OPCODE_PUT_RESP = 4;
   static final byte OPCODE_DATA     = 5;
+  static final byte OPCODE_MUX      = 6;
+  static final byte OPCODE_CANCEL   = 7;
+  static final byte OPCODE_GET_RANGE_REQ  = 8;
+  static final byte OPCODE_GET_RANGE_RESP = 9;
+  static final byte OPCODE_PUT_SEG_REQ    = 10;
+  static final byte OPCODE_PUT_SEG_RESP   = 11;
+  static final byte OPCODE_GET64_REQ      = 12;
+  static final byte OPCODE_GET64_RESP     = 13;
+  static final byte OPCODE_PUT64_REQ      = 14;
+  static final byte OPCODE_PUT64_RESP     = 15;
+  static final byte OPCODE_REPAIR         = 16;
+  static final byte OPCODE_SUMS_REQ       = 17;
+  static final byte OPCODE_SUMS_RESP      = 18;
+  static final byte OPCODE_HAVE_REQ       = 19;
+  static final byte OPCODE_HAVE_RESP      = 20;
+  static final byte OPCODE_PUT_DELTA_REQ  = 21;
+  static final byte OPCODE_PUT_DELTA_RESP = 22;
+  static final byte OPCODE_PUT_DELTA_DONE = 23;
+  static final byte OPCODE_GET_DELTA_REQ  = 24;
+  static final byte OPCODE_GET_DELTA_RESP = 25;
+  static final byte OPCODE_PUT_STORE_REQ     = 26;
+  static final byte OPCODE_PUT_STORE_RESP    = 27;
+  static final byte OPCODE_PUT_STORE_MISSING = 28;
+  static final byte OPCODE_PUT_STORE_DONE    = 29;
+
+  // Flags of the 64 bit requests and responses:
+  static final byte FLAG_CHUNKED    = 1; // File data is sent as chunks
+  static final byte FLAG_COMPRESSED = 2; // Each chunk is compressed
+  static final byte FLAG_CHECKED    = 4; // Each chunk has a CRC32C, the file a digest
+
+  static final int  CHUNK_SIZE = 64*1024;
+
+  // Limits on asking for bad chunks of a checked transfer again:
+  static final int  MAX_REPAIR_ROUNDS = 3;
+  static final int  MAX_REPAIR_CHUNKS = 4096;
+  static final int  DIGEST_LEN        = 32; // SHA-256
+
+  static final int  MAX_ZIP_TYPES = 1024;
 
   final String m_client_IP_str;
 
-  boolean         m_running = true;
-  InetAddress     m_client_inet_addr;
-  ServerSocket    m_server_sock;
-  Socket          m_client_sock;
-  DataInputStream m_din_stream;
+  volatile boolean    m_running = true;
+  Server_Mode         m_mode            = Server_Mode.POOL;
+  Send_Mode           m_send_mode       = Send_Mode.TRANSFER;
+  int                 m_num_threads     = DEFAULT_NUM_THREADS;
+  int                 m_num_selectors   = Runtime.getRuntime().availableProcessors();
+  int                 m_idle_timeout_ms = DEFAULT_IDLE_TIMEOUT_MS;
+  int                 m_backlog         = DEFAULT_BACKLOG;
+  InetAddress         m_client_inet_addr;
+  ServerSocketChannel m_server_chan;
+  ServerSocket        m_server_sock;
+  Socket              m_client_sock;
+  ExecutorService     m_workers;
+  Semaphore           m_free_workers;
+  File_Cache          m_cache; // null unless -cache was given
+  Zip_Cache           m_zip_cache; // null unless -zcache was given
+  Map_Cache           m_maps;  // null unless -send map was given
+  Sum_Index           m_index; // null unless -index was given
+  Chunk_Store         m_store; // null unless -store was given
+  boolean             m_coalesce;
+  boolean             m_overlap;
+  int                 m_stats_ms; // 0 unless -stats was given
+  Buffer_Pool         m_pool = new Buffer_Pool( Buffer_Pool.DEFAULT_MAX_FREE_BYTES );
+  boolean             m_compress = true;
+
+  // Segmented uploads in progress, by destination filename:
+  final HashMap<String,Upload> m_uploads = new HashMap<String,Upload>();
+
+  // Blocking reads and writes in progress, watched for idle clients:
+  final HashSet<Io_Watch> m_io_watches = new HashSet<Io_Watch>();
+
+  // Shared reads of files in progress, by absolute path:
+  final HashMap<Path,Read_Flight> m_flights = new HashMap<Path,Read_Flight>();
+
+  // How well each type of file has been compressing, by extension:
+  final HashMap<String,Zip_Type> m_zip_types = new HashMap<String,Zip_Type>();
 }
 
-enum Request_Type
+enum Server_Mode
 {
-  UNKNOWN,
-  GET,
-  PUT
+  POOL,    // Bounded pool of platform threads
+  VIRTUAL, // One virtual thread per connection
+  NIO      // Non-blocking connections multiplexed on selector threads
 }
-
@@ -83,7 +83,320 @@
 //     |<-- Write Response Negative ------|
 //     |                                  |
 //
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -93,17 +406,29 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
 
 class Handle_Get
 {
-  Handle_Get( Socket          socket
-            , DataInputStream din_stream )
+  Handle_Get( File_server     server
+            , Socket          socket
+            , DataInputStream din_stream
+            , Request_Type    req_type )
   {
+    m_server         = server;
     m_socket         = socket;
     m_din_stream     = din_stream;
+    m_ranged         = req_type == Request_Type.GET_RANGE;
+    m_wide           = req_type == Request_Type.GET64;
+    m_delta          = req_type == Request_Type.GET_DELTA;
     m_client_IP_addr = m_socket.getInetAddress();
   }
   void Msg( String msg )
@@ -116,22 +441,50 @@ class Handle_Get
 
     m_running = false;
   }
-  void Run()
+  // Returns true if the connection can carry another request
+  boolean Run()
   {
     if( m_running )
     {
       final boolean ok = Receive_Read_Request();
-      Send_Read_Response( ok );
-      Send_File_Data();
 
-      if( m_running )
+      // Writes ignore SO_TIMEOUT, so the server watches them instead:
+      m_watch = m_server.Start_Io_Watch( m_socket );
+      try {
+        Send_Read_Response( ok );
+
+        if( ok ) Send_File_Data();
+      }
+      finally {
+        m_server.Stop_Io_Watch( m_watch );
+      }
+      if( ok )
       {
-        Msg( "Sent to "
-           + m_client_IP_addr.getHostAddress() +":"
-           + m_socket.getPort() +": "
-           + m_src_fname );
+
+        if( m_running )
+        {
+          Msg( "Sent to "
+             + m_client_IP_addr.getHostAddress() +":"
+             + m_socket.getPort() +": "
+             + m_src_fname
+             + ( m_ranged ? ", "+ m_num_bytes +" bytes at offset "+ m_offset : "")
+             + ( null != m_cached ? " from cache" : "")
+             + ( null != m_stored ? " from the chunk store" : "")
+             + ( m_zipped ? ", "+ m_num_bytes +" bytes compressed to "+ m_wire_bytes : "")
+             + ( null != m_zip_entry ? " from compressed cache" : "")
+             + ( 0 < m_num_repaired ? ", "+ m_num_repaired +" chunks sent again" : "")
+             + ( m_delta ? ", "+ m_num_bytes +" bytes, "+ m_wire_bytes +" of them sent as literals" : "")
+             + ( m_repair_failed ? ", but the client gave up on it" : "") );
+        }
+      }
+      // In case the file data was never sent:
+      if( null != m_flight )
+      {
+        m_server.Leave_Flight( m_flight, 0 );
+        m_flight = null;
       }
     }
+    return m_running;
   }
   boolean Receive_Read_Request()
   {
@@ -151,10 +504,46 @@ class Handle_Get
   // Read  Request | 1 | Filename length | Filename       |
   // GET           |   | Num utf16 chars | in utf16 chars |
   //               ----------------------------------------
+  //
+  //               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+  // Ranged        --------------------------------------------------------------------
+  // Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+  // GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+  //               --------------------------------------------------------------------
+  //
+  //               |<1>|<1 byte>|<-- 4 bytes ---->|
+  // Read          -------------------------------------------------
+  // Request 64    |12 | Flags  | Filename length | Filename       |
+  // GET64         |   |        | Num utf16 chars | in utf16 chars |
+  //               -------------------------------------------------
+  //
+  // Flags: 1 = send the file in chunks, 2 = compress the chunks if the
+  // server is willing to, 4 = check the chunks and the whole file.
+  //
+  //               |<1>|<-- 4 bytes ---->|
+  // Delta         ----------------------------------------
+  // Read  Request |24 | Filename length | Filename       |
+  // GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+  //               ----------------------------------------
   boolean Receive_Read_Request_e() throws IOException
   {
     boolean ok = false;
 
+    if( m_ranged )
+    {
+      m_offset    = m_din_stream.readLong();
+      m_num_bytes = m_din_stream.readLong();
+    }
+    else if( m_wide )
+    {
+      final byte flags = m_din_stream.readByte();
+
+      // Compressed and checked data go in chunks, each compressed
+      // and checked on its own:
+      m_zipped  = 0 != ( flags & File_server.FLAG_COMPRESSED ) && m_server.m_compress;
+      m_checked = 0 != ( flags & File_server.FLAG_CHECKED );
+      m_chunked = 0 != ( flags & File_server.FLAG_CHUNKED ) || m_zipped || m_checked;
+    }
     final int fname_len = m_din_stream.readInt();
 
     if( fname_len <= 0 )
@@ -173,31 +562,162 @@ class Handle_Get
 
       m_src_path = FileSystems.getDefault().getPath( m_src_fname );
 
-      if( Files.isDirectory( m_src_path ) )
+      // A file in the chunk store has only its manifest there, and goes
+      // out as it is, whatever way of sending it was asked for:
+      if( null != m_server.m_store && ! Files.exists( m_src_path ) )
       {
-        m_err_msg = m_socket.getLocalSocketAddress()
-                  + ": File is a directory: "+ m_src_fname;
+        m_stored = m_server.m_store.Get_Manifest( m_src_path );
       }
-      else if( ! Files.isRegularFile( m_src_path ) )
+      if( null != m_stored )
       {
-        m_err_msg = m_socket.getLocalSocketAddress()
-                  + ": File does not exist or is not regular file: "+ m_src_fname;
+        m_chunked = false;
+        m_zipped  = false;
+        m_checked = false;
       }
-      else {
+      // Chunked reads send the file as far as it has got when read,
+      // so they always go to the file rather than the cache.  A miss is
+      // sent from the file, while a worker reads it into the cache for
+      // the next time, once however many connections miss on it:
+      if( null != m_server.m_cache && null == m_stored && !m_chunked && !m_delta
+       && null != m_socket.getChannel() )
+      {
+        Cache_Entry entry = m_server.m_cache.Peek( m_src_path );
+
+        if( null != entry )
+        {
+          m_cached = entry.m_data.duplicate();
+        }
+        else {
+          m_server.m_cache.Load_Later( m_src_path, m_server.m_workers );
+        }
+      }
+      // Ranged and 64 bit reads carry 64 bit lengths, so are not
+      // limited to files that fit in the 4 byte length of a plain read.
+      // A cached file is a regular file small enough for any read.
+      String err_msg = null != m_stored              ? Check_Stored_File()
+                     : null != m_cached              ? null
+                     : m_ranged || m_wide || m_delta ? Check_Src_File( m_src_path, m_src_fname )
+                                                     : Check_Src_Path( m_src_path, m_src_fname );
+      if( null == err_msg )
+      {
         m_src_file = m_src_path.toFile();
+        m_src_len  = null != m_stored ? m_stored.m_file_len
+                   : null != m_cached ? m_cached.capacity()
+                                      : m_src_file.length();
 
-        if( Integer.MAX_VALUE < m_src_file.length() )
+        // Whole file reads of the same file at the same time share one
+        // read of it, as long as it is not coming from the cache anyway:
+        if( m_server.m_coalesce && null == m_cached && null == m_stored && !m_ranged
+         && !m_chunked && !m_delta && null != m_socket.getChannel() )
         {
-          m_err_msg = m_socket.getLocalSocketAddress()
-                    + ": File too large, not sending: "+ m_src_fname;
+          m_flight = m_server.Join_Flight( m_src_path );
+
+          if( null != m_flight ) m_src_len = m_flight.m_size;
+        }
+
+        // Whole file compressed reads go out of an already compressed
+        // copy if there is a cache of them, which has no checksums.  A
+        // file not there yet is compressed a chunk at a time as it goes,
+        // while a worker compresses all of it into the cache, once however
+        // many connections miss on it:
+        if( m_zipped && !m_checked && null != m_server.m_zip_cache
+         && null != m_socket.getChannel() )
+        {
+          m_zip_entry = m_server.m_zip_cache.Peek( m_src_path );
+
+          if( null == m_zip_entry ) m_server.m_zip_cache.Load_Later( m_src_path, m_server.m_workers );
+        }
+
+        if( m_ranged )
+        {
+          err_msg     = Check_Range( m_offset, m_num_bytes, m_src_len );
+          m_num_bytes = Range_Len  ( m_offset, m_num_bytes, m_src_len );
         }
         else {
-          ok = true;
+          m_offset    = 0;
+          m_num_bytes = m_src_len;
         }
       }
+      if( null != err_msg )
+      {
+        m_err_msg = m_socket.getLocalSocketAddress() +": "+ err_msg;
+      }
+      else {
+        ok = true;
+      }
     }
     return ok;
   }
+  // Returns null if src_path can be sent, else the reason it cannot be:
+  static String Check_Src_Path( final Path src_path, final String src_fname )
+  {
+    String err_msg = Check_Src_File( src_path, src_fname );
+
+    if( null == err_msg && Integer.MAX_VALUE < src_path.toFile().length() )
+    {
+      err_msg = "File too large, not sending: "+ src_fname;
+    }
+    return err_msg;
+  }
+  // Like Check_Src_Path(), but for a file in the chunk store:
+  String Check_Stored_File()
+  {
+    String err_msg = null;
+
+    if( m_delta )
+    {
+      err_msg = "Delta reads are not served out of the chunk store: "+ m_src_fname;
+    }
+    else if( !m_ranged && !m_wide && Integer.MAX_VALUE < m_stored.m_file_len )
+    {
+      err_msg = "File too large, not sending: "+ m_src_fname;
+    }
+    return err_msg;
+  }
+  // Like Check_Src_Path(), but for requests with 64 bit lengths,
+  // so without the limit on the size of the file:
+  static String Check_Src_File( final Path src_path, final String src_fname )
+  {
+    String err_msg = null;
+
+    if( Files.isDirectory( src_path ) )
+    {
+      err_msg = "File is a directory: "+ src_fname;
+    }
+    else if( ! Files.isRegularFile( src_path ) )
+    {
+      err_msg = "File does not exist or is not regular file: "+ src_fname;
+    }
+    return err_msg;
+  }
+  // Returns null if num_bytes starting at offset can be read from a file
+  // of file_len bytes, else the reason they cannot be.  A range running
+  // past the end of the file is cut short rather than refused.
+  static String Check_Range( final long offset
+                           , final long num_bytes
+                           , final long file_len )
+  {
+    String err_msg = null;
+
+    if( offset < 0 || file_len < offset )
+    {
+      err_msg = "Offset "+ offset +" outside of file of "+ file_len +" bytes";
+    }
+    else if( num_bytes < -1 )
+    {
+      err_msg = "Bad range length: "+ num_bytes;
+    }
+    return err_msg;
+  }
+  // Number of bytes actually sent for a range that passed Check_Range():
+  static long Range_Len( final long offset
+                       , final long num_bytes
+                       , final long file_len )
+  {
+    final long bytes_left = Math.max( 0, file_len - offset );
+
+    return ( num_bytes < 0 || bytes_left < num_bytes ) ? bytes_left : num_bytes;
+  }
   void Send_Read_Response( final boolean ok )
   {
     try {
@@ -218,23 +738,68 @@ class Handle_Get
   // Response      | 2 | False=0  | Num utf16 chars | errstring |
   // Negative      |   | 00000000 | in errstring    |           |
   //               ----------------------------------------------
+  //
+  //               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+  // Ranged Read   ---------------------------------------------------------
+  // Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+  // Affirmative   ---------------------------------------------------------
+  //
+  // The negative ranged read response is the negative read response
+  // with an opcode of 9.
+  //
+  //               |<1>|< 1 byte >|<1 byte>|<-- 8 bytes ------>|
+  // Read          --------------------------------------------
+  // Response 64   |13 | True=1   | Flags  | num_bytes in file |
+  // Affirmative   |   |          |        | -1 if chunked     |
+  //               --------------------------------------------
+  //
+  // The negative 64 bit read response is the negative read response
+  // with an opcode of 13.
+  //
+  //               |<1>|< 1 byte >|<-- 8 bytes ------>|
+  // Delta Read    ------------------------------------
+  // Response      |25 | True=1   | num_bytes in file |
+  // Affirmative   ------------------------------------
+  //
+  // The negative delta read response is the negative read response
+  // with an opcode of 25.
   void Send_Read_Response_e( final boolean ok ) throws IOException
   {
     Get_Out_Stream();
 
     if( m_running )
     {
-      m_dout_stream.writeByte( OPCODE_GET_RESP );
-
-      if( ok ) {
+      m_dout_stream.writeByte( m_ranged ? OPCODE_GET_RANGE_RESP
+                             : m_wide   ? OPCODE_GET64_RESP
+                             : m_delta  ? OPCODE_GET_DELTA_RESP
+                                        : OPCODE_GET_RESP );
+      if( ok && m_wide ) {
+        m_dout_stream.writeByte( 1 );
+        m_dout_stream.writeByte( ( m_chunked ? File_server.FLAG_CHUNKED    : 0 )
+                               | ( m_zipped  ? File_server.FLAG_COMPRESSED : 0 )
+                               | ( m_checked ? File_server.FLAG_CHECKED    : 0 ) );
+        m_dout_stream.writeLong( m_chunked ? -1 : m_src_len );
+      }
+      else if( ok && m_delta ) {
         m_dout_stream.writeByte( 1 );
-        m_dout_stream.writeInt( (int)m_src_file.length() );
+        m_dout_stream.writeLong( m_src_len );
+      }
+      else if( ok && m_ranged ) {
+        m_dout_stream.writeByte( 1 );
+        m_dout_stream.writeLong( m_src_len );
+        m_dout_stream.writeLong( m_num_bytes );
+      }
+      else if( ok ) {
+        m_dout_stream.writeByte( 1 );
+        m_dout_stream.writeInt( (int)m_src_len );
       }
       else {
         m_dout_stream.writeByte( 0 );
         m_dout_stream.writeInt( m_err_msg.length() );
         m_dout_stream.writeChars( m_err_msg );
-        Die( m_err_msg );
+        // The client knows not to expect file data, so the
+        // connection stays usable:
+        Msg( m_err_msg );
       }
     }
   }
@@ -263,24 +828,531 @@ class Handle_Get
     {
       m_dout_stream.writeByte( OPCODE_DATA );
 
-      FileInputStream fis = new FileInputStream( m_src_file );
+      final SocketChannel sock_chan = m_socket.getChannel();
 
-      long total_bytes_read = 0;
+      if( m_delta )
+      {
+        Send_File_Data_Delta();
+      }
+      else if( null != m_stored )
+      {
+        Send_File_Data_Stored( sock_chan );
+      }
+      else if( null != m_zip_entry )
+      {
+        Send_File_Data_Zip_Cached( sock_chan );
+      }
+      else if( m_chunked )
+      {
+        Send_File_Data_Chunked();
+      }
+      else if( null != m_cached )
+      {
+        Send_File_Data_Cached( sock_chan );
+      }
+      else if( null != m_flight )
+      {
+        Send_File_Data_Coalesced( sock_chan );
+      }
+      else if( m_server.m_send_mode == Send_Mode.MAP && null != sock_chan )
+      {
+        Send_File_Data_Mapped( sock_chan );
+      }
+      else if( m_server.m_overlap && null != sock_chan && Buffer_Ring.Worth_It( m_num_bytes ) )
+      {
+        Send_File_Data_Overlapped( sock_chan );
+      }
+      else if( m_server.m_send_mode == Send_Mode.TRANSFER && null != sock_chan )
+      {
+        Send_File_Data_Transfer( sock_chan );
+      }
+      else {
+        Send_File_Data_Copy();
+      }
+    }
+  }
+  //               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+  // Delta         -------------------------------------------------------
+  // Signatures    | num_bytes in  | block_size    | Block signatures    |
+  //               | old copy      |               |                     |
+  //               | 0 if no copy  |               |                     |
+  //               -------------------------------------------------------
+  //
+  // Reads the signatures of the client's copy, which it sends once it
+  // has the affirmative response, and sends the file as Literals of what
+  // the copy does not have, and Copies of the blocks of it that it does.
+  // m_wire_bytes is set to the number of literal bytes sent.
+  void Send_File_Data_Delta() throws IOException
+  {
+    final long old_len    = m_din_stream.readLong();
+    final int  block_size = m_din_stream.readInt();
+
+    final Block_Sigs sigs = Block_Sigs.Read( m_din_stream, old_len, block_size );
+
+    FileChannel fc  = FileChannel.open( m_src_path, StandardOpenOption.READ );
+    ByteBuffer  buf = m_server.m_pool.Get( Delta_Sender.Buf_Len( sigs ) );
+    try {
+      DataOutputStream dout = new DataOutputStream(
+                              new BufferedOutputStream( m_socket.getOutputStream()
+                                                      , 1 + 4 + File_server.CHUNK_SIZE ) );
+
+      m_wire_bytes = new Delta_Sender( sigs, dout, buf, m_watch ).Send( fc, m_num_bytes );
+    }
+    finally {
+      fc.close();
+
+      // Back to the pool for the next transfer:
+      m_server.m_pool.Put( buf );
+    }
+  }
+  // Sends the file, or the range of it asked for, out of the chunks of it
+  // in the chunk store, one chunk after another:
+  void Send_File_Data_Stored( final SocketChannel sock_chan ) throws IOException
+  {
+    long chunk_pos  = 0; // Offset of chunk k in the file
+    long bytes_sent = 0;
+
+    for( int k=0; k<m_stored.m_num_chunks && bytes_sent < m_num_bytes; k++ )
+    {
+      final int chunk_len = m_stored.Len( k );
+
+      if( m_offset + bytes_sent < chunk_pos + chunk_len )
+      {
+        final long from = m_offset + bytes_sent - chunk_pos;
+        final long len  = Math.min( chunk_len - from, m_num_bytes - bytes_sent );
+
+        FileChannel fc = m_server.m_store.Open_Chunk( m_stored.Hash( k ) );
+        try {
+          Send_Stored_Chunk( fc, from, len, sock_chan );
+        }
+        finally {
+          fc.close();
+        }
+        bytes_sent += len;
+      }
+      chunk_pos += chunk_len;
+    }
+  }
+  // Sends len bytes of a chunk of the store from offset from, straight
+  // from the chunk to the socket if there is a channel, else through m_bytes:
+  void Send_Stored_Chunk( final FileChannel   fc
+                        , final long          from
+                        , final long          len
+                        , final SocketChannel sock_chan ) throws IOException
+  {
+    long total_bytes_sent = 0;
+
+    while( total_bytes_sent < len )
+    {
+      long bytes_sent = 0;
 
-      while( total_bytes_read < m_src_file.length() )
+      if( null != sock_chan )
       {
-        // Read from source file:
-        final int bytes_read = fis.read( m_bytes, 0, 512 );
+        bytes_sent = fc.transferTo( from + total_bytes_sent, len - total_bytes_sent, sock_chan );
+      }
+      else {
+        ByteBuffer bb = ByteBuffer.wrap( m_bytes, 0, (int)Math.min( m_bytes.length
+                                                                  , len - total_bytes_sent ) );
+        bytes_sent = Math.max( 0, fc.read( bb, from + total_bytes_sent ) );
+
+        m_dout_stream.write( m_bytes, 0, (int)bytes_sent );
+      }
+      m_watch.Progress();
+
+      if( bytes_sent <= 0 && fc.size() <= from + total_bytes_sent )
+      {
+        throw new IOException("Chunk of "+ m_src_fname +" is short in the chunk store");
+      }
+      total_bytes_sent += bytes_sent;
+    }
+  }
+  // Zero-copy path: the kernel moves the file straight to the socket
+  // (sendfile on Linux), so the data never passes through the Java heap.
+  // m_dout_stream is unbuffered, so the DATA opcode is already on the wire.
+  void Send_File_Data_Transfer( final SocketChannel sock_chan ) throws IOException
+  {
+    FileChannel fc = FileChannel.open( m_src_path, StandardOpenOption.READ );
+
+    long total_bytes_sent = 0;
+
+    while( total_bytes_sent < m_num_bytes )
+    {
+      final long bytes_sent = fc.transferTo( m_offset + total_bytes_sent
+                                           , Math.min( Io_Watch.MAX_WRITE_LEN
+                                                     , m_num_bytes - total_bytes_sent )
+                                           , sock_chan );
+      m_watch.Progress();
+
+      if( bytes_sent <= 0 && fc.size() <= m_offset + total_bytes_sent )
+      {
+        fc.close();
+        throw new IOException("File shrank while sending: "+ m_src_fname );
+      }
+      total_bytes_sent += bytes_sent;
+    }
+    fc.close();
+  }
+  // Sends the file through a Buffer_Ring, reading ahead in the file on
+  // another thread while the socket is busy:
+  void Send_File_Data_Overlapped( final SocketChannel sock_chan ) throws IOException
+  {
+    FileChannel fc = FileChannel.open( m_src_path, StandardOpenOption.READ );
+    try {
+      new Buffer_Ring( m_server.m_pool, fc, m_offset, m_num_bytes ).Send( sock_chan, m_watch );
+    }
+    finally {
+      fc.close();
+    }
+  }
+  // Sends the file out of its File_Cache copy, without touching the disk
+  // or the Java heap.  m_cached is this connection's own view of the copy,
+  // so moving its position and limit does not disturb other senders.
+  void Send_File_Data_Cached( final SocketChannel sock_chan ) throws IOException
+  {
+    final int end = (int)(m_offset + m_num_bytes);
+
+    m_cached.position( (int)m_offset );
+
+    while( m_cached.position() < end )
+    {
+      m_cached.limit( Math.min( end, m_cached.position() + Io_Watch.MAX_WRITE_LEN ) );
+
+      sock_chan.write( m_cached );
+      m_watch.Progress();
+    }
+  }
+  // Sends the chunks of the file out of its Zip_Cache copy, which are
+  // already compressed, so it costs no more than sending from File_Cache:
+  void Send_File_Data_Zip_Cached( final SocketChannel sock_chan ) throws IOException
+  {
+    ByteBuffer data = m_zip_entry.m_data.duplicate();
+
+    final int end = data.limit();
+
+    while( data.position() < end )
+    {
+      data.limit( Math.min( end, data.position() + Io_Watch.MAX_WRITE_LEN ) );
+
+      sock_chan.write( data );
+      m_watch.Progress();
+    }
+    m_num_bytes  = m_zip_entry.m_size;
+    m_wire_bytes = m_zip_entry.m_wire_bytes;
+  }
+  // Sends the file a chunk at a time through m_flight, which reads each
+  // chunk from disk once for every connection getting the file with it.
+  void Send_File_Data_Coalesced( final SocketChannel sock_chan ) throws IOException
+  {
+    long k = 0;
+    try {
+      ByteBuffer bb = m_flight.Chunk( k );
 
-        if( 0 < bytes_read )
+      while( null != bb )
+      {
+        while( bb.hasRemaining() )
+        {
+          sock_chan.write( bb );
+          m_watch.Progress();
+        }
+        // Cut loose for holding up the others, so on its own from here:
+        if( !m_flight.Done( k ) )
         {
-          total_bytes_read += bytes_read;
+          m_flight.Send_Rest( k+1, sock_chan, m_watch );
+          break;
+        }
+        bb = m_flight.Chunk( ++k );
+      }
+    }
+    finally {
+      m_server.Leave_Flight( m_flight, k );
+      m_flight = null;
+    }
+  }
+  // Writes the file to the socket straight out of its mapping, which is
+  // shared with every other connection sending the same file, leaving the
+  // page cache to read it in.  m_dout_stream is unbuffered, so the DATA
+  // opcode is already on the wire.
+  void Send_File_Data_Mapped( final SocketChannel sock_chan ) throws IOException
+  {
+    final Mapped_File mf = m_server.m_maps.Get( m_src_path );
+
+    if( null == mf )
+    {
+      throw new IOException("File shrank while sending: "+ m_src_fname );
+    }
+    final long end = m_offset + m_num_bytes;
+
+    for( long pos = m_offset; pos < end; )
+    {
+      pos += mf.Write_To( sock_chan, pos, Math.min( end, pos + Io_Watch.MAX_WRITE_LEN ) );
+      m_watch.Progress();
+    }
+  }
+  //               |<-- 4 bytes -->|
+  //               ------------------------------
+  // Chunk         | num_bytes     | File data  |
+  //               | 0 = last      |            |
+  //               ------------------------------
+  //
+  //               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+  // Checked       ----------------------------------------------
+  // Chunk         | num_bytes     | File data  | CRC32C of     |
+  //               | 0 = last      |            | File data     |
+  //               ----------------------------------------------
+  //
+  // Sends the file as chunks, up to wherever it ends when it is read,
+  // followed by an empty chunk.  The size of the file is never needed up
+  // front, so a file still being written is sent as far as it has got, and
+  // memory use stays at one chunk whatever the size of the file.  If the
+  // transfer is compressed, each chunk of the file is compressed on its
+  // own on the way out, unless it or its type of file does not compress.
+  //
+  // If the transfer is checked, it ends at the first short chunk, so every
+  // chunk but the last holds CHUNK_SIZE bytes of the file and can be found
+  // again by its number.  The empty chunk has no CRC32C, and is followed by
+  // the SHA-256 of the file, worked out as the chunks go out, after which
+  // the client can ask for bad chunks again.
+  void Send_File_Data_Chunked() throws IOException
+  {
+    final SocketChannel sock_chan = m_socket.getChannel();
+    final Buffer_Pool   pool      = m_server.m_pool;
+    final int           bb_len    = 4 + ( m_zipped  ? Chunk_Zip.MAX_ZIPPED_LEN
+                                                    : File_server.CHUNK_SIZE )
+                                      + ( m_checked ? 4 : 0 );
+    // Buffers are borrowed from the pool, unless the socket has
+    // no channel to write them with:
+    FileChannel   fc     = FileChannel.open( m_src_path, StandardOpenOption.READ );
+    MessageDigest digest = m_checked ? File_server.New_Digest() : null;
 
-          m_dout_stream.write( m_bytes, 0, bytes_read );
+    m_chunk_buf = null != sock_chan ? pool.Get( bb_len ) : ByteBuffer.allocate( bb_len );
+    m_raw_buf   = !m_zipped         ? null
+                : null != sock_chan ? pool.Get( File_server.CHUNK_SIZE )
+                                    : ByteBuffer.allocate( File_server.CHUNK_SIZE );
+    m_zip       = m_zipped ? new Chunk_Zip() : null;
+    m_zip_type  = m_zipped ? m_server.Get_Zip_Type( m_src_path ) : null;
+
+    m_num_bytes  = 0;
+    m_wire_bytes = 0;
+    try {
+      int raw_len = File_server.CHUNK_SIZE;
+      do {
+        final int max_len = m_checked && raw_len < File_server.CHUNK_SIZE
+                          ? 0 : File_server.CHUNK_SIZE;
+
+        raw_len = Fill_Chunk( fc, m_num_bytes, max_len, digest );
+
+        Write_Chunk( sock_chan );
+
+        m_num_bytes  += raw_len;
+        m_wire_bytes += m_chunk_buf.getInt( 0 ) & ~Chunk_Zip.RAW_CHUNK;
+
+        if( 0 < raw_len ) m_num_chunks++;
+      }
+      while( 0 < raw_len );
+
+      if( m_checked )
+      {
+        m_dout_stream.write( digest.digest() );
+
+        Serve_Repairs( fc, sock_chan );
+      }
+    }
+    finally {
+      fc.close();
+      if( null != m_zip ) m_zip.End();
+
+      if( null != sock_chan )
+      {
+        pool.Put( m_chunk_buf );
+        pool.Put( m_raw_buf );
+      }
+      m_chunk_buf = null;
+      m_raw_buf   = null;
+    }
+  }
+  // Reads up to max_len bytes of the file at file_pos into m_chunk_buf as
+  // a chunk ready to go on the wire, compressed if the transfer is, and
+  // followed by its CRC32C if the transfer is checked.  Returns the number
+  // of bytes of the file in the chunk, which is 0 at the end of the file.
+  // The bytes of the file are also added to digest, if there is one.
+  int Fill_Chunk( final FileChannel   fc
+                , final long          file_pos
+                , final int           max_len
+                , final MessageDigest digest ) throws IOException
+  {
+    ByteBuffer bb = m_chunk_buf;
+
+    bb.clear();
+    bb.position( 4 );
+
+    int raw_len = 0;
+
+    if( null == m_zip )
+    {
+      bb.limit( 4 + max_len );
+      raw_len = Read_Fully( fc, bb, file_pos );
+      bb.limit( bb.capacity() );
+      bb.putInt( 0, raw_len );
+
+      if( null != digest ) digest.update( Chunk_Data( bb ) );
+    }
+    else {
+      m_raw_buf.clear();
+      m_raw_buf.limit( max_len );
+      raw_len = Read_Fully( fc, m_raw_buf, file_pos );
+      m_raw_buf.flip();
+
+      if( null != digest )
+      {
+        digest.update( m_raw_buf );
+        m_raw_buf.rewind();
+      }
+      // The empty chunk at the end stays empty:
+      bb.putInt( 0, 0 < raw_len ? m_zip.Pack( m_raw_buf, bb, m_zip_type ) : 0 );
+    }
+    if( m_checked && 0 < raw_len )
+    {
+      m_crc.reset();
+      m_crc.update( Chunk_Data( bb ) );
+      bb.putInt( (int)m_crc.getValue() );
+    }
+    return raw_len;
+  }
+  // Reads fc at file_pos until bb is full or the file ends,
+  // and returns the number of bytes read:
+  static int Read_Fully( final FileChannel fc
+                       , final ByteBuffer  bb
+                       , final long        file_pos ) throws IOException
+  {
+    int total_bytes_read = 0;
+
+    while( bb.hasRemaining() )
+    {
+      final int bytes_read = fc.read( bb, file_pos + total_bytes_read );
+
+      if( bytes_read <= 0 ) break;
+
+      total_bytes_read += bytes_read;
+    }
+    return total_bytes_read;
+  }
+  // The data of the chunk being filled in bb, after its length:
+  static ByteBuffer Chunk_Data( final ByteBuffer bb )
+  {
+    ByteBuffer data = bb.duplicate();
+    data.flip();
+    data.position( 4 );
+    return data;
+  }
+  void Write_Chunk( final SocketChannel sock_chan ) throws IOException
+  {
+    ByteBuffer bb = m_chunk_buf;
+
+    if( null != sock_chan )
+    {
+      bb.flip();
+      while( bb.hasRemaining() )
+      {
+        sock_chan.write( bb );
+        m_watch.Progress();
+      }
+    }
+    else {
+      m_dout_stream.write( bb.array(), 0, bb.position() );
+      m_watch.Progress();
+    }
+  }
+  //               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+  // Repair        ------------------------------------------
+  // Request       |16 | num_chunks    | Chunk numbers      |
+  //               |   | 0 = all good  |                    |
+  //               |   | -1 = give up  |                    |
+  //               ------------------------------------------
+  //
+  //               |<-- 8 bytes -->|
+  // Repaired      ------------------------------------
+  // Chunk         | Chunk number  | Checked chunk    |
+  //               ------------------------------------
+  //
+  // Sends the chunks the client asks for again, read from the file again,
+  // until the client has all of them whole or gives up on the file.
+  void Serve_Repairs( final FileChannel fc, final SocketChannel sock_chan ) throws IOException
+  {
+    for( int round=0; true; round++ )
+    {
+      final byte op_code = m_din_stream.readByte();
+
+      if( op_code != OPCODE_REPAIR )
+      {
+        throw new IOException("Expected repair request but received OPCODE "+ op_code );
+      }
+      final int num_chunks = m_din_stream.readInt();
+
+      if( num_chunks <= 0 )
+      {
+        m_repair_failed = num_chunks < 0;
+        return;
+      }
+      if( File_server.MAX_REPAIR_ROUNDS <= round
+       || File_server.MAX_REPAIR_CHUNKS < num_chunks )
+      {
+        throw new IOException("Too many chunks to send again: "+ num_chunks );
+      }
+      final long[] chunk_nums = new long[ num_chunks ];
+
+      for( int k=0; k<num_chunks; k++ )
+      {
+        chunk_nums[k] = m_din_stream.readLong();
+      }
+      for( long chunk_num : chunk_nums )
+      {
+        if( chunk_num < 0 || m_num_chunks <= chunk_num )
+        {
+          throw new IOException("Bad chunk number to send again: "+ chunk_num );
+        }
+        final int raw_len = Fill_Chunk( fc, chunk_num*File_server.CHUNK_SIZE
+                                          , File_server.CHUNK_SIZE, null );
+        if( 0 == raw_len )
+        {
+          throw new IOException("File shrank while sending: "+ m_src_fname );
         }
+        m_dout_stream.writeLong( chunk_num );
+
+        Write_Chunk( sock_chan );
+
+        m_wire_bytes += m_chunk_buf.getInt( 0 ) & ~Chunk_Zip.RAW_CHUNK;
+      }
+      m_num_repaired += num_chunks;
+    }
+  }
+  // Fallback path, copying the file through m_bytes:
+  void Send_File_Data_Copy() throws IOException, FileNotFoundException
+  {
+    FileInputStream fis = new FileInputStream( m_src_file );
+
+    fis.getChannel().position( m_offset );
+
+    long total_bytes_read = 0;
+
+    while( total_bytes_read < m_num_bytes )
+    {
+      // Read from source file:
+      final int bytes_read = fis.read( m_bytes, 0, (int)Math.min( m_bytes.length
+                                                                , m_num_bytes - total_bytes_read ) );
+      if( bytes_read < 0 )
+      {
+        fis.close();
+        throw new IOException("File shrank while sending: "+ m_src_fname );
+      }
+      if( 0 < bytes_read )
+      {
+        total_bytes_read += bytes_read;
+
+        m_dout_stream.write( m_bytes, 0, bytes_read );
+        m_watch.Progress();
       }
-      fis.close();
     }
+    fis.close();
   }
   void Get_Out_Stream()
   {
@@ -300,17 +1372,45 @@ class Handle_Get
   static final byte OPCODE_PUT_REQ  = 3;
   static final byte OPCODE_PUT_RESP = 4;
   static final byte OPCODE_DATA     = 5;
+  static final byte OPCODE_GET_RANGE_RESP = 9;
+  static final byte OPCODE_GET64_RESP     = 13;
+  static final byte OPCODE_REPAIR         = 16;
+  static final byte OPCODE_GET_DELTA_RESP = 25;
 
+  final File_server     m_server;
   final Socket          m_socket;
   final DataInputStream m_din_stream;
   final InetAddress     m_client_IP_addr;
+  final boolean         m_ranged;
+  final boolean         m_wide;
+  final boolean         m_delta;
   final byte[]          m_bytes = new byte[512];
 
   boolean          m_running = true;
   String           m_src_fname;
   Path             m_src_path;
   File             m_src_file;
+  long             m_src_len;
+  long             m_offset;
+  long             m_num_bytes;
+  boolean          m_chunked;
+  boolean          m_zipped;
+  boolean          m_checked;
+  long             m_wire_bytes; // Compressed size of the file data sent, or literals of a delta
+  long             m_num_chunks; // Chunks of file data sent, not counting the last
+  long             m_num_repaired; // Chunks sent again for a checked transfer
+  boolean          m_repair_failed;
+  ByteBuffer       m_chunk_buf; // Chunk as it goes on the wire
+  ByteBuffer       m_raw_buf;   // Chunk of the file before compression
+  Chunk_Zip        m_zip;
+  Zip_Type         m_zip_type;
+  CRC32C           m_crc = new CRC32C();
+  ByteBuffer       m_cached; // Contents of the file if it is in the cache
+  Manifest         m_stored; // Chunks of the file if it is in the chunk store
+  Zip_Entry        m_zip_entry; // Compressed copy if it is in the Zip_Cache
+  Read_Flight      m_flight; // Shared read of the file if coalescing
   DataOutputStream m_dout_stream;
+  Io_Watch         m_watch; // Of the response and the file data
   String           m_err_msg;
 }
 
@@ -0,0 +1,1019 @@
+////////////////////////////////////////////////////////////////////////////////
+// File Server Java Implementation                                            //
+// Copyright (c) 31 Dec 2019 Paul J. Gartside                                 //
+////////////////////////////////////////////////////////////////////////////////
+// Permission is hereby granted, free of charge, to any person obtaining a    //
+// copy of this software and associated documentation files (the "Software"), //
+// to deal in the Software without restriction, including without  limitation //
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,   //
+// and/or sell copies of the Software, and to permit persons to whom the      //
+// Software is furnished to do so, subject to the following conditions:       //
+//                                                                            //
+// The above copyright notice and this permission notice shall be included in //
+// all copies or substantial portions of the Software.                        //
+//                                                                            //
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR //
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,   //
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL    //
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER //
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING    //
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER        //
+// DEALINGS IN THE SOFTWARE.                                                  //
+////////////////////////////////////////////////////////////////////////////////
+// ---------------------
+// File Protocol Summary
+// ---------------------
+//
+//               |<1>|<-- 4 bytes ---->|
+//               ----------------------------------------
+// Read  Request | 1 | Filename length | Filename       |
+// GET           |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ------>|
+// Read          ------------------------------------
+// Response      | 2 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Read          ----------------------------------------------
+// Response      | 2 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|< 4 bytes >|<-- 4 bytes ---->|
+//               ----------------------------------------------------
+// Write Request | 3 | num_bytes | Filename length | Filename       |
+// PUT           |   | in file   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Write         ----------------
+// Response      | 4 | True=1   |
+// Affirmative   |   | 00000001 |
+// Affirmative   ----------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Write         ----------------------------------------------
+// Response      | 4 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|
+// Read/Write    -----------------
+// DATA          | 5 | File data |
+//               -----------------
+//
+// ----------                         ----------
+// | Client |                         | Server |
+// ----------                         ----------
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Affirmative ----|
+//     |<-- File data --------------------|
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Negative -------|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Affirmative ---|
+//     |--- File data ------------------->|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Negative ------|
+//     |                                  |
+//
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+// Serves a connection that has switched to framed mode, where any number of
+// GET and PUT streams share the socket.  The connection's own thread reads
+// frames and handles requests, PUT data and cancels.  A sender on a worker sends
+// GET data one frame at a time from each active GET stream in turn, so a
+// large file does not hold up the small ones queued behind it.
+class Handle_Mux implements Runnable
+{
+  Handle_Mux( File_server     server
+            , Socket          socket
+            , DataInputStream din_stream )
+  {
+    m_server     = server;
+    m_socket     = socket;
+    m_din_stream = din_stream;
+    m_peer       = socket.getInetAddress().getHostAddress() +":"
+                 + socket.getPort();
+  }
+  void Msg( String msg )
+  {
+    System.out.println("File_server: " + msg );
+  }
+  void Die( String msg )
+  {
+    Msg( msg );
+
+    m_running = false;
+  }
+  // Framed mode lasts until the connection closes, so this always
+  // returns false
+  boolean Run()
+  {
+    // Writes ignore SO_TIMEOUT, so the server watches them instead:
+    m_watch = m_server.Start_Io_Watch( m_socket );
+    m_watch.Pause();
+
+    Get_Out_Stream();
+    Start_Sender();
+
+    while( m_running )
+    {
+      Receive_Frame();
+    }
+    Stop_Sender();
+    Clean_Up_Streams();
+
+    m_server.Stop_Io_Watch( m_watch );
+
+    return false;
+  }
+  void Get_Out_Stream()
+  {
+    if( m_running )
+    try {
+      OutputStream out_stream = m_socket.getOutputStream();
+
+      // Buffered, so each frame goes out with one write:
+      m_dout_stream = new DataOutputStream(
+                        new BufferedOutputStream( out_stream, 8 + MAX_FRAME_LEN ) );
+    }
+    catch( IOException e )
+    {
+      Die("m_socket.getOutputStream(): IOException: " + e);
+    }
+  }
+  // The sender runs on a thread of the server's executor, which in pool
+  // mode has a spare thread for each connection it serves:
+  void Start_Sender()
+  {
+    if( m_running )
+    try {
+      m_sender = m_server.m_workers.submit( this );
+    }
+    catch( RejectedExecutionException e )
+    {
+      Die("Start_Sender(): RejectedExecutionException: " + e);
+    }
+  }
+  void Stop_Sender()
+  {
+    synchronized( this )
+    {
+      m_sending = false;
+      notifyAll();
+    }
+    try {
+      if( null != m_sender ) m_sender.get();
+    }
+    catch( InterruptedException e )
+    {
+      Msg("Stop_Sender(): InterruptedException: " + e);
+    }
+    catch( ExecutionException e )
+    {
+      Msg("Stop_Sender(): ExecutionException: " + e);
+    }
+  }
+  //               |<-- 4 bytes -->|<-- 4 bytes -->|
+  //               ------------------------------------------------
+  // Frame         | Stream id     | Payload len   | Payload      |
+  //               |               | 1..65536      | Message      |
+  //               ------------------------------------------------
+  void Receive_Frame()
+  {
+    try {
+      Receive_Frame_e();
+    }
+    catch( EOFException e )
+    {
+      // Client is done with the connection
+      m_running = false;
+    }
+    catch( IOException e )
+    {
+      Die("Handle_Mux.Receive_Frame(): "+ m_peer +": IOException: " + e);
+    }
+  }
+  void Receive_Frame_e() throws IOException
+  {
+    // Wait for the first byte on its own, so an idle timeout can
+    // only happen between frames:
+    final int first_byte = Read_First_Byte();
+
+    if( first_byte < 0 ) return;
+
+    final int stream_id = (first_byte << 24)
+                        | (m_din_stream.readUnsignedByte() << 16)
+                        | (m_din_stream.readUnsignedShort());
+    final int frame_len = m_din_stream.readInt();
+
+    if( frame_len <= 0 || MAX_FRAME_LEN < frame_len )
+    {
+      Die( m_peer +": Bad frame length: "+ frame_len );
+      return;
+    }
+    m_din_stream.readFully( m_in_frame, 0, frame_len );
+
+    final byte op_code = m_in_frame[0];
+
+    if( op_code == File_server.OPCODE_GET_REQ )
+    {
+      Start_Get( stream_id, frame_len, false );
+    }
+    else if( op_code == File_server.OPCODE_GET_RANGE_REQ )
+    {
+      Start_Get( stream_id, frame_len, true );
+    }
+    else if( op_code == File_server.OPCODE_PUT_REQ )
+    {
+      Start_Put( stream_id, frame_len );
+    }
+    else if( op_code == File_server.OPCODE_DATA )
+    {
+      Receive_Data( stream_id, frame_len );
+    }
+    else if( op_code == File_server.OPCODE_CANCEL )
+    {
+      Cancel_Stream( stream_id );
+    }
+    else {
+      Die( m_peer +": Received bad OPCODE in frame: "+ op_code );
+    }
+  }
+  // Returns -1 if the connection timed out, and is not to be closed.
+  int Read_First_Byte() throws IOException
+  {
+    int first_byte = -1;
+    try {
+      first_byte = m_din_stream.readUnsignedByte();
+    }
+    catch( SocketTimeoutException e )
+    {
+      // Sending GET data to a client that has nothing to say in
+      // the meantime does not make it idle, but an open PUT stream
+      // whose client has gone quiet does not keep it alive:
+      if( Num_Sending_Gets() == 0 )
+      {
+        Die("Closing idle connection: "+ m_peer );
+      }
+    }
+    return first_byte;
+  }
+  // Returns the filename in a GET or PUT request frame, which is
+  // in the same format as an unframed request:
+  String Parse_Fname( DataInputStream din ) throws IOException
+  {
+    final int fname_len = din.readInt();
+
+    if( fname_len <= 0 || MAX_FRAME_LEN < 2*fname_len )
+    {
+      throw new IOException("Bad filename length: "+ fname_len );
+    }
+    StringBuilder sb = new StringBuilder( fname_len );
+
+    for( int k=0; k<fname_len; k++ )
+    {
+      sb.append( din.readChar() );
+    }
+    return sb.toString();
+  }
+  // Plain and ranged reads.  The sender sends a stream's
+  // file from m_file_pos up to m_file_len:
+  void Start_Get( final int     stream_id
+                , final int     frame_len
+                , final boolean ranged ) throws IOException
+  {
+    DataInputStream din = new DataInputStream(
+                            new ByteArrayInputStream( m_in_frame, 1, frame_len-1 ) );
+    final long   offset    = ranged ? din.readLong() : 0;
+    final long   num_bytes = ranged ? din.readLong() : -1;
+    final String src_fname = Parse_Fname( din );
+    final Path   src_path  = FileSystems.getDefault().getPath( src_fname );
+
+    String err_msg = ranged ? Handle_Get.Check_Src_File( src_path, src_fname )
+                            : Handle_Get.Check_Src_Path( src_path, src_fname );
+
+    final long file_len = null == err_msg ? src_path.toFile().length() : 0;
+
+    if( null == err_msg && ranged )
+    {
+      err_msg = Handle_Get.Check_Range( offset, num_bytes, file_len );
+    }
+    if( null == err_msg && null != Get_Stream( stream_id ) )
+    {
+      err_msg = "Stream id already in use: "+ stream_id;
+    }
+    final byte resp_op_code = ranged ? File_server.OPCODE_GET_RANGE_RESP
+                                     : File_server.OPCODE_GET_RESP;
+    if( null != err_msg )
+    {
+      Send_Negative_Response( stream_id, resp_op_code, err_msg );
+    }
+    else {
+      final long range_len = Handle_Get.Range_Len( offset, num_bytes, file_len );
+
+      Mux_Stream ms = new Mux_Stream( stream_id, true, src_fname );
+      ms.m_file_chan = FileChannel.open( src_path, StandardOpenOption.READ );
+      ms.m_file_pos  = offset;
+      ms.m_file_len  = offset + range_len;
+
+      ByteBuffer bb = ByteBuffer.allocate( 1+1+8+8 );
+      bb.put( resp_op_code );
+      bb.put( (byte)1 );
+      if( ranged )
+      {
+        bb.putLong( file_len );
+        bb.putLong( range_len );
+      }
+      else {
+        bb.putInt( (int)file_len );
+      }
+      Write_Frame( stream_id, bb.array(), bb.position() );
+
+      if( 0 == range_len )
+      {
+        Finish_Stream( ms );
+      }
+      else {
+        // The sender takes it from here:
+        Add_Stream( ms );
+      }
+    }
+  }
+  void Start_Put( final int stream_id, final int frame_len ) throws IOException
+  {
+    DataInputStream din = new DataInputStream(
+                            new ByteArrayInputStream( m_in_frame, 1, frame_len-1 ) );
+    final int    dst_len   = din.readInt();
+    final String dst_fname = Parse_Fname( din );
+    final Path   dst_path  = FileSystems.getDefault().getPath( dst_fname );
+
+    String err_msg = Handle_Put.Check_Dst_Path( dst_path, dst_fname );
+
+    if( null == err_msg && dst_len < 0 )
+    {
+      err_msg = "Bad file length: "+ dst_len;
+    }
+    if( null == err_msg && null != Get_Stream( stream_id ) )
+    {
+      err_msg = "Stream id already in use: "+ stream_id;
+    }
+    if( null != err_msg )
+    {
+      Send_Negative_Response( stream_id, File_server.OPCODE_PUT_RESP, err_msg );
+    }
+    else {
+      Mux_Stream ms = new Mux_Stream( stream_id, false, dst_fname );
+      ms.m_path      = dst_path;
+      ms.m_file_chan = FileChannel.open( dst_path, StandardOpenOption.CREATE_NEW
+                                                 , StandardOpenOption.WRITE );
+      ms.m_file_len  = dst_len;
+
+      final byte[] resp = { File_server.OPCODE_PUT_RESP, 1 };
+      Write_Frame( stream_id, resp, resp.length );
+
+      if( 0 == ms.m_file_len )
+      {
+        Finish_Stream( ms );
+      }
+      else {
+        Add_Stream( ms );
+      }
+    }
+  }
+  void Send_Negative_Response( final int    stream_id
+                             , final byte   resp_op_code
+                             , final String err_msg ) throws IOException
+  {
+    final String msg = m_socket.getLocalSocketAddress() +": "+ err_msg;
+
+    ByteBuffer bb = ByteBuffer.allocate( 1+1+4+2*msg.length() );
+    bb.put( resp_op_code );
+    bb.put( (byte)0 );
+    bb.putInt( msg.length() );
+    for( int k=0; k<msg.length(); k++ )
+    {
+      bb.putChar( msg.charAt( k ) );
+    }
+    Write_Frame( stream_id, bb.array(), bb.position() );
+
+    Msg( msg );
+  }
+  // PUT data, written to the stream's file as it arrives:
+  void Receive_Data( final int stream_id, final int frame_len ) throws IOException
+  {
+    Mux_Stream ms = Get_Stream( stream_id );
+
+    // Data for a stream that has been cancelled can still be in flight,
+    // and is dropped:
+    if( null != ms && !ms.m_is_get )
+    {
+      final int data_len = frame_len - 1;
+
+      if( ms.m_file_len - ms.m_file_pos < data_len )
+      {
+        Die( m_peer +": Too much data for stream "+ stream_id +": "+ ms.m_fname );
+        return;
+      }
+      ByteBuffer bb = ByteBuffer.wrap( m_in_frame, 1, data_len );
+      try {
+        while( bb.hasRemaining() )
+        {
+          ms.m_file_pos += ms.m_file_chan.write( bb );
+        }
+      }
+      catch( IOException e )
+      {
+        // Tell the client to stop sending, but keep the connection:
+        Msg( m_peer +": "+ ms.m_fname +": IOException: "+ e );
+        Abort_Stream( ms );
+        Send_Cancel( stream_id );
+        return;
+      }
+      if( ms.m_file_len <= ms.m_file_pos )
+      {
+        Remove_Stream( ms );
+        Finish_Stream( ms );
+      }
+    }
+  }
+  //               |<1>|
+  //               -----
+  // Cancel        | 7 |
+  //               -----
+  void Cancel_Stream( final int stream_id )
+  {
+    Mux_Stream ms = Get_Stream( stream_id );
+
+    if( null != ms )
+    {
+      Msg("Cancelled by "+ m_peer +": "+ ms.m_fname );
+
+      Abort_Stream( ms );
+    }
+  }
+  void Send_Cancel( final int stream_id ) throws IOException
+  {
+    final byte[] cancel = { File_server.OPCODE_CANCEL };
+
+    Write_Frame( stream_id, cancel, cancel.length );
+  }
+  // Drops a stream before it is done.  A partly written PUT file is
+  // deleted, so the client can try again.  Locking the stream waits out
+  // the sender if it is in the middle of sending a frame from it.
+  void Abort_Stream( Mux_Stream ms )
+  {
+    Remove_Stream( ms );
+
+    synchronized( ms )
+    {
+      ms.m_cancelled = true;
+
+      Close_File( ms );
+
+      if( !ms.m_is_get )
+      {
+        try {
+          Files.deleteIfExists( ms.m_path );
+        }
+        catch( IOException e )
+        {
+          Msg("Abort_Stream(): IOException: " + e);
+        }
+      }
+    }
+  }
+  void Finish_Stream( Mux_Stream ms )
+  {
+    Close_File( ms );
+
+    Msg( (ms.m_is_get ? "Sent to " : "Received from ")
+       + m_peer +": "+ ms.m_fname );
+  }
+  void Close_File( Mux_Stream ms )
+  {
+    try {
+      if( null != ms.m_file_chan )
+      {
+        ms.m_file_chan.close();
+        ms.m_file_chan = null;
+      }
+    }
+    catch( IOException e )
+    {
+      Msg("Close_File(): IOException: " + e);
+    }
+  }
+  void Write_Frame( final int    stream_id
+                  , final byte[] payload
+                  , final int    payload_len ) throws IOException
+  {
+    synchronized( m_dout_stream )
+    {
+      // Only watched while writing, so a connection with nothing
+      // to send is not taken for one whose client stopped reading:
+      m_watch.Progress();
+      try {
+        m_dout_stream.writeInt( stream_id );
+        m_dout_stream.writeInt( payload_len );
+        m_dout_stream.write( payload, 0, payload_len );
+        m_dout_stream.flush();
+      }
+      finally {
+        m_watch.Pause();
+      }
+    }
+  }
+
+  // The sender:
+  public void run()
+  {
+    final byte[] out_frame = new byte[ MAX_FRAME_LEN ];
+
+    out_frame[0] = File_server.OPCODE_DATA;
+
+    Mux_Stream ms;
+
+    while( null != (ms = Next_Get_Stream()) )
+    {
+      try {
+        Send_Data_Frame( ms, out_frame );
+      }
+      catch( IOException e )
+      {
+        // The reader will see the broken connection too and end things:
+        Msg("Mux_Sender: "+ m_peer +": IOException: " + e);
+        Abort_Stream( ms );
+      }
+    }
+  }
+  void Send_Data_Frame( Mux_Stream ms, final byte[] out_frame ) throws IOException
+  {
+    synchronized( ms )
+    {
+      if( ms.m_cancelled ) return;
+      final int data_len = (int)Math.min( MAX_FRAME_LEN-1
+                                        , ms.m_file_len - ms.m_file_pos );
+      ByteBuffer bb = ByteBuffer.wrap( out_frame, 1, data_len );
+
+      while( bb.hasRemaining() )
+      {
+        if( ms.m_file_chan.read( bb, ms.m_file_pos + bb.position()-1 ) < 0 )
+        {
+          throw new IOException("File shrank while sending: "+ ms.m_fname );
+        }
+      }
+      Write_Frame( ms.m_id, out_frame, 1+data_len );
+
+      ms.m_file_pos += data_len;
+    }
+    if( ms.m_file_len <= ms.m_file_pos )
+    {
+      Remove_Stream( ms );
+      Finish_Stream( ms );
+    }
+    else {
+      Requeue_Get_Stream( ms );
+    }
+  }
+
+  synchronized int Num_Sending_Gets()
+  {
+    int num_gets = 0;
+
+    for( Mux_Stream ms : m_streams.values() )
+    {
+      if( ms.m_is_get && ms.m_file_pos < ms.m_file_len ) num_gets++;
+    }
+    return num_gets;
+  }
+  synchronized Mux_Stream Get_Stream( final int stream_id )
+  {
+    return m_streams.get( stream_id );
+  }
+  synchronized void Add_Stream( Mux_Stream ms )
+  {
+    m_streams.put( ms.m_id, ms );
+
+    if( ms.m_is_get )
+    {
+      m_get_queue.add( ms );
+      notifyAll();
+    }
+  }
+  synchronized void Remove_Stream( Mux_Stream ms )
+  {
+    if( m_streams.get( ms.m_id ) == ms )
+    {
+      m_streams.remove( ms.m_id );
+    }
+  }
+  synchronized void Requeue_Get_Stream( Mux_Stream ms )
+  {
+    m_get_queue.add( ms );
+  }
+  // Round robin over the active GET streams.  Returns null
+  // once the connection is finished.
+  synchronized Mux_Stream Next_Get_Stream()
+  {
+    while( m_sending && m_get_queue.isEmpty() )
+    {
+      try {
+        wait();
+      }
+      catch( InterruptedException e )
+      {
+        m_sending = false;
+      }
+    }
+    return m_sending ? m_get_queue.poll() : null;
+  }
+  void Clean_Up_Streams()
+  {
+    for( Mux_Stream ms : m_streams.values().toArray( new Mux_Stream[0] ) )
+    {
+      if( !ms.m_is_get )
+      {
+        Msg("Connection closed with "+ ms.m_file_pos +" of "+ ms.m_file_len
+           +" bytes received: "+ ms.m_fname );
+      }
+      Abort_Stream( ms );
+    }
+  }
+  static final int MAX_FRAME_LEN = 64*1024;
+
+  final File_server     m_server;
+  final Socket          m_socket;
+  final DataInputStream m_din_stream;
+  final String          m_peer;
+  final byte[]          m_in_frame  = new byte[ MAX_FRAME_LEN ];
+  final HashMap<Integer,Mux_Stream> m_streams   = new HashMap<Integer,Mux_Stream>();
+  final ArrayDeque<Mux_Stream>      m_get_queue = new ArrayDeque<Mux_Stream>();
+
+  boolean          m_running = true;
+  boolean          m_sending = true;
+  Future<?>        m_sender;
+  DataOutputStream m_dout_stream;
+  Io_Watch         m_watch; // Of the writes of frames
+}
+
+// One GET or PUT on a framed connection
+class Mux_Stream
+{
+  Mux_Stream( final int     id
+            , final boolean is_get
+            , final String  fname )
+  {
+    m_id     = id;
+    m_is_get = is_get;
+    m_fname  = fname;
+  }
+  final int     m_id;
+  final boolean m_is_get;
+  final String  m_fname;
+
+  Path        m_path;
+  FileChannel m_file_chan;
+  long        m_file_len;
+  long        m_file_pos;
+  boolean     m_cancelled;
+}
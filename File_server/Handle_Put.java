@@ -83,28 +83,351 @@
 //     |<-- Write Response Negative ------|
 //     |                                  |
 //
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
 
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.zip.CRC32C;
 
 class Handle_Put
 {
-  Handle_Put( Socket          socket
-            , DataInputStream din_stream )
+  Handle_Put( File_server     server
+            , Socket          socket
+            , DataInputStream din_stream
+            , Request_Type    req_type )
   {
+    m_server         = server;
     m_socket         = socket;
     m_din_stream     = din_stream;
+    m_segmented      = req_type == Request_Type.PUT_SEG;
+    m_wide           = req_type == Request_Type.PUT64;
     m_client_IP_addr = m_socket.getInetAddress();
   }
   void Msg( String msg )
@@ -117,19 +440,56 @@ class Handle_Put
 
     m_running = false;
   }
-  void Run()
+  // Returns true if the connection can carry another request
+  boolean Run()
   {
     final boolean ok = Receive_Write_Request();
     Send_Write_Response( ok );
-    Receive_File_Data();
 
-    if( m_running )
+    if( ok )
     {
-      Msg( "Received from "
-         + m_client_IP_addr.getHostAddress() +":"
-         + m_socket.getPort() +": "
-         + m_dst_fname );
+      try {
+        Receive_File_Data();
+      }
+      finally {
+        // Back to the pool for the next transfer:
+        m_server.m_pool.Put( m_recv_buf );
+        m_server.m_pool.Put( m_raw_chunk );
+        m_recv_buf  = null;
+        m_raw_chunk = null;
+
+        Drop_Dst_File();
+      }
+
+      if( m_running && m_damaged )
+      {
+        Msg( "Received from "
+           + m_client_IP_addr.getHostAddress() +":"
+           + m_socket.getPort() +": "
+           + m_dst_fname +" damaged, so not kept");
+      }
+      else if( m_running )
+      {
+        Msg( "Received from "
+           + m_client_IP_addr.getHostAddress() +":"
+           + m_socket.getPort() +": "
+           + m_dst_fname
+           + ( m_segmented ? ", "+ m_num_bytes +" bytes at offset "+ m_offset
+             : m_chunked   ? ", "+ m_num_bytes +" bytes in chunks" : "")
+           + ( m_zipped    ? ", compressed to "+ m_wire_bytes : "")
+           + ( 0 < m_num_repaired ? ", "+ m_num_repaired +" chunks sent again" : "") );
+      }
+      if( m_segmented )
+      {
+        Finish_Segment();
+      }
+      else if( m_running && !m_damaged )
+      {
+        // Whole files go into the chunk store once they are all here:
+        m_server.Store_File( m_dst_path );
+      }
     }
+    return m_running;
   }
   boolean Receive_Write_Request()
   {
@@ -149,12 +509,46 @@ class Handle_Put
   // Write Request | 3 | num_bytes | Filename length | Filename       |
   // PUT           |   | in file   | Num utf16 chars | in utf16 chars |
   //               ----------------------------------------------------
+  //
+  //               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+  // Segmented     -----------------------------------------------------------------------------------
+  // Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+  // PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+  //               -----------------------------------------------------------------------------------
+  //
+  //               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+  // Write         ---------------------------------------------------------------
+  // Request 64    |14 | Flags  | num_bytes     | Filename length | Filename       |
+  // PUT64         |   |        | -1 if chunked | Num utf16 chars | in utf16 chars |
+  //               ---------------------------------------------------------------
   boolean Receive_Write_Request_e() throws IOException
   {
     boolean ok = false;
 
-    m_dst_file_len = m_din_stream.readInt();
+    if( m_segmented )
+    {
+      m_dst_file_len = m_din_stream.readLong();
+      m_offset       = m_din_stream.readLong();
+      m_num_bytes    = m_din_stream.readLong();
+    }
+    else if( m_wide )
+    {
+      final byte flags = m_din_stream.readByte();
 
+      // Compressed and checked data come in chunks, each compressed
+      // and checked on its own:
+      m_zipped       = 0 != ( flags & File_server.FLAG_COMPRESSED ) && m_server.m_compress;
+      m_checked      = 0 != ( flags & File_server.FLAG_CHECKED );
+      m_chunked      = 0 != ( flags & File_server.FLAG_CHUNKED ) || m_zipped || m_checked;
+      m_dst_file_len = m_din_stream.readLong();
+      m_offset       = 0;
+      m_num_bytes    = m_dst_file_len;
+    }
+    else {
+      m_dst_file_len = m_din_stream.readInt();
+      m_offset       = 0;
+      m_num_bytes    = m_dst_file_len;
+    }
     final int fname_len = m_din_stream.readInt();
 
     if( fname_len <= 0 )
@@ -173,15 +567,23 @@ class Handle_Put
 
       m_dst_path = FileSystems.getDefault().getPath( m_dst_fname );
 
-      if( Files.isDirectory( m_dst_path ) )
+      // A file in the chunk store exists as much as one outside of it:
+      String err_msg = null != m_server.m_store
+                    && m_server.m_store.Has_File( m_dst_path ) ? "File already exists: "+ m_dst_fname
+                     : m_segmented                             ? Join_Upload()
+                                                               : Check_Dst_Path( m_dst_path, m_dst_fname );
+
+      if( null == err_msg && m_wide && !m_chunked && m_dst_file_len < 0 )
       {
-        m_err_msg = m_socket.getLocalSocketAddress()
-                  + ": File is a directory: "+ m_dst_fname;
+        err_msg = "Bad file length: "+ m_dst_file_len;
       }
-      else if( Files.isRegularFile( m_dst_path ) )
+      if( null == err_msg && !m_segmented )
       {
-        m_err_msg = m_socket.getLocalSocketAddress()
-                  + ": File already exists: "+ m_dst_fname;
+        err_msg = Create_Dst_File();
+      }
+      if( null != err_msg )
+      {
+        m_err_msg = m_socket.getLocalSocketAddress() +": "+ err_msg;
       }
       else {
         ok = true;
@@ -189,6 +591,129 @@ class Handle_Put
     }
     return ok;
   }
+  // Returns null if dst_path can be written, else the reason it cannot be.
+  // This only gives the early error message.  Another PUT of dst_path can
+  // get past it at the same time, so Create_Dst_File() looks again:
+  static String Check_Dst_Path( final Path dst_path, final String dst_fname )
+  {
+    String err_msg = null;
+
+    if( Files.isDirectory( dst_path ) )
+    {
+      err_msg = "File is a directory: "+ dst_fname;
+    }
+    else if( Files.isRegularFile( dst_path ) )
+    {
+      err_msg = "File already exists: "+ dst_fname;
+    }
+    return err_msg;
+  }
+  // Creates the temporary file the data is received into.  It only takes
+  // the destination's name once all of the data is in, so a PUT cut short
+  // never leaves part of a file there.  Of two PUTs of the same file, both
+  // of which got past Check_Dst_Path(), only one gets the temporary file,
+  // and the destination is looked at again once it is got, in case the
+  // other one finished in between.  Returns null if the file was created,
+  // else the reason it was not:
+  String Create_Dst_File()
+  {
+    String err_msg = null;
+    try {
+      m_file_chan = FileChannel.open( Upload.Tmp_Path( m_dst_path ), StandardOpenOption.CREATE_NEW
+                                                                   , StandardOpenOption.WRITE );
+      m_tmp_path  = Upload.Tmp_Path( m_dst_path );
+
+      err_msg = Check_Dst_Path( m_dst_path, m_dst_fname );
+
+      if( null != err_msg ) Drop_Dst_File();
+    }
+    catch( FileAlreadyExistsException e )
+    {
+      err_msg = "Upload already under way: "+ m_dst_fname;
+    }
+    catch( IOException e )
+    {
+      err_msg = "Can not create "+ m_dst_fname +": "+ e;
+    }
+    return err_msg;
+  }
+  // Gives the received file the destination's name:
+  void Commit_Dst_File() throws IOException
+  {
+    // The move would quietly replace a file put there since the PUT
+    // began, such as by a segmented upload:
+    if( Files.exists( m_dst_path ) )
+    {
+      throw new IOException("File already exists: "+ m_dst_fname );
+    }
+    Files.move( m_tmp_path, m_dst_path, StandardCopyOption.ATOMIC_MOVE );
+    m_tmp_path = null;
+  }
+  // Closes and removes the temporary file of a PUT whose data did not
+  // all arrive, or was damaged:
+  void Drop_Dst_File()
+  {
+    try {
+      if( null != m_file_chan )
+      {
+        m_file_chan.close();
+        m_file_chan = null;
+      }
+      if( null != m_tmp_path )
+      {
+        Files.deleteIfExists( m_tmp_path );
+        m_tmp_path = null;
+      }
+    }
+    catch( IOException e )
+    {
+      Msg("Drop_Dst_File(): IOException: "+ e);
+    }
+  }
+  // Returns null if the segment has been taken on by the upload
+  // of m_dst_fname, else the reason it has not been:
+  String Join_Upload()
+  {
+    String err_msg = null;
+
+    if( m_dst_file_len < 0 )
+    {
+      err_msg = "Bad file length: "+ m_dst_file_len;
+    }
+    else try {
+      m_upload = m_server.Join_Upload( m_dst_path, m_dst_fname, m_dst_file_len );
+
+      err_msg = m_upload.Add_Segment( m_offset, m_num_bytes );
+
+      if( null != err_msg ) m_upload = null;
+    }
+    catch( IOException e )
+    {
+      err_msg = e.getMessage();
+    }
+    return err_msg;
+  }
+  // Commits the upload if this was its last segment:
+  void Finish_Segment()
+  {
+    if( !m_running )
+    {
+      // The rest of the segment is not coming, so neither is the file:
+      m_server.Abort_Upload( m_upload );
+    }
+    else if( m_upload.Segment_Done( m_num_bytes ) )
+    try {
+      m_server.Finish_Upload( m_upload );
+
+      Msg( "Received all "+ m_dst_file_len +" bytes of "+ m_dst_fname );
+
+      m_server.Store_File( m_dst_path );
+    }
+    catch( IOException e )
+    {
+      Msg("Finish_Segment(): IOException: "+ e);
+    }
+  }
   void Send_Write_Response( final boolean ok )
   {
     try {
@@ -210,22 +735,42 @@ class Handle_Put
   // Response      | 4 | False=0  | Num utf16 chars | errstring |
   // Negative      |   | 00000000 | in errstring    |           |
   //               ----------------------------------------------
+  //
+  //               |<1>|< 1 byte >|<1 byte>|
+  // Write         -------------------------
+  // Response 64   |15 | True=1   | Flags  |
+  // Affirmative   -------------------------
+  //
+  // The segmented write responses are the write responses with an opcode
+  // of 11, and the negative 64 bit write response is the negative write
+  // response with an opcode of 15.  The flags of the affirmative 64 bit
+  // write response tell the client whether to compress and check the
+  // chunks.
   void Send_Write_Response_e( final boolean ok ) throws IOException
   {
     Get_Out_Stream();
 
     if( m_running )
     {
-      m_dout_stream.writeByte( OPCODE_PUT_RESP );
+      m_dout_stream.writeByte( m_segmented ? OPCODE_PUT_SEG_RESP
+                             : m_wide      ? OPCODE_PUT64_RESP
+                                           : OPCODE_PUT_RESP );
 
-      if( ok ) {
+      if( ok && m_wide ) {
+        m_dout_stream.writeByte( 1 );
+        m_dout_stream.writeByte( ( m_zipped  ? File_server.FLAG_COMPRESSED : 0 )
+                               | ( m_checked ? File_server.FLAG_CHECKED    : 0 ) );
+      }
+      else if( ok ) {
         m_dout_stream.writeByte( 1 );
       }
       else {
         m_dout_stream.writeByte( 0 );
         m_dout_stream.writeInt( m_err_msg.length() );
         m_dout_stream.writeChars( m_err_msg );
-        Die( m_err_msg );
+        // The client knows not to send file data, so the
+        // connection stays usable:
+        Msg( m_err_msg );
       }
     }
   }
@@ -258,30 +803,469 @@ class Handle_Put
       Die("Receive_File_Data(): Received bad OPCODE: " + op_code);
     }
     else {
-      File dst_file = m_dst_path.toFile();
-      FileOutputStream fos = new FileOutputStream( dst_file );
-      BufferedOutputStream bos = new BufferedOutputStream( fos, 512 );
+      // Segments are written into their upload's file, which
+      // stays open until the last of them has arrived:
+      // Whole files go into their temporary file, created along with the response:
+      FileChannel fc = m_segmented ? m_upload.m_file_chan : m_file_chan;
+      // Sum the file on its way in, for the index.  Segments arrive out
+      // of order, so a segmented file is summed when first asked about:
+      m_sums = m_checked || ( null != m_server.m_index && !m_segmented ) ? new File_Sums() : null;
 
-      final long st_time = System.currentTimeMillis();
+      boolean whole = false;
+      try {
+        if( m_checked )
+        {
+          whole     = Receive_File_Data_Checked( fc );
+          m_damaged = !whole;
+        }
+        else if( m_chunked )
+        {
+          Receive_File_Data_Chunked( fc );
+          whole = true;
+        }
+        else {
+          Receive_Into( fc, m_offset, m_num_bytes );
+          whole = true;
+        }
+        if( !m_segmented && whole )
+        {
+          fc.close();
+          m_file_chan = null;
 
-      byte[] ba = new byte[512];
+          Commit_Dst_File();
+        }
+      }
+      finally {
+        // A file that was damaged, or cut off by a dropped
+        // connection, would only be taken for the real one:
+        if( !m_segmented ) Drop_Dst_File();
+      }
+      if( !m_damaged && null != m_sums )
+      {
+        m_server.Index_File( m_dst_path, m_sums );
+      }
+    }
+  }
+  //               |<-- 4 bytes -->|
+  //               ------------------------------
+  // Chunk         | num_bytes     | File data  |
+  //               | 0 = last      |            |
+  //               ------------------------------
+  //
+  // The file arrives as chunks up to an empty chunk, so its size is never
+  // needed up front, and each chunk is written as it arrives through the
+  // same buffer, so memory use does not grow with the size of the file.
+  // In a compressed transfer, chunks with RAW_CHUNK set in their length
+  // did not compress, and arrive as they are.
+  void Receive_File_Data_Chunked( final FileChannel fc ) throws IOException
+  {
+    Chunk_Zip zip = m_zipped ? new Chunk_Zip() : null;
+
+    m_num_bytes  = 0;
+    m_wire_bytes = 0;
+    try {
+      int chunk_len = m_din_stream.readInt();
+
+      while( 0 != chunk_len )
+      {
+        final boolean as_is = null == zip || 0 != ( chunk_len & Chunk_Zip.RAW_CHUNK );
+
+        if( null != zip && as_is ) chunk_len &= ~Chunk_Zip.RAW_CHUNK;
+
+        if( chunk_len <= 0 || ( as_is && File_server.CHUNK_SIZE < chunk_len ) )
+        {
+          throw new IOException("Bad chunk length: "+ chunk_len );
+        }
+        if( !as_is )
+        {
+          m_num_bytes += Receive_Zipped_Chunk( fc, zip, chunk_len );
+        }
+        else {
+          Receive_Into( fc, m_num_bytes, chunk_len );
+
+          m_num_bytes += chunk_len;
+        }
+        m_wire_bytes += chunk_len;
+
+        chunk_len = m_din_stream.readInt();
+      }
+    }
+    finally {
+      if( null != zip ) zip.End();
+    }
+  }
+  // Reads a compressed chunk of chunk_len bytes, and writes it to fc
+  // decompressed, returning the number of bytes written:
+  int Receive_Zipped_Chunk( final FileChannel fc
+                          , final Chunk_Zip   zip
+                          , final int         chunk_len ) throws IOException
+  {
+    if( Chunk_Zip.MAX_ZIPPED_LEN < chunk_len )
+    {
+      throw new IOException("Bad compressed chunk length: "+ chunk_len );
+    }
+    if( null == m_zipped_chunk )
+    {
+      m_zipped_chunk = ByteBuffer.allocate( Chunk_Zip.MAX_ZIPPED_LEN );
+      m_raw_chunk    = m_server.m_pool.Get( File_server.CHUNK_SIZE );
+    }
+    m_din_stream.readFully( m_zipped_chunk.array(), 0, chunk_len );
+    m_zipped_chunk.clear();
+    m_zipped_chunk.limit( chunk_len );
+
+    m_raw_chunk.clear();
+    m_raw_chunk.limit( File_server.CHUNK_SIZE );
+    zip.Inflate( m_zipped_chunk, m_raw_chunk );
+    m_raw_chunk.flip();
+
+    if( null != m_sums ) m_sums.Add( m_raw_chunk );
+
+    final int raw_len = m_raw_chunk.remaining();
+
+    while( m_raw_chunk.hasRemaining() )
+    {
+      fc.write( m_raw_chunk, m_num_bytes + m_raw_chunk.position() );
+    }
+    return raw_len;
+  }
+  //               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+  // Checked       ----------------------------------------------
+  // Chunk         | num_bytes     | File data  | CRC32C of     |
+  //               | 0 = last      |            | File data     |
+  //               ----------------------------------------------
+  //
+  //               |<-- 32 bytes ---->|
+  // File          --------------------
+  // Digest        | SHA-256 of file  |
+  //               --------------------
+  //
+  //               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+  // Repair        ------------------------------------------
+  // Request       |16 | num_chunks    | Chunk numbers      |
+  //               |   | 0 = all good  |                    |
+  //               |   | -1 = give up  |                    |
+  //               ------------------------------------------
+  //
+  //               |<-- 8 bytes -->|
+  // Repaired      ------------------------------------
+  // Chunk         | Chunk number  | Checked chunk    |
+  //               ------------------------------------
+  //
+  // Receives the chunks of a checked transfer and the digest of the file
+  // after them, then asks the client for the chunks whose CRC32C did not
+  // match again, by number, up to MAX_REPAIR_ROUNDS times.  Every chunk but
+  // the last holds CHUNK_SIZE bytes of the file, so its number says where
+  // it goes.  The file is added to m_sums as it is written, in order, up
+  // to the first bad chunk, so only if there was one is the rest of it
+  // read back once it is whole.  Returns false if the file did not arrive
+  // whole.
+  boolean Receive_File_Data_Checked( final FileChannel fc ) throws IOException
+  {
+    final byte[] sent_sum = new byte[ File_server.DIGEST_LEN ];
+
+    Chunk_Zip       zip        = m_zipped ? new Chunk_Zip() : null;
+    ArrayList<Long> bad_chunks = new ArrayList<Long>();
+    long            hashed_to  = 0;
+
+    m_num_bytes  = 0;
+    m_wire_bytes = 0;
+    try {
+      int chunk_len = m_din_stream.readInt();
+
+      for( long chunk_num = 0; 0 != chunk_len; chunk_num++ )
+      {
+        final long    write_pos = chunk_num*File_server.CHUNK_SIZE;
+        final boolean in_order  = hashed_to == write_pos;
+
+        final int raw_len = Receive_Checked_Chunk( fc, zip, write_pos, chunk_len
+                                                 , in_order ? m_sums : null );
+        if( raw_len < 0 )
+        {
+          bad_chunks.add( chunk_num );
+        }
+        else if( in_order )
+        {
+          hashed_to += raw_len;
+        }
+        chunk_len = m_din_stream.readInt();
+      }
+      m_din_stream.readFully( sent_sum );
+
+      for( int round=0; !bad_chunks.isEmpty(); round++ )
+      {
+        if( File_server.MAX_REPAIR_ROUNDS <= round
+         || File_server.MAX_REPAIR_CHUNKS < bad_chunks.size() )
+        {
+          Send_Repair_Request( -1, null );
+          Msg( m_dst_fname +": giving up on "+ bad_chunks.size() +" bad chunks");
+          return false;
+        }
+        Send_Repair_Request( bad_chunks.size(), bad_chunks );
+
+        bad_chunks = Receive_Repaired_Chunks( fc, zip, bad_chunks );
+      }
+    }
+    finally {
+      if( null != zip ) zip.End();
+    }
+    // Add the rest of the file to the sums, if a bad chunk held it up:
+    Hash_File( hashed_to, m_sums );
+
+    if( !MessageDigest.isEqual( m_sums.Digest(), sent_sum ) )
+    {
+      Send_Repair_Request( -1, null );
+      Msg( m_dst_fname +": SHA-256 of the file does not match");
+      return false;
+    }
+    Send_Repair_Request( 0, null );
+
+    return true;
+  }
+  // Reads a chunk of chunk_len bytes as it was sent and the CRC32C after
+  // it, and if they match writes the chunk to fc at write_pos, decompressed
+  // if need be, and adds it to sums if there are any.  Returns the number
+  // of bytes written, or -1 if the chunk is bad.
+  int Receive_Checked_Chunk( final FileChannel fc
+                           , final Chunk_Zip   zip
+                           , final long        write_pos
+                           ,       int         chunk_len
+                           , final File_Sums   sums ) throws IOException
+  {
+    final boolean as_is = null == zip || 0 != ( chunk_len & Chunk_Zip.RAW_CHUNK );
+
+    if( null != zip && as_is ) chunk_len &= ~Chunk_Zip.RAW_CHUNK;
+
+    if( chunk_len <= 0 || ( as_is ? File_server.CHUNK_SIZE
+                                  : Chunk_Zip.MAX_ZIPPED_LEN ) < chunk_len )
+    {
+      throw new IOException("Bad chunk length: "+ chunk_len );
+    }
+    if( null == m_zipped_chunk )
+    {
+      m_zipped_chunk = ByteBuffer.allocate( Chunk_Zip.MAX_ZIPPED_LEN );
+      m_raw_chunk    = m_server.m_pool.Get( File_server.CHUNK_SIZE );
+    }
+    m_din_stream.readFully( m_zipped_chunk.array(), 0, chunk_len );
+
+    final int crc = m_din_stream.readInt();
+
+    m_wire_bytes += chunk_len;
+
+    m_crc.reset();
+    m_crc.update( m_zipped_chunk.array(), 0, chunk_len );
+
+    if( crc != (int)m_crc.getValue() ) return -1;
+
+    m_zipped_chunk.clear();
+    m_zipped_chunk.limit( chunk_len );
 
-      long total_bytes_read = 0;
+    ByteBuffer raw = m_zipped_chunk;
 
-      while( total_bytes_read < m_dst_file_len )
+    if( !as_is )
+    {
+      m_raw_chunk.clear();
+      m_raw_chunk.limit( File_server.CHUNK_SIZE );
+      try {
+        zip.Inflate( m_zipped_chunk, m_raw_chunk );
+      }
+      catch( IOException e )
+      {
+        return -1;
+      }
+      m_raw_chunk.flip();
+      raw = m_raw_chunk;
+    }
+    final int raw_len = raw.remaining();
+
+    if( null != sums ) sums.Add( raw );
+
+    while( raw.hasRemaining() )
+    {
+      fc.write( raw, write_pos + raw.position() );
+    }
+    m_num_bytes = Math.max( m_num_bytes, write_pos + raw_len );
+
+    return raw_len;
+  }
+  // Receives the chunks asked for again, in the order they were asked
+  // for, and returns the numbers of the ones that are still bad:
+  ArrayList<Long> Receive_Repaired_Chunks( final FileChannel     fc
+                                         , final Chunk_Zip       zip
+                                         , final ArrayList<Long> chunk_nums ) throws IOException
+  {
+    ArrayList<Long> still_bad = new ArrayList<Long>();
+
+    for( long chunk_num : chunk_nums )
+    {
+      final long num = m_din_stream.readLong();
+
+      if( num != chunk_num )
       {
-        final int bytes_read = m_din_stream.read( ba );
+        throw new IOException("Expected chunk "+ chunk_num +" but received "+ num );
+      }
+      final int chunk_len = m_din_stream.readInt();
 
-        if( 0 < bytes_read )
+      if( Receive_Checked_Chunk( fc, zip, num*File_server.CHUNK_SIZE, chunk_len, null ) < 0 )
+      {
+        still_bad.add( num );
+      }
+      m_num_repaired++;
+    }
+    return still_bad;
+  }
+  void Send_Repair_Request( final int num_chunks, final ArrayList<Long> chunk_nums ) throws IOException
+  {
+    // In one write, as m_dout_stream is unbuffered:
+    ByteBuffer bb = ByteBuffer.allocate( 1 + 4 + 8*Math.max( 0, num_chunks ) );
+
+    bb.put( OPCODE_REPAIR );
+    bb.putInt( num_chunks );
+
+    for( int k=0; k<num_chunks; k++ )
+    {
+      bb.putLong( chunk_nums.get( k ) );
+    }
+    m_dout_stream.write( bb.array() );
+  }
+  // Adds the file from file_pos up to its end to sums, reading it back:
+  void Hash_File( final long file_pos, final File_Sums sums ) throws IOException
+  {
+    if( m_num_bytes <= file_pos ) return;
+
+    FileChannel fc = FileChannel.open( m_tmp_path, StandardOpenOption.READ );
+    ByteBuffer  bb = m_raw_chunk;
+    try {
+      for( long pos = file_pos; pos < m_num_bytes; )
+      {
+        bb.clear();
+        bb.limit( (int)Math.min( File_server.CHUNK_SIZE, m_num_bytes - pos ) );
+
+        final int bytes_read = fc.read( bb, pos );
+
+        if( bytes_read <= 0 )
         {
-          total_bytes_read += bytes_read;
+          throw new IOException("File shrank while checking it: "+ m_dst_fname );
+        }
+        bb.flip();
+        sums.Add( bb );
+
+        pos += bytes_read;
+      }
+    }
+    finally {
+      fc.close();
+    }
+  }
+  void Receive_Into( final FileChannel fc
+                   , final long        write_pos
+                   , final long        num_bytes ) throws IOException
+  {
+    final SocketChannel sock_chan = m_socket.getChannel();
 
-          bos.write( ba, 0, bytes_read );
+    if( null == sock_chan )
+    {
+      Receive_File_Data_Copy( fc, write_pos, num_bytes );
+    }
+    else {
+      // Channel reads ignore SO_TIMEOUT, so the server watches them instead:
+      final Io_Watch watch = m_server.Start_Io_Watch( m_socket );
+      try {
+        if( m_server.m_overlap && Buffer_Ring.Worth_It( num_bytes ) )
+        {
+          // Write what has arrived on another thread while reading the rest.
+          // The data never passes through here, so the file is summed when
+          // first asked about instead:
+          m_sums = null;
+
+          new Buffer_Ring( m_server.m_pool, fc, write_pos, num_bytes ).Receive( sock_chan, watch );
         }
+        else {
+          Receive_File_Data_Channel( sock_chan, watch, fc, write_pos, num_bytes );
+        }
+      }
+      finally {
+        m_server.Stop_Io_Watch( watch );
+      }
+    }
+  }
+  // Reads the socket straight into a large direct buffer and writes that
+  // to the file, so the data never passes through the Java heap.
+  // FileChannel.transferFrom is not used because, from a socket, the JDK
+  // implements it with reads into an 8 KB temporary buffer.
+  // m_din_stream is unbuffered, so nothing past the DATA opcode has been
+  // read from the socket yet.  The writes are positional, starting at
+  // write_pos, so segments arriving on other connections can be written
+  // into the same fc at the same time.  Each read that brings data is
+  // reported to watch.
+  void Receive_File_Data_Channel( final SocketChannel sock_chan
+                                , final Io_Watch    watch
+                                , final FileChannel   fc
+                                , final long          write_pos
+                                , final long          num_bytes ) throws IOException
+  {
+    if( null == m_recv_buf )
+    {
+      m_recv_buf = m_server.m_pool.Get( RECV_BUF_SIZE );
+    }
+    ByteBuffer bb = m_recv_buf;
+
+    long total_bytes_read = 0;
+
+    while( total_bytes_read < num_bytes )
+    {
+      // Never read past the end of the file data:
+      bb.clear();
+      bb.limit( (int)Math.min( RECV_BUF_SIZE, num_bytes - total_bytes_read ) );
+
+      final int bytes_read = sock_chan.read( bb );
+
+      if( bytes_read < 0 )
+      {
+        throw new IOException("Connection closed after "+ total_bytes_read
+                             +" of "+ num_bytes +" bytes");
+      }
+      watch.Progress();
+      bb.flip();
+
+      if( null != m_sums ) m_sums.Add( bb );
+
+      while( bb.hasRemaining() )
+      {
+        total_bytes_read += fc.write( bb, write_pos + total_bytes_read );
+      }
+    }
+  }
+  // Fallback path for sockets without channels:
+  void Receive_File_Data_Copy( final FileChannel fc
+                             , final long        write_pos
+                             , final long        num_bytes ) throws IOException
+  {
+    if( null == m_recv_bytes )
+    {
+      m_recv_bytes = new byte[RECV_BUF_SIZE];
+    }
+    byte[] ba = m_recv_bytes;
+
+    long total_bytes_read = 0;
+
+    while( total_bytes_read < num_bytes )
+    {
+      // Never read past the end of the file data:
+      final int bytes_read = m_din_stream.read( ba, 0, (int)Math.min( ba.length
+                                                                    , num_bytes - total_bytes_read ) );
+      if( bytes_read < 0 )
+      {
+        throw new IOException("Connection closed after "+ total_bytes_read
+                             +" of "+ num_bytes +" bytes");
+      }
+      ByteBuffer bb = ByteBuffer.wrap( ba, 0, bytes_read );
+
+      if( null != m_sums ) m_sums.Add( bb );
+
+      while( bb.hasRemaining() )
+      {
+        total_bytes_read += fc.write( bb, write_pos + total_bytes_read );
       }
-      bos.flush();
-      bos.close();
-      fos.close();
     }
   }
   void Get_Out_Stream()
@@ -302,15 +1286,40 @@ class Handle_Put
   static final byte OPCODE_PUT_REQ  = 3;
   static final byte OPCODE_PUT_RESP = 4;
   static final byte OPCODE_DATA     = 5;
+  static final byte OPCODE_PUT_SEG_RESP = 11;
+  static final byte OPCODE_PUT64_RESP   = 15;
+  static final byte OPCODE_REPAIR       = 16;
+
+  static final int RECV_BUF_SIZE = 256*1024;
 
+  final File_server     m_server;
   final Socket          m_socket;
   final DataInputStream m_din_stream;
   final InetAddress     m_client_IP_addr;
+  final boolean         m_segmented;
+  final boolean         m_wide;
 
   boolean          m_running = true;
   String           m_dst_fname;
   Path             m_dst_path;
-  int              m_dst_file_len;
+  Path             m_tmp_path;  // Whole file's until it is given m_dst_path
+  long             m_dst_file_len;
+  long             m_offset;
+  long             m_num_bytes;
+  Upload           m_upload;
+  FileChannel      m_file_chan; // Whole file being received, until its data is in
+  boolean          m_chunked;
+  boolean          m_zipped;
+  boolean          m_checked;
+  boolean          m_damaged; // Checked file that did not arrive whole
+  long             m_num_repaired; // Chunks sent again for a checked transfer
+  long             m_wire_bytes; // Compressed size of the file data received
+  ByteBuffer       m_zipped_chunk;
+  ByteBuffer       m_raw_chunk;
+  File_Sums        m_sums; // Sums of the file as it arrived, if it arrived in order
+  ByteBuffer       m_recv_buf;
+  byte[]           m_recv_bytes;
+  CRC32C           m_crc = new CRC32C();
   DataOutputStream m_dout_stream;
   String           m_err_msg;
 }
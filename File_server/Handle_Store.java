@@ -0,0 +1,684 @@
+////////////////////////////////////////////////////////////////////////////////
+// File Server Java Implementation                                            //
+// Copyright (c) 31 Dec 2019 Paul J. Gartside                                 //
+////////////////////////////////////////////////////////////////////////////////
+// Permission is hereby granted, free of charge, to any person obtaining a    //
+// copy of this software and associated documentation files (the "Software"), //
+// to deal in the Software without restriction, including without  limitation //
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,   //
+// and/or sell copies of the Software, and to permit persons to whom the      //
+// Software is furnished to do so, subject to the following conditions:       //
+//                                                                            //
+// The above copyright notice and this permission notice shall be included in //
+// all copies or substantial portions of the Software.                        //
+//                                                                            //
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR //
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,   //
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL    //
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER //
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING    //
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER        //
+// DEALINGS IN THE SOFTWARE.                                                  //
+////////////////////////////////////////////////////////////////////////////////
+// ---------------------
+// File Protocol Summary
+// ---------------------
+//
+//               |<1>|<-- 4 bytes ---->|
+//               ----------------------------------------
+// Read  Request | 1 | Filename length | Filename       |
+// GET           |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ------>|
+// Read          ------------------------------------
+// Response      | 2 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Read          ----------------------------------------------
+// Response      | 2 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|< 4 bytes >|<-- 4 bytes ---->|
+//               ----------------------------------------------------
+// Write Request | 3 | num_bytes | Filename length | Filename       |
+// PUT           |   | in file   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Write         ----------------
+// Response      | 4 | True=1   |
+// Affirmative   |   | 00000001 |
+// Affirmative   ----------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Write         ----------------------------------------------
+// Response      | 4 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|
+// Read/Write    -----------------
+// DATA          | 5 | File data |
+//               -----------------
+//
+// ----------                         ----------
+// | Client |                         | Server |
+// ----------                         ----------
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Affirmative ----|
+//     |<-- File data --------------------|
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Negative -------|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Affirmative ---|
+//     |--- File data ------------------->|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Negative ------|
+//     |                                  |
+//
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+// Puts a file into the Chunk_Store without the client sending the chunks
+// of it the store already has.  The client cuts the file into chunks with
+// the same Chunker as the store, and sends the list of them, the server
+// answers with the ones the store does not have, and the client sends
+// only those.  Each chunk that arrives is checked against its SHA-256
+// before it is kept, and the manifest of the file is only written once
+// all of them have arrived whole, so the file is never seen half stored.
+class Handle_Store
+{
+  Handle_Store( File_server     server
+              , Socket          socket
+              , DataInputStream din_stream )
+  {
+    m_server     = server;
+    m_socket     = socket;
+    m_din_stream = din_stream;
+  }
+  void Msg( String msg )
+  {
+    System.out.println("File_server: " + msg );
+  }
+  void Die( String msg )
+  {
+    Msg( msg );
+
+    m_running = false;
+  }
+  // Returns true if the connection can carry another request
+  boolean Run()
+  {
+    try {
+      m_dout_stream = new DataOutputStream(
+                      new BufferedOutputStream( m_socket.getOutputStream() ) );
+      if( Read_Store_Request() )
+      {
+        m_manifest = Manifest.Read_Chunks( m_din_stream, m_dst_file_len );
+
+        Send_Missing_Chunks();
+        Receive_Chunks();
+      }
+    }
+    catch( IOException e )
+    {
+      Die("Handle_Store.Run(): IOException: "+ e);
+    }
+    return m_running;
+  }
+  //               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+  // Store         --------------------------------------------------------
+  // Write Request |26 | num_bytes     | Filename length | Filename       |
+  // PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+  //               --------------------------------------------------------
+  //
+  //               |<1>|< 1 byte >|
+  // Store Write   ----------------
+  // Response      |27 | True=1   |
+  // Affirmative   ----------------
+  //
+  // Returns true if the file can be taken on, and sends the affirmative
+  // response, else sends the negative response and returns false:
+  boolean Read_Store_Request() throws IOException
+  {
+    m_dst_file_len = m_din_stream.readLong();
+    m_dst_fname    = Read_Fname();
+    m_dst_path     = FileSystems.getDefault().getPath( m_dst_fname );
+
+    final Path dst_dir = m_dst_path.toAbsolutePath().getParent();
+
+    String err_msg = null;
+
+    if( null == m_server.m_store )
+    {
+      err_msg = "No chunk store on this server";
+    }
+    else if( m_dst_file_len < 0 )
+    {
+      err_msg = "Bad file length: "+ m_dst_file_len;
+    }
+    else if( null == dst_dir || ! Files.isDirectory( dst_dir ) )
+    {
+      err_msg = "No such directory: "+ dst_dir;
+    }
+    else {
+      err_msg = Handle_Put.Check_Dst_Path( m_dst_path, m_dst_fname );
+
+      if( null == err_msg && m_server.m_store.Has_File( m_dst_path ) )
+      {
+        err_msg = "File already exists: "+ m_dst_fname;
+      }
+    }
+    if( null != err_msg )
+    {
+      Send_Negative_Response( File_server.OPCODE_PUT_STORE_RESP, err_msg );
+    }
+    else {
+      m_dout_stream.writeByte( File_server.OPCODE_PUT_STORE_RESP );
+      m_dout_stream.writeByte( 1 );
+      m_dout_stream.flush();
+    }
+    return null == err_msg;
+  }
+  //               |<-- 4 bytes -->|<-- 36 bytes each -->|
+  // Chunk         ---------------------------------------
+  // List          | num_chunks    | Chunk entries       |
+  //               ---------------------------------------
+  //
+  //               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+  // Missing       ------------------------------------------
+  // Chunks        |28 | num_chunks    | Chunk numbers      |
+  //               ------------------------------------------
+  //
+  // Answers the Chunk List with the numbers of the chunks the store does
+  // not have, in order.  A chunk the file has more than once is only
+  // asked for the first time.
+  void Send_Missing_Chunks() throws IOException
+  {
+    HashSet<ByteBuffer> asked_for = new HashSet<ByteBuffer>();
+
+    for( int k=0; k<m_manifest.m_num_chunks; k++ )
+    {
+      final byte[] hash = m_manifest.Hash( k );
+
+      if( !m_server.m_store.Has_Chunk( hash ) && asked_for.add( ByteBuffer.wrap( hash ) ) )
+      {
+        m_missing.add( k );
+      }
+    }
+    m_dout_stream.writeByte( File_server.OPCODE_PUT_STORE_MISSING );
+    m_dout_stream.writeInt( m_missing.size() );
+
+    for( int chunk_num : m_missing )
+    {
+      m_dout_stream.writeInt( chunk_num );
+    }
+    m_dout_stream.flush();
+  }
+  //               |<1>|< 1 byte >|
+  // Store Write   ----------------
+  // Result        |29 | True=1   |
+  // Affirmative   ----------------
+  //
+  // Reads the missing chunks, which come one after the other with nothing
+  // in between, as their lengths are in the Chunk List, and keeps each
+  // one that matches its SHA-256.  All of them are read even if one does
+  // not match, so the connection stays usable.
+  void Receive_Chunks() throws IOException
+  {
+    final long st_time = System.currentTimeMillis();
+
+    final MessageDigest digest = File_server.New_Digest();
+    final ByteBuffer    buf    = m_server.m_pool.Get( Chunker.MAX_SIZE );
+
+    // m_din_stream is unbuffered, so the chunks are all still to come:
+    final ReadableByteChannel in_chan = null != m_socket.getChannel()
+                                      ? m_socket.getChannel()
+                                      : Channels.newChannel( m_din_stream );
+    long sent_bytes = 0;
+    int  num_bad    = 0;
+    try {
+      for( int chunk_num : m_missing )
+      {
+        final int    len  = m_manifest.Len( chunk_num );
+        final byte[] hash = m_manifest.Hash( chunk_num );
+
+        buf.clear();
+        buf.limit( len );
+
+        while( buf.hasRemaining() )
+        {
+          if( in_chan.read( buf ) < 0 ) throw new EOFException();
+        }
+        buf.flip();
+
+        digest.update( buf.duplicate() );
+
+        if( !MessageDigest.isEqual( hash, digest.digest() ) )
+        {
+          num_bad++;
+        }
+        else if( 0 == num_bad )
+        {
+          m_server.m_store.Put_Chunk( hash, buf );
+        }
+        sent_bytes += len;
+      }
+    }
+    finally {
+      // Back to the pool for the next transfer:
+      m_server.m_pool.Put( buf );
+    }
+    String err_msg = null;
+
+    if( 0 < num_bad )
+    {
+      err_msg = num_bad +" chunks of "+ m_dst_fname +" do not match their SHA-256";
+    }
+    else try {
+      m_server.m_store.Put_Manifest( m_dst_path, m_manifest );
+    }
+    catch( IOException e )
+    {
+      err_msg = "Cannot store "+ m_dst_fname +": "+ e.getMessage();
+    }
+    if( null != err_msg )
+    {
+      Send_Negative_Response( File_server.OPCODE_PUT_STORE_DONE, err_msg );
+      return;
+    }
+    m_dout_stream.writeByte( File_server.OPCODE_PUT_STORE_DONE );
+    m_dout_stream.writeByte( 1 );
+    m_dout_stream.flush();
+
+    Msg("Stored from "+ Peer() +": "+ m_dst_fname +", "
+       + m_dst_file_len +" bytes in "+ m_manifest.m_num_chunks +" chunks, "
+       + m_missing.size() +" of them sent, "+ sent_bytes +" bytes in "
+       + ( System.currentTimeMillis() - st_time ) +" ms");
+  }
+  String Read_Fname() throws IOException
+  {
+    final int fname_len = m_din_stream.readInt();
+
+    if( fname_len <= 0 || Nio_Connection.MAX_FNAME_LEN < fname_len )
+    {
+      throw new IOException("Received bad filename length: "+ fname_len );
+    }
+    StringBuilder sb = new StringBuilder( fname_len );
+
+    for( int k=0; k<fname_len; k++ )
+    {
+      sb.append( m_din_stream.readChar() );
+    }
+    return sb.toString();
+  }
+  //               |<1>|< 1 byte >|<-- 4 bytes ---->|
+  // Store Write   ----------------------------------------------
+  // Response      |27/| False=0  | Num utf16 chars | errstring |
+  // Negative      |29 | 00000000 | in errstring    |           |
+  //               ----------------------------------------------
+  //
+  // Nothing follows either one, so the connection stays usable:
+  void Send_Negative_Response( final byte resp_op_code, final String err_msg ) throws IOException
+  {
+    final String msg = m_socket.getLocalSocketAddress() +": "+ err_msg;
+
+    m_dout_stream.writeByte( resp_op_code );
+    m_dout_stream.writeByte( 0 );
+    m_dout_stream.writeInt( msg.length() );
+    m_dout_stream.writeChars( msg );
+    m_dout_stream.flush();
+
+    Msg( msg );
+  }
+  String Peer()
+  {
+    return m_socket.getInetAddress().getHostAddress() +":"+ m_socket.getPort();
+  }
+
+  final File_server     m_server;
+  final Socket          m_socket;
+  final DataInputStream m_din_stream;
+
+  // Numbers of the chunks asked for, in order:
+  final ArrayList<Integer> m_missing = new ArrayList<Integer>();
+
+  boolean          m_running = true;
+  DataOutputStream m_dout_stream;
+  String           m_dst_fname;
+  Path             m_dst_path;
+  long             m_dst_file_len;
+  Manifest         m_manifest;
+}
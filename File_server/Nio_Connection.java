@@ -0,0 +1,1661 @@
+////////////////////////////////////////////////////////////////////////////////
+// File Server Java Implementation                                            //
+// Copyright (c) 31 Dec 2019 Paul J. Gartside                                 //
+////////////////////////////////////////////////////////////////////////////////
+// Permission is hereby granted, free of charge, to any person obtaining a    //
+// copy of this software and associated documentation files (the "Software"), //
+// to deal in the Software without restriction, including without  limitation //
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,   //
+// and/or sell copies of the Software, and to permit persons to whom the      //
+// Software is furnished to do so, subject to the following conditions:       //
+//                                                                            //
+// The above copyright notice and this permission notice shall be included in //
+// all copies or substantial portions of the Software.                        //
+//                                                                            //
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR //
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,   //
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL    //
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER //
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING    //
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER        //
+// DEALINGS IN THE SOFTWARE.                                                  //
+////////////////////////////////////////////////////////////////////////////////
+// ---------------------
+// File Protocol Summary
+// ---------------------
+//
+//               |<1>|<-- 4 bytes ---->|
+//               ----------------------------------------
+// Read  Request | 1 | Filename length | Filename       |
+// GET           |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ------>|
+// Read          ------------------------------------
+// Response      | 2 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Read          ----------------------------------------------
+// Response      | 2 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|< 4 bytes >|<-- 4 bytes ---->|
+//               ----------------------------------------------------
+// Write Request | 3 | num_bytes | Filename length | Filename       |
+// PUT           |   | in file   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Write         ----------------
+// Response      | 4 | True=1   |
+// Affirmative   |   | 00000001 |
+// Affirmative   ----------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Write         ----------------------------------------------
+// Response      | 4 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|
+// Read/Write    -----------------
+// DATA          | 5 | File data |
+//               -----------------
+//
+// ----------                         ----------
+// | Client |                         | Server |
+// ----------                         ----------
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Affirmative ----|
+//     |<-- File data --------------------|
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Negative -------|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Affirmative ---|
+//     |--- File data ------------------->|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Negative ------|
+//     |                                  |
+//
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.RejectedExecutionException;
+
+// The exchanges of Handle_Get, Handle_Put and Handle_Sums, rewritten as a
+// state machine that a Nio_Selector advances each time the connection's
+// socket is ready, and that never blocks on the socket.  After each
+// exchange the connection goes back to waiting for the next request,
+// until the client closes it.
+class Nio_Connection
+{
+  Nio_Connection( Nio_Selector  selector
+                , SocketChannel chan )
+  {
+    m_selector = selector;
+    m_chan     = chan;
+    m_peer     = chan.socket().getInetAddress().getHostAddress() +":"
+               + chan.socket().getPort();
+  }
+  void Msg( String msg )
+  {
+    System.out.println("File_server: " + msg );
+  }
+  void Die( String msg )
+  {
+    Msg( msg );
+
+    m_running = false;
+  }
+  void Register( final Selector selector ) throws ClosedChannelException
+  {
+    m_key = m_chan.register( selector, SelectionKey.OP_READ, this );
+  }
+  void Handle_Ready()
+  {
+    m_last_active_ms = System.currentTimeMillis();
+
+    try {
+      Run_State_Machine();
+    }
+    catch( IOException e )
+    {
+      Die( m_peer +": "+ m_state +": IOException: "+ e);
+    }
+    if( !m_running || m_state == Conn_State.DONE )
+    {
+      Close();
+    }
+    else {
+      // Nothing is selected for while a worker has the connection,
+      // so a pipelined request does not wake the loop for nothing:
+      m_key.interestOps( Wants_Write()                      ? SelectionKey.OP_WRITE
+                       : m_state == Conn_State.WAIT_WORKER ? 0
+                                                            : SelectionKey.OP_READ );
+    }
+  }
+  // Called on the selector thread once a worker is done with the
+  // connection, unless it was closed meanwhile:
+  void Resume()
+  {
+    if( m_key.isValid() ) Handle_Ready();
+  }
+  // A connection waiting on a worker is not idle, however long that takes:
+  boolean Is_Idle( final long now_ms, final int idle_timeout_ms )
+  {
+    return m_state != Conn_State.WAIT_WORKER
+        && idle_timeout_ms <= now_ms - m_last_active_ms;
+  }
+  boolean Wants_Write()
+  {
+    return m_state == Conn_State.SEND_RESPONSE
+        || m_state == Conn_State.SEND_FILE_DATA
+        || m_state == Conn_State.SEND_CHUNKS;
+  }
+  // Advance through as many states as the socket allows without blocking:
+  void Run_State_Machine() throws IOException
+  {
+    boolean progress = true;
+
+    while( progress && m_running && m_state != Conn_State.DONE )
+    {
+      switch( m_state )
+      {
+      case READ_REQUEST:     progress = Read_Request();      break;
+      case SEND_RESPONSE:    progress = Send_Response();     break;
+      case SEND_FILE_DATA:   progress = Send_File_Data();    break;
+      case SEND_CHUNKS:      progress = Send_Chunks();       break;
+      case RECV_DATA_OPCODE: progress = Receive_Data_Opcode(); break;
+      case RECV_FILE_DATA:   progress = Receive_File_Data(); break;
+      case RECV_CHUNK_LEN:   progress = Receive_Chunk_Len(); break;
+      case RECV_ZIP_CHUNK:   progress = Receive_Zipped_Chunk(); break;
+      case WAIT_WORKER:      progress = Finish_Sums();       break;
+      default:               progress = false;               break;
+      }
+    }
+  }
+  boolean Read_Request() throws IOException
+  {
+    boolean progress = Parse_Request();
+
+    if( !progress && m_running )
+    {
+      if( !m_in_buf.hasRemaining() ) Grow_In_Buf();
+
+      final int bytes_read = m_chan.read( m_in_buf );
+
+      if( bytes_read < 0 )
+      {
+        if( 0 < m_in_buf.position() )
+        {
+          Die( m_peer +": Connection closed in the middle of a request");
+        }
+        m_state = Conn_State.DONE;
+      }
+      progress = 0 < bytes_read;
+    }
+    return progress;
+  }
+  void Grow_In_Buf()
+  {
+    if( MAX_REQUEST_LEN <= m_in_buf.capacity() )
+    {
+      Die( m_peer +": Request too long");
+    }
+    else {
+      ByteBuffer bb = ByteBuffer.allocate( Math.min( 2*m_in_buf.capacity()
+                                                   , MAX_REQUEST_LEN ) );
+      m_in_buf.flip();
+      bb.put( m_in_buf );
+      m_in_buf = bb;
+    }
+  }
+  //               |<1>|<-- 4 bytes ---->|
+  //               ----------------------------------------
+  // Read  Request | 1 | Filename length | Filename       |
+  // GET           |   | Num utf16 chars | in utf16 chars |
+  //               ----------------------------------------
+  //
+  //               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+  // Ranged        --------------------------------------------------------------------
+  // Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+  // GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+  //               --------------------------------------------------------------------
+  //
+  //               |<1>|< 4 bytes >|<-- 4 bytes ---->|
+  //               ----------------------------------------------------
+  // Write Request | 3 | num_bytes | Filename length | Filename       |
+  // PUT           |   | in file   | Num utf16 chars | in utf16 chars |
+  //               ----------------------------------------------------
+  //
+  //               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+  // Segmented     -----------------------------------------------------------------------------------
+  // Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+  // PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+  //               -----------------------------------------------------------------------------------
+  //
+  //               |<1>|<1 byte>|<-- 4 bytes ---->|
+  // Read          -------------------------------------------------
+  // Request 64    |12 | Flags  | Filename length | Filename       |
+  // GET64         |   |        | Num utf16 chars | in utf16 chars |
+  //               -------------------------------------------------
+  //
+  //               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+  // Write         ---------------------------------------------------------------
+  // Request 64    |14 | Flags  | num_bytes     | Filename length | Filename       |
+  // PUT64         |   |        | -1 if chunked | Num utf16 chars | in utf16 chars |
+  //               ---------------------------------------------------------------
+  //
+  // Returns true once a whole request has arrived and been acted upon.
+  boolean Parse_Request() throws IOException
+  {
+    final int have = m_in_buf.position();
+
+    if( have < 1 ) return false;
+
+    final byte op_code = m_in_buf.get( 0 );
+
+    // The one request without a filename:
+    if( op_code == File_server.OPCODE_HAVE_REQ ) return Parse_Have_Request( have );
+
+    int hdr_len = 0;
+
+    byte resp_op_code = 0;
+
+    if( op_code == File_server.OPCODE_GET_REQ )
+    {
+      hdr_len      = 1+4;
+      resp_op_code = File_server.OPCODE_GET_RESP;
+    }
+    else if( op_code == File_server.OPCODE_GET_RANGE_REQ )
+    {
+      hdr_len      = 1+8+8+4;
+      resp_op_code = File_server.OPCODE_GET_RANGE_RESP;
+    }
+    else if( op_code == File_server.OPCODE_PUT_REQ )
+    {
+      hdr_len      = 1+4+4;
+      resp_op_code = File_server.OPCODE_PUT_RESP;
+    }
+    else if( op_code == File_server.OPCODE_PUT_SEG_REQ )
+    {
+      hdr_len      = 1+8+8+8+4;
+      resp_op_code = File_server.OPCODE_PUT_SEG_RESP;
+    }
+    else if( op_code == File_server.OPCODE_GET64_REQ )
+    {
+      hdr_len      = 1+1+4;
+      resp_op_code = File_server.OPCODE_GET64_RESP;
+    }
+    else if( op_code == File_server.OPCODE_PUT64_REQ )
+    {
+      hdr_len      = 1+1+8+4;
+      resp_op_code = File_server.OPCODE_PUT64_RESP;
+    }
+    else if( op_code == File_server.OPCODE_SUMS_REQ )
+    {
+      hdr_len      = 1+4;
+      resp_op_code = File_server.OPCODE_SUMS_RESP;
+    }
+    else if( op_code == File_server.OPCODE_PUT_DELTA_REQ )
+    {
+      hdr_len      = 1+8+4;
+      resp_op_code = File_server.OPCODE_PUT_DELTA_RESP;
+    }
+    else if( op_code == File_server.OPCODE_GET_DELTA_REQ )
+    {
+      hdr_len      = 1+4;
+      resp_op_code = File_server.OPCODE_GET_DELTA_RESP;
+    }
+    else if( op_code == File_server.OPCODE_PUT_STORE_REQ )
+    {
+      hdr_len      = 1+8+4;
+      resp_op_code = File_server.OPCODE_PUT_STORE_RESP;
+    }
+    else {
+      Die( m_peer +": Received bad OPCODE: "+ op_code );
+      return false;
+    }
+    if( have < hdr_len ) return false;
+
+    final int fname_len = m_in_buf.getInt( hdr_len-4 );
+
+    if( fname_len <= 0 || MAX_FNAME_LEN < fname_len )
+    {
+      Start_Negative_Response( resp_op_code, "Bad filename length: "+ fname_len );
+      return true;
+    }
+    final int req_len = hdr_len + 2*fname_len;
+
+    if( have < req_len ) return false;
+
+    StringBuilder sb = new StringBuilder( fname_len );
+
+    for( int k=0; k<fname_len; k++ )
+    {
+      sb.append( m_in_buf.getChar( hdr_len + 2*k ) );
+    }
+    m_fname = sb.toString();
+
+    if( op_code == File_server.OPCODE_GET_REQ )
+    {
+      Start_Get();
+    }
+    else if( op_code == File_server.OPCODE_GET_RANGE_REQ )
+    {
+      Start_Get_Range( m_in_buf.getLong( 1 ), m_in_buf.getLong( 1+8 ) );
+    }
+    else if( op_code == File_server.OPCODE_GET64_REQ )
+    {
+      Start_Get64( m_in_buf.get( 1 ) );
+    }
+    else if( op_code == File_server.OPCODE_PUT64_REQ )
+    {
+      Start_Put64( m_in_buf.get( 1 ), m_in_buf.getLong( 1+1 ) );
+    }
+    else if( op_code == File_server.OPCODE_PUT_SEG_REQ )
+    {
+      Start_Put_Segment( m_in_buf.getLong( 1 )
+                       , m_in_buf.getLong( 1+8 )
+                       , m_in_buf.getLong( 1+8+8 ) );
+    }
+    else if( op_code == File_server.OPCODE_SUMS_REQ )
+    {
+      Start_Sums();
+    }
+    else if( op_code == File_server.OPCODE_PUT_DELTA_REQ )
+    {
+      // Rebuilding a file reads the old copy while the delta streams in,
+      // which does not fit the state machine, so leave it to the other modes:
+      Start_Negative_Response( File_server.OPCODE_PUT_DELTA_RESP
+                             , "Delta writes are not served in nio mode");
+    }
+    else if( op_code == File_server.OPCODE_GET_DELTA_REQ )
+    {
+      // Nor does matching the client's signatures against the file:
+      Start_Negative_Response( File_server.OPCODE_GET_DELTA_RESP
+                             , "Delta reads are not served in nio mode");
+    }
+    else if( op_code == File_server.OPCODE_PUT_STORE_REQ )
+    {
+      // A server in nio mode never has a chunk store:
+      Start_Negative_Response( File_server.OPCODE_PUT_STORE_RESP
+                             , "No chunk store on this server");
+    }
+    else {
+      Start_Put( m_in_buf.getInt( 1 ) );
+    }
+    // Keep anything that arrived after the request, i.e. the start of PUT data:
+    m_in_buf.flip();
+    m_in_buf.position( req_len );
+    m_in_buf.compact();
+
+    return true;
+  }
+  //               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+  // Have          ------------------------------------
+  // Request       |19 | SHA-256 of     | num_bytes     |
+  //               |   | file           | in file       |
+  //               ------------------------------------
+  boolean Parse_Have_Request( final int have ) throws IOException
+  {
+    final int req_len = 1+File_server.DIGEST_LEN+8;
+
+    if( have < req_len ) return false;
+
+    final byte[] digest = new byte[ File_server.DIGEST_LEN ];
+
+    ByteBuffer req = m_in_buf.duplicate();
+    req.position( 1 );
+    req.get( digest );
+
+    final Path found = m_selector.m_server.Find_File( digest, req.getLong() );
+
+    if( null == found )
+    {
+      Start_Negative_Response( File_server.OPCODE_HAVE_RESP, "No file with those contents");
+    }
+    else {
+      m_out_buf    = Handle_Sums.Have_Response( found );
+      m_state      = Conn_State.SEND_RESPONSE;
+      m_next_state = Conn_State.READ_REQUEST;
+    }
+    m_in_buf.flip();
+    m_in_buf.position( req_len );
+    m_in_buf.compact();
+
+    return true;
+  }
+  // Sums already in the index go straight back.  Any other file is summed
+  // on a worker, since reading all of it here would hold up every other
+  // connection on this selector, and the connection waits meanwhile:
+  void Start_Sums() throws IOException
+  {
+    final Path src_path = FileSystems.getDefault().getPath( m_fname );
+
+    final String err_msg = Handle_Get.Check_Src_File( src_path, m_fname );
+
+    if( null != err_msg )
+    {
+      Start_Negative_Response( File_server.OPCODE_SUMS_RESP, err_msg );
+      return;
+    }
+    final Sum_Entry entry = m_selector.m_server.Peek_Sums( src_path );
+
+    if( null != entry )
+    {
+      Start_Sums_Response( entry );
+    }
+    else try {
+      m_state = Conn_State.WAIT_WORKER;
+
+      m_selector.m_server.m_workers.execute( () -> Sum_On_Worker( src_path ) );
+    }
+    catch( RejectedExecutionException e )
+    {
+      Die( m_peer +": Start_Sums(): RejectedExecutionException: "+ e );
+    }
+  }
+  // Runs on a worker:
+  void Sum_On_Worker( final Path src_path )
+  {
+    try {
+      m_worker_sums = m_selector.m_server.Get_Sums( src_path );
+    }
+    catch( IOException e )
+    {
+      m_worker_error = e;
+    }
+    m_worker_done = true;
+
+    m_selector.Resume( this );
+  }
+  boolean Finish_Sums() throws IOException
+  {
+    if( !m_worker_done ) return false;
+
+    final Sum_Entry   entry = m_worker_sums;
+    final IOException error = m_worker_error;
+
+    m_worker_done  = false;
+    m_worker_sums  = null;
+    m_worker_error = null;
+
+    if( null != error ) throw error;
+
+    Start_Sums_Response( entry );
+
+    return true;
+  }
+  void Start_Sums_Response( final Sum_Entry entry )
+  {
+    if( null == entry )
+    {
+      Start_Negative_Response( File_server.OPCODE_SUMS_RESP
+                             , "File changed while being summed: "+ m_fname );
+    }
+    else {
+      Msg("Sent sums of "+ m_fname +" to "+ m_peer );
+
+      m_out_buf    = Handle_Sums.Sums_Response( entry );
+      m_state      = Conn_State.SEND_RESPONSE;
+      m_next_state = Conn_State.READ_REQUEST;
+    }
+  }
+  //               |<1>|< 1 byte >|<-- 4 bytes ------>|
+  // Read          ------------------------------------
+  // Response      | 2 | True=1   | num_bytes in file |
+  // Affirmative   ------------------------------------
+  void Start_Get() throws IOException
+  {
+    final Path src_path = FileSystems.getDefault().getPath( m_fname );
+
+    Get_Cached( src_path, false );
+
+    final String err_msg = null != m_cached ? null
+                         : Handle_Get.Check_Src_Path( src_path, m_fname );
+    if( null != err_msg )
+    {
+      Start_Negative_Response( File_server.OPCODE_GET_RESP, err_msg );
+    }
+    else {
+      m_file_len = Open_Src( src_path, false );
+      m_file_pos = 0;
+
+      m_out_buf = ByteBuffer.allocate( 1+1+4+1 );
+      m_out_buf.put( File_server.OPCODE_GET_RESP );
+      m_out_buf.put( (byte)1 );
+      m_out_buf.putInt( (int)m_file_len );
+      m_out_buf.put( File_server.OPCODE_DATA );
+      m_out_buf.flip();
+
+      m_state      = Conn_State.SEND_RESPONSE;
+      m_next_state = Conn_State.SEND_FILE_DATA;
+    }
+  }
+  //               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+  // Ranged Read   ---------------------------------------------------------
+  // Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+  // Affirmative   ---------------------------------------------------------
+  void Start_Get_Range( final long offset, final long num_bytes ) throws IOException
+  {
+    final Path src_path = FileSystems.getDefault().getPath( m_fname );
+
+    Get_Cached( src_path, false );
+
+    String err_msg = null != m_cached ? null
+                   : Handle_Get.Check_Src_File( src_path, m_fname );
+
+    final long file_len = null != m_cached ? m_cached.capacity()
+                        : null == err_msg  ? src_path.toFile().length() : 0;
+    if( null == err_msg )
+    {
+      err_msg = Handle_Get.Check_Range( offset, num_bytes, file_len );
+    }
+    if( null != err_msg )
+    {
+      Start_Negative_Response( File_server.OPCODE_GET_RANGE_RESP, err_msg );
+    }
+    else {
+      final long range_len = Handle_Get.Range_Len( offset, num_bytes, file_len );
+
+      // Send_File_Data() sends from m_file_pos up to m_file_len:
+      Open_Src( src_path, false );
+      m_file_pos = offset;
+      m_file_len = offset + range_len;
+
+      m_out_buf = ByteBuffer.allocate( 1+1+8+8+1 );
+      m_out_buf.put( File_server.OPCODE_GET_RANGE_RESP );
+      m_out_buf.put( (byte)1 );
+      m_out_buf.putLong( file_len );
+      m_out_buf.putLong( range_len );
+      m_out_buf.put( File_server.OPCODE_DATA );
+      m_out_buf.flip();
+
+      m_state      = Conn_State.SEND_RESPONSE;
+      m_next_state = Conn_State.SEND_FILE_DATA;
+    }
+  }
+  //               |<1>|< 1 byte >|<1 byte>|<-- 8 bytes ------>|
+  // Read          --------------------------------------------
+  // Response 64   |13 | True=1   | Flags  | num_bytes in file |
+  // Affirmative   |   |          |        | -1 if chunked     |
+  //               --------------------------------------------
+  void Start_Get64( final byte flags ) throws IOException
+  {
+    final Path src_path = FileSystems.getDefault().getPath( m_fname );
+
+    // Compressed data goes in chunks, each compressed on its own.
+    // FLAG_CHECKED is not taken on here, so a client asking for it
+    // gets plain chunks, which it asks for along with it:
+    m_zipped = 0 != ( flags & File_server.FLAG_COMPRESSED ) && m_selector.m_server.m_compress;
+
+    final boolean chunked = 0 != ( flags & File_server.FLAG_CHUNKED ) || m_zipped;
+
+    Get_Cached( src_path, chunked );
+
+    // Compressed reads go out of an already compressed copy if there is
+    // a cache of them, sent like a cached file, as it is.  A file not
+    // there yet is compressed a chunk at a time as it goes, while a worker
+    // compresses all of it into the cache for the next time:
+    final Zip_Cache zip_cache = m_selector.m_server.m_zip_cache;
+
+    m_zip_entry = m_zipped && null != zip_cache ? zip_cache.Peek( src_path ) : null;
+
+    if( m_zipped && null != zip_cache && null == m_zip_entry )
+    {
+      zip_cache.Load_Later( src_path, m_selector.m_server.m_workers );
+    }
+
+    if( null != m_zip_entry ) m_cached = m_zip_entry.m_data.duplicate();
+
+    final String err_msg = null != m_cached ? null
+                         : Handle_Get.Check_Src_File( src_path, m_fname );
+    if( null != err_msg )
+    {
+      Start_Negative_Response( File_server.OPCODE_GET64_RESP, err_msg );
+    }
+    else {
+      m_file_len = Open_Src( src_path, chunked );
+      m_file_pos = 0;
+
+      m_out_buf = ByteBuffer.allocate( 1+1+1+8+1 );
+      m_out_buf.put( File_server.OPCODE_GET64_RESP );
+      m_out_buf.put( (byte)1 );
+      m_out_buf.put( (byte)( ( chunked  ? File_server.FLAG_CHUNKED    : 0 )
+                           | ( m_zipped ? File_server.FLAG_COMPRESSED : 0 ) ) );
+      m_out_buf.putLong( chunked ? -1 : m_file_len );
+      m_out_buf.put( File_server.OPCODE_DATA );
+      m_out_buf.flip();
+
+      m_state      = Conn_State.SEND_RESPONSE;
+      m_next_state = Conn_State.SEND_FILE_DATA;
+
+      if( chunked && null == m_zip_entry )
+      {
+        // Starts out empty, so the first chunk is read on the first go:
+        m_chunk_buf = m_selector.m_server.m_pool.Get( Chunk_Buf_Len() );
+        m_chunk_buf.flip();
+        m_wire_bytes = 0;
+
+        if( m_zipped )
+        {
+          Get_Zip_Bufs();
+          m_zip_type = m_selector.m_server.Get_Zip_Type( src_path );
+        }
+        m_last_chunk = false;
+        m_next_state = Conn_State.SEND_CHUNKS;
+      }
+    }
+  }
+  // Looks src_path up in the server's File_Cache, if it has one.  Chunked
+  // reads send the file as far as it has got when read, so they always go
+  // to the file rather than the cache.  Reading a file into the cache would
+  // hold up every connection on this selector, so a miss is sent from the
+  // file, while a worker reads it into the cache for the next time.
+  void Get_Cached( final Path src_path, final boolean chunked ) throws IOException
+  {
+    final File_Cache cache = m_selector.m_server.m_cache;
+
+    final Cache_Entry entry = null != cache && !chunked ? cache.Peek( src_path ) : null;
+
+    m_cached = null != entry ? entry.m_data.duplicate() : null;
+
+    if( null != cache && !chunked && null == m_cached )
+    {
+      cache.Load_Later( src_path, m_selector.m_server.m_workers );
+    }
+  }
+  // Opens src_path unless it is being sent from the cache or from a
+  // mapping, and returns the size of the file.  Chunks are read from
+  // the file, so a chunked read always opens it.
+  long Open_Src( final Path src_path, final boolean chunked ) throws IOException
+  {
+    final Map_Cache maps = m_selector.m_server.m_maps;
+
+    m_mapped = null != maps && !chunked ? maps.Get( src_path ) : null;
+
+    long file_len = 0;
+
+    if( null != m_cached )
+    {
+      file_len = m_cached.capacity();
+    }
+    else if( null != m_mapped )
+    {
+      file_len = m_mapped.m_size;
+    }
+    else {
+      m_file_chan = FileChannel.open( src_path, StandardOpenOption.READ );
+      file_len    = m_file_chan.size();
+    }
+    return file_len;
+  }
+  //               |<1>|< 1 byte >|
+  // Write         ----------------
+  // Response      | 4 | True=1   |
+  // Affirmative   |   | 00000001 |
+  // Affirmative   ----------------
+  void Start_Put( final int file_len ) throws IOException
+  {
+    final Path dst_path = FileSystems.getDefault().getPath( m_fname );
+
+    String err_msg = Handle_Put.Check_Dst_Path( dst_path, m_fname );
+
+    if( null == err_msg && file_len < 0 )
+    {
+      err_msg = "Bad file length: "+ file_len;
+    }
+    if( null != err_msg )
+    {
+      Start_Negative_Response( File_server.OPCODE_PUT_RESP, err_msg );
+    }
+    else {
+      m_file_chan = FileChannel.open( dst_path, StandardOpenOption.CREATE_NEW
+                                              , StandardOpenOption.WRITE );
+      m_file_len  = file_len;
+      m_file_pos  = 0;
+      m_sums      = New_Sums();
+
+      m_out_buf = ByteBuffer.allocate( 1+1 );
+      m_out_buf.put( File_server.OPCODE_PUT_RESP );
+      m_out_buf.put( (byte)1 );
+      m_out_buf.flip();
+
+      m_state      = Conn_State.SEND_RESPONSE;
+      m_next_state = Conn_State.RECV_DATA_OPCODE;
+    }
+  }
+  // A chunked file starts out with nothing to receive, and each chunk
+  // header moves m_file_len on by the length of the chunk.
+  void Start_Put64( final byte flags, final long file_len ) throws IOException
+  {
+    final Path dst_path = FileSystems.getDefault().getPath( m_fname );
+
+    // Compressed data comes in chunks, each compressed on its own.
+    // FLAG_CHECKED is not taken on here, so a client asking for it
+    // sends plain chunks, which it asks for along with it:
+    m_zipped = 0 != ( flags & File_server.FLAG_COMPRESSED ) && m_selector.m_server.m_compress;
+
+    final boolean chunked = 0 != ( flags & File_server.FLAG_CHUNKED ) || m_zipped;
+
+    String err_msg = Handle_Put.Check_Dst_Path( dst_path, m_fname );
+
+    if( null == err_msg && !chunked && file_len < 0 )
+    {
+      err_msg = "Bad file length: "+ file_len;
+    }
+    if( null != err_msg )
+    {
+      Start_Negative_Response( File_server.OPCODE_PUT64_RESP, err_msg );
+    }
+    else {
+      m_file_chan = FileChannel.open( dst_path, StandardOpenOption.CREATE_NEW
+                                              , StandardOpenOption.WRITE );
+      m_file_len  = chunked ? 0 : file_len;
+      m_file_pos  = 0;
+      m_chunked   = chunked;
+      m_sums      = New_Sums();
+
+      m_out_buf = ByteBuffer.allocate( 1+1+1 );
+      m_out_buf.put( File_server.OPCODE_PUT64_RESP );
+      m_out_buf.put( (byte)1 );
+      m_out_buf.put( m_zipped ? File_server.FLAG_COMPRESSED : 0 );
+      m_out_buf.flip();
+
+      m_wire_bytes = 0;
+
+      if( m_zipped ) Get_Zip_Bufs();
+
+      m_state      = Conn_State.SEND_RESPONSE;
+      m_next_state = Conn_State.RECV_DATA_OPCODE;
+    }
+  }
+  // A whole file arrives in order, so it is summed for the index, if
+  // there is one, as it is written:
+  File_Sums New_Sums() throws IOException
+  {
+    return null != m_selector.m_server.m_index ? new File_Sums() : null;
+  }
+  // The buffers of compressed transfers are kept for the life of the
+  // connection, as are the native buffers of m_zip:
+  void Get_Zip_Bufs()
+  {
+    if( null == m_zip )
+    {
+      m_zip        = new Chunk_Zip();
+      m_raw_buf    = m_selector.m_server.m_pool.Get( File_server.CHUNK_SIZE );
+      m_zipped_buf = m_selector.m_server.m_pool.Get( Chunk_Zip.MAX_ZIPPED_LEN );
+    }
+  }
+  // Length of m_chunk_buf, the pooled buffer possibly being longer:
+  int Chunk_Buf_Len()
+  {
+    return 4 + ( m_zipped ? Chunk_Zip.MAX_ZIPPED_LEN : File_server.CHUNK_SIZE );
+  }
+  // The segment is written into the upload's file, from m_file_pos up
+  // to m_file_len, and the upload is committed once all of it is in.
+  void Start_Put_Segment( final long file_len
+                        , final long offset
+                        , final long num_bytes ) throws IOException
+  {
+    final Path dst_path = FileSystems.getDefault().getPath( m_fname );
+
+    String err_msg = null;
+    Upload upload  = null;
+
+    if( file_len < 0 )
+    {
+      err_msg = "Bad file length: "+ file_len;
+    }
+    else try {
+      upload  = m_selector.m_server.Join_Upload( dst_path, m_fname, file_len );
+      err_msg = upload.Add_Segment( offset, num_bytes );
+    }
+    catch( IOException e )
+    {
+      err_msg = e.getMessage();
+    }
+    if( null != err_msg )
+    {
+      Start_Negative_Response( File_server.OPCODE_PUT_SEG_RESP, err_msg );
+    }
+    else {
+      m_upload        = upload;
+      m_upload_offset = offset;
+      m_file_chan     = upload.m_file_chan;
+      m_file_pos  = offset;
+      m_file_len  = offset + num_bytes;
+
+      m_out_buf = ByteBuffer.allocate( 1+1 );
+      m_out_buf.put( File_server.OPCODE_PUT_SEG_RESP );
+      m_out_buf.put( (byte)1 );
+      m_out_buf.flip();
+
+      m_state      = Conn_State.SEND_RESPONSE;
+      m_next_state = Conn_State.RECV_DATA_OPCODE;
+    }
+  }
+  //               |<1>|< 1 byte >|<-- 4 bytes ---->|
+  // Read/Write    ----------------------------------------------
+  // Response      |2/4| False=0  | Num utf16 chars | errstring |
+  //               |/9 |          |                 |           |
+  //               |/11|          |                 |           |
+  //               |/13|          |                 |           |
+  //               |/15|          |                 |           |
+  //               |/18|          |                 |           |
+  //               |/20|          |                 |           |
+  // Negative      |   | 00000000 | in errstring    |           |
+  //               ----------------------------------------------
+  void Start_Negative_Response( final byte resp_op_code, final String err_msg )
+  {
+    m_err_msg = m_chan.socket().getLocalSocketAddress() +": "+ err_msg;
+
+    m_out_buf = ByteBuffer.allocate( 1+1+4+2*m_err_msg.length() );
+    m_out_buf.put( resp_op_code );
+    m_out_buf.put( (byte)0 );
+    m_out_buf.putInt( m_err_msg.length() );
+    for( int k=0; k<m_err_msg.length(); k++ )
+    {
+      m_out_buf.putChar( m_err_msg.charAt( k ) );
+    }
+    m_out_buf.flip();
+
+    m_state      = Conn_State.SEND_RESPONSE;
+    m_next_state = Conn_State.READ_REQUEST;
+  }
+  boolean Send_Response() throws IOException
+  {
+    m_chan.write( m_out_buf );
+
+    final boolean sent = !m_out_buf.hasRemaining();
+
+    if( sent )
+    {
+      m_out_buf = null;
+      m_state   = m_next_state;
+
+      if( null != m_err_msg )
+      {
+        Msg( m_err_msg );
+        m_err_msg = null;
+      }
+    }
+    return sent;
+  }
+  //               |<1>|
+  // Read/Write    -----------------
+  // DATA          | 5 | File data |
+  //               -----------------
+  boolean Send_File_Data() throws IOException
+  {
+    if( m_file_pos < m_file_len && null != m_cached )
+    {
+      // Straight out of the cache's memory, not touching the disk:
+      m_cached.limit( (int)m_file_len );
+      m_cached.position( (int)m_file_pos );
+
+      final int bytes_sent = m_chan.write( m_cached );
+
+      m_file_pos += bytes_sent;
+
+      if( m_file_pos < m_file_len ) return 0 < bytes_sent;
+    }
+    else if( m_file_pos < m_file_len && null != m_mapped )
+    {
+      // Out of the file's mapping, shared with other connections:
+      final long bytes_sent = m_mapped.Write_To( m_chan, m_file_pos, m_file_len );
+
+      m_file_pos += bytes_sent;
+
+      if( m_file_pos < m_file_len ) return 0 < bytes_sent;
+    }
+    else if( m_file_pos < m_file_len )
+    {
+      final long bytes_sent = m_file_chan.transferTo( m_file_pos
+                                                    , m_file_len - m_file_pos
+                                                    , m_chan );
+      m_file_pos += bytes_sent;
+
+      if( 0 == bytes_sent && m_file_chan.size() <= m_file_pos )
+      {
+        Die( m_peer +": File shrank while sending: "+ m_fname );
+      }
+      if( m_file_pos < m_file_len ) return 0 < bytes_sent;
+    }
+    final boolean   from_cache = null != m_cached;
+    final Zip_Entry zip_entry  = m_zip_entry;
+
+    Finish_File();
+    Msg("Sent to "+ m_peer +": "+ m_fname
+       + ( null != zip_entry ? ", "+ zip_entry.m_size +" bytes compressed to "
+                             + zip_entry.m_wire_bytes +" from compressed cache"
+                             : from_cache ? " from cache" : "") );
+
+    return true;
+  }
+  //               |<-- 4 bytes -->|
+  //               ------------------------------
+  // Chunk         | num_bytes     | File data  |
+  //               | 0 = last      |            |
+  //               ------------------------------
+  //
+  // Sends one chunk at a time out of m_chunk_buf, reading the next one from
+  // the file once the last one is all sent, so memory use stays at one chunk
+  // whatever the size of the file.
+  boolean Send_Chunks() throws IOException
+  {
+    if( !m_chunk_buf.hasRemaining() )
+    {
+      if( m_last_chunk )
+      {
+        m_selector.m_server.m_pool.Put( m_chunk_buf );
+        m_chunk_buf = null;
+        Finish_File();
+        Msg("Sent to "+ m_peer +": "+ m_fname +", "+ m_file_pos +" bytes in chunks"
+           + ( m_zipped ? ", compressed to "+ m_wire_bytes : "") );
+
+        return true;
+      }
+      Fill_Chunk();
+    }
+    return 0 < m_chan.write( m_chunk_buf );
+  }
+  // Reads the next chunk from wherever the file has got to, so a file
+  // still being written is sent as far as it has got.  A compressed chunk
+  // is read into m_raw_buf first, and packed into m_chunk_buf, compressed
+  // if that pays.
+  void Fill_Chunk() throws IOException
+  {
+    m_chunk_buf.clear();
+    m_chunk_buf.limit( Chunk_Buf_Len() );
+    m_chunk_buf.position( 4 );
+
+    int raw_len = 0;
+    int len_val = 0;
+
+    if( m_zipped )
+    {
+      m_raw_buf.clear();
+      m_raw_buf.limit( File_server.CHUNK_SIZE );
+
+      while( m_raw_buf.hasRemaining()
+          && 0 < m_file_chan.read( m_raw_buf, m_file_pos + m_raw_buf.position() ) ) ;
+
+      raw_len = m_raw_buf.position();
+      m_raw_buf.flip();
+
+      // The empty chunk at the end stays empty:
+      if( 0 < raw_len ) len_val = m_zip.Pack( m_raw_buf, m_chunk_buf, m_zip_type );
+    }
+    else {
+      while( m_chunk_buf.hasRemaining()
+          && 0 < m_file_chan.read( m_chunk_buf, m_file_pos + m_chunk_buf.position()-4 ) ) ;
+
+      raw_len = m_chunk_buf.position() - 4;
+      len_val = raw_len;
+    }
+    final int chunk_len = m_chunk_buf.position() - 4;
+
+    m_chunk_buf.putInt( 0, len_val );
+    m_chunk_buf.flip();
+
+    m_file_pos   += raw_len;
+    m_wire_bytes += chunk_len;
+    m_last_chunk  = 0 == raw_len;
+  }
+  boolean Receive_Data_Opcode() throws IOException
+  {
+    if( 0 == m_in_buf.position() )
+    {
+      if( m_chan.read( m_in_buf ) < 0 )
+      {
+        Die( m_peer +": Connection closed before file data: "+ m_fname );
+      }
+    }
+    final boolean have_op_code = 0 < m_in_buf.position();
+
+    if( have_op_code )
+    {
+      m_in_buf.flip();
+      final byte op_code = m_in_buf.get();
+      m_in_buf.compact();
+
+      if( op_code != File_server.OPCODE_DATA )
+      {
+        Die("Receive_File_Data(): Received bad OPCODE: " + op_code);
+      }
+      m_state = m_chunked ? Conn_State.RECV_CHUNK_LEN
+                          : Conn_State.RECV_FILE_DATA;
+    }
+    return have_op_code;
+  }
+  // Each chunk header moves m_file_len on by the length of the chunk,
+  // and the empty chunk at the end finishes the file.  In a compressed
+  // transfer, chunks with RAW_CHUNK set in their length did not compress,
+  // and arrive as they are:
+  boolean Receive_Chunk_Len() throws IOException
+  {
+    boolean progress = false;
+
+    if( m_in_buf.position() < 4 )
+    {
+      if( m_chan.read( m_in_buf ) < 0 )
+      {
+        Die( m_peer +": Connection closed after "+ m_file_pos +" bytes: "+ m_fname );
+      }
+    }
+    if( m_running && 4 <= m_in_buf.position() )
+    {
+      m_in_buf.flip();
+      int chunk_len = m_in_buf.getInt();
+      m_in_buf.compact();
+
+      final boolean as_is = !m_zipped || 0 != ( chunk_len & Chunk_Zip.RAW_CHUNK );
+
+      if( m_zipped && as_is ) chunk_len &= ~Chunk_Zip.RAW_CHUNK;
+
+      if( chunk_len < 0 || ( m_zipped && as_is && 0 == chunk_len ) )
+      {
+        Die( m_peer +": Bad chunk length: "+ chunk_len );
+      }
+      else if( 0 == chunk_len )
+      {
+        m_chunked = false;
+        Finish_File();
+        Msg("Received from "+ m_peer +": "+ m_fname +", "+ m_file_pos +" bytes in chunks"
+           + ( m_zipped ? ", compressed to "+ m_wire_bytes : "") );
+      }
+      else if( m_zipped && Chunk_Zip.MAX_ZIPPED_LEN < chunk_len )
+      {
+        Die( m_peer +": Bad compressed chunk length: "+ chunk_len );
+      }
+      else if( !as_is )
+      {
+        m_zipped_buf.clear();
+        m_zipped_buf.limit( chunk_len );
+
+        m_wire_bytes += chunk_len;
+        m_state       = Conn_State.RECV_ZIP_CHUNK;
+      }
+      else {
+        if( m_zipped ) m_wire_bytes += chunk_len;
+
+        m_file_len += chunk_len;
+        m_state     = Conn_State.RECV_FILE_DATA;
+      }
+      progress = true;
+    }
+    return progress;
+  }
+  // Gathers a whole compressed chunk in m_zipped_buf, and then writes
+  // it to the file decompressed:
+  boolean Receive_Zipped_Chunk() throws IOException
+  {
+    boolean progress = false;
+
+    if( 0 < m_in_buf.position() )
+    {
+      // Chunk data that arrived along with what came before it:
+      m_in_buf.flip();
+      final int num_bytes = Math.min( m_in_buf.remaining(), m_zipped_buf.remaining() );
+
+      ByteBuffer part = m_in_buf.slice();
+      part.limit( num_bytes );
+      m_zipped_buf.put( part );
+
+      m_in_buf.position( m_in_buf.position() + num_bytes );
+      m_in_buf.compact();
+
+      progress = true;
+    }
+    else {
+      final int bytes_read = m_chan.read( m_zipped_buf );
+
+      if( bytes_read < 0 )
+      {
+        Die( m_peer +": Connection closed after "+ m_file_pos +" bytes: "+ m_fname );
+      }
+      progress = 0 < bytes_read;
+    }
+    if( m_running && !m_zipped_buf.hasRemaining() )
+    {
+      m_zipped_buf.flip();
+      m_raw_buf.clear();
+      m_raw_buf.limit( File_server.CHUNK_SIZE );
+      m_zip.Inflate( m_zipped_buf, m_raw_buf );
+      m_raw_buf.flip();
+
+      m_file_len += m_raw_buf.remaining();
+      Write_To_File( m_raw_buf );
+
+      m_state  = Conn_State.RECV_CHUNK_LEN;
+      progress = true;
+    }
+    return progress;
+  }
+  boolean Receive_File_Data() throws IOException
+  {
+    boolean progress = false;
+
+    if( 0 < m_in_buf.position() )
+    {
+      // File data that arrived along with the request:
+      m_in_buf.flip();
+      Write_To_File( m_in_buf );
+      m_in_buf.compact();
+
+      progress = true;
+    }
+    else if( m_file_pos < m_file_len )
+    {
+      ByteBuffer io_buf = m_selector.m_io_buf;
+      io_buf.clear();
+      io_buf.limit( (int)Math.min( io_buf.capacity(), m_file_len - m_file_pos ) );
+
+      final int bytes_read = m_chan.read( io_buf );
+
+      if( bytes_read < 0 )
+      {
+        Die( m_peer +": Connection closed after "+ m_file_pos +" of "
+           + m_file_len +" bytes: "+ m_fname );
+      }
+      io_buf.flip();
+      Write_To_File( io_buf );
+
+      progress = 0 < bytes_read;
+    }
+    if( m_running && m_chunked && m_file_len <= m_file_pos )
+    {
+      // On to the next chunk header:
+      m_state  = Conn_State.RECV_CHUNK_LEN;
+      progress = true;
+    }
+    else if( m_running && m_file_len <= m_file_pos )
+    {
+      if( null != m_upload )
+      {
+        Msg("Received from "+ m_peer +": "+ m_fname +", "
+           + (m_file_len - m_upload_offset) +" bytes at offset "+ m_upload_offset );
+      }
+      else {
+        Msg("Received from "+ m_peer +": "+ m_fname );
+      }
+      Finish_File();
+
+      progress = true;
+    }
+    return progress;
+  }
+  // Writes as much of src to the file as still belongs to it.  The writes
+  // are positional, so segments of an upload arriving on other connections
+  // can be written into the same file at the same time.
+  void Write_To_File( ByteBuffer src ) throws IOException
+  {
+    final int src_limit = src.limit();
+    final int num_bytes = (int)Math.min( src.remaining(), m_file_len - m_file_pos );
+
+    src.limit( src.position() + num_bytes );
+
+    if( null != m_sums ) m_sums.Add( src );
+
+    while( src.hasRemaining() )
+    {
+      m_file_pos += m_file_chan.write( src, m_file_pos );
+    }
+    src.limit( src_limit );
+  }
+  void Finish_File() throws IOException
+  {
+    if( null != m_upload )
+    {
+      // The upload's file stays open for its other segments:
+      final Upload upload = m_upload;
+      m_upload    = null;
+      m_file_chan = null;
+
+      if( upload.Segment_Done( m_file_len - m_upload_offset ) )
+      try {
+        m_selector.m_server.Finish_Upload( upload );
+        Msg("Received all "+ upload.m_file_len +" bytes of "+ m_fname );
+      }
+      catch( IOException e )
+      {
+        Msg( m_peer +": Finish_File(): IOException: "+ e );
+      }
+    }
+    else if( null != m_file_chan )
+    {
+      m_file_chan.close();
+      m_file_chan = null;
+    }
+    if( null != m_sums )
+    {
+      m_selector.m_server.Index_File( FileSystems.getDefault().getPath( m_fname ), m_sums );
+      m_sums = null;
+    }
+    m_cached    = null;
+    m_mapped    = null;
+    m_zip_entry = null;
+
+    m_state = Conn_State.READ_REQUEST;
+  }
+  void Close()
+  {
+    try {
+      if( null != m_key )
+      {
+        m_key.cancel();
+      }
+      m_chan.close();
+
+      if( null != m_zip )
+      {
+        m_zip.End();
+        m_zip = null;
+      }
+      // Back to the pool for other connections:
+      final Buffer_Pool pool = m_selector.m_server.m_pool;
+
+      pool.Put( m_chunk_buf );
+      pool.Put( m_raw_buf );
+      pool.Put( m_zipped_buf );
+      m_chunk_buf  = null;
+      m_raw_buf    = null;
+      m_zipped_buf = null;
+
+      if( null != m_upload )
+      {
+        // The rest of the segment is not coming, so neither is the file:
+        m_selector.m_server.Abort_Upload( m_upload );
+      }
+      else if( null != m_file_chan )
+      {
+        m_file_chan.close();
+      }
+    }
+    catch( IOException e )
+    {
+      Msg("Nio_Connection.Close(): IOException: " + e);
+    }
+  }
+  static final int MAX_FNAME_LEN   = 4096;
+  static final int MAX_REQUEST_LEN = 1+8+8+4 + 2*MAX_FNAME_LEN;
+
+  final Nio_Selector  m_selector;
+  final SocketChannel m_chan;
+  final String        m_peer;
+
+  boolean      m_running    = true;
+  Conn_State   m_state      = Conn_State.READ_REQUEST;
+  Conn_State   m_next_state = Conn_State.DONE;
+  ByteBuffer   m_in_buf     = ByteBuffer.allocate( 256 );
+  ByteBuffer   m_out_buf;
+  SelectionKey m_key;
+  long         m_last_active_ms = System.currentTimeMillis();
+  String       m_fname;
+  String       m_err_msg;
+  FileChannel  m_file_chan;
+  ByteBuffer   m_cached; // Contents of the file if sent from the cache
+  Zip_Entry    m_zip_entry; // Compressed copy if sent from the Zip_Cache
+  Mapped_File  m_mapped; // Mapping of the file if sent with Send_Mode.MAP
+  Upload       m_upload;
+  File_Sums    m_sums; // Sums of a whole file being received, for the index
+  boolean      m_chunked;
+  ByteBuffer   m_chunk_buf;
+  boolean      m_last_chunk;
+  boolean      m_zipped;
+  Chunk_Zip    m_zip;
+  Zip_Type     m_zip_type;
+  ByteBuffer   m_raw_buf;
+  ByteBuffer   m_zipped_buf;
+  long         m_wire_bytes; // Compressed size of the file data
+  long         m_upload_offset;
+  long         m_file_len;
+  long         m_file_pos;
+
+  // Handed back by a worker, which sets m_worker_done last:
+  Sum_Entry        m_worker_sums;
+  IOException      m_worker_error;
+  volatile boolean m_worker_done;
+}
+
+enum Conn_State
+{
+  READ_REQUEST,
+  SEND_RESPONSE,
+  SEND_FILE_DATA,
+  SEND_CHUNKS,
+  RECV_DATA_OPCODE,
+  RECV_FILE_DATA,
+  RECV_CHUNK_LEN,
+  RECV_ZIP_CHUNK,
+  WAIT_WORKER,
+  DONE
+}
@@ -0,0 +1,732 @@
+////////////////////////////////////////////////////////////////////////////////
+// File Server Java Implementation                                            //
+// Copyright (c) 31 Dec 2019 Paul J. Gartside                                 //
+////////////////////////////////////////////////////////////////////////////////
+// Permission is hereby granted, free of charge, to any person obtaining a    //
+// copy of this software and associated documentation files (the "Software"), //
+// to deal in the Software without restriction, including without  limitation //
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,   //
+// and/or sell copies of the Software, and to permit persons to whom the      //
+// Software is furnished to do so, subject to the following conditions:       //
+//                                                                            //
+// The above copyright notice and this permission notice shall be included in //
+// all copies or substantial portions of the Software.                        //
+//                                                                            //
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR //
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,   //
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL    //
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER //
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING    //
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER        //
+// DEALINGS IN THE SOFTWARE.                                                  //
+////////////////////////////////////////////////////////////////////////////////
+// ---------------------
+// File Protocol Summary
+// ---------------------
+//
+//               |<1>|<-- 4 bytes ---->|
+//               ----------------------------------------
+// Read  Request | 1 | Filename length | Filename       |
+// GET           |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ------>|
+// Read          ------------------------------------
+// Response      | 2 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Read          ----------------------------------------------
+// Response      | 2 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|< 4 bytes >|<-- 4 bytes ---->|
+//               ----------------------------------------------------
+// Write Request | 3 | num_bytes | Filename length | Filename       |
+// PUT           |   | in file   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Write         ----------------
+// Response      | 4 | True=1   |
+// Affirmative   |   | 00000001 |
+// Affirmative   ----------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Write         ----------------------------------------------
+// Response      | 4 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|
+// Read/Write    -----------------
+// DATA          | 5 | File data |
+//               -----------------
+//
+// ----------                         ----------
+// | Client |                         | Server |
+// ----------                         ----------
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Affirmative ----|
+//     |<-- File data --------------------|
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Negative -------|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Affirmative ---|
+//     |--- File data ------------------->|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Negative ------|
+//     |                                  |
+//
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+
+// One pass of reading a file from disk, shared by every connection that
+// asks for the same version of the file while the pass is under way.  The
+// file is read a chunk at a time into a window of WINDOW_CHUNKS direct
+// buffers, and each chunk is sent by every reader out of the same buffer.
+// Whichever reader first needs a chunk that has not been read yet reads
+// it, so no thread of its own is needed.  A buffer is only reused once
+// every reader has sent the chunk in it, so the pass goes at the pace of
+// the slowest reader, and memory use stays at one window whatever the size
+// of the file.  A reader that falls a whole window behind, and holds up the
+// rest for longer than MAX_LAG_MS, is cut loose: it keeps the buffer it is
+// sending out of, and sends the rest of the file on its own.  The window's
+// buffers come from the server's Buffer_Pool, and go back to it when the
+// last reader leaves.  Readers can join for as long as the first chunk is
+// still in the window.  Flights in progress are kept by File_server.
+class Read_Flight
+{
+  Read_Flight( final Buffer_Pool         pool
+             , final Path                key
+             , final Path                src_path
+             , final BasicFileAttributes attrs ) throws IOException
+  {
+    m_pool       = pool;
+    m_key        = key;
+    m_src_path   = src_path;
+    m_size       = attrs.size();
+    m_mtime      = attrs.lastModifiedTime();
+    m_num_chunks = (m_size + CHUNK_SIZE-1) / CHUNK_SIZE;
+    m_file_chan  = FileChannel.open( src_path, StandardOpenOption.READ );
+  }
+  // Returns true if the file had these attributes when the pass began:
+  boolean Is_Version( final BasicFileAttributes attrs )
+  {
+    return attrs.size() == m_size
+        && attrs.lastModifiedTime().equals( m_mtime );
+  }
+  // Adds a reader starting at chunk 0, and returns false if it is
+  // too late to join because chunk 0 has left the window:
+  synchronized boolean Join()
+  {
+    boolean joined = false;
+
+    if( 0 == m_first_chunk && !m_closed )
+    {
+      // The new reader has yet to send every chunk in the window:
+      for( long k=0; k<m_chunks_read; k++ )
+      {
+        m_pending[ (int)(k % WINDOW_CHUNKS) ]++;
+      }
+      m_num_readers++;
+      m_num_joined++;
+      joined = true;
+    }
+    return joined;
+  }
+  // Returns a view of chunk k, reading it from the file if no reader has
+  // yet, or null if the file ends before chunk k.  The caller must call
+  // Done( k ) once it has sent the chunk, even if it was cut loose before
+  // getting it.
+  ByteBuffer Chunk( final long k ) throws IOException
+  {
+    final int slot = (int)(k % WINDOW_CHUNKS);
+
+    synchronized( this )
+    {
+      // Cut loose between sending chunk k-1 and getting here.  By now the
+      // slot may be empty or hold a later chunk, but the buffer with chunk
+      // k in it is kept for the readers cut loose on it:
+      if( k < m_cut_below ) return m_orphans.get( k ).m_buf.duplicate();
+
+      long lag_start_ms = 0;
+
+      while( k == m_chunks_read && k < m_num_chunks )
+      {
+        if( null != m_error )
+        {
+          throw new IOException( m_error );
+        }
+        // Wait while someone else reads the chunk, or while the last
+        // chunk to use its buffer is still being sent by a slow reader,
+        // but not for ever on the slow reader:
+        if( !m_reading && 0 == m_pending[ slot ] ) break;
+
+        if( !m_reading )
+        {
+          final long now_ms = System.currentTimeMillis();
+
+          if( 0 == lag_start_ms )
+          {
+            lag_start_ms = now_ms;
+          }
+          else if( MAX_LAG_MS <= now_ms - lag_start_ms )
+          {
+            Cut_Loose( k - WINDOW_CHUNKS, slot );
+            break;
+          }
+        }
+        Wait( MAX_LAG_MS );
+      }
+      if( m_num_chunks <= k ) return null;
+
+      if( k < m_chunks_read ) return m_chunks[ slot ].duplicate();
+
+      m_reading = true;
+    }
+    // Read outside of the lock, so readers of chunks already
+    // in the window are not held up by the disk:
+    ByteBuffer bb = null;
+    String     error = null;
+    try {
+      bb = Read_Chunk( k, slot );
+    }
+    catch( IOException e )
+    {
+      error = e.getMessage();
+      throw e;
+    }
+    finally {
+      synchronized( this )
+      {
+        m_reading = false;
+        m_error   = error;
+
+        if( null != bb )
+        {
+          m_pending[ slot ] = m_num_readers;
+          m_chunks_read++;
+          m_first_chunk = Math.max( m_first_chunk, m_chunks_read - WINDOW_CHUNKS );
+        }
+        notifyAll();
+      }
+    }
+    return bb.duplicate();
+  }
+  ByteBuffer Read_Chunk( final long k, final int slot ) throws IOException
+  {
+    if( null == m_chunks[ slot ] )
+    {
+      m_chunks[ slot ] = m_pool.Get( CHUNK_SIZE );
+    }
+    ByteBuffer bb = m_chunks[ slot ];
+
+    final long offset = k*CHUNK_SIZE;
+
+    bb.clear();
+    bb.limit( (int)Math.min( CHUNK_SIZE, m_size - offset ) );
+
+    while( bb.hasRemaining() )
+    {
+      if( m_file_chan.read( bb, offset + bb.position() ) < 0 )
+      {
+        throw new IOException("File shrank while sending: "+ m_src_path );
+      }
+    }
+    bb.flip();
+
+    return bb;
+  }
+  // Called by the readers still sending chunk j, a whole window behind the
+  // reader that needs its buffer for the next chunk.  They keep the buffer,
+  // and are no longer waited for.  Only they can still be on a chunk below
+  // m_cut_below, which is how they find out once they are done with it.
+  void Cut_Loose( final long j, final int slot )
+  {
+    final int num_cut = m_pending[ slot ];
+
+    for( long k=j+1; k<m_chunks_read; k++ )
+    {
+      m_pending[ (int)(k % WINDOW_CHUNKS) ] -= num_cut;
+    }
+    m_orphans.put( j, new Orphan_Chunk( m_chunks[ slot ], num_cut ) );
+    m_chunks[ slot ]  = null;
+    m_pending[ slot ] = 0;
+    m_num_readers    -= num_cut;
+    m_num_cut        += num_cut;
+    m_cut_below       = j+1;
+    m_first_chunk     = Math.max( m_first_chunk, j+1 );
+
+    System.out.println("File_server: Cut "+ num_cut +" slow reader(s) of "+ m_src_path
+                      +" loose at chunk "+ j );
+  }
+  // Called by a reader once it has sent chunk k.  Returns false if the
+  // reader was cut loose, in which case it sends the rest with Send_Rest():
+  synchronized boolean Done( final long k )
+  {
+    if( k < m_cut_below ) return false;
+
+    if( 0 == --m_pending[ (int)(k % WINDOW_CHUNKS) ] )
+    {
+      notifyAll();
+    }
+    return true;
+  }
+  // Sends the file from chunk k on straight from the flight's channel, so a
+  // reader cut loose still sends the version of the file it started on.
+  // Each transfer is reported to watch.
+  void Send_Rest( final long          k
+                , final SocketChannel sock_chan
+                , final Io_Watch      watch ) throws IOException
+  {
+    long pos = k*CHUNK_SIZE;
+
+    while( pos < m_size )
+    {
+      final long bytes_sent = m_file_chan.transferTo( pos
+                                                    , Math.min( Io_Watch.MAX_WRITE_LEN, m_size - pos )
+                                                    , sock_chan );
+
+      watch.Progress();
+
+      if( bytes_sent <= 0 && m_file_chan.size() <= pos )
+      {
+        throw new IOException("File shrank while sending: "+ m_src_path );
+      }
+      pos += bytes_sent;
+    }
+  }
+  // Removes a reader that has sent every chunk before next_chunk, and
+  // returns true if it was the last one, in which case the pass is over:
+  synchronized boolean Leave( final long next_chunk )
+  {
+    if( next_chunk < m_cut_below )
+    {
+      Leave_Cut_Loose( next_chunk );
+      return false;
+    }
+    // The reader will not be sending the rest of the window:
+    for( long k=next_chunk; k<m_chunks_read; k++ )
+    {
+      m_pending[ (int)(k % WINDOW_CHUNKS) ]--;
+    }
+    m_num_readers--;
+    notifyAll();
+
+    if( 0 == m_num_readers )
+    {
+      m_closed = true;
+
+      // No reader is left to send out of the window:
+      for( int slot=0; slot<WINDOW_CHUNKS; slot++ )
+      {
+        m_pool.Put( m_chunks[ slot ] );
+        m_chunks[ slot ] = null;
+      }
+      Close_File();
+    }
+    return m_closed;
+  }
+  // A reader cut loose at chunk j gives back its share of the buffer it
+  // kept, and the file stays open until the last of them is done with it:
+  void Leave_Cut_Loose( final long j )
+  {
+    Orphan_Chunk orphan = m_orphans.get( j );
+
+    if( null != orphan && 0 == --orphan.m_num_readers )
+    {
+      m_orphans.remove( j );
+      m_pool.Put( orphan.m_buf );
+    }
+    m_num_cut--;
+
+    if( m_closed ) Close_File();
+  }
+  void Close_File()
+  {
+    if( 0 == m_num_cut )
+    try {
+      m_file_chan.close();
+    }
+    catch( IOException e )
+    {
+      System.out.println("File_server: Read_Flight.Close_File(): IOException: " + e );
+    }
+  }
+  void Wait( final long timeout_ms ) throws IOException
+  {
+    try {
+      wait( timeout_ms );
+    }
+    catch( InterruptedException e )
+    {
+      throw new IOException("Interrupted waiting for "+ m_src_path );
+    }
+  }
+  static final int CHUNK_SIZE    = 256*1024;
+  static final int WINDOW_CHUNKS = 16;
+  static final int MAX_LAG_MS    = 2000; // Before a slow reader is cut loose
+
+  final Buffer_Pool  m_pool;
+  final Path         m_key;
+  final Path         m_src_path;
+  final long         m_size;
+  final FileTime     m_mtime;
+  final long         m_num_chunks;
+  final FileChannel  m_file_chan;
+  final ByteBuffer[] m_chunks  = new ByteBuffer[ WINDOW_CHUNKS ];
+  final int[]        m_pending = new int[ WINDOW_CHUNKS ]; // Readers yet to send each chunk
+
+  // Buffers kept by readers cut loose, by the chunk in them:
+  final HashMap<Long,Orphan_Chunk> m_orphans = new HashMap<Long,Orphan_Chunk>();
+
+  long    m_chunks_read;
+  long    m_cut_below;   // Readers still on a chunk below this were cut loose
+  int     m_num_cut;     // Readers cut loose that have yet to leave
+  long    m_first_chunk; // Oldest chunk still in the window
+  int     m_num_readers;
+  int     m_num_joined;
+  boolean m_reading;
+  boolean m_closed;
+  String  m_error;
+}
+
+// A window buffer kept by the readers cut loose while sending out of it,
+// which goes back to the pool once the last of them leaves:
+class Orphan_Chunk
+{
+  Orphan_Chunk( final ByteBuffer buf
+              , final int        num_readers )
+  {
+    m_buf         = buf;
+    m_num_readers = num_readers;
+  }
+  final ByteBuffer m_buf;
+
+  int m_num_readers;
+}
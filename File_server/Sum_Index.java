@@ -0,0 +1,841 @@
+////////////////////////////////////////////////////////////////////////////////
+// File Server Java Implementation                                            //
+// Copyright (c) 31 Dec 2019 Paul J. Gartside                                 //
+////////////////////////////////////////////////////////////////////////////////
+// Permission is hereby granted, free of charge, to any person obtaining a    //
+// copy of this software and associated documentation files (the "Software"), //
+// to deal in the Software without restriction, including without  limitation //
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,   //
+// and/or sell copies of the Software, and to permit persons to whom the      //
+// Software is furnished to do so, subject to the following conditions:       //
+//                                                                            //
+// The above copyright notice and this permission notice shall be included in //
+// all copies or substantial portions of the Software.                        //
+//                                                                            //
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR //
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,   //
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL    //
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER //
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING    //
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER        //
+// DEALINGS IN THE SOFTWARE.                                                  //
+////////////////////////////////////////////////////////////////////////////////
+// ---------------------
+// File Protocol Summary
+// ---------------------
+//
+//               |<1>|<-- 4 bytes ---->|
+//               ----------------------------------------
+// Read  Request | 1 | Filename length | Filename       |
+// GET           |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ------>|
+// Read          ------------------------------------
+// Response      | 2 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Read          ----------------------------------------------
+// Response      | 2 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|< 4 bytes >|<-- 4 bytes ---->|
+//               ----------------------------------------------------
+// Write Request | 3 | num_bytes | Filename length | Filename       |
+// PUT           |   | in file   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Write         ----------------
+// Response      | 4 | True=1   |
+// Affirmative   |   | 00000001 |
+// Affirmative   ----------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Write         ----------------------------------------------
+// Response      | 4 | False=0  | Num utf16 chars | errstring |
+// Negative      |   | 00000000 | in errstring    |           |
+//               ----------------------------------------------
+//
+//               |<1>|
+// Read/Write    -----------------
+// DATA          | 5 | File data |
+//               -----------------
+//
+// ----------                         ----------
+// | Client |                         | Server |
+// ----------                         ----------
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Affirmative ----|
+//     |<-- File data --------------------|
+//     |                                  |
+//     |--- Read Request ---------------->|
+//     |<-- Read Response Negative -------|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Affirmative ---|
+//     |--- File data ------------------->|
+//     |                                  |
+//     |--- Write Request --------------->|
+//     |<-- Write Response Negative ------|
+//     |                                  |
+//
+// A connection can carry any number of requests, one after another.  The
+// server waits for the next request on the same connection until the client
+// closes it, or until it has been idle for longer than the idle timeout.
+// A client may also send several requests before reading any responses;
+// the server answers them one at a time, in the order they were sent.
+//
+//
+//               |<1>|<-- 8 bytes -->|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Ranged        --------------------------------------------------------------------
+// Read  Request | 8 | Offset        | num_bytes     | Filename length | Filename       |
+// GET           |   |               | -1 = to EOF   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|<-- 8 bytes ------->|
+// Ranged Read   ---------------------------------------------------------
+// Response      | 9 | True=1   | num_bytes in file | num_bytes in range |
+// Affirmative   ---------------------------------------------------------
+//
+// A ranged read gets num_bytes of the file starting at offset, and is
+// followed by DATA just like a read.  A range running past the end of the
+// file is cut short to the end of the file.  The negative ranged read
+// response is the negative read response with an opcode of 9.
+//
+//               |<1>|<- 8 bytes ->|<- 8 bytes ->|<- 8 bytes ->|<-- 4 bytes ---->|
+// Segmented     -----------------------------------------------------------------------------------
+// Write Request |10 | num_bytes   | Offset      | num_bytes   | Filename length | Filename       |
+// PUT           |   | in file     |             | in segment  | Num utf16 chars | in utf16 chars |
+//               -----------------------------------------------------------------------------------
+//
+// A segmented write puts num_bytes of the file at offset, and is followed
+// by DATA just like a write.  The segments of one file can arrive on any
+// number of connections at the same time.  The server writes them into a
+// temporary file, and only moves it to the destination once every segment
+// has arrived.  If a segment is cut short, the whole file is given up on.
+// The segmented write responses are the write responses with an opcode
+// of 11.
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------
+// Read  Request |12 | Flags    | Filename length | Filename       |
+// GET64         |   | 1=chunks | Num utf16 chars | in utf16 chars |
+//               |   | 2=zip    |                 |                |
+//               |   | 4=check  |                 |                |
+//               ---------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|<-- 8 bytes ------>|
+// 64-bit Read   -----------------------------------------------
+// Response      |13 | True=1   | Flags    | num_bytes in file |
+// Affirmative   |   |          | 1=chunks | -1 if chunked     |
+//               |   |          | 2=zip    |                   |
+//               |   |          | 4=check  |                   |
+//               -----------------------------------------------
+//
+//               |<1>|<1 byte>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// 64-bit        ---------------------------------------------------------------
+// Write Request |14 | Flags  | num_bytes     | Filename length | Filename       |
+// PUT64         |   |1=chunks| -1 if chunked | Num utf16 chars | in utf16 chars |
+//               |   |2=zip   |               |                 |                |
+//               |   |4=check |               |                 |                |
+//               ---------------------------------------------------------------
+//
+//               |<1>|< 1 byte >|< 1 byte >|
+// 64-bit Write  ---------------------------
+// Response      |15 | True=1   | Flags    |
+// Affirmative   |   |          | 2=zip    |
+//               |   |          | 4=check  |
+//               ---------------------------
+//
+//               |<-- 4 bytes -->|
+//               ------------------------------
+// Chunk         | num_bytes     | File data  |
+//               | 0 = last      |            |
+//               ------------------------------
+//
+// The 64-bit read and write carry file sizes in 8 bytes, so they are not
+// limited to files under 2 GB.  If the chunks flag is set, the DATA opcode
+// is followed by chunks of up to 65536 bytes instead of the file data, up
+// to an empty chunk that ends the file, so the size of the file never has
+// to be known up front.  The negative 64-bit read response is the negative
+// read response with an opcode of 13, and the negative 64-bit write
+// response is the negative write response with an opcode of 15.
+//
+// The zip flag in a 64-bit request offers to compress the file data, and
+// the zip flag in the affirmative response accepts it.  Compressed file
+// data is always sent as chunks, each chunk holding up to 65536 bytes of
+// the file Deflate compressed on its own, so the sizes in the chunk
+// headers are the compressed sizes.  A chunk that would not compress is
+// sent as it is instead, with the top bit of its size set.
+//
+//               |<-- 4 bytes -->|              |<-- 4 bytes -->|
+// Checked       ----------------------------------------------
+// Chunk         | num_bytes     | File data  | CRC32C of     |
+//               | 0 = last      |            | File data     |
+//               ----------------------------------------------
+//
+//               |<-- 32 bytes ---->|
+// File          --------------------
+// Digest        | SHA-256 of file  |
+//               --------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 8 bytes each -->|
+// Repair        ------------------------------------------
+// Request       |16 | num_chunks    | Chunk numbers      |
+//               |   | 0 = all good  |                    |
+//               |   | -1 = give up  |                    |
+//               ------------------------------------------
+//
+//               |<-- 8 bytes -->|
+// Repaired      ------------------------------------
+// Chunk         | Chunk number  | Checked chunk    |
+//               ------------------------------------
+//
+// The check flag in a 64-bit request offers to check the file data, and
+// the check flag in the affirmative response accepts it.  A client asking
+// for checks also asks for chunks, so a server that does not check still
+// sends or takes chunks.  In a checked transfer every chunk but the last
+// holds 65536 bytes of the file, so chunks are numbered from 0 by their
+// place in it, and each is followed by the CRC32C of its data as sent.
+// The empty chunk at the end has no CRC32C, and is followed by the SHA-256
+// of the whole file.  The receiver then sends a Repair Request naming the
+// chunks whose CRC32C did not match, and the sender sends each of them
+// again as a Repaired Chunk, in the same order, for up to 3 rounds.  A
+// Repair Request for 0 chunks says the file arrived whole and matches its
+// SHA-256, and one for -1 chunks says the receiver gave up on the file.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Sums          ----------------------------------------
+// Request       |17 | Filename length | Filename       |
+//               |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<- 8 bytes ->|<-- 32 bytes -->|<- 4 bytes ->|<-- 4 bytes each -->|
+// Sums          ---------------------------------------------------------------------------------
+// Response      |18 | True=1   | num_bytes   | SHA-256 of     | num_chunks  | CRC32C of each    |
+// Affirmative   |   |          | in file     | file           |             | 64 KB chunk       |
+//               ---------------------------------------------------------------------------------
+//
+//               |<1>|<-- 32 bytes -->|<-- 8 bytes -->|
+// Have          ------------------------------------
+// Request       |19 | SHA-256 of     | num_bytes     |
+//               |   | file           | in file       |
+//               ------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 4 bytes ---->|
+// Have          ---------------------------------------------------
+// Response      |20 | True=1   | Filename length | Filename       |
+// Affirmative   |   |          | Num utf16 chars | in utf16 chars |
+//               ---------------------------------------------------
+//
+// A Sums Request asks for the SHA-256 of a file on the server, and the
+// CRC32C of each 64 KB chunk of it, the last of which may be short.  A
+// Have Request asks whether the server has a file with the given SHA-256
+// and size, and the affirmative response gives the absolute path of one.
+// Neither moves any file data.  The negative responses are the negative
+// read response with an opcode of 18 or 20.  A server keeping an index of
+// the sums of its files answers both without reading any files; one
+// without it works sums out by reading the file, and has no files to
+// offer in answer to a Have Request.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Delta         --------------------------------------------------------
+// Write Request |21 | num_bytes     | Filename length | Filename       |
+// PUT_DELTA     |   | in new file   | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta Write   ----------------------------------------------------------------------
+// Response      |22 | True=1   | num_bytes in  | block_size    | Block signatures    |
+// Affirmative   |   |          | old copy      |               |                     |
+//               |   |          | 0 if no copy  |               |                     |
+//               ----------------------------------------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 16 bytes -->|
+// Block         ----------------------------------
+// Signature     | Weak sum      | Strong sum     |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|
+// Literal       -------------------------------------
+//               | 1 | num_bytes     | New file data |
+//               |   | 1..65536      |               |
+//               -------------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes -->|
+// Copy          -------------------------------------
+//               | 2 | First block   | num_blocks    |
+//               -------------------------------------
+//
+//               |<1>|<-- 32 bytes ---->|
+// Delta         ------------------------
+// End           | 0 | SHA-256 of       |
+//               |   | new file         |
+//               ------------------------
+//
+//               |<1>|< 1 byte >|
+// Delta Write   ----------------
+// Result        |23 | True=1   |
+// Affirmative   ----------------
+//
+// A Delta Write Request puts a new version of a file without sending the
+// parts of it the server already has.  The server cuts its copy of the
+// file into blocks and answers with a signature of each, the last block
+// being short if the size of the copy is not a multiple of block_size.  A
+// signature is the rsync rolling sum of the block, and the first 16 bytes
+// of its SHA-256.  The client looks for those blocks at every byte offset
+// of the new version, and sends it as Literals of the data it did not
+// find, and Copies of runs of blocks it did, up to a Delta End carrying
+// the SHA-256 of the whole new version.  The server writes the new version
+// into a temporary file, and once it has the right size and SHA-256,
+// renames it over the old copy and sends the affirmative Delta Write
+// Result.  A server without a copy of the file sends 0 signatures, and the
+// whole file arrives as literals.  The negative responses are the negative
+// read response with an opcode of 22 or 23, and the old copy is left as it
+// was after either.
+//
+//               |<1>|<-- 4 bytes ---->|
+// Delta         ----------------------------------------
+// Read  Request |24 | Filename length | Filename       |
+// GET_DELTA     |   | Num utf16 chars | in utf16 chars |
+//               ----------------------------------------
+//
+//               |<1>|< 1 byte >|<-- 8 bytes ------>|
+// Delta Read    ------------------------------------
+// Response      |25 | True=1   | num_bytes in file |
+// Affirmative   ------------------------------------
+//
+//               |<-- 8 bytes -->|<-- 4 bytes -->|<-- 20 bytes each -->|
+// Delta         -------------------------------------------------------
+// Signatures    | num_bytes in  | block_size    | Block signatures    |
+//               | old copy      |               |                     |
+//               | 0 if no copy  |               |                     |
+//               -------------------------------------------------------
+//
+// A Delta Read Request is the other way round: the client has an old copy
+// of the file, and once it has the affirmative response, it sends the
+// signatures of the blocks of its copy.  The server then sends DATA
+// followed by the file as Literals and Copies of blocks of the client's
+// copy, up to a Delta End, and the client rebuilds the file out of them.
+// The negative delta read response is the negative read response with an
+// opcode of 25, and is not followed by any signatures.
+//
+//               |<1>|<-- 8 bytes -->|<-- 4 bytes ---->|
+// Store         --------------------------------------------------------
+// Write Request |26 | num_bytes     | Filename length | Filename       |
+// PUT_STORE     |   | in file       | Num utf16 chars | in utf16 chars |
+//               --------------------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Response      |27 | True=1   |
+// Affirmative   ----------------
+//
+//               |<-- 4 bytes -->|<-- 36 bytes each -->|
+// Chunk         ---------------------------------------
+// List          | num_chunks    | Chunk entries       |
+//               ---------------------------------------
+//
+//               |<-- 4 bytes -->|<-- 32 bytes -->|
+// Chunk         ----------------------------------
+// Entry         | num_bytes     | SHA-256 of     |
+//               | in chunk      | chunk          |
+//               ----------------------------------
+//
+//               |<1>|<-- 4 bytes -->|<-- 4 bytes each -->|
+// Missing       ------------------------------------------
+// Chunks        |28 | num_chunks    | Chunk numbers      |
+//               ------------------------------------------
+//
+//               |<1>|< 1 byte >|
+// Store Write   ----------------
+// Result        |29 | True=1   |
+// Affirmative   ----------------
+//
+// A server with a chunk store keeps files as lists of content-defined
+// chunks, each chunk kept once however many files have it.  A Store Write
+// Request puts a file into the store without sending the chunks of it the
+// store already has.  Once it has the affirmative response, the client
+// cuts the file into chunks of 2 KB to 64 KB, ending each one where a gear
+// hash rolling along the file says to, and sends the Chunk List.  The
+// server answers with the numbers of the chunks the store does not have,
+// in order, and the client sends the data of just those, one after the
+// other.  Once all of them match their SHA-256, the server keeps the list
+// as the file and sends the affirmative Store Write Result.  The negative
+// responses are the negative read response with an opcode of 27 or 29.
+// Files put whole any other way are cut into chunks and moved into the
+// store once they have arrived, and files in the store are read the same
+// way as any other, except by a Delta Read Request.
+//
+//               |<1>|
+// Mux           -----
+//               | 6 |
+//               -----
+//
+// A Mux opcode in place of a request switches the connection to framed
+// mode for the rest of its life.  From then on everything sent either way
+// is a frame carrying one message of one stream.  The client picks a new
+// stream id for each request, and the server interleaves the data frames of
+// all of the open streams, so many transfers share one socket without a
+// large file holding up the rest.  A stream ends when all of its file data
+// has been sent, or when either side sends a Cancel frame for it.
+//
+//               |<-- 4 bytes -->|<-- 4 bytes -->|
+//               ------------------------------------------------
+// Frame         | Stream id     | Payload len   | Payload      |
+//               |               | 1..65536      | Message      |
+//               ------------------------------------------------
+//
+//               |<1>|
+// Cancel        -----
+//               | 7 |
+//               -----
+//
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the sums of files on the server, so the sums of a file, or a file
+// with given contents, can be found without reading any files.  Sums are
+// kept by the absolute path of their file, and are only used while the
+// file still has the size and modification time it had when they were
+// worked out.  Handle_Put sums the files it writes on their way in, and
+// any other file is summed the first time it is asked about.
+//
+// Every change to the index is appended to a log on disk, so a restarted
+// server replays the log and has all of its sums back without reading the
+// files again.  Once most of the records in the log are out of date, it
+// is rewritten with just the current ones.  A log cut short by a crash
+// loses only its last record.
+class Sum_Index
+{
+  Sum_Index( final Path log_path )
+  {
+    m_log_path = log_path;
+  }
+  //               |<-- 4 bytes -->|<-- 4 bytes -->|
+  // Index         ---------------------------------
+  // Log Header    | "FSIX"        | Version = 1   |
+  //               ---------------------------------
+  //
+  //               |<1>|<-- 4 bytes ---->|                |<- 8 bytes ->|<- 8 bytes ->|
+  // Put           -----------------------------------------------------------------------
+  // Record        | 1 | Path length     | Path           | num_bytes   | mtime in ns |
+  //               |   | Num utf16 chars | in utf16 chars | in file     |             |
+  //               -----------------------------------------------------------------------
+  //
+  //               |<-- 32 bytes -->|<-- 4 bytes -->|<-- 4 bytes each -->|
+  // Put Record    ------------------------------------------------------
+  // continued     | SHA-256 of     | num_chunks    | CRC32C of each    |
+  //               | file           |               | 64 KB chunk       |
+  //               ------------------------------------------------------
+  //
+  //               |<1>|<-- 4 bytes ---->|
+  // Remove        ----------------------------------------
+  // Record        | 2 | Path length     | Path           |
+  //               |   | Num utf16 chars | in utf16 chars |
+  //               ----------------------------------------
+  //
+  // Replays the log, if there is one, and opens it for appending to.
+  // Returns the number of files the index has sums of.
+  synchronized int Load() throws IOException
+  {
+    final long good_len = Files.exists( m_log_path ) ? Replay() : 0;
+
+    m_log = FileChannel.open( m_log_path, StandardOpenOption.CREATE
+                                        , StandardOpenOption.WRITE );
+    // Drop whatever came after the last whole record:
+    m_log.truncate( good_len );
+    m_log.position( good_len );
+
+    if( 0 == good_len ) Write_Fully( m_log, Header() );
+
+    if( Worth_Compacting() ) Compact();
+
+    return m_entries.size();
+  }
+  // Reads the records of the log into the index, and returns the length
+  // of the log up to the end of the last whole record in it:
+  long Replay() throws IOException
+  {
+    DataInputStream din = new DataInputStream(
+                          new BufferedInputStream( Files.newInputStream( m_log_path ), READ_BUF_SIZE ) );
+    long good_len = 0;
+    try {
+      if( din.readInt() != LOG_MAGIC || din.readInt() != LOG_VERSION )
+      {
+        throw new IOException("Not a sum index: "+ m_log_path );
+      }
+      good_len = HEADER_LEN;
+
+      for( boolean more = true; more; )
+      {
+        final byte type     = din.readByte();
+        final int  path_len = din.readInt();
+
+        more = ( PUT_RECORD == type || REMOVE_RECORD == type )
+            && 0 < path_len && path_len <= MAX_PATH_LEN;
+        if( more )
+        {
+          StringBuilder sb = new StringBuilder( path_len );
+
+          for( int k=0; k<path_len; k++ )
+          {
+            sb.append( din.readChar() );
+          }
+          final Path key = FileSystems.getDefault().getPath( sb.toString() );
+
+          long rec_len = 1+4+2*path_len;
+
+          if( PUT_RECORD == type )
+          {
+            final Sum_Entry entry = Read_Sums( din );
+
+            more = null != entry;
+            if( more )
+            {
+              Insert( key, entry );
+              rec_len += 8+8+File_server.DIGEST_LEN+4+4*entry.m_chunk_sums.length;
+            }
+          }
+          else {
+            Remove( key );
+          }
+          if( more )
+          {
+            good_len += rec_len;
+            m_num_records++;
+          }
+        }
+      }
+    }
+    catch( EOFException e )
+    {
+      // The end of the log, or a record cut short
+    }
+    finally {
+      din.close();
+    }
+    return good_len;
+  }
+  // Reads the rest of a put record, or returns null if it does not make sense:
+  static Sum_Entry Read_Sums( final DataInputStream din ) throws IOException
+  {
+    final long   size   = din.readLong();
+    final long   mtime  = din.readLong();
+    final byte[] digest = new byte[ File_server.DIGEST_LEN ];
+
+    din.readFully( digest );
+
+    final int num_chunks = din.readInt();
+
+    if( size < 0 || num_chunks != Num_Chunks( size ) ) return null;
+
+    byte[] sum_bytes = new byte[ 4*num_chunks ];
+
+    din.readFully( sum_bytes );
+
+    int[] chunk_sums = new int[ num_chunks ];
+
+    ByteBuffer.wrap( sum_bytes ).asIntBuffer().get( chunk_sums );
+
+    return new Sum_Entry( size, mtime, digest, chunk_sums );
+  }
+  static long Num_Chunks( final long size )
+  {
+    return ( size + File_server.CHUNK_SIZE - 1 ) / File_server.CHUNK_SIZE;
+  }
+  // Returns the current sums of src_path, summing it first if need be, or
+  // null if it is not a regular file or it changed while being summed:
+  Sum_Entry Get( final Path src_path ) throws IOException
+  {
+    final Path key = Key( src_path );
+
+    Sum_Entry entry = Lookup( key, Lru_Cache.Read_Attributes( src_path ) );
+
+    if( null == entry )
+    {
+      // Summed outside of the lock, so a long read does not hold up others:
+      entry = Sum_File( src_path );
+
+      if( null != entry ) Record( key, entry );
+    }
+    return entry;
+  }
+  // Returns the current sums of src_path if they are already
+  // in the index, or null without reading it if not:
+  Sum_Entry Peek( final Path src_path ) throws IOException
+  {
+    return Lookup( Key( src_path ), Lru_Cache.Read_Attributes( src_path ) );
+  }
+  // Records the sums of dst_path, worked out as it was written:
+  void Put( final Path dst_path, final File_Sums sums ) throws IOException
+  {
+    BasicFileAttributes attrs = Lru_Cache.Read_Attributes( dst_path );
+
+    if( null != attrs && attrs.isRegularFile() && attrs.size() == sums.Num_Bytes() )
+    {
+      Record( Key( dst_path ), sums.To_Entry( Mtime( attrs ) ) );
+    }
+  }
+  // Returns the path of a file with the given SHA-256 and size,
+  // or null if the index knows of none:
+  Path Find( final byte[] digest, final long size ) throws IOException
+  {
+    for( Path key : Candidates( digest ) )
+    {
+      // Checked against the file as it is now:
+      Sum_Entry entry = Lookup( key, Lru_Cache.Read_Attributes( key ) );
+
+      if( null != entry && entry.m_size == size
+                        && MessageDigest.isEqual( entry.m_digest, digest ) )
+      {
+        return key;
+      }
+    }
+    return null;
+  }
+  synchronized ArrayList<Path> Candidates( final byte[] digest )
+  {
+    HashSet<Path> paths = m_by_digest.get( ByteBuffer.wrap( digest ) );
+
+    return null == paths ? new ArrayList<Path>() : new ArrayList<Path>( paths );
+  }
+  // Returns the sums of key, or null if there are none or they are out of
+  // date, in which case they are dropped:
+  synchronized Sum_Entry Lookup( final Path key, final BasicFileAttributes attrs ) throws IOException
+  {
+    Sum_Entry entry = m_entries.get( key );
+
+    if( null != entry && ( null == attrs || !Is_Current( entry, attrs ) ) )
+    {
+      Remove( key );
+      Append( Remove_Record( key ) );
+      entry = null;
+    }
+    return entry;
+  }
+  synchronized void Record( final Path key, final Sum_Entry entry ) throws IOException
+  {
+    Insert( key, entry );
+    Append( Put_Record( key, entry ) );
+  }
+  void Insert( final Path key, final Sum_Entry entry )
+  {
+    Remove( key );
+
+    m_entries.put( key, entry );
+
+    final ByteBuffer digest = ByteBuffer.wrap( entry.m_digest );
+
+    HashSet<Path> paths = m_by_digest.get( digest );
+
+    if( null == paths )
+    {
+      paths = new HashSet<Path>();
+      m_by_digest.put( digest, paths );
+    }
+    paths.add( key );
+  }
+  void Remove( final Path key )
+  {
+    final Sum_Entry old = m_entries.remove( key );
+
+    if( null != old )
+    {
+      final ByteBuffer digest = ByteBuffer.wrap( old.m_digest );
+
+      HashSet<Path> paths = m_by_digest.get( digest );
+
+      paths.remove( key );
+
+      if( paths.isEmpty() ) m_by_digest.remove( digest );
+    }
+  }
+  void Append( final ByteBuffer record ) throws IOException
+  {
+    Write_Fully( m_log, record );
+
+    m_num_records++;
+
+    if( Worth_Compacting() ) Compact();
+  }
+  boolean Worth_Compacting()
+  {
+    return MIN_COMPACT_RECORDS < m_num_records
+        && COMPACT_FACTOR*m_entries.size() < m_num_records;
+  }
+  // Replaces the log with one holding just the current sums.  The new log
+  // is written beside the old one and moved over it, so a crash part way
+  // through leaves one or the other whole.
+  void Compact() throws IOException
+  {
+    final Path tmp_path = m_log_path.resolveSibling( m_log_path.getFileName() +".tmp");
+
+    FileChannel tmp = FileChannel.open( tmp_path, StandardOpenOption.CREATE
+                                                , StandardOpenOption.WRITE
+                                                , StandardOpenOption.TRUNCATE_EXISTING );
+    try {
+      Write_Fully( tmp, Header() );
+
+      for( Map.Entry<Path,Sum_Entry> e : m_entries.entrySet() )
+      {
+        Write_Fully( tmp, Put_Record( e.getKey(), e.getValue() ) );
+      }
+      tmp.force( false );
+    }
+    finally {
+      tmp.close();
+    }
+    Files.move( tmp_path, m_log_path, StandardCopyOption.REPLACE_EXISTING
+                                    , StandardCopyOption.ATOMIC_MOVE );
+    m_log.close();
+    m_log = FileChannel.open( m_log_path, StandardOpenOption.WRITE );
+    m_log.position( m_log.size() );
+
+    m_num_records = m_entries.size();
+  }
+  static ByteBuffer Header()
+  {
+    ByteBuffer bb = ByteBuffer.allocate( HEADER_LEN );
+    bb.putInt( LOG_MAGIC );
+    bb.putInt( LOG_VERSION );
+    bb.flip();
+    return bb;
+  }
+  static ByteBuffer Put_Record( final Path key, final Sum_Entry entry )
+  {
+    final String path = key.toString();
+    final int    num_chunks = entry.m_chunk_sums.length;
+
+    ByteBuffer bb = ByteBuffer.allocate( 1+4+2*path.length()
+                                       + 8+8+File_server.DIGEST_LEN+4+4*num_chunks );
+    bb.put( PUT_RECORD );
+    Put_Path( bb, path );
+    bb.putLong( entry.m_size );
+    bb.putLong( entry.m_mtime );
+    bb.put( entry.m_digest );
+    bb.putInt( num_chunks );
+    bb.asIntBuffer().put( entry.m_chunk_sums );
+    bb.position( bb.limit() );
+    bb.flip();
+    return bb;
+  }
+  static ByteBuffer Remove_Record( final Path key )
+  {
+    final String path = key.toString();
+
+    ByteBuffer bb = ByteBuffer.allocate( 1+4+2*path.length() );
+    bb.put( REMOVE_RECORD );
+    Put_Path( bb, path );
+    bb.flip();
+    return bb;
+  }
+  static void Put_Path( final ByteBuffer bb, final String path )
+  {
+    bb.putInt( path.length() );
+
+    for( int k=0; k<path.length(); k++ )
+    {
+      bb.putChar( path.charAt( k ) );
+    }
+  }
+  static void Write_Fully( final FileChannel fc, final ByteBuffer bb ) throws IOException
+  {
+    while( bb.hasRemaining() )
+    {
+      fc.write( bb );
+    }
+  }
+  // Works out the sums of src_path by reading all of it, and returns
+  // them, or null if it is not a regular file or changed meanwhile:
+  static Sum_Entry Sum_File( final Path src_path ) throws IOException
+  {
+    BasicFileAttributes attrs = Lru_Cache.Read_Attributes( src_path );
+
+    if( null == attrs || !attrs.isRegularFile() ) return null;
+
+    File_Sums  sums = new File_Sums();
+    ByteBuffer bb   = ByteBuffer.allocate( READ_BUF_SIZE );
+
+    FileChannel fc = FileChannel.open( src_path, StandardOpenOption.READ );
+    try {
+      while( 0 < fc.read( bb ) )
+      {
+        bb.flip();
+        sums.Add( bb );
+        bb.clear();
+      }
+    }
+    finally {
+      fc.close();
+    }
+    BasicFileAttributes after = Lru_Cache.Read_Attributes( src_path );
+
+    if( null == after || !Is_Same_Version( attrs, after ) || attrs.size() != sums.Num_Bytes() )
+    {
+      return null;
+    }
+    return sums.To_Entry( Mtime( attrs ) );
+  }
+  static boolean Is_Same_Version( final BasicFileAttributes attrs
+                                , final BasicFileAttributes after )
+  {
+    return attrs.size() == after.size()
+        && Mtime( attrs ) == Mtime( after );
+  }
+  static boolean Is_Current( final Sum_Entry entry, final BasicFileAttributes attrs )
+  {
+    return attrs.isRegularFile()
+        && entry.m_size  == attrs.size()
+        && entry.m_mtime == Mtime( attrs );
+  }
+  static long Mtime( final BasicFileAttributes attrs )
+  {
+    return attrs.lastModifiedTime().to( TimeUnit.NANOSECONDS );
+  }
+  static Path Key( final Path path )
+  {
+    return path.toAbsolutePath().normalize();
+  }
+  static final int  LOG_MAGIC     = 0x46534958; // "FSIX"
+  static final int  LOG_VERSION   = 1;
+  static final int  HEADER_LEN    = 4+4;
+  static final byte PUT_RECORD    = 1;
+  static final byte REMOVE_RECORD = 2;
+  static final int  MAX_PATH_LEN  = 4096;
+  static final int  READ_BUF_SIZE = 256*1024;
+
+  // The log is rewritten once it has more than COMPACT_FACTOR
+  // records for each file with sums, and MIN_COMPACT_RECORDS in all:
+  static final int  COMPACT_FACTOR      = 2;
+  static final int  MIN_COMPACT_RECORDS = 1024;
+
+  final Path m_log_path;
+
+  FileChannel m_log;
+  long        m_num_records; // Records in the log, current or not
+
+  // Sums by absolute path, and the paths of the files with each SHA-256:
+  final HashMap<Path,Sum_Entry>           m_entries   = new HashMap<Path,Sum_Entry>();
+  final HashMap<ByteBuffer,HashSet<Path>> m_by_digest = new HashMap<ByteBuffer,HashSet<Path>>();
+}
@@ -0,0 +1,49 @@
+#!/bin/bash
+
+#set -o xtrace
+#set -o noexec
+
+# Starts num_clients File_get clients at the same time, each downloading
+# source_file from the File_server at server_ip_addr, and reports the
+# wall clock time for all of them to finish.  Run it once against
+# 'File_server -mode pool' and once against 'File_server -mode virtual'
+# to compare the two under the same load.
+
+FILE_GET_JAR=${FILE_GET_JAR:-../File_get/File_get.jar}
+
+function usage
+{
+  echo "usage: $0 server_ip_addr source_file num_clients"
+  exit 1
+}
+
+if [ $# -ne 3 ]; then
+  usage
+fi
+
+server=$1
+src_file=$2
+num_clients=$3
+
+if [ ! -e $FILE_GET_JAR ]; then
+  echo "$FILE_GET_JAR does not exist, build File_get first"
+  exit 1
+fi
+
+tmp_dir=$(mktemp -d)
+
+st_time=$(date +%s%N)
+
+for (( k=0; k<num_clients; k++ )); do
+  java -jar $FILE_GET_JAR $server $src_file $tmp_dir/$k > $tmp_dir/$k.log &
+done
+wait
+
+end_time=$(date +%s%N)
+
+num_ok=$(ls $tmp_dir/*.log | xargs grep -l "Received from" | wc -l)
+time_ms=$(( (end_time - st_time)/1000000 ))
+
+echo "$num_ok of $num_clients clients received $src_file in $time_ms ms"
+
+\rm -rf $tmp_dir
@@ -7,7 +7,7 @@ NAME=File_server
 
 CLASS_DIR=classes
 
-FILES='Handle_Get Handle_Put File_server'
+FILES='Send_Mode Upload Zip_Type Buffer_Pool Buffer_Ring Io_Watch Chunk_Zip Cache_Entry Lru_Cache File_Cache Zip_Entry Zip_Cache Mapped_File Map_Cache Read_Flight Request_Type Sum_Entry File_Sums Sum_Index Block_Sigs Delta_Sender Chunker Manifest Chunk_Store Handle_Get Handle_Put Handle_Sums Handle_Delta Handle_Store Handle_Mux Handle_Client Nio_Connection Nio_Selector Nio_Server File_server'
 
 # Running without arguments will make without cleaning
 clean=false
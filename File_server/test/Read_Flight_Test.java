@@ -0,0 +1,116 @@
+////////////////////////////////////////////////////////////////////////////////
+// File Server Java Implementation                                            //
+// Copyright (c) 31 Dec 2019 Paul J. Gartside                                 //
+////////////////////////////////////////////////////////////////////////////////
+// Permission is hereby granted, free of charge, to any person obtaining a    //
+// copy of this software and associated documentation files (the "Software"), //
+// to deal in the Software without restriction, including without  limitation //
+// the rights to use, copy, modify, merge, publish, distribute, sublicense,   //
+// and/or sell copies of the Software, and to permit persons to whom the      //
+// Software is furnished to do so, subject to the following conditions:       //
+//                                                                            //
+// The above copyright notice and this permission notice shall be included in //
+// all copies or substantial portions of the Software.                        //
+//                                                                            //
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR //
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,   //
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL    //
+// THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER //
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING    //
+// FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER        //
+// DEALINGS IN THE SOFTWARE.                                                  //
+////////////////////////////////////////////////////////////////////////////////
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+// Checks that a reader of a Read_Flight cut loose after sending one chunk,
+// but before getting the next, still gets the chunk it was cut loose on,
+// and not whatever has since been read into the buffer's slot.
+//
+// Run with: make test
+class Read_Flight_Test
+{
+  public static void main( String[] args ) throws IOException
+  {
+    final Path path = Files.createTempFile("Read_Flight_Test", null );
+    try {
+      Check_Cut_Before_Chunk( path );
+
+      System.out.println("Read_Flight_Test: passed");
+    }
+    finally {
+      Files.delete( path );
+    }
+  }
+  static void Check_Cut_Before_Chunk( final Path path ) throws IOException
+  {
+    final int NUM_CHUNKS = Read_Flight.WINDOW_CHUNKS + 4;
+
+    // Every byte of chunk k is k, so a chunk out of the wrong slot shows:
+    final byte[] data = new byte[ NUM_CHUNKS*Read_Flight.CHUNK_SIZE ];
+
+    for( int k=0; k<data.length; k++ )
+    {
+      data[k] = (byte)(k / Read_Flight.CHUNK_SIZE);
+    }
+    Files.write( path, data );
+
+    final BasicFileAttributes attrs = Files.readAttributes( path, BasicFileAttributes.class );
+
+    Read_Flight flight = new Read_Flight( new Buffer_Pool( Buffer_Pool.DEFAULT_MAX_FREE_BYTES )
+                                        , path, path, attrs );
+    Check( flight.Join(), "fast reader joins");
+    Check( flight.Join(), "slow reader joins");
+
+    // Both readers send chunk 0:
+    Check_Chunk( flight.Chunk( 0 ), 0 );
+    Check( flight.Done( 0 ), "fast reader done with chunk 0");
+    Check_Chunk( flight.Chunk( 0 ), 0 );
+    Check( flight.Done( 0 ), "slow reader done with chunk 0");
+
+    // The slow reader is held before getting chunk 1, while the fast reader
+    // sends the whole file.  It waits MAX_LAG_MS at chunk 1 + WINDOW_CHUNKS,
+    // which needs chunk 1's slot, and then cuts the slow reader loose:
+    final long st_time = System.currentTimeMillis();
+
+    for( long k=1; k<NUM_CHUNKS; k++ )
+    {
+      Check_Chunk( flight.Chunk( k ), k );
+      Check( flight.Done( k ), "fast reader done with chunk "+ k );
+    }
+    Check( null == flight.Chunk( NUM_CHUNKS ), "end of file");
+    Check( Read_Flight.MAX_LAG_MS <= System.currentTimeMillis() - st_time
+         , "fast reader waited for the slow one");
+    // The pass is over, but the file and the kept buffer are not:
+    Check( flight.Leave( NUM_CHUNKS ), "pass over once the fast reader leaves");
+
+    // The slow reader gets on with chunk 1:
+    Check_Chunk( flight.Chunk( 1 ), 1 );
+    Check( !flight.Done( 1 ), "slow reader told it was cut loose");
+    Check( !flight.Leave( 1 ), "cut loose reader leaves");
+  }
+  static void Check_Chunk( final ByteBuffer bb, final long k )
+  {
+    Check( null != bb, "chunk "+ k +" is there");
+
+    final int len = Read_Flight.CHUNK_SIZE;
+
+    Check( bb.remaining() == len, "chunk "+ k +" is "+ len +" bytes, not "+ bb.remaining() );
+
+    for( int i=bb.position(); i<bb.limit(); i++ )
+    {
+      if( bb.get( i ) != (byte)k )
+      {
+        Check( false, "chunk "+ k +" has byte from chunk "+ bb.get( i ) );
+      }
+    }
+  }
+  static void Check( final boolean ok, final String what )
+  {
+    if( !ok ) throw new AssertionError("Read_Flight_Test: failed: "+ what );
+  }
+}